@@ -18,20 +18,35 @@ package com.ning.jetty.base.modules;
 
 import com.ning.arecibo.jmx.AreciboMonitoringModule;
 import com.ning.arecibo.metrics.guice.AreciboMetricsModule;
+import com.ning.jetty.core.CoreConfig;
+import com.ning.jetty.core.healthchecks.HealthCheckRunner;
 import com.ning.jetty.core.modules.ServerModule;
+import com.ning.jetty.eventtracker.BatchingCollectorTracker;
 import com.ning.jetty.eventtracker.CollectorTracker;
+import com.ning.jetty.eventtracker.SpoolingCollectorTracker;
 import com.ning.jetty.eventtracker.Tracker;
 import com.ning.jetty.eventtracker.config.TrackerConfig;
 import com.ning.jetty.eventtracker.filters.TrackerFilter;
+import com.ning.jetty.eventtracker.sampling.RequestSampler;
+import com.ning.jetty.eventtracker.servlets.RequestStatsServlet;
+import com.ning.jetty.eventtracker.stats.RequestStatsAggregator;
 import com.ning.jetty.jdbi.config.DaoConfig;
 import com.ning.jetty.log4j.Log4JMBean;
+import com.ning.jetty.log4j.healthchecks.ErrorRateHealthCheck;
 import com.ning.jetty.utils.arecibo.Jetty7AreciboConnector;
 import com.ning.jetty.utils.arecibo.Log4JMBeanAreciboConnector;
+import com.ning.jetty.utils.filters.CompressionFilter;
 import com.ning.metrics.eventtracker.CollectorControllerHttpMBeanModule;
 import com.ning.metrics.eventtracker.CollectorControllerSmileModule;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
 import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.yammer.metrics.HealthChecks;
 import com.yammer.metrics.core.HealthCheck;
+import com.yammer.metrics.core.HealthCheckRegistry;
 
 import org.skife.config.ConfigSource;
 import org.skife.config.ConfigurationObjectFactory;
@@ -54,6 +69,7 @@ public abstract class BaseServerModule extends ServerModule
     private final ArrayList<Class> configs = new ArrayList<Class>();
     // Healthcheck classes
     private final ArrayList<Class<? extends HealthCheck>> healthchecks = new ArrayList<Class<? extends HealthCheck>>();
+    private HealthCheckRunner healthCheckRunner = null;
     // JMX beans to export
     private final ArrayList<Class> beans = new ArrayList<Class>();
     // Arecibo integration
@@ -113,6 +129,8 @@ public abstract class BaseServerModule extends ServerModule
 
         this.configs.add(DaoConfig.class);
         this.configs.add(TrackerConfig.class);
+
+        getStartupProfiler().setEagerSingletonThreads(getCoreConfig().getEagerSingletonThreads());
     }
 
     @Override
@@ -126,6 +144,8 @@ public abstract class BaseServerModule extends ServerModule
         installHealthChecks();
         installArecibo();
         installEventtracker();
+        // After the TrackerFilter, for it to see compressed sizes
+        installCompression();
         installLog4j();
         installExtraModules();
 
@@ -151,8 +171,49 @@ public abstract class BaseServerModule extends ServerModule
 
         install(new CollectorControllerSmileModule());
         install(new CollectorControllerHttpMBeanModule());
-        bind(Tracker.class).to(CollectorTracker.class).asEagerSingleton();
+        // Single instance for the filter, JMX and the shutdown
+        if (getTrackerConfig().isSpoolEnabled()) {
+            bind(SpoolingCollectorTracker.class).asEagerSingleton();
+            bind(Tracker.class).to(SpoolingCollectorTracker.class);
+            closeablesBinder.addBinding().to(SpoolingCollectorTracker.class);
+        }
+        else if (getTrackerConfig().isBatchingEnabled()) {
+            bind(BatchingCollectorTracker.class).asEagerSingleton();
+            bind(Tracker.class).to(BatchingCollectorTracker.class);
+            closeablesBinder.addBinding().to(BatchingCollectorTracker.class);
+        }
+        else {
+            bind(Tracker.class).to(CollectorTracker.class).asEagerSingleton();
+        }
         filter("*").through(TrackerFilter.class);
+
+        if (getTrackerConfig().isStatsEnabled()) {
+            // Next to Codahale's /1.0/metrics
+            serve("/1.0/requeststats").with(RequestStatsServlet.class);
+        }
+    }
+
+    private void installCompression()
+    {
+        final CoreConfig config = getCoreConfig();
+        if (!config.isCompressionEnabled()) {
+            return;
+        }
+
+        final Iterable<String> mimeTypes = Splitter.on(',').trimResults().omitEmptyStrings().split(config.getCompressionMimeTypes());
+        bind(CompressionFilter.class).toInstance(new CompressionFilter(config.getCompressionMinSize(), ImmutableList.copyOf(mimeTypes), config.getCompressionLevel()));
+        filter("*").through(CompressionFilter.class);
+    }
+
+    private CoreConfig getCoreConfig()
+    {
+        return new ConfigurationObjectFactory(configSource).build(CoreConfig.class);
+    }
+
+    private TrackerConfig getTrackerConfig()
+    {
+        // Needed before configureConfig() is called, to decide what to bind
+        return new ConfigurationObjectFactory(configSource).build(TrackerConfig.class);
     }
 
     private void installLog4j()
@@ -162,6 +223,38 @@ public abstract class BaseServerModule extends ServerModule
         }
 
         bind(Log4JMBean.class).asEagerSingleton();
+
+        final CoreConfig config = getCoreConfig();
+        if (config.getLogErrorRateMax() > 0) {
+            healthChecksBinder.addBinding()
+                              .toProvider(new ErrorRateHealthCheckProvider(config.getLogErrorRateMax(), config.getLogErrorRateWindow().getMillis()))
+                              .asEagerSingleton();
+        }
+    }
+
+    private static final class ErrorRateHealthCheckProvider implements Provider<HealthCheck>
+    {
+        private final double maxErrorsPerSecond;
+        private final long windowMillis;
+        private Log4JMBean log4JMBean;
+
+        private ErrorRateHealthCheckProvider(final double maxErrorsPerSecond, final long windowMillis)
+        {
+            this.maxErrorsPerSecond = maxErrorsPerSecond;
+            this.windowMillis = windowMillis;
+        }
+
+        @Inject
+        public void setLog4JMBean(final Log4JMBean log4JMBean)
+        {
+            this.log4JMBean = log4JMBean;
+        }
+
+        @Override
+        public HealthCheck get()
+        {
+            return new ErrorRateHealthCheck(log4JMBean, maxErrorsPerSecond, windowMillis);
+        }
     }
 
     protected void configureConfig()
@@ -184,10 +277,61 @@ public abstract class BaseServerModule extends ServerModule
         if (log4jEnabled) {
             builder.export(Log4JMBean.class).withGeneratedName();
         }
+
+        if (trackRequests && getTrackerConfig().isSpoolEnabled()) {
+            builder.export(SpoolingCollectorTracker.class).withGeneratedName();
+        }
+        else if (trackRequests && getTrackerConfig().isBatchingEnabled()) {
+            builder.export(BatchingCollectorTracker.class).withGeneratedName();
+        }
+
+        if (trackRequests && getTrackerConfig().isSamplingEnabled()) {
+            builder.export(RequestSampler.class).withGeneratedName();
+        }
+
+        if (trackRequests && getTrackerConfig().isStatsEnabled()) {
+            builder.export(RequestStatsAggregator.class).withGeneratedName();
+        }
+
+        if (getCoreConfig().isCompressionEnabled()) {
+            builder.export(CompressionFilter.class).withGeneratedName();
+        }
+
+        if (getCoreConfig().isCachedHealthChecksEnabled()) {
+            builder.export(HealthCheckRunner.class).withGeneratedName();
+        }
+    }
+
+    @Override
+    protected HealthCheckRegistry createHealthCheckRegistry()
+    {
+        if (getCoreConfig().isCachedHealthChecksEnabled()) {
+            return getHealthCheckRunner();
+        }
+        else {
+            return HealthChecks.defaultRegistry();
+        }
+    }
+
+    private HealthCheckRunner getHealthCheckRunner()
+    {
+        // Needed both by the metrics module and for JMX
+        if (healthCheckRunner == null) {
+            final CoreConfig config = getCoreConfig();
+            healthCheckRunner = new HealthCheckRunner(config.getHealthChecksInterval().getMillis(),
+                                                      config.getHealthChecksTimeout().getMillis(),
+                                                      config.getHealthChecksMaxStaleness().getMillis());
+        }
+        return healthCheckRunner;
     }
 
     protected void installHealthChecks()
     {
+        if (getCoreConfig().isCachedHealthChecksEnabled()) {
+            bind(HealthCheckRunner.class).toInstance(getHealthCheckRunner());
+            closeablesBinder.addBinding().toInstance(getHealthCheckRunner());
+        }
+
         for (final Class<? extends HealthCheck> healthCheckClass : healthchecks) {
             healthChecksBinder.addBinding().to(healthCheckClass).asEagerSingleton();
         }
@@ -41,7 +41,7 @@ public class JerseyBaseServerModule extends BaseServerModule
      * @see com.google.inject.servlet.ServletModule#configureServlets()
      */
     private static final Iterable<String> requestFilterClassNames = ImmutableList.of(
-            // The logging filter is still incompatible with the GZIP filter
+            // The logging filter is still incompatible with the GZIP filter, see com.ning.core.server.jetty.compression.enabled instead
             //GZIPContentEncodingFilter.class.getName(),
             "com.sun.jersey.api.container.filter.LoggingFilter"
                                                                                     );
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: JMH's, except that results are written as JSON by default
+ * (jmh-result-<version>.json), for them to be compared release over release. Pass -rf/-rff to override.
+ */
+public final class BenchmarksMain
+{
+    private BenchmarksMain()
+    {
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        if (!arguments.contains("-rf") && !arguments.contains("-rff")) {
+            final String version = BenchmarksMain.class.getPackage().getImplementationVersion();
+            arguments.add("-rf");
+            arguments.add("json");
+            arguments.add("-rff");
+            arguments.add(String.format("jmh-result-%s.json", version == null ? "dev" : version));
+        }
+
+        Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.core.CoreConfig;
+import com.ning.jetty.core.server.HttpServer;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.config.ConfigurationObjectFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.EventListener;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test for connection-heavy workloads: many clients opening a new connection per request (Connection: close),
+ * against a full HttpServer (GuiceFilter, request log, ...).
+ * <p/>
+ * Compares Jetty 8 connector defaults (a single acceptor/selector, JVM default listen backlog of 50) with the
+ * CoreConfig defaults (acceptors derived from the number of cores, backlog of 1024). Run with more client threads
+ * (-t) to increase the pressure on the accept queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class ConnectorBenchmark
+{
+    private static final byte[] REQUEST = "GET /1.0/ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+
+    @Param({"jetty-defaults", "tuned"})
+    public String connector;
+
+    private HttpServer server;
+    private File requestLog;
+    private int port;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        final ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        requestLog = File.createTempFile("connector-benchmark", ".log");
+
+        final Properties properties = new Properties();
+        properties.setProperty("com.ning.core.server.port", String.valueOf(port));
+        properties.setProperty("com.ning.core.server.jetty.logPath", requestLog.getAbsolutePath());
+        if ("jetty-defaults".equals(connector)) {
+            properties.setProperty("com.ning.core.server.jetty.connector.acceptors", "1");
+            properties.setProperty("com.ning.core.server.jetty.connector.acceptQueueSize", "0");
+        }
+        final CoreConfig config = new ConfigurationObjectFactory(properties).build(CoreConfig.class);
+
+        server = new HttpServer();
+        server.configure(config, Collections.<EventListener>emptyList(), Collections.<FilterHolder, String>emptyMap());
+        server.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        server.stop();
+        requestLog.delete();
+    }
+
+    @Benchmark
+    public int newConnectionPerRequest() throws Exception
+    {
+        final Socket socket = new Socket("127.0.0.1", port);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write(REQUEST);
+            out.flush();
+
+            // Read the full response, until the server closes the connection
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[4096];
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                total += read;
+            }
+            return total;
+        }
+        finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.log4j.LogLevelCounter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of LogLevelCounter.logLevelEvent (called for every log event), alone and with all threads logging at once.
+ * <p/>
+ * The sharedAtomicLong benchmarks are the baseline for the striped counts: a single counter all threads increment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogLevelCounterBenchmark
+{
+    private final LogLevelCounter counter = new LogLevelCounter();
+    private final AtomicLong sharedCount = new AtomicLong();
+    private final LoggingEvent warnEvent = new LoggingEvent(Logger.class.getName(), Logger.getLogger(LogLevelCounterBenchmark.class),
+                                                            Level.WARN, "benchmark", null);
+
+    @Benchmark
+    @Threads(1)
+    public void countedLevel()
+    {
+        counter.logLevelEvent(Level.WARN);
+    }
+
+    // What LogLevelCounterAppender does: the event timestamp drives the rolling rates, no clock read
+    @Benchmark
+    @Threads(1)
+    public void countedEvent()
+    {
+        counter.logEvent(warnEvent);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void countedLevelContended()
+    {
+        counter.logLevelEvent(Level.WARN);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void countedLevelContended32()
+    {
+        counter.logLevelEvent(Level.WARN);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long sharedAtomicLongContended()
+    {
+        return sharedCount.incrementAndGet();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long sharedAtomicLongContended32()
+    {
+        return sharedCount.incrementAndGet();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void disabledLevel()
+    {
+        // DEBUG isn't counted by default
+        counter.logLevelEvent(Level.DEBUG);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void unhandledLevel()
+    {
+        counter.logLevelEvent(Level.ALL);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.core.modules.ServerModule;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and deserialization of a typical resource with the ObjectMapper configured by the ServerModule
+ * (Joda module, ISO dates)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectMapperBenchmark
+{
+    public static class Resource
+    {
+        public String id;
+        public String name;
+        public int count;
+        public DateTime createdAt;
+        public List<String> tags;
+    }
+
+    private ObjectMapper mapper;
+    private Resource resource;
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        mapper = new JacksonModule().newObjectMapper();
+
+        resource = new Resource();
+        resource.id = "4bd7e4f2-6a4e-4d3b-9a56-2c1f0d8f4e7a";
+        resource.name = "Some resource";
+        resource.count = 42;
+        resource.createdAt = new DateTime(2012, 3, 21, 15, 31, 6, 126, DateTimeZone.UTC);
+        resource.tags = Arrays.asList("one", "two", "three");
+        json = mapper.writeValueAsBytes(resource);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException
+    {
+        return mapper.writeValueAsBytes(resource);
+    }
+
+    @Benchmark
+    public Resource deserialize() throws IOException
+    {
+        return mapper.readValue(json, Resource.class);
+    }
+
+    private static final class JacksonModule extends ServerModule
+    {
+        private ObjectMapper newObjectMapper()
+        {
+            return getJacksonProvider().get();
+        }
+    }
+}
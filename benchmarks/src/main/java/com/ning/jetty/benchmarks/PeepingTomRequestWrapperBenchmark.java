@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.utils.filters.PeepingTomRequestWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of capturing the request body with the PeepingTomRequestWrapper, compared to reading the bare request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeepingTomRequestWrapperBenchmark
+{
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    private final byte[] readBuffer = new byte[4096];
+    private ServletStubs.StubRequest request;
+
+    @Setup
+    public void setUp()
+    {
+        final byte[] body = new byte[bodySize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        request = ServletStubs.newRequest("POST", "/1.0/resources", null, new HashMap<String, String[]>(), body);
+    }
+
+    @Benchmark
+    public void peepingTomRequestWrapper(final Blackhole blackhole) throws IOException
+    {
+        final PeepingTomRequestWrapper wrapper = new PeepingTomRequestWrapper(request);
+        try {
+            blackhole.consume(readFully(wrapper.getInputStream()));
+            blackhole.consume(wrapper.getUnderlyingStream());
+        }
+        finally {
+            wrapper.release();
+        }
+    }
+
+    @Benchmark
+    public int bareRequest() throws IOException
+    {
+        return readFully(request.getInputStream());
+    }
+
+    private int readFully(final ServletInputStream in) throws IOException
+    {
+        int total = 0;
+        int n;
+        while ((n = in.read(readBuffer, 0, readBuffer.length)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.eventtracker.RequestLog;
+import com.ning.jetty.eventtracker.RequestLogCodec;
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serializing a batch of RequestLog events: Smile (what the CollectorTracker does, one envelope per event)
+ * vs the RequestLogCodec. The encoded sizes are printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestLogCodecBenchmark
+{
+    private static final String[] METHODS = new String[]{"GET", "GET", "GET", "POST", "PUT", "DELETE"};
+    private static final String[] USER_AGENTS = new String[]{
+            "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.7; rv:11.0) Gecko/20100101 Firefox/11.0",
+            "Jakarta Commons-HttpClient/3.1",
+            "curl/7.21.4"
+    };
+    private static final String[] CONTENT_TYPES = new String[]{"application/json", "text/html; charset=UTF-8", null};
+
+    @Param({"1", "200"})
+    public int batchSize;
+
+    private final RequestLogCodec codec = new RequestLogCodec();
+    private List<RequestLog> batch;
+    private byte[] encodedBatch;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final Random random = new Random(42);
+        batch = new ArrayList<RequestLog>(batchSize);
+        long eventDate = 1334000000000L;
+        for (int i = 0; i < batchSize; i++) {
+            eventDate += random.nextInt(50);
+            batch.add(new RequestLog(
+                    eventDate,
+                    METHODS[random.nextInt(METHODS.length)],
+                    "http",
+                    "api.example.com",
+                    "/1.0/users/" + random.nextInt(100000),
+                    random.nextBoolean() ? "http://www.example.com/" : null,
+                    USER_AGENTS[random.nextInt(USER_AGENTS.length)],
+                    "10.0.0." + random.nextInt(8),
+                    "",
+                    CONTENT_TYPES[random.nextInt(CONTENT_TYPES.length)],
+                    (short) 200,
+                    random.nextInt(10000),
+                    random.nextInt(200),
+                    random.nextInt(50),
+                    "core1.example.com",
+                    8080
+            ));
+        }
+        encodedBatch = codec.encode(batch);
+
+        int smileBytes = 0;
+        for (final byte[] event : smile()) {
+            smileBytes += event.length;
+        }
+        System.out.printf("%nBatch of %d events: Smile %d bytes, RequestLogCodec %d bytes%n", batchSize, smileBytes, encodedBatch.length);
+    }
+
+    @Benchmark
+    public List<byte[]> smile()
+    {
+        final List<byte[]> events = new ArrayList<byte[]>(batch.size());
+        for (final RequestLog event : batch) {
+            // Same as the CollectorTracker
+            events.add(SmileEnvelopeEvent.fromPOJO("RequestLogEvent", Granularity.HOURLY, new DateTime(DateTimeZone.UTC), event).getSerializedEvent());
+        }
+        return events;
+    }
+
+    @Benchmark
+    public byte[] codecEncode()
+    {
+        return codec.encode(batch);
+    }
+
+    @Benchmark
+    public void codecDecode(final Blackhole blackhole) throws IOException
+    {
+        blackhole.consume(codec.decode(encodedBatch));
+    }
+}
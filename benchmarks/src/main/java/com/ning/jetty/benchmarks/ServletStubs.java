@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Minimal in-memory servlet request/response, just enough for the filters and wrappers under test
+ */
+public final class ServletStubs
+{
+    private ServletStubs()
+    {
+    }
+
+    public static StubRequest newRequest(final String method, final String uri, final String queryString, final Map<String, String[]> headers)
+    {
+        return newRequest(method, uri, queryString, headers, new byte[0]);
+    }
+
+    public static StubRequest newRequest(final String method, final String uri, final String queryString, final Map<String, String[]> headers, final byte[] body)
+    {
+        return new StubRequest(method, uri, queryString, headers, body);
+    }
+
+    public static StubResponse newResponse()
+    {
+        return new StubResponse();
+    }
+
+    public static class StubRequest extends HttpServletRequestWrapper
+    {
+        private final String method;
+        private final String uri;
+        private final String queryString;
+        private final Map<String, String[]> headers;
+        private final byte[] body;
+
+        private StubRequest(final String method, final String uri, final String queryString, final Map<String, String[]> headers, final byte[] body)
+        {
+            super(placeholder(HttpServletRequest.class));
+            this.method = method;
+            this.uri = uri;
+            this.queryString = queryString;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap()
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            final ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    return in.read();
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException
+                {
+                    return in.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String getMethod()
+        {
+            return method;
+        }
+
+        @Override
+        public String getRequestURI()
+        {
+            return uri;
+        }
+
+        @Override
+        public String getQueryString()
+        {
+            return queryString;
+        }
+
+        @Override
+        public String getScheme()
+        {
+            return "http";
+        }
+
+        @Override
+        public String getRemoteAddr()
+        {
+            return "10.0.0.1";
+        }
+
+        @Override
+        public String getHeader(final String name)
+        {
+            final String[] values = headers.get(name);
+            return values == null ? null : values[0];
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(final String name)
+        {
+            final String[] values = headers.get(name);
+            if (values == null) {
+                return Collections.emptyEnumeration();
+            }
+            return Collections.enumeration(Arrays.asList(values));
+        }
+    }
+
+    public static class StubResponse extends HttpServletResponseWrapper
+    {
+        private final ServletOutputStream outputStream = new ServletOutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException
+            {
+            }
+        };
+
+        private int status = 200;
+        private String contentType = null;
+
+        private StubResponse()
+        {
+            super(placeholder(HttpServletResponse.class));
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            return outputStream;
+        }
+
+        @Override
+        public void setStatus(final int sc)
+        {
+            status = sc;
+        }
+
+        @Override
+        public int getStatus()
+        {
+            return status;
+        }
+
+        @Override
+        public void setContentType(final String type)
+        {
+            contentType = type;
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T placeholder(final Class<T> klass)
+    {
+        return (T) Proxy.newProxyInstance(klass.getClassLoader(), new Class[]{klass}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                throw new UnsupportedOperationException(method.getName() + " is not stubbed");
+            }
+        });
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.core.server.VirtualThreadExecutor;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking requests (think JDBI or proxied calls) at high concurrency: the default 2000 threads QueuedThreadPool
+ * vs the virtual thread executor (com.ning.core.server.jetty.virtualThreads=true, requires Java 21+).
+ * Each operation dispatches concurrency tasks blocking for blockMillis and waits for all of them.
+ * With pinned=true, tasks block while holding a monitor, which pins virtual threads to their carrier.
+ * <p/>
+ * Run with -prof gc for allocation rates, the peak number of platform threads is printed on tear down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class ThreadPoolBenchmark
+{
+    @Param({"queued", "virtual"})
+    public String pool;
+
+    @Param({"10000"})
+    public int concurrency;
+
+    @Param({"10"})
+    public int blockMillis;
+
+    @Param({"false"})
+    public boolean pinned;
+
+    private ThreadPool threadPool;
+    private VirtualThreadExecutor virtualThreadExecutor;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        if ("virtual".equals(pool)) {
+            if (!VirtualThreadExecutor.isSupported()) {
+                throw new IllegalStateException("Virtual threads require Java 21+");
+            }
+            virtualThreadExecutor = new VirtualThreadExecutor();
+            threadPool = new ExecutorThreadPool(virtualThreadExecutor);
+        }
+        else {
+            // Same as HttpServer defaults
+            final QueuedThreadPool queuedThreadPool = new QueuedThreadPool(2000);
+            queuedThreadPool.setMinThreads(2);
+            queuedThreadPool.setName("http-worker");
+            threadPool = queuedThreadPool;
+        }
+        ((AbstractLifeCycle) threadPool).start();
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%nPeak platform threads: %d", threads.getPeakThreadCount());
+        if (virtualThreadExecutor != null) {
+            System.out.printf(", pinned events: %d (%d ms)", virtualThreadExecutor.getPinnedEvents(), virtualThreadExecutor.getPinnedTimeMillis());
+        }
+        System.out.println();
+        ((AbstractLifeCycle) threadPool).stop();
+    }
+
+    @Benchmark
+    public void blockingRequests() throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            threadPool.dispatch(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        if (pinned) {
+                            synchronized (this) {
+                                Thread.sleep(blockMillis);
+                            }
+                        }
+                        else {
+                            Thread.sleep(blockMillis);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+    }
+}
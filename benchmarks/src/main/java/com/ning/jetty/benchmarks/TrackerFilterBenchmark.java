@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.benchmarks;
+
+import com.ning.jetty.eventtracker.RequestLog;
+import com.ning.jetty.eventtracker.Tracker;
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+import com.ning.jetty.eventtracker.filters.TrackerFilter;
+import com.ning.jetty.utils.filters.PeepingTomResponseWrapper;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.skife.config.ConfigurationObjectFactory;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request overhead of the TrackerFilter, compared to the original implementation (Joda DateTime clock,
+ * string concatenation, full response capture).
+ * <p/>
+ * Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackerFilterBenchmark
+{
+    @Param({"0", "1024", "65536"})
+    public int responseSize;
+
+    @Param({"false", "true"})
+    public boolean proxied;
+
+    private TrackerConfig config;
+    private TrackerFilter filter;
+    private BlackholeTracker tracker;
+    private ServletStubs.StubRequest request;
+    private FilterChain chain;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) throws Exception
+    {
+        config = new ConfigurationObjectFactory(new Properties()).build(TrackerConfig.class);
+        tracker = new BlackholeTracker(blackhole);
+        filter = new TrackerFilter(config, tracker);
+
+        final Map<String, String[]> headers = new HashMap<String, String[]>();
+        headers.put("Host", new String[]{"www.example.com"});
+        headers.put("User-Agent", new String[]{"Mozilla/5.0 (X11; Linux x86_64)"});
+        headers.put("Referer", new String[]{"http://www.example.com/"});
+        if (proxied) {
+            headers.put("X-Forwarded-For", new String[]{"192.168.1.1", "10.1.2.3"});
+        }
+        request = ServletStubs.newRequest("GET", "/1.0/resources/42", proxied ? "fields=id,name" : null, headers);
+
+        final byte[] body = new byte[responseSize];
+        chain = new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException, ServletException
+            {
+                response.setContentType("application/json");
+                response.getOutputStream().write(body, 0, body.length);
+            }
+        };
+    }
+
+    @Benchmark
+    public void trackerFilter() throws Exception
+    {
+        filter.doFilter(request, ServletStubs.newResponse(), chain);
+    }
+
+    @Benchmark
+    public void legacyTrackerFilter() throws Exception
+    {
+        final long start = new DateTime(DateTimeZone.UTC).getMillis();
+        final PeepingTomResponseWrapper wrappedResponse = new PeepingTomResponseWrapper(ServletStubs.newResponse(), PeepingTomResponseWrapper.CaptureMode.FULL);
+        try {
+            chain.doFilter(request, wrappedResponse);
+        }
+        finally {
+            legacyLogEvent(start, request, wrappedResponse);
+        }
+    }
+
+    private void legacyLogEvent(final long startMillis, final HttpServletRequest request, final PeepingTomResponseWrapper response)
+    {
+        final long elapsed = System.currentTimeMillis() - startMillis;
+        final Long timeOfFirstByte = response.getTimeOfFirstByte();
+
+        final int timeToFirstByte;
+        if (timeOfFirstByte == null) {
+            timeToFirstByte = 0;
+        }
+        else {
+            timeToFirstByte = (int) (timeOfFirstByte - startMillis);
+        }
+
+        final String query = request.getQueryString();
+        String path = request.getRequestURI();
+        if (query != null && !query.isEmpty()) {
+            path += "?" + query;
+        }
+
+        final Enumeration xffChainEnumeration = request.getHeaders("X-Forwarded-For");
+        String xffChain = "";
+        while (xffChainEnumeration.hasMoreElements()) {
+            xffChain += (String) xffChainEnumeration.nextElement();
+        }
+
+        tracker.trackRequest(new RequestLog(
+                startMillis,
+                request.getMethod(),
+                request.getScheme(),
+                request.getHeader("Host"),
+                path,
+                request.getHeader("Referer"),
+                request.getHeader("User-Agent"),
+                request.getRemoteAddr(),
+                xffChain,
+                response.getContentType(),
+                (short) response.getStatus(),
+                response.getUnderlyingStream().size(),
+                (int) elapsed,
+                timeToFirstByte,
+                config.getServerHost(),
+                config.getServerPort()
+        ));
+    }
+
+    private static final class BlackholeTracker implements Tracker
+    {
+        private final Blackhole blackhole;
+
+        private BlackholeTracker(final Blackhole blackhole)
+        {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void trackRequest(final RequestLog request)
+        {
+            blackhole.consume(request);
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.ning.jetty.core;
 import org.skife.config.Config;
 import org.skife.config.Default;
 import org.skife.config.DefaultNull;
+import org.skife.config.TimeSpan;
 
 public interface CoreConfig
 {
@@ -50,6 +51,52 @@ public interface CoreConfig
     @DefaultNull
     String getSSLkeystorePassword();
 
+    // Per connector. HTTP/1.1 connections carry one request at a time, this bounds concurrent requests (0 for no limit)
+    @Config("com.ning.core.server.jetty.connector.maxConnections")
+    @Default("0")
+    int getMaxConnections();
+
+    // Acceptor threads, Jetty 8 uses one selector per acceptor (0 to derive it from the number of cores)
+    @Config("com.ning.core.server.jetty.connector.acceptors")
+    @Default("0")
+    int getAcceptors();
+
+    // Listen backlog
+    @Config("com.ning.core.server.jetty.connector.acceptQueueSize")
+    @Default("1024")
+    int getAcceptQueueSize();
+
+    @Config("com.ning.core.server.jetty.connector.idleTimeout")
+    @Default("200s")
+    TimeSpan getIdleTimeout();
+
+    // Idle timeout once 90% of maxConnections are open, for idle keep-alive connections not to starve new clients
+    @Config("com.ning.core.server.jetty.connector.lowResourcesIdleTimeout")
+    @Default("5s")
+    TimeSpan getLowResourcesIdleTimeout();
+
+    // In bytes
+    @Config("com.ning.core.server.jetty.connector.requestHeaderSize")
+    @Default("6144")
+    int getRequestHeaderSize();
+
+    @Config("com.ning.core.server.jetty.connector.requestBufferSize")
+    @Default("16384")
+    int getRequestBufferSize();
+
+    @Config("com.ning.core.server.jetty.connector.responseHeaderSize")
+    @Default("6144")
+    int getResponseHeaderSize();
+
+    @Config("com.ning.core.server.jetty.connector.responseBufferSize")
+    @Default("32768")
+    int getResponseBufferSize();
+
+    // SO_REUSEPORT on the listening sockets (Java 9+ on Linux, ignored otherwise)
+    @Config("com.ning.core.server.jetty.connector.reusePort")
+    @Default("false")
+    boolean isReusePortEnabled();
+
     @Config("com.ning.core.server.jetty.maxThreads")
     @Default("2000")
     int getMaxThreads();
@@ -58,10 +105,130 @@ public interface CoreConfig
     @Default("2")
     int getMinThreads();
 
+    // Run requests in virtual threads instead of the QueuedThreadPool (Java 21+, ignored otherwise)
+    @Config("com.ning.core.server.jetty.virtualThreads")
+    @Default("false")
+    boolean isVirtualThreadsEnabled();
+
+    // Reject requests above an adaptive concurrency limit, see LoadSheddingHandler
+    @Config("com.ning.core.server.jetty.loadShedding.enabled")
+    @Default("false")
+    boolean isLoadSheddingEnabled();
+
+    @Config("com.ning.core.server.jetty.loadShedding.initialLimit")
+    @Default("100")
+    int getLoadSheddingInitialLimit();
+
+    @Config("com.ning.core.server.jetty.loadShedding.minLimit")
+    @Default("10")
+    int getLoadSheddingMinLimit();
+
+    @Config("com.ning.core.server.jetty.loadShedding.maxLimit")
+    @Default("1000")
+    int getLoadSheddingMaxLimit();
+
+    // Comma separated list of path prefix=priority (critical, high, normal or low), e.g. /1.0/healthcheck=critical,/static=low
+    @Config("com.ning.core.server.jetty.loadShedding.priorities")
+    @Default("/1.0/healthcheck=critical,/1.0/ping=critical")
+    String getLoadSheddingPriorities();
+
+    @Config("com.ning.core.server.jetty.loadShedding.retryAfterSeconds")
+    @Default("1")
+    int getLoadSheddingRetryAfterSeconds();
+
+    // Maximum time to wait for requests in flight on shutdown, 0s to stop right away. See GracefulShutdownHandler
+    @Config("com.ning.core.server.jetty.shutdown.drainTimeout")
+    @Default("30s")
+    TimeSpan getShutdownDrainTimeout();
+
+    // Time to fail healthchecks before we stop accepting connections (i.e. time for load balancers to notice)
+    @Config("com.ning.core.server.jetty.shutdown.healthCheckGracePeriod")
+    @Default("0s")
+    TimeSpan getShutdownHealthCheckGracePeriod();
+
+    @Config("com.ning.core.server.jetty.shutdown.healthCheckPath")
+    @Default("/1.0/healthcheck")
+    String getShutdownHealthCheckPath();
+
+    // Evaluate health checks in the background and serve the last results, see HealthCheckRunner
+    @Config("com.ning.core.server.healthchecks.cached")
+    @Default("false")
+    boolean isCachedHealthChecksEnabled();
+
+    @Config("com.ning.core.server.healthchecks.interval")
+    @Default("5s")
+    TimeSpan getHealthChecksInterval();
+
+    @Config("com.ning.core.server.healthchecks.timeout")
+    @Default("2s")
+    TimeSpan getHealthChecksTimeout();
+
+    // Results older than this are reported unhealthy
+    @Config("com.ning.core.server.healthchecks.maxStaleness")
+    @Default("30s")
+    TimeSpan getHealthChecksMaxStaleness();
+
+    // With log4j, report unhealthy above this rate of ERROR and FATAL log events, in events per second (0 to disable)
+    @Config("com.ning.core.server.log4j.errorRate.max")
+    @Default("0")
+    double getLogErrorRateMax();
+
+    // Up to 15m
+    @Config("com.ning.core.server.log4j.errorRate.window")
+    @Default("1m")
+    TimeSpan getLogErrorRateWindow();
+
+    // Threads creating eager singletons on startup: 1 to create them one at a time, more to create independent ones in parallel
+    @Config("com.ning.core.server.startup.eagerSingletonThreads")
+    @Default("1")
+    int getEagerSingletonThreads();
+
     @Config("com.ning.core.server.jetty.logPath")
     @Default(".logs")
     String getLogPath();
 
+    // Write the request log from a background thread, see AsyncNCSARequestLog
+    @Config("com.ning.core.server.jetty.requestLog.async")
+    @Default("false")
+    boolean isAsyncRequestLogEnabled();
+
+    @Config("com.ning.core.server.jetty.requestLog.ringSize")
+    @Default("8192")
+    int getRequestLogRingSize();
+
+    @Config("com.ning.core.server.jetty.requestLog.flushInterval")
+    @Default("1s")
+    TimeSpan getRequestLogFlushInterval();
+
+    // In bytes, 0 to disable
+    @Config("com.ning.core.server.jetty.requestLog.rolloverSize")
+    @Default("268435456")
+    long getRequestLogRolloverSize();
+
+    // 0s to disable
+    @Config("com.ning.core.server.jetty.requestLog.rolloverInterval")
+    @Default("1d")
+    TimeSpan getRequestLogRolloverInterval();
+
+    // Compress responses (gzip or deflate), see CompressionFilter
+    @Config("com.ning.core.server.jetty.compression.enabled")
+    @Default("false")
+    boolean isCompressionEnabled();
+
+    // In bytes
+    @Config("com.ning.core.server.jetty.compression.minSize")
+    @Default("1024")
+    int getCompressionMinSize();
+
+    @Config("com.ning.core.server.jetty.compression.mimeTypes")
+    @Default("application/json,application/javascript,application/xml,text/css,text/csv,text/html,text/javascript,text/plain,text/xml")
+    String getCompressionMimeTypes();
+
+    // 1 (fastest) to 9 (best compression)
+    @Config("com.ning.core.server.jetty.compression.level")
+    @Default("6")
+    int getCompressionLevel();
+
     @Config("com.ning.core.server.jetty.resourceBase")
     @DefaultNull
     String getResourceBase();
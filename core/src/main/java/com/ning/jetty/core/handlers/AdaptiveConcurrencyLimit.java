@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.handlers;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency limit adjusted from observed latencies, gradient style (TCP Vegas-like).
+ * <p/>
+ * Latencies are averaged over windows (at least minWindowSamples samples and windowNanos long). At the end of each
+ * window, the window average (short term) is compared to an exponential moving average of previous windows
+ * (long term, the no-load baseline): the limit shrinks in proportion as latency grows past the baseline
+ * (gradient = longRtt / shortRtt, between 0.5 and 1), and grows by a queue allowance of sqrt(limit) otherwise.
+ * The limit doesn't grow when the service isn't using at least half of it. Changes are smoothed.
+ * <p/>
+ * Thread-safe. Samples are accumulated with atomics, without locking: only the thread which closes a window takes
+ * the (uncontended, try-only) window lock. A sample racing with the end of a window may be accounted for in the next
+ * one.
+ */
+public class AdaptiveConcurrencyLimit
+{
+    private static final double SMOOTHING = 0.2;
+    private static final double LONG_RTT_ALPHA = 0.05;
+    // Tolerated latency increase, before the limit starts to shrink
+    private static final double RTT_TOLERANCE = 1.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long windowNanos;
+    private final int minWindowSamples;
+
+    private volatile double limit;
+    private volatile double longRttNanos = 0;
+    private volatile double lastShortRttNanos = 0;
+
+    private volatile long windowStartNanos;
+    private final AtomicLong windowRttSumNanos = new AtomicLong(0);
+    private final AtomicInteger windowSamples = new AtomicInteger(0);
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger(0);
+    private final AtomicBoolean windowLock = new AtomicBoolean(false);
+
+    public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit, final long windowNanos, final int minWindowSamples)
+    {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(String.format("Invalid limits: initial=%d, min=%d, max=%d", initialLimit, minLimit, maxLimit));
+        }
+
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.windowNanos = windowNanos;
+        this.minWindowSamples = minWindowSamples;
+        this.windowStartNanos = nanoTime();
+    }
+
+    /**
+     * @return current limit
+     */
+    public int getLimit()
+    {
+        return (int) limit;
+    }
+
+    /**
+     * Record a request latency
+     *
+     * @param rttNanos latency, in nanoseconds
+     * @param inFlight number of requests in flight when the request started
+     */
+    public void onSample(final long rttNanos, final int inFlight)
+    {
+        windowRttSumNanos.addAndGet(rttNanos);
+        final int samples = windowSamples.incrementAndGet();
+        int maxInFlight = windowMaxInFlight.get();
+        while (inFlight > maxInFlight && !windowMaxInFlight.compareAndSet(maxInFlight, inFlight)) {
+            maxInFlight = windowMaxInFlight.get();
+        }
+
+        if (samples < minWindowSamples) {
+            return;
+        }
+        final long now = nanoTime();
+        if (now - windowStartNanos < windowNanos) {
+            return;
+        }
+
+        // Someone else is closing the window
+        if (!windowLock.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Check again, the window may have just been closed
+            if (now - windowStartNanos < windowNanos || windowSamples.get() < minWindowSamples) {
+                return;
+            }
+
+            final int windowCount = windowSamples.getAndSet(0);
+            final long windowSum = windowRttSumNanos.getAndSet(0);
+            final int windowMax = windowMaxInFlight.getAndSet(0);
+            windowStartNanos = now;
+
+            updateLimit((double) windowSum / windowCount, windowMax);
+        }
+        finally {
+            windowLock.set(false);
+        }
+    }
+
+    // Called by one thread at a time
+    private void updateLimit(final double shortRtt, final int maxInFlight)
+    {
+        lastShortRttNanos = shortRtt;
+        if (longRttNanos == 0) {
+            longRttNanos = shortRtt;
+        }
+        else {
+            longRttNanos = (1 - LONG_RTT_ALPHA) * longRttNanos + LONG_RTT_ALPHA * shortRtt;
+        }
+
+        // The baseline drifted (e.g. sustained load, or a slower dependency), converge faster
+        if (longRttNanos / shortRtt > 2) {
+            longRttNanos = shortRtt * 2;
+        }
+
+        // Not using the limit: don't grow it past what we know works
+        if (maxInFlight < limit / 2) {
+            return;
+        }
+
+        final double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRttNanos / shortRtt));
+        final double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, (1 - SMOOTHING) * limit + SMOOTHING * newLimit));
+    }
+
+    protected long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return long term (baseline) latency estimate, in nanoseconds
+     */
+    public double getLongRttNanos()
+    {
+        return longRttNanos;
+    }
+
+    /**
+     * @return average latency over the last complete window, in nanoseconds
+     */
+    public double getShortRttNanos()
+    {
+        return lastShortRttNanos;
+    }
+
+    public int getMinLimit()
+    {
+        return minLimit;
+    }
+
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+}
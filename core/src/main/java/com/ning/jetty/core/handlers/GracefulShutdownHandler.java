@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.handlers;
+
+import org.eclipse.jetty.http.HttpHeaderValues;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.weakref.jmx.Managed;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks requests in flight (async requests until they complete), so that shutdown can wait for them.
+ * <p/>
+ * Once draining, healthchecks fail with a 503 (so that load balancers take the instance out of rotation)
+ * and other requests are still served, but with Connection: close so that clients don't reuse their connection.
+ */
+public class GracefulShutdownHandler extends HandlerWrapper
+{
+    private final String healthCheckPath;
+
+    private final Object lock = new Object();
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private volatile boolean draining = false;
+    private volatile long drainStartNanos = 0;
+    private volatile long lastDrainDurationMillis = -1;
+    private volatile int lastDrainAbandoned = 0;
+
+    /**
+     * @param healthCheckPath path prefix of healthcheck requests, to fail while draining
+     */
+    public GracefulShutdownHandler(final String healthCheckPath)
+    {
+        this.healthCheckPath = healthCheckPath;
+    }
+
+    @Override
+    public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException
+    {
+        if (!baseRequest.getAsyncContinuation().isInitial()) {
+            // Async re-dispatch, already tracked
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        if (draining) {
+            response.setHeader(HttpHeaders.CONNECTION, HttpHeaderValues.CLOSE);
+            if (healthCheckPath != null && target.startsWith(healthCheckPath)) {
+                baseRequest.setHandled(true);
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setContentLength(0);
+                response.flushBuffer();
+                return;
+            }
+        }
+
+        inFlight.incrementAndGet();
+        requests.incrementAndGet();
+        boolean async = false;
+        try {
+            super.handle(target, baseRequest, request, response);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new CompletionListener());
+            }
+        }
+        finally {
+            if (!async) {
+                release();
+            }
+        }
+    }
+
+    private void release()
+    {
+        if (inFlight.decrementAndGet() == 0 && draining) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Start failing healthchecks and closing connections after each request. Idempotent.
+     */
+    public void startDraining()
+    {
+        synchronized (lock) {
+            if (!draining) {
+                drainStartNanos = System.nanoTime();
+                draining = true;
+            }
+        }
+    }
+
+    /**
+     * Wait for requests in flight to complete. Implies startDraining().
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return true if all requests completed, false if the timeout expired first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitDrained(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        startDraining();
+
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            try {
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                while (inFlight.get() > 0 && remainingNanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remainingNanos);
+                    remainingNanos = deadlineNanos - System.nanoTime();
+                }
+            }
+            finally {
+                lastDrainAbandoned = inFlight.get();
+                lastDrainDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStartNanos);
+            }
+        }
+
+        return lastDrainAbandoned == 0;
+    }
+
+    @Managed(description = "Number of requests in flight")
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    @Managed(description = "Number of requests handled")
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    @Managed(description = "Whether the server is draining (shutting down)")
+    public boolean isDraining()
+    {
+        return draining;
+    }
+
+    @Managed(description = "Time spent draining so far (or in the last drain), in milliseconds, -1 if never drained")
+    public long getDrainDurationMillis()
+    {
+        if (draining && lastDrainDurationMillis < 0) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStartNanos);
+        }
+        return lastDrainDurationMillis;
+    }
+
+    @Managed(description = "Number of requests still in flight when the last drain ended")
+    public int getDrainAbandoned()
+    {
+        return lastDrainAbandoned;
+    }
+
+    private final class CompletionListener implements AsyncListener
+    {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            releaseOnce();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+            releaseOnce();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException
+        {
+            releaseOnce();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            // The listener has to be registered again for the new cycle
+            event.getAsyncContext().addListener(this);
+        }
+
+        private void releaseOnce()
+        {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.handlers;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.weakref.jmx.Managed;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Admission control in front of the servlet context: requests above the adaptive concurrency limit
+ * (see AdaptiveConcurrencyLimit) are rejected right away with a 503 and a Retry-After header, instead of
+ * queuing up in the thread pool.
+ * <p/>
+ * Requests are classified by path prefix (longest match): lower priority requests are shed first, as the number
+ * of requests in flight gets close to the limit (see Priority). Critical requests (e.g. healthchecks) are never
+ * shed. Async requests hold their slot until they complete.
+ */
+public class LoadSheddingHandler extends HandlerWrapper
+{
+    public enum Priority
+    {
+        // Never shed
+        CRITICAL(Double.POSITIVE_INFINITY),
+        HIGH(1.0),
+        NORMAL(0.9),
+        LOW(0.5);
+
+        // Fraction of the limit requests of this priority can use
+        private final double share;
+
+        Priority(final double share)
+        {
+            this.share = share;
+        }
+    }
+
+    private final AdaptiveConcurrencyLimit limit;
+    private final List<PathPriority> priorities;
+    private final int retryAfterSeconds;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLongArray rejected = new AtomicLongArray(Priority.values().length);
+
+    /**
+     * @param limit             concurrency limit
+     * @param priorities        comma separated list of prefix=priority, e.g. /1.0/healthcheck=critical,/static=low
+     *                          (other requests are NORMAL)
+     * @param retryAfterSeconds Retry-After value for rejected requests
+     */
+    public LoadSheddingHandler(final AdaptiveConcurrencyLimit limit, final String priorities, final int retryAfterSeconds)
+    {
+        this.limit = limit;
+        this.priorities = parsePriorities(priorities);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException
+    {
+        if (!baseRequest.getAsyncContinuation().isInitial()) {
+            // Async re-dispatch, the request was already admitted
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        final Priority priority = getPriority(request.getRequestURI());
+        final int currentInFlight = inFlight.incrementAndGet();
+        if (currentInFlight > limit.getLimit() * priority.share) {
+            inFlight.decrementAndGet();
+            reject(priority, baseRequest, response);
+            return;
+        }
+
+        admitted.incrementAndGet();
+        final long startNanos = System.nanoTime();
+        boolean async = false;
+        try {
+            super.handle(target, baseRequest, request, response);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new CompletionListener(startNanos, currentInFlight));
+            }
+        }
+        finally {
+            if (!async) {
+                release(startNanos, currentInFlight);
+            }
+        }
+    }
+
+    private void reject(final Priority priority, final Request baseRequest, final HttpServletResponse response) throws IOException
+    {
+        rejected.incrementAndGet(priority.ordinal());
+        baseRequest.setHandled(true);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        response.setContentLength(0);
+        response.flushBuffer();
+    }
+
+    private void release(final long startNanos, final int currentInFlight)
+    {
+        inFlight.decrementAndGet();
+        limit.onSample(System.nanoTime() - startNanos, currentInFlight);
+    }
+
+    Priority getPriority(final String path)
+    {
+        if (path != null) {
+            for (final PathPriority pathPriority : priorities) {
+                if (path.startsWith(pathPriority.prefix)) {
+                    return pathPriority.priority;
+                }
+            }
+        }
+        return Priority.NORMAL;
+    }
+
+    private static List<PathPriority> parsePriorities(final String spec)
+    {
+        final List<PathPriority> priorities = new ArrayList<PathPriority>();
+        if (spec != null) {
+            for (final String entry : spec.split(",")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+
+                final int idx = entry.lastIndexOf('=');
+                if (idx <= 0) {
+                    throw new IllegalArgumentException(String.format("Invalid path priority [%s], expected prefix=priority", entry));
+                }
+                final String priority = entry.substring(idx + 1).trim().toUpperCase(Locale.US);
+                priorities.add(new PathPriority(entry.substring(0, idx).trim(), Priority.valueOf(priority)));
+            }
+        }
+
+        // Longest prefix first
+        Collections.sort(priorities, new Comparator<PathPriority>()
+        {
+            @Override
+            public int compare(final PathPriority o1, final PathPriority o2)
+            {
+                return o2.prefix.length() - o1.prefix.length();
+            }
+        });
+        return priorities;
+    }
+
+    @Managed(description = "Current concurrency limit")
+    public int getLimit()
+    {
+        return limit.getLimit();
+    }
+
+    @Managed(description = "Number of requests in flight")
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    @Managed(description = "Baseline (long term) latency, in milliseconds")
+    public double getLongRttMillis()
+    {
+        return limit.getLongRttNanos() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Managed(description = "Average latency over the last window, in milliseconds")
+    public double getShortRttMillis()
+    {
+        return limit.getShortRttNanos() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Managed(description = "Number of requests admitted")
+    public long getAdmitted()
+    {
+        return admitted.get();
+    }
+
+    @Managed(description = "Number of requests rejected")
+    public long getRejected()
+    {
+        long total = 0;
+        for (int i = 0; i < rejected.length(); i++) {
+            total += rejected.get(i);
+        }
+        return total;
+    }
+
+    @Managed(description = "Number of HIGH priority requests rejected")
+    public long getRejectedHigh()
+    {
+        return rejected.get(Priority.HIGH.ordinal());
+    }
+
+    @Managed(description = "Number of NORMAL priority requests rejected")
+    public long getRejectedNormal()
+    {
+        return rejected.get(Priority.NORMAL.ordinal());
+    }
+
+    @Managed(description = "Number of LOW priority requests rejected")
+    public long getRejectedLow()
+    {
+        return rejected.get(Priority.LOW.ordinal());
+    }
+
+    private final class CompletionListener implements AsyncListener
+    {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final long startNanos;
+        private final int currentInFlight;
+
+        private CompletionListener(final long startNanos, final int currentInFlight)
+        {
+            this.startNanos = startNanos;
+            this.currentInFlight = currentInFlight;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            releaseOnce();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+            releaseOnce();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException
+        {
+            releaseOnce();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            // The listener has to be registered again for the new cycle
+            event.getAsyncContext().addListener(this);
+        }
+
+        private void releaseOnce()
+        {
+            if (released.compareAndSet(false, true)) {
+                release(startNanos, currentInFlight);
+            }
+        }
+    }
+
+    private static final class PathPriority
+    {
+        private final String prefix;
+        private final Priority priority;
+
+        private PathPriority(final String prefix, final Priority priority)
+        {
+            this.prefix = prefix;
+            this.priority = priority;
+        }
+    }
+}
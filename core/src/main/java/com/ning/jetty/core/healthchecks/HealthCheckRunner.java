@@ -0,0 +1,288 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.healthchecks;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.core.HealthCheck;
+import com.yammer.metrics.core.HealthCheckRegistry;
+import org.weakref.jmx.Managed;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health check registry evaluating its health checks in the background, on a fixed schedule.
+ * <p/>
+ * runHealthChecks() (i.e. /1.0/healthcheck) returns the last results instead of running the checks, so that
+ * load balancers polling the endpoint don't load the dependencies (e.g. the database pool). Each evaluation is bounded
+ * by a timeout: a hung check is reported unhealthy and isn't evaluated again until it returns. Results older than
+ * the maximum staleness are reported unhealthy.
+ */
+public class HealthCheckRunner extends HealthCheckRegistry implements Closeable
+{
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private final long maxStalenessMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("healthcheck-scheduler").setDaemon(true).build());
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("healthcheck-%d").setDaemon(true).build());
+    private final ConcurrentMap<String, CachedHealthCheck> healthChecks = new ConcurrentSkipListMap<String, CachedHealthCheck>();
+
+    private final AtomicLong evaluations = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong skipped = new AtomicLong(0);
+
+    /**
+     * @param intervalMillis     delay between two evaluations of a health check
+     * @param timeoutMillis      maximum duration of an evaluation
+     * @param maxStalenessMillis age after which a result is reported unhealthy
+     */
+    public HealthCheckRunner(final long intervalMillis, final long timeoutMillis, final long maxStalenessMillis)
+    {
+        if (intervalMillis <= 0 || timeoutMillis <= 0 || maxStalenessMillis <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid health check schedule: interval=%d ms, timeout=%d ms, maxStaleness=%d ms",
+                                                             intervalMillis, timeoutMillis, maxStalenessMillis));
+        }
+
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    @Override
+    public void register(final HealthCheck healthCheck)
+    {
+        final CachedHealthCheck cachedHealthCheck = new CachedHealthCheck(healthCheck);
+        final CachedHealthCheck previous = healthChecks.put(healthCheck.getName(), cachedHealthCheck);
+        if (previous != null) {
+            previous.cancel();
+        }
+        super.register(cachedHealthCheck);
+        cachedHealthCheck.schedule();
+    }
+
+    @Override
+    public void unregister(final String name)
+    {
+        final CachedHealthCheck cachedHealthCheck = healthChecks.remove(name);
+        if (cachedHealthCheck != null) {
+            cachedHealthCheck.cancel();
+        }
+        super.unregister(name);
+    }
+
+    @Override
+    public void unregister(final HealthCheck healthCheck)
+    {
+        unregister(healthCheck.getName());
+    }
+
+    /**
+     * Stop evaluating health checks
+     */
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void close()
+    {
+        shutdown();
+    }
+
+    @Managed(description = "Whether all health checks are healthy (last results)")
+    public boolean isHealthy()
+    {
+        for (final CachedHealthCheck healthCheck : healthChecks.values()) {
+            if (!healthCheck.execute().isHealthy()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Managed(description = "Last result of each health check")
+    public String getResults()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, CachedHealthCheck> entry : healthChecks.entrySet()) {
+            final HealthCheck.Result result = entry.getValue().execute();
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(result.isHealthy() ? "healthy" : "unhealthy");
+            if (result.getMessage() != null) {
+                sb.append(" (").append(result.getMessage()).append(')');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Managed(description = "Age of the oldest result, in milliseconds (-1 if a health check was never evaluated)")
+    public long getOldestResultAgeMillis()
+    {
+        long oldest = 0;
+        for (final CachedHealthCheck healthCheck : healthChecks.values()) {
+            final long age = healthCheck.getAgeMillis();
+            if (age < 0) {
+                return -1;
+            }
+            oldest = Math.max(oldest, age);
+        }
+        return oldest;
+    }
+
+    @Managed(description = "Number of health checks evaluations")
+    public long getEvaluations()
+    {
+        return evaluations.get();
+    }
+
+    @Managed(description = "Number of health checks evaluations which timed out")
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    @Managed(description = "Number of health checks evaluations skipped because the previous one was still running")
+    public long getSkipped()
+    {
+        return skipped.get();
+    }
+
+    private final class CachedHealthCheck extends HealthCheck
+    {
+        private final HealthCheck delegate;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+        private volatile Result result = null;
+        private volatile long evaluatedAtMillis = 0;
+        private volatile ScheduledFuture<?> schedule = null;
+
+        private CachedHealthCheck(final HealthCheck delegate)
+        {
+            super(delegate.getName());
+            this.delegate = delegate;
+        }
+
+        private void schedule()
+        {
+            schedule = scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Don't block the scheduler (and other health checks) while we wait
+                    executor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            evaluate();
+                        }
+                    });
+                }
+            }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancel()
+        {
+            if (schedule != null) {
+                schedule.cancel(false);
+            }
+        }
+
+        private void evaluate()
+        {
+            if (!running.compareAndSet(false, true)) {
+                // Still hung since the last timeout
+                skipped.incrementAndGet();
+                return;
+            }
+
+            evaluations.incrementAndGet();
+            final Future<Result> future = executor.submit(new Callable<Result>()
+            {
+                @Override
+                public Result call()
+                {
+                    try {
+                        return delegate.execute();
+                    }
+                    finally {
+                        running.set(false);
+                    }
+                }
+            });
+
+            Result newResult;
+            try {
+                newResult = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                timeouts.incrementAndGet();
+                newResult = Result.unhealthy(String.format("Timed out after %d ms", timeoutMillis));
+            }
+            catch (ExecutionException e) {
+                newResult = Result.unhealthy(e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            // Readers check the result first
+            evaluatedAtMillis = System.currentTimeMillis();
+            result = newResult;
+        }
+
+        private long getAgeMillis()
+        {
+            return result == null ? -1 : System.currentTimeMillis() - evaluatedAtMillis;
+        }
+
+        @Override
+        protected Result check()
+        {
+            final Result lastResult = result;
+            if (lastResult == null) {
+                return Result.unhealthy("Not evaluated yet");
+            }
+
+            final long ageMillis = System.currentTimeMillis() - evaluatedAtMillis;
+            if (ageMillis > maxStalenessMillis) {
+                return Result.unhealthy(String.format("Stale result (%d ms old): %s", ageMillis, lastResult.isHealthy() ? "healthy" : lastResult.getMessage()));
+            }
+            return lastResult;
+        }
+    }
+}
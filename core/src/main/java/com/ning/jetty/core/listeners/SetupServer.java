@@ -16,16 +16,26 @@
 
 package com.ning.jetty.core.listeners;
 
-import com.google.inject.Guice;
+import com.ning.jetty.core.modules.ServerModule;
+import com.ning.jetty.core.modules.StartupProfiler;
+
+import com.google.inject.Binding;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.Stage;
+import com.google.inject.TypeLiteral;
 import com.google.inject.servlet.GuiceServletContextListener;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weakref.jmx.MBeanExporter;
 
 import javax.servlet.ServletContextEvent;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
 
 /**
  * Start up the base module when the server comes up. This gets configured in web.xml:
@@ -40,6 +50,12 @@ import javax.servlet.ServletContextEvent;
 public class SetupServer extends GuiceServletContextListener
 {
     private static final Logger log = LoggerFactory.getLogger(SetupServer.class);
+    private static final String STARTUP_PROFILER_MBEAN_NAME = "com.ning.jetty.core:name=StartupProfiler";
+    // See ServerModule#closeablesBinder
+    private static final Key<Set<Closeable>> CLOSEABLES_KEY = Key.get(new TypeLiteral<Set<Closeable>>() {});
+
+    private final MBeanExporter mbeanExporter = new MBeanExporter(ManagementFactory.getPlatformMBeanServer());
+    private boolean startupProfilerExported = false;
 
     protected Module guiceModule = null;
 
@@ -91,7 +107,48 @@ public class SetupServer extends GuiceServletContextListener
         }
 
         log.info("Returning injector from " + guiceModule.getClass().getName());
-        return Guice.createInjector(Stage.PRODUCTION, guiceModule);
+        // ServerModule records the time spent in the modules it installs
+        final StartupProfiler startupProfiler = guiceModule instanceof ServerModule ? ((ServerModule) guiceModule).getStartupProfiler() : new StartupProfiler();
+        final Injector injector = startupProfiler.createInjector(Stage.PRODUCTION, guiceModule);
+
+        mbeanExporter.export(STARTUP_PROFILER_MBEAN_NAME, startupProfiler);
+        startupProfilerExported = true;
+
+        return injector;
+    }
+
+    @Override
+    public void contextDestroyed(final ServletContextEvent event)
+    {
+        // The server is drained at this point (see HttpServer#stop): flush and stop the background services
+        final Injector injector = injector(event);
+        if (injector != null) {
+            closeAll(injector);
+        }
+
+        super.contextDestroyed(event);
+
+        if (startupProfilerExported) {
+            mbeanExporter.unexport(STARTUP_PROFILER_MBEAN_NAME);
+            startupProfilerExported = false;
+        }
+    }
+
+    private void closeAll(final Injector injector)
+    {
+        final Binding<Set<Closeable>> closeables = injector.getExistingBinding(CLOSEABLES_KEY);
+        if (closeables == null) {
+            return;
+        }
+
+        for (final Closeable closeable : closeables.getProvider().get()) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                log.warn("Unable to close " + closeable, e);
+            }
+        }
     }
 
     /**
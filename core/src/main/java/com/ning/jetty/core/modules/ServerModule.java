@@ -23,24 +23,34 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.fasterxml.jackson.jaxrs.json.Annotations;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.servlet.ServletModule;
+import com.yammer.metrics.HealthChecks;
 import com.yammer.metrics.core.HealthCheck;
+import com.yammer.metrics.core.HealthCheckRegistry;
 import com.yammer.metrics.guice.InstrumentationModule;
 import com.yammer.metrics.guice.servlet.AdminServletModule;
 import org.weakref.jmx.guice.MBeanModule;
 
 import javax.management.MBeanServer;
+import java.io.Closeable;
 import java.lang.management.ManagementFactory;
 
 public class ServerModule extends ServletModule
 {
     protected Multibinder<HealthCheck> healthChecksBinder;
+    // Services closed once the server is drained, see SetupServer
+    protected Multibinder<Closeable> closeablesBinder;
+    // Startup timings, see SetupServer
+    private final StartupProfiler startupProfiler = new StartupProfiler();
 
     @Override
     public void configureServlets()
     {
+        closeablesBinder = Multibinder.newSetBinder(binder(), Closeable.class);
+
         installJackson();
         installJMX();
         installStats();
@@ -86,7 +96,14 @@ public class ServerModule extends ServletModule
     protected void installStats()
     {
         // Codahale's metrics
-        install(new InstrumentationModule());
+        install(new InstrumentationModule()
+        {
+            @Override
+            protected HealthCheckRegistry createHealthCheckRegistry()
+            {
+                return ServerModule.this.createHealthCheckRegistry();
+            }
+        });
 
         // Healthchecks
         healthChecksBinder = Multibinder.newSetBinder(binder(), HealthCheck.class);
@@ -95,4 +112,27 @@ public class ServerModule extends ServletModule
         // Metrics/Jersey integration
         install(new TimedResourceModule());
     }
+
+    /**
+     * Override this method to provide your own registry, e.g. a HealthCheckRunner.
+     *
+     * @return registry backing /1.0/healthcheck
+     */
+    protected HealthCheckRegistry createHealthCheckRegistry()
+    {
+        return HealthChecks.defaultRegistry();
+    }
+
+    @Override
+    protected void install(final Module module)
+    {
+        final long startNanos = System.nanoTime();
+        super.install(module);
+        startupProfiler.recordModule(module.getClass().getName(), System.nanoTime() - startNanos);
+    }
+
+    public StartupProfiler getStartupProfiler()
+    {
+        return startupProfiler;
+    }
 }
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.modules;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Binder;
+import com.google.inject.Binding;
+import com.google.inject.ConfigurationException;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.Scope;
+import com.google.inject.Stage;
+import com.google.inject.TypeLiteral;
+import com.google.inject.binder.LinkedBindingBuilder;
+import com.google.inject.binder.ScopedBindingBuilder;
+import com.google.inject.name.Names;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.DefaultBindingTargetVisitor;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InjectionPoint;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.ProviderBinding;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProviderKeyBinding;
+import com.google.inject.spi.UntargettedBinding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create the Guice injector and record where startup time goes: module configuration, injector creation and
+ * each eager singleton. Timings are logged once the injector is ready and exported via JMX.
+ * <p/>
+ * By default, eager singletons are left to Guice (they stay regular singletons, and failures are reported as a
+ * CreationException): only their target is moved to a hidden key, behind a provider which times it. With more than
+ * one thread, they are taken out of Guice's own eager loading phase and created right after the injector, groups of
+ * eager singletons which don't depend on each other in parallel (Guice 3 creates singletons under a global lock,
+ * hence the dedicated scope). Eager filters and servlets are always left untouched, as GuiceFilter requires them
+ * to be regular singletons.
+ */
+public class StartupProfiler
+{
+    private static final Logger log = LoggerFactory.getLogger(StartupProfiler.class);
+    private static final int REPORT_TOP = 10;
+
+    private final Scope eagerSingletonScope = new EagerSingletonScope();
+    private final AtomicInteger hiddenKeys = new AtomicInteger(0);
+    // Labels of the eager singletons we create, keyed by binding key
+    private final Map<Key<?>, String> eagerSingletons = Collections.synchronizedMap(new LinkedHashMap<Key<?>, String>());
+    private final Map<String, Long> moduleNanos = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    private final Map<String, Long> eagerSingletonNanos = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    // Time spent creating eager singletons nested in the current one (dependencies), to report self times
+    private final ThreadLocal<long[]> nestedNanos = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+
+    private volatile int eagerSingletonThreads = 1;
+    private volatile long modulesNanos = 0;
+    private volatile long injectorNanos = 0;
+    private volatile long eagerSingletonsNanos = 0;
+    private volatile long totalNanos = 0;
+
+    /**
+     * @param eagerSingletonThreads number of threads to create eager singletons with (1 to create them one at a time)
+     */
+    public void setEagerSingletonThreads(final int eagerSingletonThreads)
+    {
+        this.eagerSingletonThreads = Math.max(1, eagerSingletonThreads);
+    }
+
+    /**
+     * Record the time spent configuring a module (see ServerModule#install)
+     *
+     * @param name  module name
+     * @param nanos time spent, in nanoseconds
+     */
+    public void recordModule(final String name, final long nanos)
+    {
+        synchronized (moduleNanos) {
+            final Long previous = moduleNanos.get(name);
+            moduleNanos.put(name, previous == null ? nanos : previous + nanos);
+        }
+    }
+
+    public Injector createInjector(final Stage stage, final Module module)
+    {
+        final long startNanos = System.nanoTime();
+        final List<Element> elements = Elements.getElements(stage, module);
+        modulesNanos = System.nanoTime() - startNanos;
+        recordModule(module.getClass().getName(), modulesNanos);
+
+        final long injectorStartNanos = System.nanoTime();
+        final Injector injector = Guice.createInjector(stage, new Module()
+        {
+            @Override
+            public void configure(final Binder binder)
+            {
+                for (final Element element : elements) {
+                    if (!(element instanceof Binding) || !deferEagerSingleton(binder.withSource(element.getSource()), (Binding<?>) element)) {
+                        element.applyTo(binder);
+                    }
+                }
+            }
+        });
+        injectorNanos = System.nanoTime() - injectorStartNanos;
+
+        if (isParallel()) {
+            final long eagerSingletonsStartNanos = System.nanoTime();
+            createEagerSingletons(injector, new ArrayList<Key<?>>(eagerSingletons.keySet()));
+            eagerSingletonsNanos = System.nanoTime() - eagerSingletonsStartNanos;
+        }
+        else {
+            // Created by Guice, while creating the injector
+            eagerSingletonsNanos = sum(eagerSingletonNanos);
+            injectorNanos -= eagerSingletonsNanos;
+        }
+
+        totalNanos = System.nanoTime() - startNanos;
+        log.info(getReport());
+
+        return injector;
+    }
+
+    private boolean isParallel()
+    {
+        return eagerSingletonThreads > 1;
+    }
+
+    /**
+     * @return true if the binding was an eager singleton and has been re-bound, either in our scope (parallel mode)
+     *         or as a profiled eager singleton
+     */
+    private <T> boolean deferEagerSingleton(final Binder binder, final Binding<T> binding)
+    {
+        final boolean eager = binding.acceptScopingVisitor(new DefaultBindingScopingVisitor<Boolean>()
+        {
+            @Override
+            public Boolean visitEagerSingleton()
+            {
+                return true;
+            }
+
+            @Override
+            protected Boolean visitOther()
+            {
+                return false;
+            }
+        });
+        final Class<?> type = binding.getKey().getTypeLiteral().getRawType();
+        if (!eager || Filter.class.isAssignableFrom(type) || Servlet.class.isAssignableFrom(type)) {
+            return false;
+        }
+
+        final boolean parallel = isParallel();
+        // When Guice creates the eager singletons, the actual target goes to a hidden key
+        final Key<T> targetKey = parallel ? binding.getKey() : Key.get(binding.getKey().getTypeLiteral(), Names.named(String.format("%s-%d", getClass().getName(), hiddenKeys.incrementAndGet())));
+        final String label = binding.acceptTargetVisitor(new DefaultBindingTargetVisitor<T, String>()
+        {
+            @Override
+            public String visit(final UntargettedBinding<? extends T> untargettedBinding)
+            {
+                if (parallel) {
+                    binder.bind(targetKey).in(eagerSingletonScope);
+                    return describe(binding.getKey());
+                }
+
+                final InjectionPoint constructor;
+                try {
+                    constructor = InjectionPoint.forConstructorOf(binding.getKey().getTypeLiteral());
+                }
+                catch (ConfigurationException e) {
+                    // Let Guice report it
+                    return null;
+                }
+                toConstructor(binder.bind(targetKey), constructor);
+                return describe(binding.getKey());
+            }
+
+            @Override
+            public String visit(final LinkedKeyBinding<? extends T> linkedKeyBinding)
+            {
+                scope(binder.bind(targetKey).to(linkedKeyBinding.getLinkedKey()));
+                return describe(linkedKeyBinding.getLinkedKey());
+            }
+
+            @Override
+            public String visit(final ProviderKeyBinding<? extends T> providerKeyBinding)
+            {
+                scope(binder.bind(targetKey).toProvider(providerKeyBinding.getProviderKey()));
+                return describe(binding.getKey());
+            }
+
+            @Override
+            public String visit(final ProviderInstanceBinding<? extends T> providerInstanceBinding)
+            {
+                scope(binder.bind(targetKey).toProvider(providerInstanceBinding.getProviderInstance()));
+                return describe(binding.getKey());
+            }
+
+            @Override
+            protected String visitOther(final Binding<? extends T> binding)
+            {
+                return null;
+            }
+
+            private void scope(final ScopedBindingBuilder builder)
+            {
+                if (parallel) {
+                    builder.in(eagerSingletonScope);
+                }
+            }
+        });
+        if (label == null) {
+            return false;
+        }
+
+        if (!parallel) {
+            binder.bind(binding.getKey()).toProvider(new ProfilingProvider<T>(binding.getKey(), binder.getProvider(targetKey))).asEagerSingleton();
+        }
+        eagerSingletons.put(binding.getKey(), label);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void toConstructor(final LinkedBindingBuilder<T> builder, final InjectionPoint constructor)
+    {
+        builder.toConstructor((Constructor<T>) constructor.getMember(), (TypeLiteral<T>) constructor.getDeclaringType());
+    }
+
+    private void createEagerSingletons(final Injector injector, final List<Key<?>> keys)
+    {
+        try {
+            createEagerSingletonsInParallel(injector, keys);
+        }
+        catch (ProvisionException e) {
+            // Same as if Guice had created them
+            throw new CreationException(e.getErrorMessages());
+        }
+    }
+
+    private void createEagerSingletonsInParallel(final Injector injector, final List<Key<?>> keys)
+    {
+        if (keys.size() <= 1) {
+            for (final Key<?> key : keys) {
+                injector.getInstance(key);
+            }
+            return;
+        }
+
+        final List<List<Key<?>>> groups = groupByDependencies(injector, keys);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(eagerSingletonThreads, groups.size()),
+                                                                      new ThreadFactoryBuilder().setNameFormat("eager-singletons-%d").setDaemon(true).build());
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final List<Key<?>> group : groups) {
+                futures.add(executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (final Key<?> key : group) {
+                            injector.getInstance(key);
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating eager singletons", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Group eager singletons which depend (directly or not) on each other, in binding order
+     */
+    static List<List<Key<?>>> groupByDependencies(final Injector injector, final List<Key<?>> keys)
+    {
+        final Map<Key<?>, Integer> indexes = new HashMap<Key<?>, Integer>();
+        final int[] parents = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            indexes.put(keys.get(i), i);
+            parents[i] = i;
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            for (final Key<?> dependency : getDependencies(injector, keys.get(i))) {
+                final Integer j = indexes.get(dependency);
+                if (j != null) {
+                    parents[findRoot(parents, i)] = findRoot(parents, j);
+                }
+            }
+        }
+
+        final Map<Integer, List<Key<?>>> groups = new LinkedHashMap<Integer, List<Key<?>>>();
+        for (int i = 0; i < keys.size(); i++) {
+            final int root = findRoot(parents, i);
+            if (groups.get(root) == null) {
+                groups.put(root, new ArrayList<Key<?>>());
+            }
+            groups.get(root).add(keys.get(i));
+        }
+        return new ArrayList<List<Key<?>>>(groups.values());
+    }
+
+    private static int findRoot(final int[] parents, int i)
+    {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * @return keys the binding of the given key transitively depends on
+     */
+    private static Set<Key<?>> getDependencies(final Injector injector, final Key<?> key)
+    {
+        final Set<Key<?>> dependencies = new HashSet<Key<?>>();
+        final Deque<Key<?>> toVisit = new ArrayDeque<Key<?>>();
+        toVisit.push(key);
+        while (!toVisit.isEmpty()) {
+            final Binding<?> binding = getBinding(injector, toVisit.pop());
+            if (binding == null) {
+                continue;
+            }
+
+            final List<Key<?>> next = new ArrayList<Key<?>>();
+            if (binding instanceof HasDependencies) {
+                for (final Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+                    next.add(dependency.getKey());
+                }
+            }
+            if (binding instanceof LinkedKeyBinding) {
+                next.add(((LinkedKeyBinding<?>) binding).getLinkedKey());
+            }
+            if (binding instanceof ProviderBinding) {
+                next.add(((ProviderBinding<?>) binding).getProvidedKey());
+            }
+
+            for (final Key<?> dependency : next) {
+                if (dependencies.add(dependency)) {
+                    toVisit.push(dependency);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    private static Binding<?> getBinding(final Injector injector, final Key<?> key)
+    {
+        try {
+            return injector.getBinding(key);
+        }
+        catch (ConfigurationException e) {
+            return null;
+        }
+    }
+
+    private <T> T createEagerSingleton(final Key<?> key, final Provider<T> unscoped)
+    {
+        final long[] nested = nestedNanos.get();
+        final long outerNested = nested[0];
+        nested[0] = 0;
+        final long startNanos = System.nanoTime();
+        try {
+            return unscoped.get();
+        }
+        finally {
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            final String label = eagerSingletons.get(key);
+            eagerSingletonNanos.put(label == null ? describe(key) : label, elapsedNanos - nested[0]);
+            nested[0] = outerNested + elapsedNanos;
+        }
+    }
+
+    private static long sum(final Map<String, Long> nanos)
+    {
+        long sum = 0;
+        synchronized (nanos) {
+            for (final Long value : nanos.values()) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    private static String describe(final Key<?> key)
+    {
+        if (key.getAnnotation() == null && key.getAnnotationType() == null) {
+            return key.getTypeLiteral().toString();
+        }
+        return key.toString();
+    }
+
+    @Managed(description = "Total time spent creating the injector, in milliseconds")
+    public long getTotalMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    @Managed(description = "Time spent configuring modules, in milliseconds")
+    public long getModulesMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(modulesNanos);
+    }
+
+    @Managed(description = "Time spent by Guice creating the injector (including non-eager singletons in production), in milliseconds")
+    public long getInjectorMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(injectorNanos);
+    }
+
+    @Managed(description = "Time spent creating eager singletons, in milliseconds")
+    public long getEagerSingletonsMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(eagerSingletonsNanos);
+    }
+
+    @Managed(description = "Number of eager singletons created")
+    public int getEagerSingletonCount()
+    {
+        return eagerSingletonNanos.size();
+    }
+
+    @Managed(description = "Number of threads used to create eager singletons")
+    public int getEagerSingletonThreads()
+    {
+        return eagerSingletonThreads;
+    }
+
+    @Managed(description = "Time spent configuring each module (including modules it installs), in milliseconds")
+    public String getModuleTimes()
+    {
+        return toMillis(moduleNanos).toString();
+    }
+
+    @Managed(description = "Time spent creating each eager singleton (excluding eager singletons it depends on), in milliseconds")
+    public String getEagerSingletonTimes()
+    {
+        return toMillis(eagerSingletonNanos).toString();
+    }
+
+    @Managed(description = "Startup report")
+    public String getReport()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Injector created in %d ms: %d ms configuring modules, %d ms in Guice, %d ms creating %d eager singletons (%d thread(s))",
+                                getTotalMillis(), getModulesMillis(), getInjectorMillis(), getEagerSingletonsMillis(), getEagerSingletonCount(), eagerSingletonThreads));
+        appendTop(sb, "Slowest modules", moduleNanos);
+        appendTop(sb, "Slowest eager singletons", eagerSingletonNanos);
+        return sb.toString();
+    }
+
+    private static void appendTop(final StringBuilder sb, final String title, final Map<String, Long> nanos)
+    {
+        final List<Map.Entry<String, Long>> entries;
+        synchronized (nanos) {
+            entries = new ArrayList<Map.Entry<String, Long>>(new LinkedHashMap<String, Long>(nanos).entrySet());
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>()
+        {
+            @Override
+            public int compare(final Map.Entry<String, Long> o1, final Map.Entry<String, Long> o2)
+            {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+
+        sb.append("\n  ").append(title).append(':');
+        for (final Map.Entry<String, Long> entry : entries.subList(0, Math.min(REPORT_TOP, entries.size()))) {
+            sb.append(String.format("\n    %6d ms %s", TimeUnit.NANOSECONDS.toMillis(entry.getValue()), entry.getKey()));
+        }
+    }
+
+    private static Map<String, Long> toMillis(final Map<String, Long> nanos)
+    {
+        final Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        synchronized (nanos) {
+            for (final Map.Entry<String, Long> entry : nanos.entrySet()) {
+                millis.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Singleton scope with per binding locking, see createEagerSingletons
+     */
+    private final class EagerSingletonScope implements Scope
+    {
+        @Override
+        public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped)
+        {
+            return new Provider<T>()
+            {
+                private volatile boolean created = false;
+                private T instance = null;
+
+                @Override
+                public T get()
+                {
+                    if (!created) {
+                        synchronized (this) {
+                            if (!created) {
+                                instance = createEagerSingleton(key, unscoped);
+                                created = true;
+                            }
+                        }
+                    }
+                    return instance;
+                }
+
+                @Override
+                public String toString()
+                {
+                    return String.format("%s[%s]", unscoped, EagerSingletonScope.this);
+                }
+            };
+        }
+
+        @Override
+        public String toString()
+        {
+            return "StartupProfiler.EAGER_SINGLETON";
+        }
+    }
+
+    /**
+     * Times the creation of an eager singleton left to Guice, see deferEagerSingleton
+     */
+    private final class ProfilingProvider<T> implements Provider<T>
+    {
+        private final Key<T> key;
+        private final Provider<T> target;
+
+        private ProfilingProvider(final Key<T> key, final Provider<T> target)
+        {
+            this.key = key;
+            this.target = target;
+        }
+
+        @Override
+        public T get()
+        {
+            return createEagerSingleton(key, target);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("StartupProfiler[%s]", target);
+        }
+    }
+}
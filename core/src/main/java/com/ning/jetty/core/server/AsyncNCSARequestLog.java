@@ -0,0 +1,497 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.eclipse.jetty.server.Authentication;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.DateCache;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NCSA (extended) request log, with the same output as Jetty's NCSARequestLog, off the request thread.
+ * <p/>
+ * Request threads format lines into thread-local buffers and copy them into a pre-allocated ring buffer. A single
+ * writer thread drains the ring into a batch buffer, written to a FileChannel when full or every flushInterval.
+ * The file is rolled over (renamed with a timestamp suffix) when it reaches rolloverSize bytes or is older than
+ * rolloverInterval.
+ * <p/>
+ * Request threads never block: if the writer can't keep up (e.g. the disk stalls), lines are dropped once the ring
+ * is full, see getDropped().
+ */
+public class AsyncNCSARequestLog extends AbstractLifeCycle implements RequestLog
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncNCSARequestLog.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Initial size of a ring slot, longer lines grow it temporarily
+    private static final int SLOT_SIZE = 512;
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final ThreadLocal<LineBuffer> lineBuffers = new ThreadLocal<LineBuffer>()
+    {
+        @Override
+        protected LineBuffer initialValue()
+        {
+            return new LineBuffer();
+        }
+    };
+
+    private final File file;
+    private final long flushIntervalNanos;
+    private final long rolloverSize;
+    private final long rolloverIntervalMillis;
+
+    private final Slot[] slots;
+    private final int mask;
+    // Next sequence to claim (producers)
+    private final AtomicLong claimed = new AtomicLong(0);
+    // Next sequence to write (writer thread only)
+    private volatile long consumed = 0;
+
+    private final DateCache dateCache;
+
+    private final AtomicLong logged = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong oversized = new AtomicLong(0);
+    private final AtomicLong writeErrors = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final AtomicLong rollovers = new AtomicLong(0);
+
+    private volatile boolean running = false;
+    private Thread writerThread;
+
+    // Writer thread state
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private FileChannel channel;
+    private long fileSize;
+    private long fileOpenedMillis;
+    private long lastFlushNanos;
+
+    /**
+     * @param filename         log file
+     * @param ringSize         maximum number of lines waiting to be written (rounded up to a power of two)
+     * @param flushIntervalMs  maximum time lines stay in memory before being written, in milliseconds
+     * @param rolloverSize     roll the file over when it gets bigger than this, in bytes (0 to disable)
+     * @param rolloverInterval roll the file over when it gets older than this, in milliseconds (0 to disable)
+     */
+    public AsyncNCSARequestLog(final String filename, final int ringSize, final long flushIntervalMs, final long rolloverSize, final long rolloverInterval)
+    {
+        if (ringSize <= 0) {
+            throw new IllegalArgumentException("Invalid ring size: " + ringSize);
+        }
+
+        this.file = new File(filename).getAbsoluteFile();
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.rolloverSize = rolloverSize;
+        this.rolloverIntervalMillis = rolloverInterval;
+
+        final int capacity = ringSize == 1 ? 1 : Integer.highestOneBit(ringSize - 1) << 1;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+
+        // Same format as NCSARequestLog
+        this.dateCache = new DateCache("dd/MMM/yyyy:HH:mm:ss Z", Locale.getDefault());
+        dateCache.setTimeZoneID("GMT");
+    }
+
+    @Override
+    public void log(final Request request, final Response response)
+    {
+        if (!running) {
+            return;
+        }
+
+        final String status;
+        if (request.getAsyncContinuation().isInitial()) {
+            final int code = response.getStatus();
+            status = code <= 0 ? "404" : String.valueOf(code);
+        }
+        else {
+            status = "Async";
+        }
+
+        final String forwardedFor = request.getHeader("X-Forwarded-For");
+        log(forwardedFor != null ? forwardedFor : request.getRemoteAddr(),
+            getUserName(request),
+            request.getTimeStamp(),
+            request.getMethod(),
+            request.getUri() == null ? null : request.getUri().toString(),
+            request.getProtocol(),
+            status,
+            response.getContentCount(),
+            request.getHeader("Referer"),
+            request.getHeader("User-Agent"));
+    }
+
+    void log(final String address, final String user, final long timeStamp, final String method, final String uri, final String protocol,
+             final String status, final long bytes, final String referer, final String userAgent)
+    {
+        if (!running) {
+            return;
+        }
+
+        final LineBuffer line = lineBuffers.get();
+        final StringBuilder sb = line.chars;
+        sb.setLength(0);
+        sb.append(address == null ? "-" : address)
+          .append(" - ")
+          .append(user == null ? "-" : user)
+          .append(" [")
+          .append(dateCache.format(timeStamp))
+          .append("] \"")
+          .append(method)
+          .append(' ')
+          .append(uri)
+          .append(' ')
+          .append(protocol)
+          .append("\" ")
+          .append(status)
+          .append(' ');
+        if (bytes >= 0) {
+            sb.append(bytes);
+        }
+        else {
+            sb.append('-');
+        }
+        appendQuoted(sb, referer);
+        appendQuoted(sb, userAgent);
+        sb.append('\n');
+
+        final int length = line.encode();
+        publish(line.bytes, length);
+    }
+
+    private static void appendQuoted(final StringBuilder sb, final String value)
+    {
+        if (value == null) {
+            sb.append(" \"-\"");
+        }
+        else {
+            sb.append(" \"").append(value).append('"');
+        }
+    }
+
+    private static String getUserName(final Request request)
+    {
+        final Authentication authentication = request.getAuthentication();
+        if (authentication instanceof Authentication.User) {
+            return ((Authentication.User) authentication).getUserIdentity().getUserPrincipal().getName();
+        }
+        return null;
+    }
+
+    private void publish(final byte[] bytes, final int length)
+    {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                // The writer is behind (disk stall?)
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        final Slot slot = slots[(int) (sequence & mask)];
+        if (slot.bytes.length < length) {
+            oversized.incrementAndGet();
+            slot.bytes = new byte[length];
+        }
+        System.arraycopy(bytes, 0, slot.bytes, 0, length);
+        slot.length = length;
+        slot.sequence = sequence;
+        logged.incrementAndGet();
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        openFile();
+
+        running = true;
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "request-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        running = false;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+            writerThread = null;
+        }
+
+        super.doStop();
+    }
+
+    private void writeLoop()
+    {
+        lastFlushNanos = System.nanoTime();
+        while (true) {
+            final long sequence = consumed;
+            final Slot slot = slots[(int) (sequence & mask)];
+            if (slot.sequence == sequence) {
+                append(slot.bytes, slot.length);
+                if (slot.bytes.length > SLOT_SIZE) {
+                    // Don't keep big buffers around
+                    slot.bytes = new byte[SLOT_SIZE];
+                }
+                consumed = sequence + 1;
+                maybeFlush(false);
+            }
+            else if (!running && sequence == claimed.get()) {
+                break;
+            }
+            else {
+                maybeFlush(false);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+
+        maybeFlush(true);
+        closeFile();
+    }
+
+    private void append(final byte[] bytes, final int length)
+    {
+        if (batch.remaining() < length) {
+            writeBatch();
+        }
+
+        if (length > batch.capacity()) {
+            write(ByteBuffer.wrap(bytes, 0, length));
+        }
+        else {
+            batch.put(bytes, 0, length);
+        }
+    }
+
+    private void maybeFlush(final boolean force)
+    {
+        final long now = System.nanoTime();
+        if (force || (batch.position() > 0 && now - lastFlushNanos >= flushIntervalNanos)) {
+            writeBatch();
+            lastFlushNanos = now;
+        }
+
+        if (rolloverIntervalMillis > 0 && fileSize > 0 && System.currentTimeMillis() - fileOpenedMillis >= rolloverIntervalMillis) {
+            rollover();
+        }
+    }
+
+    private void writeBatch()
+    {
+        batch.flip();
+        write(batch);
+        batch.clear();
+    }
+
+    private void write(final ByteBuffer buffer)
+    {
+        if (!buffer.hasRemaining()) {
+            return;
+        }
+
+        try {
+            if (channel == null) {
+                openFile();
+            }
+            final int size = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fileSize += size;
+            bytesWritten.addAndGet(size);
+        }
+        catch (IOException e) {
+            writeErrors.incrementAndGet();
+            log.warn("Unable to write to request log {}: {}", file, e.getLocalizedMessage());
+            closeFile();
+        }
+
+        if (rolloverSize > 0 && fileSize >= rolloverSize) {
+            rollover();
+        }
+    }
+
+    private void rollover()
+    {
+        closeFile();
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy_MM_dd_HHmmss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String prefix = file.getPath() + "." + format.format(new Date());
+        File rolled = new File(prefix);
+        for (int i = 1; rolled.exists(); i++) {
+            rolled = new File(prefix + "." + i);
+        }
+        if (!file.renameTo(rolled)) {
+            log.warn("Unable to roll request log {} over to {}", file, rolled);
+        }
+        rollovers.incrementAndGet();
+
+        try {
+            openFile();
+        }
+        catch (IOException e) {
+            writeErrors.incrementAndGet();
+            log.warn("Unable to open request log {}: {}", file, e.getLocalizedMessage());
+        }
+    }
+
+    private void openFile() throws IOException
+    {
+        channel = new FileOutputStream(file, true).getChannel();
+        fileSize = channel.size();
+        fileOpenedMillis = System.currentTimeMillis();
+    }
+
+    private void closeFile()
+    {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Unable to close request log {}: {}", file, e.getLocalizedMessage());
+        }
+        channel = null;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Managed(description = "Number of lines accepted")
+    public long getLogged()
+    {
+        return logged.get();
+    }
+
+    @Managed(description = "Number of lines dropped because the writer couldn't keep up")
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    @Managed(description = "Number of lines which didn't fit in a ring buffer slot")
+    public long getOversized()
+    {
+        return oversized.get();
+    }
+
+    @Managed(description = "Number of lines waiting to be written")
+    public long getPending()
+    {
+        return claimed.get() - consumed;
+    }
+
+    @Managed(description = "Number of failed writes")
+    public long getWriteErrors()
+    {
+        return writeErrors.get();
+    }
+
+    @Managed(description = "Number of bytes written")
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    @Managed(description = "Number of file rollovers")
+    public long getRollovers()
+    {
+        return rollovers.get();
+    }
+
+    private static final class Slot
+    {
+        private volatile long sequence = -1;
+        private byte[] bytes = new byte[SLOT_SIZE];
+        private int length;
+    }
+
+    private static final class LineBuffer
+    {
+        private final StringBuilder chars = new StringBuilder(SLOT_SIZE);
+        private byte[] bytes = new byte[SLOT_SIZE];
+
+        // Encode the line into bytes, returns the number of bytes
+        private int encode()
+        {
+            final int length = chars.length();
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+
+            for (int i = 0; i < length; i++) {
+                final char c = chars.charAt(i);
+                if (c >= 0x80) {
+                    // Slow path
+                    bytes = chars.toString().getBytes(UTF_8);
+                    return bytes.length;
+                }
+                bytes[i] = (byte) c;
+            }
+            return length;
+        }
+    }
+}
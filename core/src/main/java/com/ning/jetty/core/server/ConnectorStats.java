@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.eclipse.jetty.server.AbstractConnector;
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-connector connection limit and statistics, see InstrumentedSelectChannelConnector.
+ * <p/>
+ * HTTP/1.1 connections carry one request at a time, so clients needing concurrency open parallel connections: the
+ * number of open connections is the number of concurrent request streams on the connector. Once maxConnections
+ * connections are open, acceptor threads stop accepting new ones (they wait in the accept queue) until some are
+ * closed.
+ * <p/>
+ * Idle keep-alive connections would hold their slots for the whole idle timeout (200s by default), starving new
+ * clients. Once 90% of the slots are used, the connectors switch to Jetty's low resources mode: connections idle
+ * for more than lowResourcesMaxIdleTime (5s by default) are closed. The trade-off is that, under load, clients
+ * pausing between requests have to reconnect (an extra handshake, expensive with SSL) instead of reusing their
+ * connection. Jetty checks the threshold per selector, so it is approximate with several acceptors.
+ * <p/>
+ * Request statistics are only available when Jetty statistics are turned on (com.ning.core.server.jetty.stats).
+ */
+public class ConnectorStats
+{
+    static final int DEFAULT_LOW_RESOURCES_MAX_IDLE_TIME = 5000;
+
+    private final AbstractConnector connector;
+    private final int maxConnections;
+
+    // Connection slots (open connections, plus the one an acceptor may be waiting for)
+    private final Object lock = new Object();
+    private int slotsUsed = 0;
+
+    private final Object statsLock = new Object();
+    private int connectionsOpen = 0;
+    private int connectionsOpenMax = 0;
+
+    private final AtomicLong connectionsOpened = new AtomicLong(0);
+    private final AtomicLong acceptsDelayed = new AtomicLong(0);
+    private final AtomicLong acceptsDelayedNanos = new AtomicLong(0);
+
+    /**
+     * @param connector      connector to report statistics for
+     * @param maxConnections maximum number of open connections, 0 for no limit
+     */
+    public ConnectorStats(final AbstractConnector connector, final int maxConnections)
+    {
+        this.connector = connector;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Wait until a new connection can be accepted, and reserve a slot for it. The slot is given back when the
+     * connection is closed, or via releaseConnectionSlot() if the accept fails.
+     *
+     * @throws InterruptedException if interrupted while waiting (e.g. the connector is stopped)
+     */
+    void awaitConnectionSlot() throws InterruptedException
+    {
+        if (maxConnections <= 0) {
+            return;
+        }
+
+        synchronized (lock) {
+            if (slotsUsed >= maxConnections) {
+                acceptsDelayed.incrementAndGet();
+                final long startNanos = System.nanoTime();
+                while (slotsUsed >= maxConnections) {
+                    lock.wait();
+                }
+                acceptsDelayedNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+            slotsUsed++;
+        }
+    }
+
+    /**
+     * @param maxConnections maximum number of open connections
+     * @return number of open connections above which idle connections are closed sooner
+     */
+    static int getLowResourcesConnections(final int maxConnections)
+    {
+        return Math.max(1, maxConnections * 9 / 10);
+    }
+
+    void releaseConnectionSlot()
+    {
+        if (maxConnections <= 0) {
+            return;
+        }
+
+        synchronized (lock) {
+            slotsUsed--;
+            lock.notify();
+        }
+    }
+
+    void connectionOpened()
+    {
+        connectionsOpened.incrementAndGet();
+        synchronized (statsLock) {
+            connectionsOpen++;
+            connectionsOpenMax = Math.max(connectionsOpenMax, connectionsOpen);
+        }
+    }
+
+    void connectionClosed()
+    {
+        synchronized (statsLock) {
+            connectionsOpen--;
+        }
+        releaseConnectionSlot();
+    }
+
+    @Managed(description = "Maximum number of open connections (0 for no limit)")
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    @Managed(description = "Number of open connections")
+    public int getConnectionsOpen()
+    {
+        synchronized (statsLock) {
+            return connectionsOpen;
+        }
+    }
+
+    @Managed(description = "Maximum number of connections open at the same time")
+    public int getConnectionsOpenMax()
+    {
+        synchronized (statsLock) {
+            return connectionsOpenMax;
+        }
+    }
+
+    @Managed(description = "Number of connections opened")
+    public long getConnectionsOpened()
+    {
+        return connectionsOpened.get();
+    }
+
+    @Managed(description = "Number of times the connection limit delayed an accept")
+    public long getAcceptsDelayed()
+    {
+        return acceptsDelayed.get();
+    }
+
+    @Managed(description = "Total time accepts were delayed by the connection limit, in milliseconds")
+    public long getAcceptsDelayedMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(acceptsDelayedNanos.get());
+    }
+
+    @Managed(description = "Number of requests (requires Jetty statistics)")
+    public int getRequests()
+    {
+        return connector.getRequests();
+    }
+
+    @Managed(description = "Average number of requests per connection (requires Jetty statistics)")
+    public double getRequestsPerConnectionMean()
+    {
+        return connector.getConnectionsRequestsMean();
+    }
+
+    @Managed(description = "Maximum number of requests on a connection (requires Jetty statistics)")
+    public int getRequestsPerConnectionMax()
+    {
+        return connector.getConnectionsRequestsMax();
+    }
+
+    @Managed(description = "Average connection duration, in milliseconds (requires Jetty statistics)")
+    public double getConnectionDurationMean()
+    {
+        return connector.getConnectionsDurationMean();
+    }
+}
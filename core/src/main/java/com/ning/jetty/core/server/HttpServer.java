@@ -17,12 +17,16 @@
 package com.ning.jetty.core.server;
 
 import com.ning.jetty.core.CoreConfig;
+import com.ning.jetty.core.handlers.AdaptiveConcurrencyLimit;
+import com.ning.jetty.core.handlers.GracefulShutdownHandler;
+import com.ning.jetty.core.handlers.LoadSheddingHandler;
 import com.ning.jetty.core.listeners.SetupJULBridge;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.Resources;
 import com.google.inject.servlet.GuiceFilter;
 import org.eclipse.jetty.jmx.MBeanContainer;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.NCSARequestLog;
 import org.eclipse.jetty.server.RequestLog;
 import org.eclipse.jetty.server.Server;
@@ -30,31 +34,53 @@ import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.RequestLogHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
-import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
 import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.xml.XmlConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.MBeanExporter;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.management.MBeanServer;
 import javax.servlet.DispatcherType;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.EventListener;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Embed Jetty
  */
 public class HttpServer
 {
+    private static final Logger log = LoggerFactory.getLogger(HttpServer.class);
+    private static final String VIRTUAL_THREADS_MBEAN_NAME = "com.ning.jetty.core.server:name=VirtualThreadExecutor";
+    private static final String LOAD_SHEDDING_MBEAN_NAME = "com.ning.jetty.core.server:name=LoadSheddingHandler";
+    private static final String CONNECTOR_MBEAN_NAME_PREFIX = "com.ning.jetty.core.server:name=ConnectorStats,connector=";
+    private static final String REQUEST_LOG_MBEAN_NAME = "com.ning.jetty.core.server:name=AsyncNCSARequestLog";
+    private static final String GRACEFUL_SHUTDOWN_MBEAN_NAME = "com.ning.jetty.core.server:name=GracefulShutdownHandler";
+
     private final Server server;
+    // Our own beans (Jetty ones are exported via its MBeanContainer)
+    private final MBeanExporter mbeanExporter = new MBeanExporter(ManagementFactory.getPlatformMBeanServer());
+    private final List<String> exportedMBeans = new ArrayList<String>();
+
+    private GracefulShutdownHandler gracefulShutdownHandler = null;
+    private long healthCheckGracePeriodMillis = 0;
+    private long drainTimeoutMillis = 0;
+    private Thread shutdownHook = null;
 
     public HttpServer()
     {
@@ -76,17 +102,31 @@ public class HttpServer
 
     public void configure(final CoreConfig config, final Iterable<EventListener> eventListeners, final Map<FilterHolder, String> filterHolders)
     {
-        server.setStopAtShutdown(true);
+        // Jetty's own shutdown hook would stop the server without draining it
+        shutdownHook = new Thread("http-server-shutdown")
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    HttpServer.this.stop();
+                }
+                catch (Exception e) {
+                    log.warn("Unable to stop the server", e);
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
 
         // Setup JMX
         configureJMX(ManagementFactory.getPlatformMBeanServer());
 
         // Configure main connector
-        configureMainConnector(config.isJettyStatsOn(), config.getServerHost(), config.getServerPort());
+        configureMainConnector(config);
 
         // Configure SSL, if enabled
         if (config.isSSLEnabled()) {
-            configureSslConnector(config.isJettyStatsOn(), config.getServerSslPort(), config.getSSLkeystoreLocation(), config.getSSLkeystorePassword());
+            configureSslConnector(config);
         }
 
         // Configure the thread pool
@@ -95,12 +135,17 @@ public class HttpServer
         // Configure handlers
         final HandlerCollection handlers = new HandlerCollection();
         final ServletContextHandler servletContextHandler = createServletContextHandler(config.getResourceBase(), eventListeners, filterHolders);
-        handlers.addHandler(servletContextHandler);
+        if (config.isLoadSheddingEnabled()) {
+            handlers.addHandler(createLoadSheddingHandler(config, servletContextHandler));
+        }
+        else {
+            handlers.addHandler(servletContextHandler);
+        }
         final RequestLogHandler logHandler = createLogHandler(config);
         handlers.addHandler(logHandler);
         final HandlerList rootHandlers = new HandlerList();
         rootHandlers.addHandler(handlers);
-        server.setHandler(rootHandlers);
+        server.setHandler(createGracefulShutdownHandler(config, rootHandlers));
     }
 
     @PostConstruct
@@ -111,9 +156,57 @@ public class HttpServer
     }
 
     @PreDestroy
-    public void stop() throws Exception
+    public synchronized void stop() throws Exception
     {
+        if (gracefulShutdownHandler != null && server.isRunning()) {
+            drain();
+        }
+
         server.stop();
+
+        for (final String name : exportedMBeans) {
+            mbeanExporter.unexport(name);
+        }
+        exportedMBeans.clear();
+
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            }
+            catch (IllegalStateException e) {
+                // The JVM is already shutting down
+            }
+        }
+    }
+
+    /**
+     * Fail healthchecks, stop accepting connections and wait for requests in flight, up to the drain timeout
+     */
+    private void drain() throws InterruptedException
+    {
+        gracefulShutdownHandler.startDraining();
+        if (healthCheckGracePeriodMillis > 0) {
+            log.info("Failing healthchecks for {} ms before draining", healthCheckGracePeriodMillis);
+            Thread.sleep(healthCheckGracePeriodMillis);
+        }
+
+        // Existing connections are still served
+        for (final Connector connector : server.getConnectors()) {
+            try {
+                connector.close();
+            }
+            catch (IOException e) {
+                log.warn("Unable to close connector " + connector.getName(), e);
+            }
+        }
+
+        if (gracefulShutdownHandler.awaitDrained(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.info("Drained requests in flight in {} ms", gracefulShutdownHandler.getDrainDurationMillis());
+        }
+        else {
+            log.warn("Drain timeout expired after {} ms, {} requests still in flight",
+                     gracefulShutdownHandler.getDrainDurationMillis(), gracefulShutdownHandler.getDrainAbandoned());
+        }
     }
 
     private void configureJMX(final MBeanServer mbeanServer)
@@ -123,36 +216,109 @@ public class HttpServer
         server.addBean(mbContainer);
     }
 
-    private void configureMainConnector(final boolean isStatsOn, final String localIp, final int localPort)
+    private void configureMainConnector(final CoreConfig config)
     {
-        final SelectChannelConnector connector = new SelectChannelConnector();
+        final InstrumentedSelectChannelConnector connector = new InstrumentedSelectChannelConnector(config.getMaxConnections());
         connector.setName("http");
-        connector.setStatsOn(isStatsOn);
-        connector.setHost(localIp);
-        connector.setPort(localPort);
+        connector.setHost(config.getServerHost());
+        connector.setPort(config.getServerPort());
+        connector.setReusePort(config.isReusePortEnabled());
+        tuneConnector(connector, config);
         server.addConnector(connector);
+        exportMBean(CONNECTOR_MBEAN_NAME_PREFIX + connector.getName(), connector.getStats());
     }
 
-    private void configureSslConnector(final boolean isStatsOn, final int localSslPort, final String sslKeyStorePath, final String sslKeyStorePassword)
+    private void configureSslConnector(final CoreConfig config)
     {
-        final SslSelectChannelConnector sslConnector = new SslSelectChannelConnector();
+        final InstrumentedSslSelectChannelConnector sslConnector = new InstrumentedSslSelectChannelConnector(config.getMaxConnections());
         sslConnector.setName("https");
-        sslConnector.setStatsOn(isStatsOn);
-        sslConnector.setPort(localSslPort);
+        sslConnector.setPort(config.getServerSslPort());
+        sslConnector.setReusePort(config.isReusePortEnabled());
+        tuneConnector(sslConnector, config);
         final SslContextFactory sslContextFactory = sslConnector.getSslContextFactory();
-        sslContextFactory.setKeyStorePath(sslKeyStorePath);
-        sslContextFactory.setKeyStorePassword(sslKeyStorePassword);
+        sslContextFactory.setKeyStorePath(config.getSSLkeystoreLocation());
+        sslContextFactory.setKeyStorePassword(config.getSSLkeystorePassword());
         server.addConnector(sslConnector);
+        exportMBean(CONNECTOR_MBEAN_NAME_PREFIX + sslConnector.getName(), sslConnector.getStats());
+    }
+
+    private void tuneConnector(final SelectChannelConnector connector, final CoreConfig config)
+    {
+        connector.setStatsOn(config.isJettyStatsOn());
+        // Jetty 8 creates one selector per acceptor
+        connector.setAcceptors(config.getAcceptors() > 0 ? config.getAcceptors() : getDefaultAcceptors());
+        connector.setAcceptQueueSize(config.getAcceptQueueSize());
+        connector.setMaxIdleTime((int) config.getIdleTimeout().getMillis());
+        if (config.getMaxConnections() > 0) {
+            connector.setLowResourcesMaxIdleTime((int) config.getLowResourcesIdleTimeout().getMillis());
+        }
+        connector.setRequestHeaderSize(config.getRequestHeaderSize());
+        connector.setRequestBufferSize(config.getRequestBufferSize());
+        connector.setResponseHeaderSize(config.getResponseHeaderSize());
+        connector.setResponseBufferSize(config.getResponseBufferSize());
+    }
+
+    /**
+     * @return default number of acceptors (and selectors): half the cores, between 1 and 8
+     */
+    static int getDefaultAcceptors()
+    {
+        return Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
     }
 
     private void configureThreadPool(final CoreConfig config)
     {
+        if (config.isVirtualThreadsEnabled()) {
+            if (VirtualThreadExecutor.isSupported()) {
+                final VirtualThreadExecutor executor = new VirtualThreadExecutor();
+                // Stopping the ExecutorThreadPool shuts the executor down
+                server.setThreadPool(new ExecutorThreadPool(executor));
+
+                exportMBean(VIRTUAL_THREADS_MBEAN_NAME, executor);
+                return;
+            }
+
+            log.warn("Virtual threads are not supported by this JVM (Java 21+ required), using a regular thread pool");
+        }
+
         final QueuedThreadPool threadPool = new QueuedThreadPool(config.getMaxThreads());
         threadPool.setMinThreads(config.getMinThreads());
         threadPool.setName("http-worker");
         server.setThreadPool(threadPool);
     }
 
+    private LoadSheddingHandler createLoadSheddingHandler(final CoreConfig config, final ServletContextHandler servletContextHandler)
+    {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(config.getLoadSheddingInitialLimit(),
+                                                                            config.getLoadSheddingMinLimit(),
+                                                                            config.getLoadSheddingMaxLimit(),
+                                                                            TimeUnit.SECONDS.toNanos(1),
+                                                                            10);
+        final LoadSheddingHandler loadSheddingHandler = new LoadSheddingHandler(limit, config.getLoadSheddingPriorities(), config.getLoadSheddingRetryAfterSeconds());
+        loadSheddingHandler.setHandler(servletContextHandler);
+        exportMBean(LOAD_SHEDDING_MBEAN_NAME, loadSheddingHandler);
+
+        return loadSheddingHandler;
+    }
+
+    private GracefulShutdownHandler createGracefulShutdownHandler(final CoreConfig config, final HandlerList rootHandlers)
+    {
+        healthCheckGracePeriodMillis = config.getShutdownHealthCheckGracePeriod().getMillis();
+        drainTimeoutMillis = config.getShutdownDrainTimeout().getMillis();
+
+        gracefulShutdownHandler = new GracefulShutdownHandler(config.getShutdownHealthCheckPath());
+        gracefulShutdownHandler.setHandler(rootHandlers);
+        exportMBean(GRACEFUL_SHUTDOWN_MBEAN_NAME, gracefulShutdownHandler);
+
+        return gracefulShutdownHandler;
+    }
+
+    private void exportMBean(final String name, final Object bean)
+    {
+        mbeanExporter.export(name, bean);
+        exportedMBeans.add(name);
+    }
+
     private ServletContextHandler createServletContextHandler(final String resourceBase, final Iterable<EventListener> eventListeners, final Map<FilterHolder, String> filterHolders)
     {
         final ServletContextHandler context = new ServletContextHandler(server, "/", ServletContextHandler.NO_SESSIONS);
@@ -178,10 +344,13 @@ public class HttpServer
 
         // Make sure Guice filter all requests
         final FilterHolder filterHolder = new FilterHolder(GuiceFilter.class);
+        // Let Guice-managed servlets (e.g. HttpProxyServlet) use Servlet 3.0 async
+        filterHolder.setAsyncSupported(true);
         context.addFilter(filterHolder, "/*", EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
 
         // Backend servlet for Guice - never used
         final ServletHolder sh = new ServletHolder(DefaultServlet.class);
+        sh.setAsyncSupported(true);
         context.addServlet(sh, "/*");
 
         return context;
@@ -191,7 +360,19 @@ public class HttpServer
     {
         final RequestLogHandler logHandler = new RequestLogHandler();
 
-        final RequestLog requestLog = new NCSARequestLog(config.getLogPath());
+        final RequestLog requestLog;
+        if (config.isAsyncRequestLogEnabled()) {
+            final AsyncNCSARequestLog asyncRequestLog = new AsyncNCSARequestLog(config.getLogPath(),
+                                                                                config.getRequestLogRingSize(),
+                                                                                config.getRequestLogFlushInterval().getMillis(),
+                                                                                config.getRequestLogRolloverSize(),
+                                                                                config.getRequestLogRolloverInterval().getMillis());
+            exportMBean(REQUEST_LOG_MBEAN_NAME, asyncRequestLog);
+            requestLog = asyncRequestLog;
+        }
+        else {
+            requestLog = new NCSARequestLog(config.getLogPath());
+        }
         logHandler.setRequestLog(requestLog);
 
         return logHandler;
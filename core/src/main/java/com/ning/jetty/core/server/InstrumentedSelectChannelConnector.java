@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+
+import java.io.IOException;
+
+/**
+ * HTTP connector with a connection limit and statistics (see ConnectorStats), and optional SO_REUSEPORT
+ */
+public class InstrumentedSelectChannelConnector extends SelectChannelConnector
+{
+    private final ConnectorStats stats;
+    private boolean reusePort = false;
+
+    /**
+     * @param maxConnections maximum number of open connections, 0 for no limit
+     */
+    public InstrumentedSelectChannelConnector(final int maxConnections)
+    {
+        this.stats = new ConnectorStats(this, maxConnections);
+        if (maxConnections > 0) {
+            // Don't let idle keep-alive connections hold the slots when close to the limit, see ConnectorStats
+            setLowResourcesConnections(ConnectorStats.getLowResourcesConnections(maxConnections));
+            setLowResourcesMaxIdleTime(ConnectorStats.DEFAULT_LOW_RESOURCES_MAX_IDLE_TIME);
+        }
+    }
+
+    /**
+     * @param reusePort whether to set SO_REUSEPORT on the listening socket, see ReusePort
+     */
+    public void setReusePort(final boolean reusePort)
+    {
+        this.reusePort = reusePort;
+    }
+
+    public boolean isReusePort()
+    {
+        return reusePort;
+    }
+
+    @Override
+    public boolean getReuseAddress()
+    {
+        // open() calls us between the creation of the listening channel and bind(): the only window to set SO_REUSEPORT
+        if (reusePort && _acceptChannel != null && !_acceptChannel.socket().isBound()) {
+            ReusePort.enable(_acceptChannel);
+        }
+        return super.getReuseAddress();
+    }
+
+    @Override
+    public void accept(final int acceptorID) throws IOException
+    {
+        try {
+            stats.awaitConnectionSlot();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            super.accept(acceptorID);
+        }
+        catch (IOException e) {
+            stats.releaseConnectionSlot();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            stats.releaseConnectionSlot();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void connectionOpened(final Connection connection)
+    {
+        stats.connectionOpened();
+        super.connectionOpened(connection);
+    }
+
+    @Override
+    protected void connectionClosed(final Connection connection)
+    {
+        super.connectionClosed(connection);
+        stats.connectionClosed();
+    }
+
+    public ConnectorStats getStats()
+    {
+        return stats;
+    }
+}
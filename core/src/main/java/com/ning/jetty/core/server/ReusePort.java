@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * SO_REUSEPORT support: several listening sockets (e.g. several processes) can bind the same port, the kernel
+ * load-balances incoming connections between them.
+ * <p/>
+ * It requires Java 9+ while this module targets Java 6: SocketOption and NetworkChannel (Java 7) are only used
+ * through reflection, so that this class links on any JVM.
+ */
+final class ReusePort
+{
+    private static final Logger log = LoggerFactory.getLogger(ReusePort.class);
+    // StandardSocketOptions.SO_REUSEPORT and NetworkChannel.setOption(SocketOption, Object), null if unsupported
+    private static final Object SO_REUSEPORT;
+    private static final Method SET_OPTION;
+
+    static {
+        Object option = null;
+        Method setOption = null;
+        try {
+            option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            setOption = Class.forName("java.nio.channels.NetworkChannel").getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+        }
+        catch (Exception e) {
+            option = null;
+            setOption = null;
+        }
+        SO_REUSEPORT = option;
+        SET_OPTION = setOption;
+    }
+
+    private ReusePort()
+    {
+    }
+
+    static boolean isSupported()
+    {
+        return SO_REUSEPORT != null;
+    }
+
+    /**
+     * Enable SO_REUSEPORT on a listening channel, before it is bound. Failures are logged, not thrown.
+     *
+     * @param channel channel to configure
+     */
+    static void enable(final ServerSocketChannel channel)
+    {
+        if (SO_REUSEPORT == null) {
+            log.warn("SO_REUSEPORT is not supported by this JVM (Java 9+ required), ignoring");
+            return;
+        }
+
+        try {
+            SET_OPTION.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                log.warn("SO_REUSEPORT is not supported on this platform, ignoring");
+            }
+            else if (e.getCause() instanceof IOException) {
+                log.warn("Unable to set SO_REUSEPORT: {}", e.getCause().getLocalizedMessage());
+            }
+            else {
+                log.warn("Unable to set SO_REUSEPORT", e.getCause());
+            }
+        }
+        catch (IllegalAccessException e) {
+            log.warn("Unable to set SO_REUSEPORT", e);
+        }
+    }
+}
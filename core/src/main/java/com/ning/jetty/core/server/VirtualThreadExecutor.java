@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor running each task in a new virtual thread, for blocking workloads (JDBI, proxying).
+ * <p/>
+ * Virtual threads require Java 21+, this module targets older runtimes: everything goes through reflection and
+ * isSupported() tells whether the current JVM has them. Carrier thread pinning (a virtual thread blocking in
+ * a synchronized block or native frame, which holds on to its carrier thread) is tracked via the
+ * jdk.VirtualThreadPinned JFR event, when JFR is available.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService
+{
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    private static final String RECORDING_STREAM_CLASS = "jdk.jfr.consumer.RecordingStream";
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    // Pinning shorter than this is not reported (same as the JFR default)
+    private static final long PINNING_THRESHOLD_MILLIS = 20;
+
+    private final ExecutorService delegate;
+    private final Object pinningStream;
+
+    private final AtomicInteger activeTasks = new AtomicInteger(0);
+    private final AtomicLong tasksStarted = new AtomicLong(0);
+    private final AtomicLong pinnedEvents = new AtomicLong(0);
+    private final AtomicLong pinnedNanos = new AtomicLong(0);
+
+    public VirtualThreadExecutor()
+    {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21+");
+        }
+
+        try {
+            this.delegate = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to create the virtual thread executor", e);
+        }
+        this.pinningStream = startPinningStream();
+    }
+
+    /**
+     * @return true if the current JVM supports virtual threads
+     */
+    public static boolean isSupported()
+    {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        delegate.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                activeTasks.incrementAndGet();
+                tasksStarted.incrementAndGet();
+                try {
+                    command.run();
+                }
+                finally {
+                    activeTasks.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown()
+    {
+        stopPinningStream();
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        stopPinningStream();
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    @Managed(description = "Number of tasks (requests, connector work) currently running in virtual threads")
+    public int getActiveTasks()
+    {
+        return activeTasks.get();
+    }
+
+    @Managed(description = "Number of tasks started")
+    public long getTasksStarted()
+    {
+        return tasksStarted.get();
+    }
+
+    @Managed(description = "Whether carrier thread pinning is monitored (requires JFR)")
+    public boolean isPinningMonitored()
+    {
+        return pinningStream != null;
+    }
+
+    @Managed(description = "Number of times a virtual thread blocked while pinned to its carrier thread for more than 20ms")
+    public long getPinnedEvents()
+    {
+        return pinnedEvents.get();
+    }
+
+    @Managed(description = "Total time virtual threads spent blocked while pinned to their carrier thread, in milliseconds")
+    public long getPinnedTimeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(pinnedNanos.get());
+    }
+
+    private Object startPinningStream()
+    {
+        try {
+            final Class<?> streamClass = Class.forName(RECORDING_STREAM_CLASS);
+            final Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+            final Class<?> eventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+            final Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+            final Class<?> durationClass = Class.forName("java.time.Duration");
+            final Method getDuration = eventClass.getMethod("getDuration");
+            final Method toNanos = durationClass.getMethod("toNanos");
+
+            final Object stream = streamClass.getConstructor().newInstance();
+            final Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+            final Object threshold = durationClass.getMethod("ofMillis", long.class).invoke(null, PINNING_THRESHOLD_MILLIS);
+            settingsClass.getMethod("withThreshold", durationClass).invoke(settings, threshold);
+
+            final Object consumer = Proxy.newProxyInstance(consumerClass.getClassLoader(), new Class[]{consumerClass}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    if ("accept".equals(method.getName())) {
+                        pinnedEvents.incrementAndGet();
+                        pinnedNanos.addAndGet((Long) toNanos.invoke(getDuration.invoke(args[0])));
+                        return null;
+                    }
+                    else if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    else if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    else {
+                        return "VirtualThreadPinnedConsumer";
+                    }
+                }
+            });
+            streamClass.getMethod("onEvent", String.class, consumerClass).invoke(stream, PINNED_EVENT, consumer);
+            streamClass.getMethod("startAsync").invoke(stream);
+
+            return stream;
+        }
+        catch (Exception e) {
+            log.warn("Unable to monitor virtual thread pinning (JFR unavailable?): {}", e.toString());
+            return null;
+        }
+    }
+
+    private void stopPinningStream()
+    {
+        if (pinningStream == null) {
+            return;
+        }
+
+        try {
+            Class.forName(RECORDING_STREAM_CLASS).getMethod("close").invoke(pinningStream);
+        }
+        catch (Exception e) {
+            log.warn("Unable to stop the virtual thread pinning monitor: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.handlers;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestAdaptiveConcurrencyLimit
+{
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class ManualClockLimit extends AdaptiveConcurrencyLimit
+    {
+        private long now = 0;
+
+        private ManualClockLimit(final int initialLimit, final int minLimit, final int maxLimit)
+        {
+            super(initialLimit, minLimit, maxLimit, WINDOW_NANOS, 10);
+        }
+
+        @Override
+        protected long nanoTime()
+        {
+            return now;
+        }
+
+        private void window(final long rttMillis, final int inFlight)
+        {
+            for (int i = 0; i < 10; i++) {
+                onSample(TimeUnit.MILLISECONDS.toNanos(rttMillis), inFlight);
+            }
+            now += WINDOW_NANOS;
+            onSample(TimeUnit.MILLISECONDS.toNanos(rttMillis), inFlight);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testGrowsWhenLatencyIsStable() throws Exception
+    {
+        final ManualClockLimit limit = new ManualClockLimit(20, 10, 1000);
+        for (int i = 0; i < 20; i++) {
+            limit.window(10, limit.getLimit());
+        }
+        Assert.assertTrue(limit.getLimit() > 20, "limit: " + limit.getLimit());
+        Assert.assertEquals(limit.getShortRttNanos(), (double) TimeUnit.MILLISECONDS.toNanos(10), 1.0);
+    }
+
+    @Test(groups = "fast")
+    public void testDoesNotGrowWhenUnused() throws Exception
+    {
+        final ManualClockLimit limit = new ManualClockLimit(100, 10, 1000);
+        for (int i = 0; i < 20; i++) {
+            limit.window(10, 5);
+        }
+        Assert.assertEquals(limit.getLimit(), 100);
+    }
+
+    @Test(groups = "fast")
+    public void testShrinksWhenLatencyIncreases() throws Exception
+    {
+        final ManualClockLimit limit = new ManualClockLimit(100, 10, 1000);
+        limit.window(10, 100);
+        final int baseline = limit.getLimit();
+
+        for (int i = 0; i < 20; i++) {
+            limit.window(100, limit.getLimit());
+        }
+        Assert.assertTrue(limit.getLimit() < baseline, "limit: " + limit.getLimit());
+        Assert.assertTrue(limit.getLimit() >= 10);
+    }
+
+    @Test(groups = "fast")
+    public void testStaysWithinBounds() throws Exception
+    {
+        final ManualClockLimit limit = new ManualClockLimit(50, 40, 60);
+        for (int i = 0; i < 50; i++) {
+            limit.window(10, limit.getLimit());
+        }
+        Assert.assertEquals(limit.getLimit(), 60);
+
+        final ManualClockLimit floorLimit = new ManualClockLimit(40, 40, 60);
+        floorLimit.window(10, 40);
+        for (int i = 0; i < 5; i++) {
+            floorLimit.window(1000, floorLimit.getLimit());
+            Assert.assertEquals(floorLimit.getLimit(), 40);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentSamples() throws Exception
+    {
+        // Windows close all the time: samples race with the rollovers
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 10, 100, 0, 10);
+        final long rttNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++) {
+                        limit.onSample(rttNanos, 20);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(limit.getShortRttNanos(), (double) rttNanos, 1.0);
+        Assert.assertEquals(limit.getLongRttNanos(), (double) rttNanos, 1.0);
+        Assert.assertTrue(limit.getLimit() >= 10 && limit.getLimit() <= 100, "limit: " + limit.getLimit());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLimits() throws Exception
+    {
+        new AdaptiveConcurrencyLimit(5, 10, 100, WINDOW_NANOS, 10);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.handlers;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestGracefulShutdownHandler
+{
+    private CountDownLatch release;
+    private CountDownLatch blocked;
+    private GracefulShutdownHandler handler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        release = new CountDownLatch(1);
+        blocked = new CountDownLatch(1);
+        handler = new GracefulShutdownHandler("/1.0/healthcheck");
+        handler.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response)
+            {
+                baseRequest.setHandled(true);
+                response.setStatus(HttpServletResponse.SC_OK);
+                if (target.startsWith("/block")) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        handler.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        release.countDown();
+        handler.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testNotDraining() throws Exception
+    {
+        final Map<String, Object> healthCheck = handle("/1.0/healthcheck");
+        Assert.assertEquals(healthCheck.get("status"), HttpServletResponse.SC_OK);
+        Assert.assertNull(healthCheck.get("Connection"));
+
+        Assert.assertFalse(handler.isDraining());
+        Assert.assertEquals(handler.getInFlight(), 0);
+        Assert.assertEquals(handler.getRequests(), 1);
+        Assert.assertEquals(handler.getDrainDurationMillis(), -1);
+
+        // Nothing in flight
+        Assert.assertTrue(handler.awaitDrained(0, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(handler.isDraining());
+        Assert.assertEquals(handler.getDrainAbandoned(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testDrain() throws Exception
+    {
+        final Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    handle("/block");
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(handler.getInFlight(), 1);
+
+        handler.startDraining();
+        Assert.assertTrue(handler.isDraining());
+
+        // Healthchecks fail, other requests are served but their connection is closed
+        final Map<String, Object> healthCheck = handle("/1.0/healthcheck");
+        Assert.assertEquals(healthCheck.get("status"), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Assert.assertEquals(healthCheck.get("Connection"), "close");
+        final Map<String, Object> other = handle("/other");
+        Assert.assertEquals(other.get("status"), HttpServletResponse.SC_OK);
+        Assert.assertEquals(other.get("Connection"), "close");
+
+        // The blocked request is still in flight
+        Assert.assertFalse(handler.awaitDrained(50, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(handler.getDrainAbandoned(), 1);
+        Assert.assertTrue(handler.getDrainDurationMillis() >= 50);
+
+        release.countDown();
+        Assert.assertTrue(handler.awaitDrained(10, TimeUnit.SECONDS));
+        Assert.assertEquals(handler.getInFlight(), 0);
+        Assert.assertEquals(handler.getDrainAbandoned(), 0);
+        Assert.assertEquals(handler.getRequests(), 2);
+    }
+
+    private Map<String, Object> handle(final String path) throws Exception
+    {
+        final Request request = new Request();
+        request.setRequestURI(path);
+        final Map<String, Object> recorded = new HashMap<String, Object>();
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("setStatus".equals(method.getName())) {
+                    recorded.put("status", args[0]);
+                }
+                else if ("setHeader".equals(method.getName())) {
+                    recorded.put((String) args[0], args[1]);
+                }
+                return null;
+            }
+        });
+
+        handler.handle(path, request, request, response);
+        return recorded;
+    }
+}
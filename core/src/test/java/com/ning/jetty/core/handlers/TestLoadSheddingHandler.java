@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.handlers;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestLoadSheddingHandler
+{
+    private CountDownLatch release;
+    private CountDownLatch blocked;
+    private LoadSheddingHandler handler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        release = new CountDownLatch(1);
+        // Fixed limit of 10
+        handler = new LoadSheddingHandler(new AdaptiveConcurrencyLimit(10, 10, 10, TimeUnit.SECONDS.toNanos(1), 10),
+                                          "/1.0/healthcheck=critical, /1.0/api=high, /1.0/api/reports=low", 7);
+        handler.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response)
+            {
+                baseRequest.setHandled(true);
+                if (target.startsWith("/block")) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        handler.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        release.countDown();
+        handler.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testPriorities() throws Exception
+    {
+        Assert.assertEquals(handler.getPriority("/1.0/healthcheck"), LoadSheddingHandler.Priority.CRITICAL);
+        Assert.assertEquals(handler.getPriority("/1.0/api/users"), LoadSheddingHandler.Priority.HIGH);
+        Assert.assertEquals(handler.getPriority("/1.0/api/reports/daily"), LoadSheddingHandler.Priority.LOW);
+        Assert.assertEquals(handler.getPriority("/2.0/anything"), LoadSheddingHandler.Priority.NORMAL);
+        Assert.assertEquals(handler.getPriority(null), LoadSheddingHandler.Priority.NORMAL);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidPriority() throws Exception
+    {
+        new LoadSheddingHandler(new AdaptiveConcurrencyLimit(10, 10, 10, 1, 1), "/foo=urgent", 1);
+    }
+
+    @Test(groups = "fast")
+    public void testShedsLowerPrioritiesFirst() throws Exception
+    {
+        // NORMAL requests can use 90% of the limit
+        blocked = new CountDownLatch(9);
+        for (int i = 0; i < 9; i++) {
+            final Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        handle("/block");
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(handler.getInFlight(), 9);
+
+        final Map<String, Object> normal = handle("/other");
+        Assert.assertEquals(normal.get("status"), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Assert.assertEquals(normal.get("Retry-After"), "7");
+
+        Assert.assertEquals(handle("/1.0/api/reports").get("status"), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Assert.assertNull(handle("/1.0/api/users").get("status"));
+        Assert.assertNull(handle("/1.0/healthcheck").get("status"));
+
+        Assert.assertEquals(handler.getAdmitted(), 11);
+        Assert.assertEquals(handler.getRejected(), 2);
+        Assert.assertEquals(handler.getRejectedNormal(), 1);
+        Assert.assertEquals(handler.getRejectedLow(), 1);
+        Assert.assertEquals(handler.getRejectedHigh(), 0);
+
+        release.countDown();
+    }
+
+    private Map<String, Object> handle(final String path) throws Exception
+    {
+        final Request request = new Request();
+        request.setRequestURI(path);
+        final Map<String, Object> recorded = new HashMap<String, Object>();
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("setStatus".equals(method.getName())) {
+                    recorded.put("status", args[0]);
+                }
+                else if ("setHeader".equals(method.getName())) {
+                    recorded.put((String) args[0], args[1]);
+                }
+                return null;
+            }
+        });
+
+        handler.handle(path, request, request, response);
+        return recorded;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.healthchecks;
+
+import com.yammer.metrics.core.HealthCheck;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestHealthCheckRunner
+{
+    private HealthCheckRunner runner;
+
+    private static final class CountingHealthCheck extends HealthCheck
+    {
+        private final AtomicInteger calls = new AtomicInteger(0);
+        private volatile boolean healthy = true;
+
+        private CountingHealthCheck(final String name)
+        {
+            super(name);
+        }
+
+        @Override
+        protected Result check() throws Exception
+        {
+            calls.incrementAndGet();
+            return healthy ? Result.healthy() : Result.unhealthy("broken");
+        }
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        if (runner != null) {
+            runner.shutdown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testServesCachedResults() throws Exception
+    {
+        runner = new HealthCheckRunner(50, 1000, 10000);
+        final CountingHealthCheck healthCheck = new CountingHealthCheck("counting");
+        runner.register(healthCheck);
+
+        waitForFirstResults();
+        Assert.assertTrue(runner.runHealthChecks().get("counting").isHealthy());
+        Assert.assertTrue(runner.isHealthy());
+
+        // Polling the registry doesn't run the check
+        final int calls = healthCheck.calls.get();
+        for (int i = 0; i < 100; i++) {
+            runner.runHealthChecks();
+        }
+        Assert.assertTrue(healthCheck.calls.get() <= calls + 2);
+
+        // Picked up by the next evaluation
+        healthCheck.healthy = false;
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (runner.runHealthChecks().get("counting").isHealthy() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(runner.runHealthChecks().get("counting").isHealthy());
+        Assert.assertEquals(runner.runHealthChecks().get("counting").getMessage(), "broken");
+        Assert.assertFalse(runner.isHealthy());
+        Assert.assertTrue(runner.getResults().contains("counting=unhealthy (broken)"));
+
+        runner.unregister("counting");
+        Assert.assertTrue(runner.runHealthChecks().isEmpty());
+        Assert.assertTrue(runner.isHealthy());
+    }
+
+    @Test(groups = "fast")
+    public void testTimeout() throws Exception
+    {
+        runner = new HealthCheckRunner(20, 50, 10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        runner.register(new HealthCheck("hung")
+        {
+            @Override
+            protected Result check() throws Exception
+            {
+                release.await();
+                return Result.healthy();
+            }
+        });
+
+        waitForFirstResults();
+        Assert.assertEquals(runner.getTimeouts(), 1);
+        final HealthCheck.Result result = runner.runHealthChecks().get("hung");
+        Assert.assertFalse(result.isHealthy());
+        Assert.assertEquals(result.getMessage(), "Timed out after 50 ms");
+
+        // Not evaluated again while hung
+        Thread.sleep(100);
+        Assert.assertEquals(runner.getEvaluations(), 1);
+        Assert.assertTrue(runner.getSkipped() > 0);
+        release.countDown();
+    }
+
+    @Test(groups = "fast")
+    public void testStaleness() throws Exception
+    {
+        runner = new HealthCheckRunner(TimeUnit.HOURS.toMillis(1), 1000, 50);
+        runner.register(new CountingHealthCheck("once"));
+
+        waitForFirstResults();
+        Thread.sleep(100);
+        final HealthCheck.Result result = runner.runHealthChecks().get("once");
+        Assert.assertFalse(result.isHealthy());
+        Assert.assertTrue(result.getMessage().startsWith("Stale result"));
+        Assert.assertTrue(runner.getOldestResultAgeMillis() >= 100);
+    }
+
+    private void waitForFirstResults() throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (runner.getOldestResultAgeMillis() < 0) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
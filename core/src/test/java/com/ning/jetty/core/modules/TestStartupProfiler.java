@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.modules;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.AbstractModule;
+import com.google.inject.CreationException;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Scopes;
+import com.google.inject.Stage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestStartupProfiler
+{
+    private static final AtomicInteger created = new AtomicInteger(0);
+    private static volatile CountDownLatch rendezVous = new CountDownLatch(0);
+
+    public static class Independent
+    {
+        final boolean metOther;
+
+        public Independent() throws InterruptedException
+        {
+            created.incrementAndGet();
+            // Only met if created in parallel with OtherIndependent
+            rendezVous.countDown();
+            metOther = rendezVous.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public static class OtherIndependent extends Independent
+    {
+        public OtherIndependent() throws InterruptedException
+        {
+            super();
+        }
+    }
+
+    public static class Dependency
+    {
+        public Dependency()
+        {
+            created.incrementAndGet();
+        }
+    }
+
+    public static class Dependent
+    {
+        @Inject
+        public Dependent(final Dependency dependency)
+        {
+            created.incrementAndGet();
+        }
+    }
+
+    public static class Failing
+    {
+        public Failing()
+        {
+            throw new IllegalStateException("Can't start");
+        }
+    }
+
+    public static class EagerFilter implements Filter
+    {
+        @Override
+        public void init(final FilterConfig filterConfig)
+        {
+        }
+
+        @Override
+        public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        {
+        }
+
+        @Override
+        public void destroy()
+        {
+        }
+    }
+
+    private static final class EagerModule extends AbstractModule
+    {
+        @Override
+        protected void configure()
+        {
+            bind(Independent.class).asEagerSingleton();
+            bind(Dependent.class).asEagerSingleton();
+            bind(Dependency.class).asEagerSingleton();
+            bind(OtherIndependent.class).asEagerSingleton();
+            bind(EagerFilter.class).asEagerSingleton();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSerial() throws Exception
+    {
+        created.set(0);
+        rendezVous = new CountDownLatch(0);
+        final StartupProfiler profiler = new StartupProfiler();
+        final Injector injector = profiler.createInjector(Stage.PRODUCTION, new EagerModule());
+
+        // Created on startup, once
+        Assert.assertEquals(created.get(), 4);
+        Assert.assertSame(injector.getInstance(Dependent.class), injector.getInstance(Dependent.class));
+        Assert.assertSame(injector.getInstance(Independent.class), injector.getInstance(Independent.class));
+        Assert.assertEquals(created.get(), 4);
+
+        // GuiceFilter insists on filters being regular singletons
+        Assert.assertTrue(Scopes.isSingleton(injector.getBinding(EagerFilter.class)));
+        // Left to Guice when created one at a time
+        Assert.assertTrue(Scopes.isSingleton(injector.getBinding(Dependent.class)));
+        Assert.assertTrue(Scopes.isSingleton(injector.getBinding(Independent.class)));
+
+        Assert.assertEquals(profiler.getEagerSingletonCount(), 4);
+        Assert.assertEquals(profiler.getEagerSingletonThreads(), 1);
+        Assert.assertTrue(profiler.getModuleTimes().contains(EagerModule.class.getName()));
+        Assert.assertTrue(profiler.getEagerSingletonTimes().contains(Dependent.class.getName()));
+        Assert.assertTrue(profiler.getReport().contains("4 eager singletons"));
+        Assert.assertTrue(profiler.getTotalMillis() >= profiler.getEagerSingletonsMillis());
+    }
+
+    @Test(groups = "fast")
+    public void testParallel() throws Exception
+    {
+        created.set(0);
+        rendezVous = new CountDownLatch(2);
+        final StartupProfiler profiler = new StartupProfiler();
+        profiler.setEagerSingletonThreads(4);
+        final Injector injector = profiler.createInjector(Stage.PRODUCTION, new EagerModule());
+
+        Assert.assertEquals(created.get(), 4);
+        Assert.assertTrue(injector.getInstance(Independent.class).metOther);
+        Assert.assertTrue(injector.getInstance(OtherIndependent.class).metOther);
+        Assert.assertEquals(profiler.getEagerSingletonThreads(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testFailure() throws Exception
+    {
+        rendezVous = new CountDownLatch(0);
+        for (final int threads : new int[]{1, 4}) {
+            final StartupProfiler profiler = new StartupProfiler();
+            profiler.setEagerSingletonThreads(threads);
+            try {
+                profiler.createInjector(Stage.PRODUCTION, new AbstractModule()
+                {
+                    @Override
+                    protected void configure()
+                    {
+                        install(new EagerModule());
+                        bind(Failing.class).asEagerSingleton();
+                    }
+                });
+                Assert.fail();
+            }
+            catch (CreationException e) {
+                Assert.assertTrue(e.getMessage().contains("Can't start"), e.getMessage());
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testGroupByDependencies() throws Exception
+    {
+        rendezVous = new CountDownLatch(0);
+        // Only used when creating eager singletons in parallel
+        final StartupProfiler profiler = new StartupProfiler();
+        profiler.setEagerSingletonThreads(2);
+        final Injector injector = profiler.createInjector(Stage.DEVELOPMENT, new EagerModule());
+
+        final List<List<Key<?>>> groups = StartupProfiler.groupByDependencies(injector, ImmutableList.<Key<?>>of(Key.get(Independent.class),
+                                                                                                                  Key.get(Dependent.class),
+                                                                                                                  Key.get(Dependency.class),
+                                                                                                                  Key.get(OtherIndependent.class)));
+        Assert.assertEquals(groups.size(), 3);
+        Assert.assertEquals(groups.get(0), ImmutableList.<Key<?>>of(Key.get(Independent.class)));
+        Assert.assertEquals(groups.get(1), ImmutableList.<Key<?>>of(Key.get(Dependent.class), Key.get(Dependency.class)));
+        Assert.assertEquals(groups.get(2), ImmutableList.<Key<?>>of(Key.get(OtherIndependent.class)));
+    }
+}
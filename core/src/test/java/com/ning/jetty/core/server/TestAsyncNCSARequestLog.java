@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestAsyncNCSARequestLog
+{
+    private File directory;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        deleteRecursively(directory);
+    }
+
+    @Test(groups = "fast")
+    public void testWriteLines() throws Exception
+    {
+        final AsyncNCSARequestLog requestLog = new AsyncNCSARequestLog(new File(directory, "logs/request.log").getPath(), 1024, TimeUnit.SECONDS.toMillis(60), 0, 0);
+        requestLog.start();
+        requestLog.log("10.0.0.1", null, 0, "GET", "/1.0/users?id=1", "HTTP/1.1", "200", 1234, null, "curl/7.19");
+        requestLog.log("10.0.0.2", "pierre", 0, "POST", "/1.0/caf\u00e9", "HTTP/1.0", "201", -1, "http://ning.com/", null);
+        for (int i = 0; i < 100; i++) {
+            requestLog.log("10.0.0.3", null, 0, "GET", "/ping", "HTTP/1.1", "204", 0, null, null);
+        }
+        requestLog.stop();
+
+        final List<String> lines = Files.readLines(requestLog.getFile(), Charsets.UTF_8);
+        Assert.assertEquals(lines.size(), 102);
+        Assert.assertEquals(lines.get(0), "10.0.0.1 - - [01/Jan/1970:00:00:00 +0000] \"GET /1.0/users?id=1 HTTP/1.1\" 200 1234 \"-\" \"curl/7.19\"");
+        Assert.assertEquals(lines.get(1), "10.0.0.2 - pierre [01/Jan/1970:00:00:00 +0000] \"POST /1.0/caf\u00e9 HTTP/1.0\" 201 - \"http://ning.com/\" \"-\"");
+        Assert.assertEquals(requestLog.getLogged(), 102);
+        Assert.assertEquals(requestLog.getPending(), 0);
+        Assert.assertEquals(requestLog.getBytesWritten(), requestLog.getFile().length());
+        Assert.assertEquals(requestLog.getDropped() + requestLog.getWriteErrors(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testOverflow() throws Exception
+    {
+        final AsyncNCSARequestLog requestLog = new AsyncNCSARequestLog(new File(directory, "request.log").getPath(), 2, 10, 0, 0);
+        requestLog.start();
+        for (int i = 0; i < 10000; i++) {
+            requestLog.log("10.0.0.1", null, 0, "GET", "/" + i, "HTTP/1.1", "200", 0, null, null);
+        }
+        requestLog.stop();
+
+        // Lines are either written or dropped
+        Assert.assertEquals(requestLog.getLogged() + requestLog.getDropped(), 10000);
+        Assert.assertEquals(Files.readLines(requestLog.getFile(), Charsets.UTF_8).size(), requestLog.getLogged());
+    }
+
+    @Test(groups = "fast")
+    public void testIgnoredWhenStopped() throws Exception
+    {
+        final AsyncNCSARequestLog requestLog = new AsyncNCSARequestLog(new File(directory, "request.log").getPath(), 16, 10, 0, 0);
+        requestLog.log("10.0.0.1", null, 0, "GET", "/", "HTTP/1.1", "200", 0, null, null);
+        Assert.assertEquals(requestLog.getLogged(), 0);
+        Assert.assertFalse(requestLog.getFile().exists());
+    }
+
+    @Test(groups = "fast")
+    public void testLongLines() throws Exception
+    {
+        final AsyncNCSARequestLog requestLog = new AsyncNCSARequestLog(new File(directory, "request.log").getPath(), 4, 10, 0, 0);
+        requestLog.start();
+        final String uri = "/" + new String(new char[100000]).replace('\0', 'a');
+        requestLog.log("10.0.0.1", null, 0, "GET", uri, "HTTP/1.1", "414", 0, null, null);
+        requestLog.log("10.0.0.1", null, 0, "GET", "/", "HTTP/1.1", "200", 0, null, null);
+        requestLog.stop();
+
+        final List<String> lines = Files.readLines(requestLog.getFile(), Charsets.UTF_8);
+        Assert.assertEquals(lines.size(), 2);
+        Assert.assertTrue(lines.get(0).contains(uri));
+        Assert.assertEquals(requestLog.getOversized(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testRolloverBySize() throws Exception
+    {
+        final AsyncNCSARequestLog requestLog = new AsyncNCSARequestLog(new File(directory, "request.log").getPath(), 1024, 10, 1000, 0);
+        requestLog.start();
+        for (int i = 0; i < 100; i++) {
+            requestLog.log("10.0.0.1", null, 0, "GET", "/" + i, "HTTP/1.1", "200", 0, null, null);
+        }
+        requestLog.stop();
+
+        Assert.assertTrue(requestLog.getRollovers() > 0);
+        final File[] files = directory.listFiles();
+        Assert.assertEquals(files.length, requestLog.getRollovers() + 1);
+
+        int lines = 0;
+        for (final File file : files) {
+            lines += Files.readLines(file, Charsets.UTF_8).size();
+        }
+        Assert.assertEquals(lines, 100);
+    }
+
+    private static void deleteRecursively(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
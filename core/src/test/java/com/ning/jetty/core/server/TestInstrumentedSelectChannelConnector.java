@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.eclipse.jetty.server.Server;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.Socket;
+
+public class TestInstrumentedSelectChannelConnector
+{
+    private Server server;
+    private InstrumentedSelectChannelConnector connector;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        server = new Server();
+        connector = new InstrumentedSelectChannelConnector(2);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setAcceptors(1);
+        server.addConnector(connector);
+        server.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testConnectionLimit() throws Exception
+    {
+        final ConnectorStats stats = connector.getStats();
+        Assert.assertEquals(stats.getMaxConnections(), 2);
+
+        final Socket first = connect();
+        waitForOpenConnections(1);
+        final Socket second = connect();
+        waitForOpenConnections(2);
+
+        // Stays in the accept queue
+        final Socket third = connect();
+        Thread.sleep(200);
+        Assert.assertEquals(stats.getConnectionsOpen(), 2);
+        Assert.assertEquals(stats.getAcceptsDelayed(), 1);
+
+        // Accepted once another connection is closed
+        first.close();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (stats.getConnectionsOpened() < 3) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(stats.getConnectionsOpen(), 2);
+        Assert.assertEquals(stats.getConnectionsOpenMax(), 2);
+
+        second.close();
+        third.close();
+        waitForOpenConnections(0);
+    }
+
+    @Test(groups = "fast")
+    public void testIdleConnectionsClosedAtTheLimit() throws Exception
+    {
+        final Server other = new Server();
+        final InstrumentedSelectChannelConnector otherConnector = new InstrumentedSelectChannelConnector(2);
+        otherConnector.setHost("127.0.0.1");
+        otherConnector.setPort(0);
+        otherConnector.setAcceptors(1);
+        otherConnector.setLowResourcesMaxIdleTime(100);
+        other.addConnector(otherConnector);
+        other.start();
+
+        try {
+            final ConnectorStats stats = otherConnector.getStats();
+            Assert.assertEquals(otherConnector.getLowResourcesConnections(), 1);
+
+            // Idle keep-alive connections, the regular idle timeout (200s) would keep the third one waiting
+            final Socket first = keepAlive(otherConnector);
+            final Socket second = keepAlive(otherConnector);
+            final Socket third = new Socket("127.0.0.1", otherConnector.getLocalPort());
+
+            // Jetty shuts the idle connections down, clients close them on EOF
+            awaitEndOfStream(first);
+            awaitEndOfStream(second);
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (stats.getConnectionsOpened() < 3) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(stats.getConnectionsOpenMax(), 2);
+
+            third.close();
+        }
+        finally {
+            other.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReusePort() throws Exception
+    {
+        final Server other = new Server();
+        final InstrumentedSelectChannelConnector otherConnector = new InstrumentedSelectChannelConnector(0);
+        otherConnector.setHost("127.0.0.1");
+        otherConnector.setPort(0);
+        otherConnector.setReusePort(true);
+        other.addConnector(otherConnector);
+        // Starts either way, SO_REUSEPORT is ignored when not supported
+        other.start();
+
+        try {
+            if (!ReusePort.isSupported()) {
+                return;
+            }
+
+            // Bind the same port
+            final Server same = new Server();
+            final InstrumentedSelectChannelConnector sameConnector = new InstrumentedSelectChannelConnector(0);
+            sameConnector.setHost("127.0.0.1");
+            sameConnector.setPort(otherConnector.getLocalPort());
+            sameConnector.setReusePort(true);
+            same.addConnector(sameConnector);
+            same.start();
+            Assert.assertEquals(sameConnector.getLocalPort(), otherConnector.getLocalPort());
+            same.stop();
+        }
+        finally {
+            other.stop();
+        }
+    }
+
+    private Socket connect() throws Exception
+    {
+        return new Socket("127.0.0.1", connector.getLocalPort());
+    }
+
+    private Socket keepAlive(final InstrumentedSelectChannelConnector connector) throws Exception
+    {
+        final Socket socket = new Socket("127.0.0.1", connector.getLocalPort());
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+        socket.getOutputStream().flush();
+        // Status line of the (404) response
+        Assert.assertTrue(socket.getInputStream().read() > 0);
+        return socket;
+    }
+
+    private void awaitEndOfStream(final Socket socket) throws Exception
+    {
+        socket.setSoTimeout(10000);
+        while (socket.getInputStream().read() != -1) {
+            // Rest of the response
+        }
+        socket.close();
+    }
+
+    private void waitForOpenConnections(final int expected) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (connector.getStats().getConnectionsOpen() != expected) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "open connections: " + connector.getStats().getConnectionsOpen());
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.core.server;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestVirtualThreadExecutor
+{
+    @Test(groups = "fast")
+    public void testExecute() throws Exception
+    {
+        if (!VirtualThreadExecutor.isSupported()) {
+            try {
+                new VirtualThreadExecutor();
+                Assert.fail();
+            }
+            catch (UnsupportedOperationException ignored) {
+                return;
+            }
+        }
+
+        final VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        final CountDownLatch started = new CountDownLatch(1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 1000; i++) {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    started.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        // All blocked at once, way more than carrier threads
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(executor.getActiveTasks(), 1000);
+        release.countDown();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(executor.getActiveTasks(), 0);
+        Assert.assertEquals(executor.getTasksStarted(), 1000);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker;
+
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+import com.ning.metrics.eventtracker.CollectorController;
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+
+import com.google.inject.Inject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracker implementation that queues RequestLog records and sends them to the collector in batches, from a
+ * background thread. The request thread only pays for an enqueue: the background thread serializes the records and
+ * offers them to the collector one by one (CollectorController only accepts single events), batching amortizes
+ * the wake-ups, not the serialization.
+ * <p/>
+ * A batch is sent when batchSize records are queued or when the flush interval expires, whichever comes first.
+ * When the queue is full (the collector can't keep up), new records are dropped and counted.
+ * To use it, set com.ning.jetty.eventtracker.batching.enabled=true or:
+ * <p/>
+ * bind(Tracker.class).to(BatchingCollectorTracker.class).asEagerSingleton();
+ * <p/>
+ * close() sends the records still queued, it is called by SetupServer once the server is drained.
+ */
+public class BatchingCollectorTracker implements Tracker, Closeable
+{
+    private static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final Logger log = LoggerFactory.getLogger(BatchingCollectorTracker.class);
+    private final String eventName = System.getProperty("com.ning.core.eventtracker.requestLogEventName", "RequestLogEvent");
+
+    private final CollectorController controller;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+
+    // Bounded, lock-free queue: the size is tracked separately since ConcurrentLinkedQueue#size() is O(n)
+    private final Queue<RequestLog> queue = new ConcurrentLinkedQueue<RequestLog>();
+    private final AtomicInteger queueSize = new AtomicInteger(0);
+
+    private final AtomicLong eventsEnqueued = new AtomicLong(0);
+    private final AtomicLong eventsDropped = new AtomicLong(0);
+    private final AtomicLong eventsSent = new AtomicLong(0);
+    private final AtomicLong eventsFailed = new AtomicLong(0);
+    private final AtomicLong batchesSent = new AtomicLong(0);
+
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private long closeTimeoutMillis = DEFAULT_CLOSE_TIMEOUT_MILLIS;
+
+    @Inject
+    public BatchingCollectorTracker(final CollectorController controller, final TrackerConfig config)
+    {
+        this(controller, config.getBatchingQueueCapacity(), config.getBatchSize(), config.getBatchFlushInterval().getMillis(), TimeUnit.MILLISECONDS);
+        this.closeTimeoutMillis = config.getCloseTimeout().getMillis();
+    }
+
+    public BatchingCollectorTracker(final CollectorController controller, final int queueCapacity, final int batchSize, final long flushInterval, final TimeUnit unit)
+    {
+        this.controller = controller;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = Math.max(1, Math.min(batchSize, queueCapacity));
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+
+        this.senderThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sendLoop();
+            }
+        }, "BatchingCollectorTracker-sender");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    @Override
+    public void trackRequest(final RequestLog request)
+    {
+        final int size = queueSize.incrementAndGet();
+        if (size > queueCapacity || !running) {
+            queueSize.decrementAndGet();
+            eventsDropped.incrementAndGet();
+            return;
+        }
+
+        queue.offer(request);
+        eventsEnqueued.incrementAndGet();
+
+        if (size == batchSize) {
+            // Full batch, wake up the sender
+            LockSupport.unpark(senderThread);
+        }
+    }
+
+    /**
+     * Stop accepting events and send the ones still queued
+     *
+     * @param timeout maximum time to wait for the queue to be drained
+     * @param unit    timeout unit
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        running = false;
+        LockSupport.unpark(senderThread);
+        senderThread.join(unit.toMillis(timeout));
+        if (senderThread.isAlive()) {
+            log.warn("Timed out while sending the queued events, {} left", queueSize.get());
+        }
+    }
+
+    /**
+     * Stop accepting events and send the ones still queued, up to the configured close timeout
+     */
+    @Override
+    public void close()
+    {
+        try {
+            close(closeTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendLoop()
+    {
+        final List<RequestLog> batch = new ArrayList<RequestLog>(batchSize);
+        while (running || queueSize.get() > 0) {
+            // Send full batches as long as we have some, then whatever is left
+            do {
+                drainBatch(batch);
+                sendBatch(batch);
+            }
+            while (queueSize.get() >= batchSize);
+
+            if (running) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+    }
+
+    private void drainBatch(final List<RequestLog> batch)
+    {
+        batch.clear();
+        while (batch.size() < batchSize) {
+            final RequestLog request = queue.poll();
+            if (request == null) {
+                break;
+            }
+            queueSize.decrementAndGet();
+            batch.add(request);
+        }
+    }
+
+    private void sendBatch(final List<RequestLog> batch)
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        for (final RequestLog request : batch) {
+            try {
+                final DateTime eventDateTime = new DateTime(request.eventDate, DateTimeZone.UTC);
+                controller.offerEvent(SmileEnvelopeEvent.fromPOJO(eventName, Granularity.HOURLY, eventDateTime, request));
+                eventsSent.incrementAndGet();
+            }
+            catch (IOException e) {
+                eventsFailed.incrementAndGet();
+                log.warn("Got I/O exception trying to send RequestLog [{}]: {}", request, e.toString());
+            }
+            catch (RuntimeException e) {
+                // Don't let a bad record kill the sender thread
+                eventsFailed.incrementAndGet();
+                log.warn("Unable to send RequestLog [{}]: {}", request, e.toString());
+            }
+        }
+        batchesSent.incrementAndGet();
+        batch.clear();
+    }
+
+    @Managed(description = "Number of events waiting to be sent")
+    public int getQueueSize()
+    {
+        return queueSize.get();
+    }
+
+    @Managed(description = "Maximum number of events waiting to be sent")
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    @Managed(description = "Number of events accepted")
+    public long getEventsEnqueued()
+    {
+        return eventsEnqueued.get();
+    }
+
+    @Managed(description = "Number of events dropped because the queue was full")
+    public long getEventsDropped()
+    {
+        return eventsDropped.get();
+    }
+
+    @Managed(description = "Number of events handed to the collector")
+    public long getEventsSent()
+    {
+        return eventsSent.get();
+    }
+
+    @Managed(description = "Number of events that couldn't be serialized or handed to the collector")
+    public long getEventsFailed()
+    {
+        return eventsFailed.get();
+    }
+
+    @Managed(description = "Number of batches sent")
+    public long getBatchesSent()
+    {
+        return batchesSent.get();
+    }
+}
@@ -37,6 +37,8 @@ public class RequestLog
     protected int timeToFirstByte;
     protected String coreHost;
     protected int corePort;
+    // Probability this request had to be tracked, to scale counts back up
+    protected double sampleRate;
 
     public RequestLog(
             final long eventDate,
@@ -56,6 +58,30 @@ public class RequestLog
             final String coreHost,
             final int corePort
     )
+    {
+        this(eventDate, method, protocol, host, path, referer, userAgent, proximateIp, forwardedForChain, contentType,
+             responseCode, responseLength, responseTime, timeToFirstByte, coreHost, corePort, 1.0);
+    }
+
+    public RequestLog(
+            final long eventDate,
+            final String method,
+            final String protocol,
+            final String host,
+            final String path,
+            final String referer,
+            final String userAgent,
+            final String proximateIp,
+            final String forwardedForChain,
+            final String contentType,
+            final short responseCode,
+            final int responseLength,
+            final int responseTime,
+            final int timeToFirstByte,
+            final String coreHost,
+            final int corePort,
+            final double sampleRate
+    )
     {
         this.eventDate = eventDate;
         this.method = method;
@@ -73,5 +99,6 @@ public class RequestLog
         this.timeToFirstByte = timeToFirstByte;
         this.coreHost = coreHost;
         this.corePort = corePort;
+        this.sampleRate = sampleRate;
     }
 }
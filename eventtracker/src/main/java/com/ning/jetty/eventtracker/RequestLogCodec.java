@@ -0,0 +1,324 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, schema-versioned binary encoding of RequestLog batches, as an alternative to Smile (which repeats
+ * field names and repeated values across events).
+ * <p/>
+ * Layout (version 1): [version byte][varint number of records] then, for each record:
+ * <ul>
+ * <li>eventDate, zigzag varint delta with the previous record (with 0 for the first one)</li>
+ * <li>method, protocol, host, userAgent, contentType and coreHost, dictionary-encoded: varint 0 for null,
+ * i + 1 for the i-th string of the batch dictionary, or dictionary size + 1 followed by a new string</li>
+ * <li>path, referer, proximateIp and forwardedForChain: varint 0 for null, length + 1 followed by UTF-8 bytes</li>
+ * <li>responseCode, responseLength, responseTime, timeToFirstByte and corePort as zigzag varints</li>
+ * <li>sampleRate: a 0 byte for 1.0, or a 1 byte followed by the 8 bytes of the double</li>
+ * </ul>
+ * The dictionary is scoped to a batch. Instances are thread-safe.
+ */
+public class RequestLogCodec
+{
+    public static final byte VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public byte[] encode(final List<RequestLog> batch)
+    {
+        final Output output = new Output(64 + batch.size() * 64);
+        final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        output.writeByte(VERSION);
+        output.writeVarint(batch.size());
+
+        long previousEventDate = 0;
+        for (final RequestLog event : batch) {
+            output.writeZigZag(event.eventDate - previousEventDate);
+            previousEventDate = event.eventDate;
+
+            output.writeDictionaryString(event.method, dictionary);
+            output.writeDictionaryString(event.protocol, dictionary);
+            output.writeDictionaryString(event.host, dictionary);
+            output.writeString(event.path);
+            output.writeString(event.referer);
+            output.writeDictionaryString(event.userAgent, dictionary);
+            output.writeString(event.proximateIp);
+            output.writeString(event.forwardedForChain);
+            output.writeDictionaryString(event.contentType, dictionary);
+            output.writeZigZag(event.responseCode);
+            output.writeZigZag(event.responseLength);
+            output.writeZigZag(event.responseTime);
+            output.writeZigZag(event.timeToFirstByte);
+            output.writeDictionaryString(event.coreHost, dictionary);
+            output.writeZigZag(event.corePort);
+
+            if (event.sampleRate == 1.0) {
+                output.writeByte(0);
+            }
+            else {
+                output.writeByte(1);
+                output.writeLong(Double.doubleToLongBits(event.sampleRate));
+            }
+        }
+
+        return output.toByteArray();
+    }
+
+    public List<RequestLog> decode(final byte[] data) throws IOException
+    {
+        final Input input = new Input(data);
+        final List<String> dictionary = new ArrayList<String>();
+
+        final byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported RequestLog encoding version %d", version));
+        }
+
+        // Each record takes at least one byte per field
+        final int size = input.readLength("record count");
+        final List<RequestLog> batch = new ArrayList<RequestLog>(size);
+        long eventDate = 0;
+        for (int i = 0; i < size; i++) {
+            eventDate += input.readZigZag();
+
+            final String method = input.readDictionaryString(dictionary);
+            final String protocol = input.readDictionaryString(dictionary);
+            final String host = input.readDictionaryString(dictionary);
+            final String path = input.readString();
+            final String referer = input.readString();
+            final String userAgent = input.readDictionaryString(dictionary);
+            final String proximateIp = input.readString();
+            final String forwardedForChain = input.readString();
+            final String contentType = input.readDictionaryString(dictionary);
+            final short responseCode = (short) input.readZigZag();
+            final int responseLength = (int) input.readZigZag();
+            final int responseTime = (int) input.readZigZag();
+            final int timeToFirstByte = (int) input.readZigZag();
+            final String coreHost = input.readDictionaryString(dictionary);
+            final int corePort = (int) input.readZigZag();
+            final double sampleRate = input.readByte() == 0 ? 1.0 : Double.longBitsToDouble(input.readLong());
+
+            batch.add(new RequestLog(eventDate, method, protocol, host, path, referer, userAgent, proximateIp, forwardedForChain,
+                                     contentType, responseCode, responseLength, responseTime, timeToFirstByte, coreHost, corePort, sampleRate));
+        }
+
+        if (input.remaining() != 0) {
+            throw new IOException(String.format("%d trailing bytes after %d records", input.remaining(), size));
+        }
+        return batch;
+    }
+
+    private static final class Output
+    {
+        private byte[] buffer;
+        private int position = 0;
+
+        private Output(final int initialCapacity)
+        {
+            this.buffer = new byte[initialCapacity];
+        }
+
+        private void ensureCapacity(final int extra)
+        {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+
+        private void writeByte(final int b)
+        {
+            ensureCapacity(1);
+            buffer[position++] = (byte) b;
+        }
+
+        private void writeLong(final long value)
+        {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeVarint(long value)
+        {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeZigZag(final long value)
+        {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void writeString(final String value)
+        {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeDictionaryString(final String value, final Map<String, Integer> dictionary)
+        {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            final Integer index = dictionary.get(value);
+            if (index != null) {
+                writeVarint(index + 1);
+            }
+            else {
+                writeVarint(dictionary.size() + 1);
+                dictionary.put(value, dictionary.size());
+                writeString(value);
+            }
+        }
+
+        private byte[] toByteArray()
+        {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static final class Input
+    {
+        private final byte[] buffer;
+        private int position = 0;
+
+        private Input(final byte[] buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        private int remaining()
+        {
+            return buffer.length - position;
+        }
+
+        private void require(final int bytes) throws IOException
+        {
+            if (bytes < 0 || position + bytes > buffer.length) {
+                throw new IOException(String.format("Truncated RequestLog batch at offset %d", position));
+            }
+        }
+
+        private byte readByte() throws IOException
+        {
+            require(1);
+            return buffer[position++];
+        }
+
+        private long readLong() throws IOException
+        {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private long readVarint() throws IOException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException(String.format("Malformed varint at offset %d", position));
+        }
+
+        // Varint which can't be larger than what's left to read, to fail before allocating anything for a corrupt batch
+        private int readLength(final String what) throws IOException
+        {
+            final int offset = position;
+            final long value = readVarint();
+            if (value < 0 || value > remaining()) {
+                throw new IOException(String.format("Invalid %s %d at offset %d, only %d bytes left", what, value, offset, remaining()));
+            }
+            return (int) value;
+        }
+
+        private long readZigZag() throws IOException
+        {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readString() throws IOException
+        {
+            // Length + 1, 0 for null
+            final long code = readVarint();
+            if (code == 0) {
+                return null;
+            }
+
+            final long length = code - 1;
+            if (length < 0 || length > remaining()) {
+                throw new IOException(String.format("Invalid string length %d at offset %d, only %d bytes left", length, position, remaining()));
+            }
+            final String value = new String(buffer, position, (int) length, UTF_8);
+            position += (int) length;
+            return value;
+        }
+
+        private String readDictionaryString(final List<String> dictionary) throws IOException
+        {
+            final long code = readVarint();
+            if (code == 0) {
+                return null;
+            }
+            else if (code <= dictionary.size()) {
+                return dictionary.get((int) code - 1);
+            }
+            else if (code == dictionary.size() + 1) {
+                final String value = readString();
+                if (value == null) {
+                    throw new IOException(String.format("Null dictionary entry at offset %d", position));
+                }
+                dictionary.add(value);
+                return value;
+            }
+            else {
+                throw new IOException(String.format("Invalid dictionary reference %d at offset %d", code, position));
+            }
+        }
+    }
+}
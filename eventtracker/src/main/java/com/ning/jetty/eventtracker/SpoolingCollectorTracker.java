@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker;
+
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+import com.ning.jetty.eventtracker.spool.SegmentedLog;
+import com.ning.metrics.eventtracker.CollectorController;
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+
+import com.google.inject.Inject;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracker implementation that writes RequestLog records to a durable local spool (see SegmentedLog), from which
+ * a background drainer hands them to the collector. When the collector fails (or doesn't accept events),
+ * records stay on disk and the drainer retries with an exponential backoff: nothing is lost while the spool
+ * has room, including across restarts. Records are delivered at least once.
+ * <p/>
+ * The request thread only pays for an enqueue: records are serialized and appended to the spool by a background
+ * spooler thread. When the handoff queue is full (the disk can't keep up), new records are dropped and counted.
+ * Records still queued are lost on a crash (not on close()).
+ * To use it, set com.ning.jetty.eventtracker.spool.enabled=true or:
+ * <p/>
+ * bind(Tracker.class).to(SpoolingCollectorTracker.class).asEagerSingleton();
+ * <p/>
+ * close() spools the records still queued, it is called by SetupServer once the server is drained.
+ */
+public class SpoolingCollectorTracker implements Tracker, Closeable
+{
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 10000;
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Records sent between checkpoints
+    private static final int CHECKPOINT_INTERVAL = 500;
+
+    private final Logger log = LoggerFactory.getLogger(SpoolingCollectorTracker.class);
+    private final String eventName = System.getProperty("com.ning.core.eventtracker.requestLogEventName", "RequestLogEvent");
+
+    private final CollectorController controller;
+    private final SegmentedLog spool;
+    private final long drainIntervalNanos;
+    private final int queueCapacity;
+
+    // Bounded, lock-free handoff queue: the size is tracked separately since ConcurrentLinkedQueue#size() is O(n)
+    private final Queue<RequestLog> queue = new ConcurrentLinkedQueue<RequestLog>();
+    private final AtomicInteger queueSize = new AtomicInteger(0);
+
+    private final AtomicLong eventsSpooled = new AtomicLong(0);
+    private final AtomicLong eventsDropped = new AtomicLong(0);
+    private final AtomicLong eventsSent = new AtomicLong(0);
+    private final AtomicLong sendFailures = new AtomicLong(0);
+
+    private final Thread spoolerThread;
+    private final Thread drainerThread;
+    private volatile boolean running = true;
+    private volatile boolean sinkAvailable = true;
+    private long closeTimeoutMillis = DEFAULT_CLOSE_TIMEOUT_MILLIS;
+
+    @Inject
+    public SpoolingCollectorTracker(final CollectorController controller, final TrackerConfig config) throws IOException
+    {
+        this(controller, new SegmentedLog(new File(config.getSpoolDirectory()), config.getSpoolSegmentSize(), config.getSpoolMaxDiskUsage()),
+             config.getSpoolDrainInterval().getMillis(), TimeUnit.MILLISECONDS, config.getSpoolQueueCapacity());
+        this.closeTimeoutMillis = config.getCloseTimeout().getMillis();
+    }
+
+    public SpoolingCollectorTracker(final CollectorController controller, final SegmentedLog spool, final long drainInterval, final TimeUnit unit)
+    {
+        this(controller, spool, drainInterval, unit, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public SpoolingCollectorTracker(final CollectorController controller, final SegmentedLog spool, final long drainInterval, final TimeUnit unit, final int queueCapacity)
+    {
+        this.controller = controller;
+        this.spool = spool;
+        this.drainIntervalNanos = unit.toNanos(drainInterval);
+        this.queueCapacity = queueCapacity;
+
+        this.spoolerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                spoolLoop();
+            }
+        }, "SpoolingCollectorTracker-spooler");
+        this.spoolerThread.setDaemon(true);
+        this.spoolerThread.start();
+
+        this.drainerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drainLoop();
+            }
+        }, "SpoolingCollectorTracker-drainer");
+        this.drainerThread.setDaemon(true);
+        this.drainerThread.start();
+    }
+
+    @Override
+    public void trackRequest(final RequestLog request)
+    {
+        final int size = queueSize.incrementAndGet();
+        if (size > queueCapacity || !running) {
+            queueSize.decrementAndGet();
+            eventsDropped.incrementAndGet();
+            return;
+        }
+
+        queue.offer(request);
+
+        if (size == 1) {
+            // The spooler may be idle
+            LockSupport.unpark(spoolerThread);
+        }
+    }
+
+    /**
+     * Stop accepting events, spool the queued ones, try to send them and close the spool. Events not sent are kept
+     * on disk.
+     *
+     * @param timeout maximum time to wait for the spool to be drained
+     * @param unit    timeout unit
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        running = false;
+        // Local disk writes only, don't give up on these
+        LockSupport.unpark(spoolerThread);
+        spoolerThread.join();
+
+        LockSupport.unpark(drainerThread);
+        drainerThread.join(unit.toMillis(timeout));
+        if (drainerThread.isAlive()) {
+            log.warn("Timed out while draining the spool, {} bytes left", spool.getPendingBytes());
+            drainerThread.interrupt();
+            drainerThread.join();
+        }
+        spool.close();
+    }
+
+    /**
+     * Stop accepting events, spool the queued ones and try to send them, up to the configured close timeout
+     */
+    @Override
+    public void close()
+    {
+        try {
+            close(closeTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void spoolLoop()
+    {
+        while (running || queueSize.get() > 0) {
+            RequestLog request;
+            while ((request = queue.poll()) != null) {
+                queueSize.decrementAndGet();
+                spool(request);
+            }
+
+            if (running) {
+                LockSupport.parkNanos(this, drainIntervalNanos);
+            }
+        }
+    }
+
+    private void spool(final RequestLog request)
+    {
+        try {
+            final DateTime eventDateTime = new DateTime(request.eventDate, DateTimeZone.UTC);
+            final byte[] payload = SmileEnvelopeEvent.fromPOJO(eventName, Granularity.HOURLY, eventDateTime, request).getSerializedEvent();
+            final byte[] record = ByteBuffer.allocate(8 + payload.length).putLong(request.eventDate).put(payload).array();
+
+            if (spool.append(record)) {
+                eventsSpooled.incrementAndGet();
+            }
+            else {
+                eventsDropped.incrementAndGet();
+            }
+        }
+        catch (IOException e) {
+            eventsDropped.incrementAndGet();
+            log.warn("Got I/O exception trying to spool RequestLog [{}]: {}", request, e.toString());
+        }
+        catch (RuntimeException e) {
+            // Don't let a bad record kill the spooler thread
+            eventsDropped.incrementAndGet();
+            log.warn("Unable to spool RequestLog [{}]: {}", request, e.toString());
+        }
+    }
+
+    private void drainLoop()
+    {
+        long backoffNanos = drainIntervalNanos;
+        while (true) {
+            final boolean drained = drain();
+            sinkAvailable = drained;
+
+            if (!running && (drained || Thread.currentThread().isInterrupted())) {
+                // Either everything got sent or we gave up, whatever is left will be sent after the next restart
+                return;
+            }
+
+            if (drained) {
+                backoffNanos = drainIntervalNanos;
+            }
+            else {
+                backoffNanos = Math.min(MAX_BACKOFF_NANOS, Math.max(backoffNanos * 2, drainIntervalNanos));
+            }
+            LockSupport.parkNanos(this, drained ? drainIntervalNanos : backoffNanos);
+        }
+    }
+
+    /**
+     * @return true if the spool was drained, false if the collector is unavailable
+     */
+    private boolean drain()
+    {
+        try {
+            int sinceCheckpoint = 0;
+            while (true) {
+                if (!controller.isAcceptEvents()) {
+                    return false;
+                }
+
+                final byte[] record = spool.next();
+                if (record == null) {
+                    break;
+                }
+
+                try {
+                    controller.offerEvent(toEvent(record));
+                }
+                catch (IOException e) {
+                    sendFailures.incrementAndGet();
+                    log.warn("Got I/O exception trying to send spooled RequestLog, will retry: {}", e.toString());
+                    spool.rewind();
+                    return false;
+                }
+                catch (RuntimeException e) {
+                    // Don't retry a bad record forever
+                    eventsDropped.incrementAndGet();
+                    log.warn("Unable to send spooled RequestLog, skipping it: {}", e.toString());
+                    continue;
+                }
+                eventsSent.incrementAndGet();
+
+                if (++sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    spool.checkpoint();
+                    sinceCheckpoint = 0;
+                }
+            }
+
+            if (sinceCheckpoint > 0) {
+                spool.checkpoint();
+            }
+            return true;
+        }
+        catch (IOException e) {
+            log.warn("Unable to checkpoint the spool: {}", e.toString());
+            spool.rewind();
+            return false;
+        }
+        catch (RuntimeException e) {
+            log.warn("Unable to drain the spool", e);
+            spool.rewind();
+            return false;
+        }
+    }
+
+    private SmileEnvelopeEvent toEvent(final byte[] record) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        final long eventDate = buffer.getLong();
+        final byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        return new SmileEnvelopeEvent(eventName, payload, new DateTime(eventDate, DateTimeZone.UTC), Granularity.HOURLY);
+    }
+
+    @Managed(description = "Number of events waiting to be spooled")
+    public int getQueueSize()
+    {
+        return queueSize.get();
+    }
+
+    @Managed(description = "Maximum number of events waiting to be spooled")
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    @Managed(description = "Whether the collector accepted the last spooled events")
+    public boolean isSinkAvailable()
+    {
+        return sinkAvailable;
+    }
+
+    @Managed(description = "Number of bytes spooled and not yet sent")
+    public long getPendingBytes()
+    {
+        return spool.getPendingBytes();
+    }
+
+    @Managed(description = "Number of spool segments on disk")
+    public int getNbSegments()
+    {
+        return spool.getNbSegments();
+    }
+
+    @Managed(description = "Maximum number of spool segments on disk")
+    public int getMaxSegments()
+    {
+        return spool.getMaxSegments();
+    }
+
+    @Managed(description = "Number of events written to the spool")
+    public long getEventsSpooled()
+    {
+        return eventsSpooled.get();
+    }
+
+    @Managed(description = "Number of events dropped because the queue or the spool was full, the spool failed, or rejected by the collector")
+    public long getEventsDropped()
+    {
+        return eventsDropped.get();
+    }
+
+    @Managed(description = "Number of events handed to the collector")
+    public long getEventsSent()
+    {
+        return eventsSent.get();
+    }
+
+    @Managed(description = "Number of failed attempts to hand a spooled event to the collector")
+    public long getSendFailures()
+    {
+        return sendFailures.get();
+    }
+
+    @Managed(description = "Number of corrupted records skipped in the spool")
+    public long getCorruptedRecords()
+    {
+        return spool.getCorruptedRecords();
+    }
+}
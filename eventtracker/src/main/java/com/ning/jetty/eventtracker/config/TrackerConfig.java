@@ -19,6 +19,7 @@ package com.ning.jetty.eventtracker.config;
 import org.skife.config.Config;
 import org.skife.config.Default;
 import org.skife.config.Description;
+import org.skife.config.TimeSpan;
 
 public interface TrackerConfig
 {
@@ -31,4 +32,104 @@ public interface TrackerConfig
     @Config("com.ning.jetty.eventtracker.port")
     @Default("8080")
     int getServerPort();
+
+    @Description("Whether to serialize and send events in batches, from a background thread")
+    @Config("com.ning.jetty.eventtracker.batching.enabled")
+    @Default("false")
+    boolean isBatchingEnabled();
+
+    @Description("Maximum number of events waiting to be sent in batches, extra events are dropped")
+    @Config("com.ning.jetty.eventtracker.batching.queueCapacity")
+    @Default("10000")
+    int getBatchingQueueCapacity();
+
+    @Description("Number of queued events triggering a batch")
+    @Config("com.ning.jetty.eventtracker.batching.batchSize")
+    @Default("200")
+    int getBatchSize();
+
+    @Description("Maximum time events wait in the queue before being sent")
+    @Config("com.ning.jetty.eventtracker.batching.flushInterval")
+    @Default("1s")
+    TimeSpan getBatchFlushInterval();
+
+    @Description("Whether to sample request events (see the other sampling options)")
+    @Config("com.ning.jetty.eventtracker.sampling.enabled")
+    @Default("false")
+    boolean isSamplingEnabled();
+
+    @Description("Fraction of requests tracked, between 0 and 1")
+    @Config("com.ning.jetty.eventtracker.sampling.rate")
+    @Default("1.0")
+    double getSamplingRate();
+
+    @Description("Per path prefix sampling rates, overriding the default one, e.g. /healthcheck=0.01,/1.0/static=0.1")
+    @Config("com.ning.jetty.eventtracker.sampling.pathRates")
+    @Default("")
+    String getSamplingPathRates();
+
+    @Description("Whether to always track requests with a 5xx response code")
+    @Config("com.ning.jetty.eventtracker.sampling.keepErrors")
+    @Default("true")
+    boolean isSamplingKeepErrors();
+
+    @Description("Requests slower than this are always tracked (0 to disable)")
+    @Config("com.ning.jetty.eventtracker.sampling.slowRequestThreshold")
+    @Default("1s")
+    TimeSpan getSamplingSlowRequestThreshold();
+
+    @Description("Maximum number of sampled events per second, the sampling rate is lowered adaptively above it (0 to disable)")
+    @Config("com.ning.jetty.eventtracker.sampling.maxEventsPerSecond")
+    @Default("0")
+    int getSamplingMaxEventsPerSecond();
+
+    @Description("Whether to keep rolling request statistics (per route counts and latency percentiles) in process")
+    @Config("com.ning.jetty.eventtracker.stats.enabled")
+    @Default("false")
+    boolean isStatsEnabled();
+
+    @Description("Number of path segments making up a route for the request statistics")
+    @Config("com.ning.jetty.eventtracker.stats.routeDepth")
+    @Default("2")
+    int getStatsRouteDepth();
+
+    @Description("Maximum number of distinct routes in the request statistics, extra ones are grouped together")
+    @Config("com.ning.jetty.eventtracker.stats.maxRoutes")
+    @Default("100")
+    int getStatsMaxRoutes();
+
+    @Description("Whether to write events to a durable local spool first, sent to the collector from a background thread")
+    @Config("com.ning.jetty.eventtracker.spool.enabled")
+    @Default("false")
+    boolean isSpoolEnabled();
+
+    @Description("Directory for the spool segments, relative to the working directory like the collector .diskspool (avoid /tmp, often cleared on reboot)")
+    @Config("com.ning.jetty.eventtracker.spool.directory")
+    @Default(".requestlog-spool")
+    String getSpoolDirectory();
+
+    @Description("Maximum number of events waiting to be written to the spool, extra events are dropped")
+    @Config("com.ning.jetty.eventtracker.spool.queueCapacity")
+    @Default("10000")
+    int getSpoolQueueCapacity();
+
+    @Description("Size of each spool segment, in bytes")
+    @Config("com.ning.jetty.eventtracker.spool.segmentSize")
+    @Default("16777216")
+    int getSpoolSegmentSize();
+
+    @Description("Maximum disk usage of the spool, in bytes, extra events are dropped")
+    @Config("com.ning.jetty.eventtracker.spool.maxDiskUsage")
+    @Default("1073741824")
+    long getSpoolMaxDiskUsage();
+
+    @Description("How often the spool is drained to the collector (retries back off exponentially up to 30s)")
+    @Config("com.ning.jetty.eventtracker.spool.drainInterval")
+    @Default("1s")
+    TimeSpan getSpoolDrainInterval();
+
+    @Description("Maximum time to send the queued events to the collector when the server stops (batching and spooling trackers)")
+    @Config("com.ning.jetty.eventtracker.closeTimeout")
+    @Default("10s")
+    TimeSpan getCloseTimeout();
 }
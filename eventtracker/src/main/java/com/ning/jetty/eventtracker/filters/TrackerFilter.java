@@ -19,13 +19,15 @@ package com.ning.jetty.eventtracker.filters;
 import com.ning.jetty.eventtracker.RequestLog;
 import com.ning.jetty.eventtracker.Tracker;
 import com.ning.jetty.eventtracker.config.TrackerConfig;
+import com.ning.jetty.eventtracker.sampling.RequestSampler;
+import com.ning.jetty.eventtracker.stats.RequestStatsAggregator;
 import com.ning.jetty.utils.filters.PeepingTomResponseWrapper;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -36,23 +38,53 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Logs stats about every request to the tracker
+ * <p/>
+ * Timings use System.nanoTime() (monotonic), only the event date uses the wall clock. Strings are built
+ * in per-thread StringBuilders, only when they are actually needed (query string or multiple X-Forwarded-For headers).
+ * All requests are accounted for in the RequestStatsAggregator (when enabled), but only the ones picked by the
+ * RequestSampler are sent to the tracker (no event is created for the others).
+ * <p/>
+ * Asynchronous requests are logged once the async cycle completes, so that the response time and size cover the
+ * whole response.
  */
 @Singleton
 public class TrackerFilter implements Filter
 {
-    private final TrackerConfig config;
+    private static final ThreadLocal<StringBuilder> STRING_BUILDERS = new ThreadLocal<StringBuilder>()
+    {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(256);
+        }
+    };
+
     private final Tracker tracker;
+    private final RequestSampler sampler;
+    private final RequestStatsAggregator stats;
+    private final String serverHost;
+    private final int serverPort;
 
     private FilterConfig filterConfig;
 
-    @Inject
     public TrackerFilter(final TrackerConfig config, final Tracker controller)
     {
-        this.config = config;
+        this(config, controller, new RequestSampler(config), new RequestStatsAggregator(config));
+    }
+
+    @Inject
+    public TrackerFilter(final TrackerConfig config, final Tracker controller, final RequestSampler sampler, final RequestStatsAggregator stats)
+    {
         this.tracker = controller;
+        this.sampler = sampler;
+        this.stats = stats;
+        // Don't go through the config proxy on every request
+        this.serverHost = config.getServerHost();
+        this.serverPort = config.getServerPort();
     }
 
     @Override
@@ -74,44 +106,63 @@ public class TrackerFilter implements Filter
             return;
         }
 
-        final long start = new DateTime(DateTimeZone.UTC).getMillis();
-        final PeepingTomResponseWrapper wrappedResponse = new PeepingTomResponseWrapper(response);
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        // We only need the number of bytes sent, don't keep a copy of the body around
+        final PeepingTomResponseWrapper wrappedResponse = new PeepingTomResponseWrapper(response, PeepingTomResponseWrapper.CaptureMode.COUNT);
 
+        boolean async = false;
+        boolean failed = true;
         try {
             chain.doFilter(request, wrappedResponse);
+            failed = false;
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new CompletionListener(startMillis, startNanos, (HttpServletRequest) request, wrappedResponse));
+            }
         }
         finally {
-            try {
-                logEvent(start, (HttpServletRequest) request, wrappedResponse);
-            }
-            catch (Throwable t) {
-                filterConfig.getServletContext().log("Unable to capture request event", t);
+            if (!async) {
+                logEventQuietly(startMillis, startNanos, (HttpServletRequest) request, wrappedResponse, failed);
             }
         }
     }
 
-    private void logEvent(final long startMillis, final HttpServletRequest request, final PeepingTomResponseWrapper response) throws IOException
+    private void logEventQuietly(final long startMillis, final long startNanos, final HttpServletRequest request, final PeepingTomResponseWrapper response, final boolean failed)
+    {
+        try {
+            logEvent(startMillis, startNanos, request, response, failed);
+        }
+        catch (Throwable t) {
+            filterConfig.getServletContext().log("Unable to capture request event", t);
+        }
+    }
+
+    /**
+     * @param failed whether the chain threw, the container turns it into a 500
+     */
+    private void logEvent(final long startMillis, final long startNanos, final HttpServletRequest request, final PeepingTomResponseWrapper response, final boolean failed) throws IOException
     {
-        final long elapsed = System.currentTimeMillis() - startMillis;
-        final Long timeOfFirstByte = response.getTimeOfFirstByte();
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final int responseTime = (int) TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        final int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus();
+
+        final long firstByteNanos = response.getNanoTimeOfFirstByte();
 
         final int timeToFirstByte;
-        if (timeOfFirstByte == null) {
+        if (firstByteNanos == 0) {
             timeToFirstByte = 0;
-        } else {
-            timeToFirstByte = (int) (timeOfFirstByte - startMillis);
         }
-
-        final String query = request.getQueryString();
-        String path = request.getRequestURI();
-        if (query != null && !query.isEmpty()) {
-            path += "?" + query;
+        else {
+            timeToFirstByte = (int) TimeUnit.NANOSECONDS.toMillis(firstByteNanos - startNanos);
         }
 
-        final Enumeration xffChainEnumeration = request.getHeaders("X-Forwarded-For");
-        String xffChain = "";
-        while (xffChainEnumeration.hasMoreElements()) {
-            xffChain += (String) xffChainEnumeration.nextElement();
+        final String uri = request.getRequestURI();
+        stats.record(uri, status, responseTime, firstByteNanos == 0 ? -1 : timeToFirstByte);
+
+        final double sampleRate = sampler.sample(uri, status, responseTime);
+        if (sampleRate <= 0) {
+            return;
         }
 
         final RequestLog event = new RequestLog(
@@ -119,20 +170,98 @@ public class TrackerFilter implements Filter
                 request.getMethod(),
                 request.getScheme(),
                 request.getHeader("Host"),
-                path,
+                getPath(request),
                 request.getHeader("Referer"),
                 request.getHeader("User-Agent"),
                 request.getRemoteAddr(),
-                xffChain,
+                getForwardedForChain(request),
                 response.getContentType(),
-                (short) response.getStatus(),
-                response.getUnderlyingStream() == null ? 0 : response.getUnderlyingStream().size(),
-                (int) elapsed,
+                (short) status,
+                (int) response.getBytesWritten(),
+                responseTime,
                 timeToFirstByte,
-                config.getServerHost(),
-                config.getServerPort()
+                serverHost,
+                serverPort,
+                sampleRate
         );
 
         tracker.trackRequest(event);
     }
+
+    private String getPath(final HttpServletRequest request)
+    {
+        final String uri = request.getRequestURI();
+        final String query = request.getQueryString();
+        if (query == null || query.isEmpty()) {
+            return uri;
+        }
+
+        final StringBuilder builder = getStringBuilder();
+        return builder.append(uri).append('?').append(query).toString();
+    }
+
+    private String getForwardedForChain(final HttpServletRequest request)
+    {
+        final Enumeration xffChainEnumeration = request.getHeaders("X-Forwarded-For");
+        if (xffChainEnumeration == null || !xffChainEnumeration.hasMoreElements()) {
+            return "";
+        }
+
+        // Usually, there is a single header
+        final String first = (String) xffChainEnumeration.nextElement();
+        if (!xffChainEnumeration.hasMoreElements()) {
+            return first;
+        }
+
+        final StringBuilder builder = getStringBuilder().append(first);
+        while (xffChainEnumeration.hasMoreElements()) {
+            builder.append(", ").append((String) xffChainEnumeration.nextElement());
+        }
+        return builder.toString();
+    }
+
+    private StringBuilder getStringBuilder()
+    {
+        final StringBuilder builder = STRING_BUILDERS.get();
+        builder.setLength(0);
+        return builder;
+    }
+
+    private final class CompletionListener implements AsyncListener
+    {
+        private final long startMillis;
+        private final long startNanos;
+        private final HttpServletRequest request;
+        private final PeepingTomResponseWrapper response;
+
+        private CompletionListener(final long startMillis, final long startNanos, final HttpServletRequest request, final PeepingTomResponseWrapper response)
+        {
+            this.startMillis = startMillis;
+            this.startNanos = startNanos;
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            logEventQuietly(startMillis, startNanos, request, response, false);
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            event.getAsyncContext().addListener(this);
+        }
+    }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.sampling;
+
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests are tracked.
+ * <p/>
+ * Requests are sampled at the rate of the longest matching path prefix, or the default rate. 5xx responses
+ * and slow requests are always kept (rate 1). When maxEventsPerSecond is set, the rate of regular requests is
+ * lowered so that the expected number of sampled events per second stays under the limit: the adjustment is
+ * based on a moving average of the expected number of sampled events (the sum of the path rates of the requests)
+ * in the previous seconds. Once the limit is reached within a second (a burst the average didn't see coming), the
+ * factor is lowered for the rest of that second from the rate observed so far: extra events are dropped at random
+ * rather than first come, first served, and their lower rate is recorded. The limit may be overshot during such a
+ * second, by up to about the limit itself.
+ * <p/>
+ * The returned rate is meant to be recorded on the event: downstream counts are scaled back up by 1/rate.
+ */
+@Singleton
+public class RequestSampler
+{
+    // Weight of the last second in the expected events per second moving average
+    private static final double RATE_SMOOTHING = 0.5;
+    // Expected events are accumulated in millionths of an event
+    private static final double EXPECTED_EVENTS_SCALE = 1000000.0;
+
+    private static final ThreadLocal<Random> RANDOMS = new ThreadLocal<Random>()
+    {
+        @Override
+        protected Random initialValue()
+        {
+            return new Random();
+        }
+    };
+
+    private final boolean enabled;
+    private final double defaultRate;
+    private final List<PathRate> pathRates;
+    private final boolean keepErrors;
+    private final long slowRequestThresholdMillis;
+    private final int maxEventsPerSecond;
+
+    // Adaptive mode state: current one second window
+    private final AtomicLong currentSecond = new AtomicLong(0);
+    private final AtomicLong windowExpectedEvents = new AtomicLong(0);
+    private final AtomicInteger windowSampled = new AtomicInteger(0);
+    private volatile double expectedEventsPerSecond = 0;
+    private volatile double adaptiveFactor = 1.0;
+
+    private final AtomicLong eventsSampled = new AtomicLong(0);
+    private final AtomicLong eventsForced = new AtomicLong(0);
+    private final AtomicLong eventsDropped = new AtomicLong(0);
+
+    @Inject
+    public RequestSampler(final TrackerConfig config)
+    {
+        this(config.isSamplingEnabled(),
+             config.getSamplingRate(),
+             parsePathRates(config.getSamplingPathRates()),
+             config.isSamplingKeepErrors(),
+             config.getSamplingSlowRequestThreshold().getMillis(),
+             config.getSamplingMaxEventsPerSecond());
+    }
+
+    public RequestSampler(final boolean enabled,
+                          final double defaultRate,
+                          final Map<String, Double> pathRates,
+                          final boolean keepErrors,
+                          final long slowRequestThresholdMillis,
+                          final int maxEventsPerSecond)
+    {
+        this.enabled = enabled;
+        this.defaultRate = checkRate(defaultRate);
+        this.keepErrors = keepErrors;
+        this.slowRequestThresholdMillis = slowRequestThresholdMillis;
+        this.maxEventsPerSecond = maxEventsPerSecond;
+
+        this.pathRates = new ArrayList<PathRate>();
+        for (final Map.Entry<String, Double> entry : pathRates.entrySet()) {
+            this.pathRates.add(new PathRate(entry.getKey(), checkRate(entry.getValue())));
+        }
+        // Longest prefix first
+        Collections.sort(this.pathRates, new Comparator<PathRate>()
+        {
+            @Override
+            public int compare(final PathRate o1, final PathRate o2)
+            {
+                return o2.prefix.length() - o1.prefix.length();
+            }
+        });
+    }
+
+    /**
+     * Sample a request
+     *
+     * @param path           request URI
+     * @param responseCode   response status code
+     * @param responseMillis response time, in milliseconds
+     * @return the rate at which the request was sampled (in ]0, 1]), 0 if it should not be tracked
+     */
+    public double sample(final String path, final int responseCode, final long responseMillis)
+    {
+        if (!enabled) {
+            return 1.0;
+        }
+
+        if ((keepErrors && responseCode >= 500) || (slowRequestThresholdMillis > 0 && responseMillis >= slowRequestThresholdMillis)) {
+            eventsForced.incrementAndGet();
+            return 1.0;
+        }
+
+        double rate = getPathRate(path);
+        if (maxEventsPerSecond > 0) {
+            rollWindow();
+            windowExpectedEvents.addAndGet((long) (rate * EXPECTED_EVENTS_SCALE));
+            rate *= adaptiveFactor;
+        }
+
+        if (rate <= 0 || (rate < 1.0 && RANDOMS.get().nextDouble() >= rate)) {
+            eventsDropped.incrementAndGet();
+            return 0;
+        }
+
+        if (maxEventsPerSecond > 0 && windowSampled.incrementAndGet() >= maxEventsPerSecond) {
+            // Burst within the second, before the factor had a chance to adapt
+            tightenWithinWindow();
+        }
+
+        eventsSampled.incrementAndGet();
+        return rate;
+    }
+
+    double getPathRate(final String path)
+    {
+        if (path != null) {
+            for (final PathRate pathRate : pathRates) {
+                if (path.startsWith(pathRate.prefix)) {
+                    return pathRate.rate;
+                }
+            }
+        }
+        return defaultRate;
+    }
+
+    private void rollWindow()
+    {
+        final long now = currentTimeMillis() / 1000;
+        final long second = currentSecond.get();
+        if (now == second || !currentSecond.compareAndSet(second, now)) {
+            return;
+        }
+
+        // We won the race, compute the factor for the new second. Seconds without any request count as idle ones.
+        final double expectedEvents = windowExpectedEvents.getAndSet(0) / EXPECTED_EVENTS_SCALE;
+        windowSampled.set(0);
+        double average = expectedEventsPerSecond;
+        for (long i = second; i < now && i < second + 60; i++) {
+            average = (1 - RATE_SMOOTHING) * average + RATE_SMOOTHING * (i == second ? expectedEvents : 0);
+        }
+        expectedEventsPerSecond = average;
+
+        if (average <= maxEventsPerSecond) {
+            adaptiveFactor = 1.0;
+        }
+        else {
+            adaptiveFactor = maxEventsPerSecond / average;
+        }
+    }
+
+    private void tightenWithinWindow()
+    {
+        // Project the expected events of the whole second from the part elapsed so far
+        final long elapsedMillis = Math.max(1, Math.min(1000, currentTimeMillis() - currentSecond.get() * 1000));
+        final double projected = windowExpectedEvents.get() / EXPECTED_EVENTS_SCALE * 1000 / elapsedMillis;
+        final double factor = maxEventsPerSecond / projected;
+        if (factor < adaptiveFactor) {
+            adaptiveFactor = factor;
+        }
+    }
+
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Parse path prefix rates
+     *
+     * @param spec comma separated list of prefix=rate, e.g. /healthcheck=0.01,/1.0/static=0.1
+     * @return rates by path prefix
+     */
+    public static Map<String, Double> parsePathRates(final String spec)
+    {
+        final Map<String, Double> rates = new LinkedHashMap<String, Double>();
+        if (spec == null) {
+            return rates;
+        }
+
+        for (final String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+
+            final int idx = entry.lastIndexOf('=');
+            if (idx <= 0) {
+                throw new IllegalArgumentException(String.format("Invalid path sampling rate [%s], expected prefix=rate", entry));
+            }
+            rates.put(entry.substring(0, idx).trim(), Double.valueOf(entry.substring(idx + 1).trim()));
+        }
+        return rates;
+    }
+
+    private static double checkRate(final double rate)
+    {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException(String.format("Invalid sampling rate %f, expected a value between 0 and 1", rate));
+        }
+        return rate;
+    }
+
+    @Managed(description = "Whether sampling is enabled")
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Managed(description = "Default sampling rate")
+    public double getDefaultRate()
+    {
+        return defaultRate;
+    }
+
+    @Managed(description = "Maximum number of sampled events per second (0 if unlimited)")
+    public int getMaxEventsPerSecond()
+    {
+        return maxEventsPerSecond;
+    }
+
+    @Managed(description = "Factor currently applied to the sampling rates to stay under the maximum number of events per second")
+    public double getAdaptiveFactor()
+    {
+        return adaptiveFactor;
+    }
+
+    @Managed(description = "Number of requests sampled")
+    public long getEventsSampled()
+    {
+        return eventsSampled.get();
+    }
+
+    @Managed(description = "Number of requests always tracked (errors or slow requests)")
+    public long getEventsForced()
+    {
+        return eventsForced.get();
+    }
+
+    @Managed(description = "Number of requests not tracked")
+    public long getEventsDropped()
+    {
+        return eventsDropped.get();
+    }
+
+    private static final class PathRate
+    {
+        private final String prefix;
+        private final double rate;
+
+        private PathRate(final String prefix, final double rate)
+        {
+            this.prefix = prefix;
+            this.rate = rate;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.servlets;
+
+import com.ning.jetty.eventtracker.stats.RequestStatsAggregator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Dumps the in-process request statistics as JSON, for all windows or a single one (e.g. ?window=5m)
+ */
+@Singleton
+public class RequestStatsServlet extends HttpServlet
+{
+    public static final String WINDOW_PARAMETER = "window";
+
+    private final RequestStatsAggregator stats;
+    private final ObjectMapper mapper;
+
+    @Inject
+    public RequestStatsServlet(final RequestStatsAggregator stats, final ObjectMapper mapper)
+    {
+        this.stats = stats;
+        this.mapper = mapper;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        final String window = request.getParameter(WINDOW_PARAMETER);
+
+        final Object body;
+        if (window == null) {
+            body = stats.getStats();
+        }
+        else {
+            final Integer windowMinutes = parseWindow(window);
+            if (windowMinutes == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Invalid window [%s], expected 1m, 5m or 15m", window));
+                return;
+            }
+            body = stats.getStats(windowMinutes);
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        mapper.writeValue(response.getOutputStream(), body);
+    }
+
+    private Integer parseWindow(final String window)
+    {
+        for (final int windowMinutes : RequestStatsAggregator.WINDOWS_MINUTES) {
+            if (window.equals(windowMinutes + "m") || window.equals(String.valueOf(windowMinutes))) {
+                return windowMinutes;
+            }
+        }
+        return null;
+    }
+}
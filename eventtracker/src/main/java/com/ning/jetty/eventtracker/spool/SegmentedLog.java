@@ -0,0 +1,474 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.spool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, bounded, append-only log of opaque records, stored in fixed-size memory-mapped segment files.
+ * <p/>
+ * Each record is stored as [length][CRC32][payload]. A zero length marks the end of the written data (files are
+ * zero-filled), a negative one the end of a sealed segment. Records are appended at the tail and consumed
+ * from the head by a single reader: next() returns the record after the read cursor, checkpoint() durably
+ * records the cursor (fully consumed segments are deleted), rewind() moves the cursor back to the last
+ * checkpoint. Records are delivered at least once: the ones read but not checkpointed are read again after
+ * a restart.
+ * <p/>
+ * Only the last segment needs to be scanned when reopening the log: the write position is the first invalid
+ * record (CRC mismatch from a torn write, or end of data). Corrupted records in sealed segments are skipped,
+ * with the rest of their segment, and counted.
+ * <p/>
+ * Disk usage is bounded by maxSegments * segmentSize: appends fail when the log is full. Appends don't force
+ * the mapped pages to disk (they survive a process crash, not a system crash), checkpoint() and close() do.
+ * checkpoint() forces the segments and syncs the checkpoint file without holding the log lock, so that appends
+ * don't wait for the disk.
+ */
+public class SegmentedLog
+{
+    private static final Logger log = LoggerFactory.getLogger(SegmentedLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // Open segments, by id
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+    // Serializes checkpoints, which do their I/O outside of the log lock
+    private final Object checkpointLock = new Object();
+    private long writeSegment;
+    private int writePosition;
+    private long readSegment;
+    private int readPosition;
+    private long checkpointSegment;
+    private int checkpointPosition;
+
+    private long corruptedRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * @param directory   where to store the segments (created if needed)
+     * @param segmentSize size of each segment file, in bytes
+     * @param maxDiskSize maximum disk usage, in bytes (at least two segments are kept)
+     * @throws IOException if the log can't be opened
+     */
+    public SegmentedLog(final File directory, final int segmentSize, final long maxDiskSize) throws IOException
+    {
+        if (segmentSize <= RECORD_HEADER_SIZE * 2) {
+            throw new IllegalArgumentException(String.format("Segment size too small: %d", segmentSize));
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxDiskSize / segmentSize));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create spool directory %s", directory));
+        }
+
+        recover();
+    }
+
+    /**
+     * Append a record
+     *
+     * @param payload record
+     * @return false if the log is full or the record too big for a segment
+     * @throws IOException if a new segment can't be created
+     */
+    public synchronized boolean append(final byte[] payload) throws IOException
+    {
+        checkOpen();
+
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (recordSize > segmentSize - 4) {
+            return false;
+        }
+
+        if (writePosition + recordSize > segmentSize - 4) {
+            // Keep room for the end marker, see below
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+
+            segments.get(writeSegment).putInt(writePosition, END_OF_SEGMENT);
+            writeSegment++;
+            writePosition = 0;
+            segments.put(writeSegment, map(writeSegment));
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        final MappedByteBuffer buffer = segments.get(writeSegment);
+        buffer.position(writePosition + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(writePosition + 4, (int) crc.getValue());
+        // Mark the end of data first (in case we're overwriting a torn record), then publish the record
+        buffer.putInt(writePosition + recordSize, 0);
+        buffer.putInt(writePosition, payload.length);
+        writePosition += recordSize;
+
+        return true;
+    }
+
+    /**
+     * @return the next record after the read cursor, null if there is none
+     */
+    public synchronized byte[] next()
+    {
+        checkOpen();
+
+        while (true) {
+            final MappedByteBuffer buffer = segments.get(readSegment);
+            final int limit = readSegment == writeSegment ? writePosition : segmentSize;
+
+            if (readPosition + RECORD_HEADER_SIZE <= limit) {
+                final int length = buffer.getInt(readPosition);
+                if (length > 0) {
+                    final byte[] payload = readRecord(buffer, readPosition, length, limit);
+                    if (payload != null) {
+                        readPosition += RECORD_HEADER_SIZE + length;
+                        return payload;
+                    }
+
+                    corruptedRecords++;
+                    log.warn("Corrupted record in segment {} at offset {}, skipping the rest of the segment", readSegment, readPosition);
+                    if (readSegment == writeSegment) {
+                        readPosition = writePosition;
+                        return null;
+                    }
+                }
+                else if (length == 0 && readSegment == writeSegment) {
+                    return null;
+                }
+            }
+
+            if (readSegment == writeSegment) {
+                return null;
+            }
+
+            // End of a sealed segment
+            readSegment = segments.higherKey(readSegment);
+            readPosition = 0;
+        }
+    }
+
+    /**
+     * Durably record the read cursor and delete the segments fully consumed
+     *
+     * @throws IOException if the checkpoint can't be written
+     */
+    public void checkpoint() throws IOException
+    {
+        synchronized (checkpointLock) {
+            final List<MappedByteBuffer> buffers;
+            final long segment;
+            final int position;
+            synchronized (this) {
+                checkOpen();
+                buffers = new ArrayList<MappedByteBuffer>(segments.values());
+                segment = readSegment;
+                position = readPosition;
+            }
+
+            // Slow (msync, fsync): appends can go on meanwhile
+            for (final MappedByteBuffer buffer : buffers) {
+                buffer.force();
+            }
+            writeCheckpoint(segment, position);
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                checkpointSegment = segment;
+                checkpointPosition = position;
+                while (segments.firstKey() < checkpointSegment) {
+                    final long consumed = segments.pollFirstEntry().getKey();
+                    if (!segmentFile(consumed).delete()) {
+                        log.warn("Unable to delete consumed segment {}", segmentFile(consumed));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the read cursor back to the last checkpoint
+     */
+    public synchronized void rewind()
+    {
+        checkOpen();
+
+        readSegment = checkpointSegment;
+        readPosition = checkpointPosition;
+    }
+
+    /**
+     * @return approximate number of bytes written and not yet checkpointed
+     */
+    public synchronized long getPendingBytes()
+    {
+        return (writeSegment - checkpointSegment) * (long) segmentSize + writePosition - checkpointPosition;
+    }
+
+    /**
+     * @return true if all records have been read
+     */
+    public synchronized boolean isEmpty()
+    {
+        return readSegment == writeSegment && readPosition >= writePosition;
+    }
+
+    public synchronized int getNbSegments()
+    {
+        return segments.size();
+    }
+
+    public int getMaxSegments()
+    {
+        return maxSegments;
+    }
+
+    public synchronized long getCorruptedRecords()
+    {
+        return corruptedRecords;
+    }
+
+    /**
+     * Flush the segments to disk and release them. The read cursor is not checkpointed.
+     */
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+
+        for (final MappedByteBuffer buffer : segments.values()) {
+            buffer.force();
+        }
+        // Mapped buffers are unmapped when garbage collected
+        segments.clear();
+        closed = true;
+    }
+
+    private void recover() throws IOException
+    {
+        final File[] files = directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(final File dir, final String name)
+            {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        final long[] ids = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < ids.length; i++) {
+            final String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+
+        final long[] checkpoint = readCheckpoint();
+        for (final long id : ids) {
+            if (checkpoint != null && id < checkpoint[0]) {
+                // Consumed, but not deleted before the last shutdown
+                if (!segmentFile(id).delete()) {
+                    log.warn("Unable to delete consumed segment {}", segmentFile(id));
+                }
+                continue;
+            }
+            segments.put(id, map(id));
+        }
+
+        if (segments.isEmpty()) {
+            final long first = checkpoint == null ? 0 : checkpoint[0];
+            segments.put(first, map(first));
+        }
+
+        writeSegment = segments.lastKey();
+        writePosition = scanEndOfData(segments.get(writeSegment));
+
+        if (checkpoint != null && segments.containsKey(checkpoint[0])) {
+            checkpointSegment = checkpoint[0];
+            checkpointPosition = (int) Math.min(checkpoint[1], checkpointSegment == writeSegment ? writePosition : segmentSize);
+        }
+        else {
+            checkpointSegment = segments.firstKey();
+            checkpointPosition = 0;
+        }
+        rewind();
+
+        log.info("Opened spool {}: {} segment(s), {} bytes pending", new Object[]{directory, segments.size(), getPendingBytes()});
+    }
+
+    private int scanEndOfData(final MappedByteBuffer buffer)
+    {
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || readRecord(buffer, position, length, segmentSize) == null) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private byte[] readRecord(final MappedByteBuffer buffer, final int position, final int length, final int limit)
+    {
+        if (position + RECORD_HEADER_SIZE + length > limit) {
+            return null;
+        }
+
+        final byte[] payload = new byte[length];
+        final MappedByteBuffer view = (MappedByteBuffer) buffer.duplicate();
+        view.position(position + RECORD_HEADER_SIZE);
+        view.get(payload);
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+        return payload;
+    }
+
+    private MappedByteBuffer map(final long segment) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        try {
+            // The mapping stays valid after the channel is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private File segmentFile(final long segment)
+    {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private long[] readCheckpoint()
+    {
+        final File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            final long segment = input.readLong();
+            final int position = input.readInt();
+            if (input.readLong() != segment * 31 + position) {
+                log.warn("Invalid spool checkpoint {}, replaying all segments", file);
+                return null;
+            }
+            return new long[]{segment, position};
+        }
+        catch (IOException e) {
+            log.warn("Unable to read spool checkpoint {}, replaying all segments: {}", file, e.toString());
+            return null;
+        }
+        finally {
+            closeQuietly(input);
+        }
+    }
+
+    private void writeCheckpoint(final long segment, final int position) throws IOException
+    {
+        final File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            final DataOutputStream output = new DataOutputStream(stream);
+            output.writeLong(segment);
+            output.writeInt(position);
+            output.writeLong(segment * 31 + position);
+            output.flush();
+            stream.getFD().sync();
+        }
+        finally {
+            stream.close();
+        }
+
+        if (!tmp.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException(String.format("Unable to update spool checkpoint in %s", directory));
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (closed) {
+            throw new IllegalStateException(String.format("Spool %s is closed", directory));
+        }
+    }
+
+    private static void closeQuietly(final DataInputStream input)
+    {
+        if (input == null) {
+            return;
+        }
+
+        try {
+            input.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SegmentedLog");
+        sb.append("{directory=").append(directory);
+        sb.append(", segments=").append(segments.keySet());
+        sb.append(", write=").append(writeSegment).append(':').append(writePosition);
+        sb.append(", read=").append(readSegment).append(':').append(readPosition);
+        sb.append(", checkpoint=").append(checkpointSegment).append(':').append(checkpointPosition);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free latency histogram (in milliseconds), HDR style: values are bucketed by power of two,
+ * each power of two being split in 8 linear sub-buckets, which bounds the relative error to 12.5%.
+ * Values above ~4 minutes all land in the last bucket.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 17;
+    // Values below SUB_BUCKETS have their own bucket, then SUB_BUCKETS buckets per power of two
+    static final int NB_BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    static final long MAX_TRACKABLE_VALUE = bucketUpperBound(NB_BUCKETS - 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(NB_BUCKETS);
+
+    public void record(final long value)
+    {
+        counts.incrementAndGet(bucketIndex(value));
+    }
+
+    /**
+     * Add this histogram counts to an accumulator
+     *
+     * @param accumulator array of NB_BUCKETS counts
+     */
+    public void addTo(final long[] accumulator)
+    {
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            accumulator[i] += counts.get(i);
+        }
+    }
+
+    public static long[] newAccumulator()
+    {
+        return new long[NB_BUCKETS];
+    }
+
+    /**
+     * @param accumulator counts, see addTo
+     * @param percentile  percentile, between 0 and 100
+     * @return the (upper bound of the bucket of the) value at this percentile, 0 if the accumulator is empty
+     */
+    public static long getValueAtPercentile(final long[] accumulator, final double percentile)
+    {
+        long total = 0;
+        for (final long count : accumulator) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += accumulator[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return MAX_TRACKABLE_VALUE;
+    }
+
+    static int bucketIndex(final long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return NB_BUCKETS - 1;
+        }
+
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(final int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        final int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        final int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
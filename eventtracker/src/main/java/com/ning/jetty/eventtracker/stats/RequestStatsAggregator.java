@@ -0,0 +1,375 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.stats;
+
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.weakref.jmx.Managed;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Rolling, in-process request statistics: per route counts by status class, and latency histograms
+ * (response time and time to first byte), over 1, 5 and 15 minutes windows.
+ * <p/>
+ * Data is kept in one minute slots, allocated lazily, per route: a N minutes window covers the N previous
+ * whole minutes plus the current one (rates are computed over the actual time span). A route is the request
+ * URI truncated to routeDepth segments, where segments looking like identifiers are replaced by {id}. Past
+ * maxRoutes distinct routes, requests are accounted for under OTHER_ROUTE.
+ */
+@Singleton
+public class RequestStatsAggregator
+{
+    public static final String ALL_ROUTES = "*";
+    public static final String OTHER_ROUTE = "other";
+    public static final int[] WINDOWS_MINUTES = new int[]{1, 5, 15};
+
+    private static final String[] STATUS_CLASSES = new String[]{"other", "1xx", "2xx", "3xx", "4xx", "5xx"};
+    private static final double[] PERCENTILES = new double[]{50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = new String[]{"p50", "p90", "p99", "p999"};
+    // Largest window, plus the current minute
+    private static final int NB_SLOTS = 16;
+
+    private final boolean enabled;
+    private final int routeDepth;
+    private final int maxRoutes;
+
+    private final ConcurrentMap<String, RouteStats> routes = new ConcurrentHashMap<String, RouteStats>();
+    private final RouteStats allRoutes = new RouteStats();
+
+    @Inject
+    public RequestStatsAggregator(final TrackerConfig config)
+    {
+        this(config.isStatsEnabled(), config.getStatsRouteDepth(), config.getStatsMaxRoutes());
+    }
+
+    public RequestStatsAggregator(final boolean enabled, final int routeDepth, final int maxRoutes)
+    {
+        this.enabled = enabled;
+        this.routeDepth = routeDepth;
+        this.maxRoutes = maxRoutes;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Account for a request
+     *
+     * @param uri             request URI (without query string)
+     * @param responseCode    response status code
+     * @param responseTime    response time, in milliseconds
+     * @param timeToFirstByte time to first byte, in milliseconds (negative if no byte was written, e.g. 204, 304 or HEAD)
+     */
+    public void record(final String uri, final int responseCode, final long responseTime, final long timeToFirstByte)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        final long minute = currentTimeMillis() / 60000;
+        final int statusClass = responseCode >= 100 && responseCode < 600 ? responseCode / 100 : 0;
+        allRoutes.record(minute, statusClass, responseTime, timeToFirstByte);
+        getRouteStats(getRoute(uri)).record(minute, statusClass, responseTime, timeToFirstByte);
+    }
+
+    /**
+     * @return statistics for all windows: window name (e.g. 1m) to route to statistics
+     */
+    public Map<String, Map<String, Map<String, Object>>> getStats()
+    {
+        final Map<String, Map<String, Map<String, Object>>> stats = new LinkedHashMap<String, Map<String, Map<String, Object>>>();
+        for (final int window : WINDOWS_MINUTES) {
+            stats.put(window + "m", getStats(window));
+        }
+        return stats;
+    }
+
+    /**
+     * @param windowMinutes window size, in minutes (up to 15)
+     * @return route to statistics for this window, the ALL_ROUTES entry aggregates all of them
+     */
+    public Map<String, Map<String, Object>> getStats(final int windowMinutes)
+    {
+        final long now = currentTimeMillis();
+        final Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+        stats.put(ALL_ROUTES, allRoutes.snapshot(now, windowMinutes).toMap());
+        for (final Map.Entry<String, RouteStats> entry : new TreeMap<String, RouteStats>(routes).entrySet()) {
+            final Snapshot snapshot = entry.getValue().snapshot(now, windowMinutes);
+            if (snapshot.count > 0) {
+                stats.put(entry.getKey(), snapshot.toMap());
+            }
+        }
+        return stats;
+    }
+
+    String getRoute(final String uri)
+    {
+        if (uri == null || uri.isEmpty()) {
+            return "/";
+        }
+
+        final StringBuilder route = new StringBuilder();
+        int depth = 0;
+        int start = uri.charAt(0) == '/' ? 1 : 0;
+        while (start < uri.length() && depth < routeDepth) {
+            int end = uri.indexOf('/', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+            if (end > start) {
+                route.append('/');
+                if (isIdentifier(uri, start, end)) {
+                    route.append("{id}");
+                }
+                else {
+                    route.append(uri, start, end);
+                }
+                depth++;
+            }
+            start = end + 1;
+        }
+
+        return route.length() == 0 ? "/" : route.toString();
+    }
+
+    private RouteStats getRouteStats(final String route)
+    {
+        RouteStats stats = routes.get(route);
+        if (stats == null) {
+            if (routes.size() >= maxRoutes) {
+                return getRouteStats(OTHER_ROUTE, new RouteStats());
+            }
+            stats = getRouteStats(route, new RouteStats());
+        }
+        return stats;
+    }
+
+    private RouteStats getRouteStats(final String route, final RouteStats newStats)
+    {
+        final RouteStats existing = routes.putIfAbsent(route, newStats);
+        return existing == null ? newStats : existing;
+    }
+
+    // Numbers (versions like 1.0 are kept), hex strings and UUIDs of 16+ characters
+    private static boolean isIdentifier(final String uri, final int start, final int end)
+    {
+        boolean allDigits = true;
+        boolean allHex = true;
+        for (int i = start; i < end; i++) {
+            final char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                allDigits = false;
+                if (!((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-')) {
+                    allHex = false;
+                    break;
+                }
+            }
+        }
+        return allDigits || (allHex && end - start >= 16);
+    }
+
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Managed(description = "Number of distinct routes tracked")
+    public int getNbRoutes()
+    {
+        return routes.size();
+    }
+
+    @Managed(description = "Requests per second, over the last minute")
+    public double getRequestRate1m()
+    {
+        return allRoutes.snapshot(currentTimeMillis(), 1).getRate();
+    }
+
+    @Managed(description = "Requests per second, over the last 5 minutes")
+    public double getRequestRate5m()
+    {
+        return allRoutes.snapshot(currentTimeMillis(), 5).getRate();
+    }
+
+    @Managed(description = "Requests per second, over the last 15 minutes")
+    public double getRequestRate15m()
+    {
+        return allRoutes.snapshot(currentTimeMillis(), 15).getRate();
+    }
+
+    @Managed(description = "5xx responses per second, over the last minute")
+    public double getErrorRate1m()
+    {
+        final Snapshot snapshot = allRoutes.snapshot(currentTimeMillis(), 1);
+        return snapshot.statusCounts[5] / snapshot.spanSeconds;
+    }
+
+    @Managed(description = "Median response time (ms), over the last minute")
+    public long getResponseTimeP50_1m()
+    {
+        return LatencyHistogram.getValueAtPercentile(allRoutes.snapshot(currentTimeMillis(), 1).responseTimes, 50);
+    }
+
+    @Managed(description = "99th percentile response time (ms), over the last minute")
+    public long getResponseTimeP99_1m()
+    {
+        return LatencyHistogram.getValueAtPercentile(allRoutes.snapshot(currentTimeMillis(), 1).responseTimes, 99);
+    }
+
+    @Managed(description = "99th percentile response time (ms), over the last 5 minutes")
+    public long getResponseTimeP99_5m()
+    {
+        return LatencyHistogram.getValueAtPercentile(allRoutes.snapshot(currentTimeMillis(), 5).responseTimes, 99);
+    }
+
+    @Managed(description = "99th percentile response time (ms), over the last 15 minutes")
+    public long getResponseTimeP99_15m()
+    {
+        return LatencyHistogram.getValueAtPercentile(allRoutes.snapshot(currentTimeMillis(), 15).responseTimes, 99);
+    }
+
+    @Managed(description = "Per route statistics, over the last minute")
+    public String getRouteStats1m()
+    {
+        return getStats(1).toString();
+    }
+
+    private static final class Slot
+    {
+        private final long minute;
+        private final AtomicLongArray statusCounts = new AtomicLongArray(STATUS_CLASSES.length);
+        private final LatencyHistogram responseTimes = new LatencyHistogram();
+        private final LatencyHistogram timesToFirstByte = new LatencyHistogram();
+
+        private Slot(final long minute)
+        {
+            this.minute = minute;
+        }
+    }
+
+    private static final class RouteStats
+    {
+        private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<Slot>(NB_SLOTS);
+
+        private void record(final long minute, final int statusClass, final long responseTime, final long timeToFirstByte)
+        {
+            final Slot slot = getSlot(minute);
+            slot.statusCounts.incrementAndGet(statusClass);
+            slot.responseTimes.record(responseTime);
+            // Bodyless responses would drag the percentiles down
+            if (timeToFirstByte >= 0) {
+                slot.timesToFirstByte.record(timeToFirstByte);
+            }
+        }
+
+        private Slot getSlot(final long minute)
+        {
+            final int idx = (int) (minute % NB_SLOTS);
+            while (true) {
+                final Slot slot = slots.get(idx);
+                if (slot != null && slot.minute == minute) {
+                    return slot;
+                }
+
+                // First request of the minute for this route, recycle the slot
+                final Slot newSlot = new Slot(minute);
+                if (slots.compareAndSet(idx, slot, newSlot)) {
+                    return newSlot;
+                }
+            }
+        }
+
+        private Snapshot snapshot(final long nowMillis, final int windowMinutes)
+        {
+            final long minute = nowMillis / 60000;
+            final Snapshot snapshot = new Snapshot(windowMinutes * 60 + (nowMillis % 60000) / 1000.0);
+            for (int i = 0; i < NB_SLOTS; i++) {
+                final Slot slot = slots.get(i);
+                if (slot == null || slot.minute > minute || slot.minute < minute - windowMinutes) {
+                    continue;
+                }
+
+                for (int j = 0; j < STATUS_CLASSES.length; j++) {
+                    final long count = slot.statusCounts.get(j);
+                    snapshot.statusCounts[j] += count;
+                    snapshot.count += count;
+                }
+                slot.responseTimes.addTo(snapshot.responseTimes);
+                slot.timesToFirstByte.addTo(snapshot.timesToFirstByte);
+            }
+            return snapshot;
+        }
+    }
+
+    private static final class Snapshot
+    {
+        private final double spanSeconds;
+        private final long[] statusCounts = new long[STATUS_CLASSES.length];
+        private final long[] responseTimes = LatencyHistogram.newAccumulator();
+        private final long[] timesToFirstByte = LatencyHistogram.newAccumulator();
+        private long count = 0;
+
+        private Snapshot(final double spanSeconds)
+        {
+            this.spanSeconds = spanSeconds;
+        }
+
+        private double getRate()
+        {
+            return count / spanSeconds;
+        }
+
+        private Map<String, Object> toMap()
+        {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("count", count);
+            map.put("rate", getRate());
+
+            final Map<String, Long> statuses = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                if (statusCounts[i] > 0) {
+                    statuses.put(STATUS_CLASSES[i], statusCounts[i]);
+                }
+            }
+            map.put("status", statuses);
+            map.put("responseTime", percentiles(responseTimes));
+            map.put("timeToFirstByte", percentiles(timesToFirstByte));
+            return map;
+        }
+
+        private static Map<String, Long> percentiles(final long[] accumulator)
+        {
+            final Map<String, Long> percentiles = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles.put(PERCENTILE_NAMES[i], LatencyHistogram.getValueAtPercentile(accumulator, PERCENTILES[i]));
+            }
+            percentiles.put("max", LatencyHistogram.getValueAtPercentile(accumulator, 100));
+            return percentiles;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker;
+
+import com.ning.metrics.eventtracker.CollectorController;
+import com.ning.metrics.serialization.event.Event;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestBatchingCollectorTracker
+{
+    private static final class RecordingCollectorController extends CollectorController
+    {
+        private final List<Event> events = new CopyOnWriteArrayList<Event>();
+        private volatile CountDownLatch blocker = new CountDownLatch(0);
+
+        private RecordingCollectorController()
+        {
+            super(null);
+        }
+
+        @Override
+        public void offerEvent(final Event event) throws IOException
+        {
+            try {
+                blocker.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(event);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFlushBySizeAndTime() throws Exception
+    {
+        final RecordingCollectorController controller = new RecordingCollectorController();
+        final BatchingCollectorTracker tracker = new BatchingCollectorTracker(controller, 100, 10, 200, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 25; i++) {
+            tracker.trackRequest(createRequestLog(i));
+        }
+
+        // The last 5 ones are sent when the flush interval expires
+        waitForEvents(controller, 25);
+        Assert.assertEquals(tracker.getEventsSent(), 25);
+        Assert.assertEquals(tracker.getEventsDropped(), 0);
+        Assert.assertTrue(tracker.getBatchesSent() >= 3);
+        Assert.assertEquals(controller.events.get(3).getEventDateTime().getMillis(), 3);
+
+        tracker.close(5, TimeUnit.SECONDS);
+    }
+
+    @Test(groups = "fast")
+    public void testDropWhenFull() throws Exception
+    {
+        final RecordingCollectorController controller = new RecordingCollectorController();
+        controller.blocker = new CountDownLatch(1);
+        final BatchingCollectorTracker tracker = new BatchingCollectorTracker(controller, 20, 5, 10, TimeUnit.MILLISECONDS);
+
+        // The sender is stuck on the collector: at most one batch has been dequeued
+        for (int i = 0; i < 100; i++) {
+            tracker.trackRequest(createRequestLog(i));
+        }
+        Assert.assertTrue(tracker.getEventsDropped() >= 75);
+        Assert.assertEquals(tracker.getEventsEnqueued() + tracker.getEventsDropped(), 100);
+
+        controller.blocker.countDown();
+        tracker.close(5, TimeUnit.SECONDS);
+        Assert.assertEquals(tracker.getQueueSize(), 0);
+        Assert.assertEquals(controller.events.size(), tracker.getEventsEnqueued());
+    }
+
+    private void waitForEvents(final RecordingCollectorController controller, final int nbEvents) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (controller.events.size() < nbEvents && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(controller.events.size(), nbEvents);
+    }
+
+    private RequestLog createRequestLog(final long eventDate)
+    {
+        return new RequestLog(eventDate, "GET", "http", "localhost", "/", null, "test", "127.0.0.1", "", "text/plain",
+                              (short) 200, 42, 10, 5, "localhost", 8080);
+    }
+}
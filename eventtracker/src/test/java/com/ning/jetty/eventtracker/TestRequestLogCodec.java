@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker;
+
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestRequestLogCodec
+{
+    private final RequestLogCodec codec = new RequestLogCodec();
+
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception
+    {
+        final List<RequestLog> batch = new ArrayList<RequestLog>();
+        batch.add(new RequestLog(1334000000000L, "GET", "http", "www.example.com", "/1.0/users/1?fields=id", "http://www.example.com/",
+                                 "Mozilla/5.0", "10.0.0.1", "192.168.1.1, 10.1.2.3", "application/json", (short) 200, 1234, 12, 3, "core1", 8080));
+        // Out of order date, nulls, non-ASCII characters, unusual values
+        batch.add(new RequestLog(1333999999000L, "POST", "https", "www.example.com", "/1.0/caf\u00e9", null,
+                                 null, "10.0.0.2", "", null, (short) 503, 0, Integer.MAX_VALUE, -1, "core1", 8080, 0.125));
+        batch.add(new RequestLog(1334000000500L, "GET", "http", "www.example.com", "/1.0/users/2", "http://www.example.com/",
+                                 "Mozilla/5.0", "10.0.0.1", "", "application/json", (short) 304, 0, 1, 0, "core1", 8080));
+
+        final List<RequestLog> decoded = codec.decode(codec.encode(batch));
+        Assert.assertEquals(decoded.size(), batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(decoded.get(i), batch.get(i));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEmptyBatch() throws Exception
+    {
+        final byte[] encoded = codec.encode(Collections.<RequestLog>emptyList());
+        Assert.assertEquals(encoded.length, 2);
+        Assert.assertEquals(codec.decode(encoded).size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSmallerThanSmile() throws Exception
+    {
+        final List<RequestLog> batch = new ArrayList<RequestLog>();
+        int smileSize = 0;
+        for (int i = 0; i < 100; i++) {
+            final RequestLog event = new RequestLog(1334000000000L + i * 7, "GET", "http", "www.example.com", "/1.0/users/" + i, "http://www.example.com/",
+                                                    "Mozilla/5.0 (X11; Linux x86_64)", "10.0.0.1", "", "application/json", (short) 200, 1234, 12, 3, "core1", 8080);
+            batch.add(event);
+            smileSize += SmileEnvelopeEvent.fromPOJO("RequestLogEvent", Granularity.HOURLY, event).getSerializedEvent().length;
+        }
+
+        final int binarySize = codec.encode(batch).length;
+        Assert.assertTrue(binarySize * 4 < smileSize, String.format("binary: %d, smile: %d", binarySize, smileSize));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidInput() throws Exception
+    {
+        final byte[] encoded = codec.encode(Arrays.asList(new RequestLog(1L, "GET", "http", "h", "/", null, null, "ip", "", null, (short) 200, 1, 1, 1, "core", 80)));
+
+        final byte[] badVersion = encoded.clone();
+        badVersion[0] = 42;
+        assertDecodingFails(badVersion);
+        assertDecodingFails(Arrays.copyOf(encoded, encoded.length - 1));
+        assertDecodingFails(Arrays.copyOf(encoded, encoded.length + 1));
+    }
+
+    @Test(groups = "fast")
+    public void testCorruptLengths() throws Exception
+    {
+        final byte version = codec.encode(new ArrayList<RequestLog>())[0];
+        final byte[] varint32 = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        final byte[] varint40 = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+
+        // Record counts which would be negative or huge once cast to an int
+        assertDecodingFails(concat(new byte[]{version}, varint32));
+        assertDecodingFails(concat(new byte[]{version}, varint40));
+        assertDecodingFails(new byte[]{version, 0x7F});
+
+        // One record, eventDate 0, then a new dictionary entry for the method with a huge length
+        assertDecodingFails(concat(new byte[]{version, 0x01, 0x00, 0x01}, varint32));
+        assertDecodingFails(concat(new byte[]{version, 0x01, 0x00, 0x01}, varint40));
+        assertDecodingFails(new byte[]{version, 0x01, 0x00, 0x01, 0x10, 'G', 'E', 'T'});
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second)
+    {
+        final byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private void assertDecodingFails(final byte[] data)
+    {
+        try {
+            codec.decode(data);
+            Assert.fail();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    private void assertEquals(final RequestLog actual, final RequestLog expected)
+    {
+        Assert.assertEquals(actual.eventDate, expected.eventDate);
+        Assert.assertEquals(actual.method, expected.method);
+        Assert.assertEquals(actual.protocol, expected.protocol);
+        Assert.assertEquals(actual.host, expected.host);
+        Assert.assertEquals(actual.path, expected.path);
+        Assert.assertEquals(actual.referer, expected.referer);
+        Assert.assertEquals(actual.userAgent, expected.userAgent);
+        Assert.assertEquals(actual.proximateIp, expected.proximateIp);
+        Assert.assertEquals(actual.forwardedForChain, expected.forwardedForChain);
+        Assert.assertEquals(actual.contentType, expected.contentType);
+        Assert.assertEquals(actual.responseCode, expected.responseCode);
+        Assert.assertEquals(actual.responseLength, expected.responseLength);
+        Assert.assertEquals(actual.responseTime, expected.responseTime);
+        Assert.assertEquals(actual.timeToFirstByte, expected.timeToFirstByte);
+        Assert.assertEquals(actual.coreHost, expected.coreHost);
+        Assert.assertEquals(actual.corePort, expected.corePort);
+        Assert.assertEquals(actual.sampleRate, expected.sampleRate);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker;
+
+import com.ning.jetty.eventtracker.spool.SegmentedLog;
+import com.ning.metrics.eventtracker.CollectorController;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestSpoolingCollectorTracker
+{
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Stand-in for the collector, appending events to a local file
+     */
+    private static final class FileCollectorController extends CollectorController
+    {
+        private final File file;
+        private volatile boolean down = false;
+
+        private FileCollectorController(final File file)
+        {
+            super(null);
+            this.file = file;
+        }
+
+        @Override
+        public synchronized void offerEvent(final Event event) throws IOException
+        {
+            if (down) {
+                throw new IOException("Collector is down");
+            }
+
+            final DataOutputStream output = new DataOutputStream(new FileOutputStream(file, true));
+            try {
+                final byte[] payload = ((SmileEnvelopeEvent) event).getSerializedEvent();
+                output.writeLong(event.getEventDateTime().getMillis());
+                output.writeInt(payload.length);
+                output.write(payload);
+            }
+            finally {
+                output.close();
+            }
+        }
+
+        @Override
+        public boolean isAcceptEvents()
+        {
+            return true;
+        }
+
+        private synchronized List<Long> getEventDates() throws IOException
+        {
+            final List<Long> dates = new ArrayList<Long>();
+            if (!file.exists()) {
+                return dates;
+            }
+
+            final DataInputStream input = new DataInputStream(new FileInputStream(file));
+            try {
+                while (true) {
+                    dates.add(input.readLong());
+                    input.skipBytes(input.readInt());
+                }
+            }
+            catch (EOFException ignored) {
+                return dates;
+            }
+            finally {
+                input.close();
+            }
+        }
+    }
+
+    private File directory;
+    private File collectorFile;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile("spool", "test");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdirs());
+        collectorFile = File.createTempFile("collector", "test");
+        Assert.assertTrue(collectorFile.delete());
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        collectorFile.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testSpoolWhileCollectorIsDown() throws Exception
+    {
+        final FileCollectorController controller = new FileCollectorController(collectorFile);
+        controller.down = true;
+
+        SpoolingCollectorTracker tracker = newTracker(controller);
+        for (int i = 0; i < 100; i++) {
+            tracker.trackRequest(newRequestLog(i));
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(tracker.getEventsSpooled(), 100);
+        Assert.assertEquals(tracker.getQueueSize(), 0);
+        Assert.assertFalse(tracker.isSinkAvailable());
+        Assert.assertTrue(tracker.getSendFailures() > 0);
+        Assert.assertTrue(tracker.getPendingBytes() > 0);
+        tracker.close(100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(controller.getEventDates().size(), 0);
+
+        // Restart, with the collector back up: spooled events are replayed
+        controller.down = false;
+        tracker = newTracker(controller);
+        tracker.trackRequest(newRequestLog(100));
+        waitForEvents(controller, 101);
+        Assert.assertTrue(tracker.isSinkAvailable());
+
+        final List<Long> dates = controller.getEventDates();
+        for (int i = 0; i < 101; i++) {
+            Assert.assertEquals((long) dates.get(i), 1000L * i);
+        }
+        tracker.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test(groups = "fast")
+    public void testCollectorRecovers() throws Exception
+    {
+        final FileCollectorController controller = new FileCollectorController(collectorFile);
+        final SpoolingCollectorTracker tracker = newTracker(controller);
+
+        for (int i = 0; i < 10; i++) {
+            tracker.trackRequest(newRequestLog(i));
+        }
+        waitForEvents(controller, 10);
+
+        controller.down = true;
+        for (int i = 10; i < 20; i++) {
+            tracker.trackRequest(newRequestLog(i));
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(controller.getEventDates().size(), 10);
+
+        controller.down = false;
+        waitForEvents(controller, 20);
+        Assert.assertEquals(tracker.getEventsSent(), 20);
+        Assert.assertEquals(tracker.getEventsDropped(), 0);
+        tracker.close(1, TimeUnit.SECONDS);
+    }
+
+    @Test(groups = "fast")
+    public void testSpoolFull() throws Exception
+    {
+        final FileCollectorController controller = new FileCollectorController(collectorFile);
+        controller.down = true;
+        final SpoolingCollectorTracker tracker = new SpoolingCollectorTracker(controller, new SegmentedLog(directory, 4096, 2 * 4096), 10, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 1000; i++) {
+            tracker.trackRequest(newRequestLog(i));
+        }
+        tracker.close(10, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(tracker.getEventsDropped() > 0);
+        Assert.assertEquals(tracker.getEventsSpooled() + tracker.getEventsDropped(), 1000);
+    }
+
+    @Test(groups = "fast")
+    public void testQueueFull() throws Exception
+    {
+        final FileCollectorController controller = new FileCollectorController(collectorFile);
+        final SpoolingCollectorTracker tracker = new SpoolingCollectorTracker(controller, new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE), 10, TimeUnit.MILLISECONDS, 0);
+
+        tracker.trackRequest(newRequestLog(0));
+        Assert.assertEquals(tracker.getEventsDropped(), 1);
+        Assert.assertEquals(tracker.getQueueSize(), 0);
+        tracker.close(1, TimeUnit.SECONDS);
+        Assert.assertEquals(tracker.getEventsSpooled(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCloseSpoolsQueuedEvents() throws Exception
+    {
+        final FileCollectorController controller = new FileCollectorController(collectorFile);
+        controller.down = true;
+
+        SpoolingCollectorTracker tracker = newTracker(controller);
+        for (int i = 0; i < 100; i++) {
+            tracker.trackRequest(newRequestLog(i));
+        }
+        tracker.close(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(tracker.getEventsSpooled(), 100);
+        Assert.assertEquals(tracker.getEventsDropped(), 0);
+
+        controller.down = false;
+        tracker = newTracker(controller);
+        waitForEvents(controller, 100);
+        tracker.close(1, TimeUnit.SECONDS);
+    }
+
+    private SpoolingCollectorTracker newTracker(final CollectorController controller) throws IOException
+    {
+        return new SpoolingCollectorTracker(controller, new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE), 10, TimeUnit.MILLISECONDS);
+    }
+
+    private void waitForEvents(final FileCollectorController controller, final int expected) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (controller.getEventDates().size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(controller.getEventDates().size(), expected);
+    }
+
+    private RequestLog newRequestLog(final int i)
+    {
+        return new RequestLog(1000L * i, "GET", "http", "localhost", "/1.0/events/" + i, null, "test", "127.0.0.1", "",
+                              "application/json", (short) 200, 42, 5, 1, "localhost", 8080);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.filters;
+
+import com.ning.jetty.eventtracker.RequestLog;
+import com.ning.jetty.eventtracker.Tracker;
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+import com.ning.jetty.eventtracker.sampling.RequestSampler;
+import com.ning.jetty.eventtracker.stats.RequestStatsAggregator;
+
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class TestTrackerFilter
+{
+    private static final class RecordingTracker implements Tracker
+    {
+        private final List<RequestLog> events = new ArrayList<RequestLog>();
+
+        @Override
+        public void trackRequest(final RequestLog request)
+        {
+            events.add(request);
+        }
+    }
+
+    private static final class RecordingStats extends RequestStatsAggregator
+    {
+        private final List<long[]> records = new ArrayList<long[]>();
+
+        private RecordingStats()
+        {
+            super(true, 2, 100);
+        }
+
+        @Override
+        public void record(final String uri, final int responseCode, final long responseTime, final long timeToFirstByte)
+        {
+            records.add(new long[]{responseCode, responseTime, timeToFirstByte});
+        }
+    }
+
+    /**
+     * Minimal request, which goes async when the application calls startAsync()
+     */
+    private static final class StubRequest implements InvocationHandler
+    {
+        private final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        private final HttpServletRequest proxy = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class}, this);
+        private final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{AsyncContext.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("addListener".equals(method.getName())) {
+                    listeners.add((AsyncListener) args[0]);
+                }
+                return null;
+            }
+        });
+        private boolean asyncStarted = false;
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if ("getRequestURI".equals(name)) {
+                return "/1.0/users";
+            }
+            else if ("getMethod".equals(name)) {
+                return "GET";
+            }
+            else if ("startAsync".equals(name)) {
+                asyncStarted = true;
+                return asyncContext;
+            }
+            else if ("isAsyncStarted".equals(name)) {
+                return asyncStarted;
+            }
+            else if ("getAsyncContext".equals(name)) {
+                return asyncContext;
+            }
+            return null;
+        }
+    }
+
+    private static HttpServletResponse response()
+    {
+        final ServletOutputStream stream = new ServletOutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+            }
+        };
+        // Implicit 200, like the container
+        final int[] status = new int[]{200};
+        return (HttpServletResponse) Proxy.newProxyInstance(TestTrackerFilter.class.getClassLoader(), new Class[]{HttpServletResponse.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                final String name = method.getName();
+                if ("getOutputStream".equals(name)) {
+                    return stream;
+                }
+                else if ("setStatus".equals(name) || "sendError".equals(name)) {
+                    status[0] = (Integer) args[0];
+                }
+                else if ("getStatus".equals(name)) {
+                    return status[0];
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronousRequest() throws Exception
+    {
+        final RecordingTracker tracker = new RecordingTracker();
+        final RecordingStats stats = new RecordingStats();
+        final TrackerFilter filter = newFilter(tracker, stats);
+
+        filter.doFilter(new StubRequest().proxy, response(), new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                ((HttpServletResponse) response).setStatus(201);
+                response.getOutputStream().write(new byte[]{1, 2, 3});
+            }
+        });
+
+        Assert.assertEquals(tracker.events.size(), 1);
+        Assert.assertEquals(field(tracker.events.get(0), "responseCode"), (short) 201);
+        Assert.assertEquals(field(tracker.events.get(0), "responseLength"), 3);
+        Assert.assertEquals(stats.records.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncRequestIsLoggedOnCompletion() throws Exception
+    {
+        final RecordingTracker tracker = new RecordingTracker();
+        final RecordingStats stats = new RecordingStats();
+        final TrackerFilter filter = newFilter(tracker, stats);
+        final StubRequest request = new StubRequest();
+        final ServletResponse[] wrappedResponse = new ServletResponse[1];
+
+        filter.doFilter(request.proxy, response(), new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                request.startAsync();
+                wrappedResponse[0] = response;
+            }
+        });
+
+        // Not done yet
+        Assert.assertEquals(tracker.events.size(), 0);
+        Assert.assertEquals(stats.records.size(), 0);
+        Assert.assertEquals(request.listeners.size(), 1);
+
+        // The response is written later on, from another thread
+        Thread.sleep(50);
+        wrappedResponse[0].getOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+        request.listeners.get(0).onComplete(null);
+
+        Assert.assertEquals(tracker.events.size(), 1);
+        Assert.assertEquals(field(tracker.events.get(0), "responseLength"), 5);
+        Assert.assertTrue((Integer) field(tracker.events.get(0), "responseTime") >= 50);
+        Assert.assertEquals(stats.records.size(), 1);
+        Assert.assertTrue(stats.records.get(0)[1] >= 50);
+        Assert.assertTrue(stats.records.get(0)[2] >= 50);
+    }
+
+    @Test(groups = "fast")
+    public void testServerHostAndPortAreCached() throws Exception
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("com.ning.jetty.eventtracker.host", "web1.example.com");
+        properties.setProperty("com.ning.jetty.eventtracker.port", "9090");
+        final TrackerConfig delegate = new ConfigurationObjectFactory(properties).build(TrackerConfig.class);
+        final List<String> calls = new ArrayList<String>();
+        final TrackerConfig config = (TrackerConfig) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{TrackerConfig.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                calls.add(method.getName());
+                return method.invoke(delegate, args);
+            }
+        });
+
+        final RecordingTracker tracker = new RecordingTracker();
+        final TrackerFilter filter = new TrackerFilter(config, tracker, new RequestSampler(delegate), new RecordingStats());
+        Assert.assertEquals(calls.size(), 2);
+
+        for (int i = 0; i < 3; i++) {
+            filter.doFilter(new StubRequest().proxy, response(), writeBody(0, 0));
+        }
+
+        // Read once, in the constructor
+        Assert.assertEquals(calls.size(), 2);
+        Assert.assertEquals(tracker.events.size(), 3);
+        for (final RequestLog event : tracker.events) {
+            Assert.assertEquals(field(event, "coreHost"), "web1.example.com");
+            Assert.assertEquals(field(event, "corePort"), 9090);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTimings() throws Exception
+    {
+        final RecordingTracker tracker = new RecordingTracker();
+        final RecordingStats stats = new RecordingStats();
+        final TrackerFilter filter = newFilter(tracker, stats);
+
+        final long beforeMillis = System.currentTimeMillis();
+        filter.doFilter(new StubRequest().proxy, response(), writeBody(30, 30));
+        final long afterMillis = System.currentTimeMillis();
+
+        final RequestLog event = tracker.events.get(0);
+        final long eventDate = (Long) field(event, "eventDate");
+        final int responseTime = (Integer) field(event, "responseTime");
+        final int timeToFirstByte = (Integer) field(event, "timeToFirstByte");
+        Assert.assertTrue(eventDate >= beforeMillis && eventDate <= afterMillis);
+        Assert.assertTrue(responseTime >= 60, "responseTime: " + responseTime);
+        Assert.assertTrue(timeToFirstByte >= 30 && timeToFirstByte <= responseTime - 30, "timeToFirstByte: " + timeToFirstByte);
+        Assert.assertEquals(stats.records.get(0)[1], responseTime);
+        Assert.assertEquals(stats.records.get(0)[2], timeToFirstByte);
+
+        // No body
+        filter.doFilter(new StubRequest().proxy, response(), new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                ((HttpServletResponse) response).setStatus(204);
+            }
+        });
+        Assert.assertEquals(field(tracker.events.get(1), "timeToFirstByte"), 0);
+        Assert.assertEquals(stats.records.get(1)[2], -1);
+    }
+
+    @Test(groups = "fast")
+    public void testErrorsAreKept() throws Exception
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("com.ning.jetty.eventtracker.sampling.enabled", "true");
+        properties.setProperty("com.ning.jetty.eventtracker.sampling.rate", "0");
+        final TrackerConfig config = new ConfigurationObjectFactory(properties).build(TrackerConfig.class);
+        final RecordingTracker tracker = new RecordingTracker();
+        final TrackerFilter filter = new TrackerFilter(config, tracker, new RequestSampler(config), new RecordingStats());
+
+        // Regular requests aren't tracked
+        filter.doFilter(new StubRequest().proxy, response(), writeBody(0, 0));
+        Assert.assertEquals(tracker.events.size(), 0);
+
+        // sendError() doesn't go through setStatus()
+        filter.doFilter(new StubRequest().proxy, response(), new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                ((HttpServletResponse) response).sendError(503);
+            }
+        });
+        Assert.assertEquals(tracker.events.size(), 1);
+        Assert.assertEquals(field(tracker.events.get(0), "responseCode"), (short) 503);
+        Assert.assertEquals(field(tracker.events.get(0), "sampleRate"), 1.0);
+
+        // The container turns exceptions into a 500
+        try {
+            filter.doFilter(new StubRequest().proxy, response(), new FilterChain()
+            {
+                @Override
+                public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+                {
+                    throw new IllegalStateException("Boom");
+                }
+            });
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Boom");
+        }
+        Assert.assertEquals(tracker.events.size(), 2);
+        Assert.assertEquals(field(tracker.events.get(1), "responseCode"), (short) 500);
+        Assert.assertEquals(field(tracker.events.get(1), "sampleRate"), 1.0);
+    }
+
+    @Test(groups = "fast")
+    public void testStatusClasses() throws Exception
+    {
+        final RequestStatsAggregator stats = new RequestStatsAggregator(true, 2, 100);
+        final TrackerFilter filter = newFilter(new RecordingTracker(), stats);
+
+        // Implicit 200
+        filter.doFilter(new StubRequest().proxy, response(), writeBody(0, 0));
+        filter.doFilter(new StubRequest().proxy, response(), new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                ((HttpServletResponse) response).sendError(500);
+            }
+        });
+
+        final Map<String, Long> statuses = new HashMap<String, Long>();
+        statuses.put("2xx", 1L);
+        statuses.put("5xx", 1L);
+        Assert.assertEquals(stats.getStats(1).get(RequestStatsAggregator.ALL_ROUTES).get("status"), statuses);
+        Assert.assertEquals(stats.getStats(1).get("/1.0/users").get("status"), statuses);
+    }
+
+    /**
+     * @return chain writing a 3 bytes body after firstByteDelay ms, and completing after another completionDelay ms
+     */
+    private static FilterChain writeBody(final long firstByteDelay, final long completionDelay)
+    {
+        return new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                try {
+                    Thread.sleep(firstByteDelay);
+                    response.getOutputStream().write(new byte[]{1, 2, 3});
+                    Thread.sleep(completionDelay);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static TrackerFilter newFilter(final Tracker tracker, final RequestStatsAggregator stats)
+    {
+        final TrackerConfig config = new ConfigurationObjectFactory(new Properties()).build(TrackerConfig.class);
+        return new TrackerFilter(config, tracker, new RequestSampler(config), stats);
+    }
+
+    // RequestLog only exposes its fields to the serializer
+    private static Object field(final RequestLog event, final String name) throws Exception
+    {
+        final Field field = RequestLog.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(event);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.sampling;
+
+import com.ning.jetty.eventtracker.config.TrackerConfig;
+
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class TestRequestSampler
+{
+    private static final class ManualClockSampler extends RequestSampler
+    {
+        private long now = 1000000;
+
+        private ManualClockSampler(final int maxEventsPerSecond)
+        {
+            this(1.0, maxEventsPerSecond);
+        }
+
+        private ManualClockSampler(final double defaultRate, final int maxEventsPerSecond)
+        {
+            super(true, defaultRate, new HashMap<String, Double>(), true, 0, maxEventsPerSecond);
+        }
+
+        @Override
+        protected long currentTimeMillis()
+        {
+            return now;
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() throws Exception
+    {
+        final RequestSampler sampler = new RequestSampler(false, 0.0, new HashMap<String, Double>(), false, 0, 1);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(sampler.sample("/", 200, 1), 1.0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConfig() throws Exception
+    {
+        final Properties properties = new Properties();
+        properties.put("com.ning.jetty.eventtracker.sampling.enabled", "true");
+        properties.put("com.ning.jetty.eventtracker.sampling.rate", "0");
+        properties.put("com.ning.jetty.eventtracker.sampling.pathRates", "/1.0/kept=1.0");
+        final TrackerConfig config = new ConfigurationObjectFactory(properties).build(TrackerConfig.class);
+
+        final RequestSampler sampler = new RequestSampler(config);
+        Assert.assertEquals(sampler.sample("/1.0/kept/42", 200, 1), 1.0);
+        Assert.assertEquals(sampler.sample("/1.0/other", 200, 1), 0.0);
+        Assert.assertEquals(sampler.sample("/1.0/other", 404, 1), 0.0);
+        // Errors and slow requests are always kept
+        Assert.assertEquals(sampler.sample("/1.0/other", 503, 1), 1.0);
+        Assert.assertEquals(sampler.sample("/1.0/other", 200, 1000), 1.0);
+        Assert.assertEquals(sampler.getEventsForced(), 2);
+        Assert.assertEquals(sampler.getEventsDropped(), 2);
+        Assert.assertEquals(sampler.getEventsSampled(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testLongestPrefixWins() throws Exception
+    {
+        final Map<String, Double> rates = RequestSampler.parsePathRates("/1.0=0.5, /1.0/static=0.1,/healthcheck=0");
+        final RequestSampler sampler = new RequestSampler(true, 1.0, rates, true, 0, 0);
+
+        Assert.assertEquals(sampler.getPathRate("/1.0/static/logo.png"), 0.1);
+        Assert.assertEquals(sampler.getPathRate("/1.0/users"), 0.5);
+        Assert.assertEquals(sampler.getPathRate("/healthcheck"), 0.0);
+        Assert.assertEquals(sampler.getPathRate("/2.0/users"), 1.0);
+        Assert.assertEquals(sampler.getPathRate(null), 1.0);
+    }
+
+    @Test(groups = "fast")
+    public void testFixedRate() throws Exception
+    {
+        final RequestSampler sampler = new RequestSampler(true, 0.25, new HashMap<String, Double>(), true, 0, 0);
+
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            final double rate = sampler.sample("/", 200, 1);
+            if (rate > 0) {
+                Assert.assertEquals(rate, 0.25);
+                sampled++;
+            }
+        }
+        Assert.assertTrue(sampled > 2000 && sampled < 3000, "sampled: " + sampled);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRate() throws Exception
+    {
+        RequestSampler.parsePathRates("/foo");
+    }
+
+    @Test(groups = "fast")
+    public void testAdaptiveCap() throws Exception
+    {
+        final ManualClockSampler sampler = new ManualClockSampler(100);
+
+        // First second: no history, the factor drops once the limit is reached
+        int sampled = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sampler.sample("/", 200, 1) > 0) {
+                sampled++;
+            }
+        }
+        Assert.assertTrue(sampled >= 100 && sampled < 110, "sampled: " + sampled);
+        Assert.assertTrue(sampler.getAdaptiveFactor() < 0.01, "factor: " + sampler.getAdaptiveFactor());
+
+        // Steady load of 1000 requests/second: the rate converges to ~0.1
+        sampler.now += 1000;
+        for (int second = 0; second < 10; second++) {
+            for (int i = 0; i < 1000; i++) {
+                sampler.sample("/", 200, 1);
+                sampler.now++;
+            }
+        }
+        Assert.assertTrue(sampler.getAdaptiveFactor() > 0.09 && sampler.getAdaptiveFactor() < 0.11, "factor: " + sampler.getAdaptiveFactor());
+
+        double lastRate = 0;
+        sampled = 0;
+        for (int i = 0; i < 1000; i++) {
+            final double rate = sampler.sample("/", 200, 1);
+            if (rate > 0) {
+                lastRate = rate;
+                sampled++;
+            }
+            sampler.now++;
+        }
+        Assert.assertEquals(lastRate, sampler.getAdaptiveFactor(), 0.01);
+        Assert.assertTrue(sampled <= 150, "sampled: " + sampled);
+        // Errors are never dropped
+        Assert.assertEquals(sampler.sample("/", 500, 1), 1.0);
+
+        // Load goes away: back to full sampling
+        sampler.now += 60000;
+        Assert.assertEquals(sampler.sample("/", 200, 1), 1.0);
+        Assert.assertEquals(sampler.getAdaptiveFactor(), 1.0);
+    }
+
+    @Test(groups = "fast")
+    public void testAdaptiveCapWithPathRates() throws Exception
+    {
+        // 1000 requests/second sampled at 0.1: 100 expected events/second, right under the limit
+        final ManualClockSampler sampler = new ManualClockSampler(0.1, 120);
+        for (int second = 0; second < 10; second++) {
+            for (int i = 0; i < 1000; i++) {
+                sampler.sample("/", 200, 1);
+                sampler.now++;
+            }
+        }
+        Assert.assertEquals(sampler.getAdaptiveFactor(), 1.0);
+
+        // 2000 requests/second: 200 expected events/second, sample 60% of them
+        for (int second = 0; second < 10; second++) {
+            for (int i = 0; i < 2000; i++) {
+                sampler.sample("/", 200, 1);
+                if (i % 2 == 1) {
+                    sampler.now++;
+                }
+            }
+        }
+        Assert.assertTrue(sampler.getAdaptiveFactor() > 0.58 && sampler.getAdaptiveFactor() < 0.62, "factor: " + sampler.getAdaptiveFactor());
+    }
+
+    @Test(groups = "fast")
+    public void testBurstIsSampledAtRandom() throws Exception
+    {
+        final ManualClockSampler sampler = new ManualClockSampler(100);
+        sampler.sample("/", 200, 1);
+
+        // 1000 requests spread over a second, without any history: the whole second is represented
+        sampler.now += 1000;
+        int sampledInSecondHalf = 0;
+        double estimatedCount = 0;
+        for (int i = 0; i < 1000; i++) {
+            final double rate = sampler.sample("/", 200, 1);
+            if (rate > 0) {
+                estimatedCount += 1 / rate;
+                if (i >= 500) {
+                    sampledInSecondHalf++;
+                }
+            }
+            sampler.now++;
+        }
+        Assert.assertTrue(sampledInSecondHalf > 20, "sampled: " + sampledInSecondHalf);
+        // Scaling back up by 1/rate gives the actual count
+        Assert.assertTrue(estimatedCount > 700 && estimatedCount < 1300, "estimated: " + estimatedCount);
+    }
+}
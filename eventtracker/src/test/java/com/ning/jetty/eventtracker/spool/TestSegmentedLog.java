@@ -0,0 +1,235 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.spool;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class TestSegmentedLog
+{
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File directory;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile("spool", "test");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdirs());
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testAppendAndRead() throws Exception
+    {
+        final SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        Assert.assertTrue(log.isEmpty());
+        Assert.assertNull(log.next());
+
+        // ~10 records per segment
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(log.append(record(i)));
+        }
+        Assert.assertTrue(log.getNbSegments() >= 5);
+        Assert.assertFalse(log.isEmpty());
+
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(new String(log.next()), new String(record(i)));
+        }
+        Assert.assertNull(log.next());
+        Assert.assertTrue(log.isEmpty());
+
+        // Not checkpointed yet
+        log.rewind();
+        Assert.assertEquals(new String(log.next()), new String(record(0)));
+
+        while (log.next() != null) {
+        }
+        log.checkpoint();
+        Assert.assertEquals(log.getNbSegments(), 1);
+        Assert.assertEquals(log.getPendingBytes(), 0);
+        Assert.assertEquals(directory.list().length, 2);
+
+        // Too big for a segment
+        Assert.assertFalse(log.append(new byte[SEGMENT_SIZE]));
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedDiskUsage() throws Exception
+    {
+        final SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE, 3 * SEGMENT_SIZE);
+
+        int appended = 0;
+        while (log.append(record(appended))) {
+            appended++;
+        }
+        Assert.assertEquals(log.getNbSegments(), 3);
+        Assert.assertTrue(appended > 20 && appended < 40, "appended: " + appended);
+
+        // Consuming frees up space
+        for (int i = 0; i < 15; i++) {
+            Assert.assertNotNull(log.next());
+        }
+        log.checkpoint();
+        Assert.assertTrue(log.append(record(appended)));
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRecovery() throws Exception
+    {
+        SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        for (int i = 0; i < 25; i++) {
+            Assert.assertTrue(log.append(record(i)));
+        }
+        for (int i = 0; i < 12; i++) {
+            Assert.assertEquals(new String(log.next()), new String(record(i)));
+        }
+        log.checkpoint();
+        // Read, but not checkpointed
+        log.next();
+        log.close();
+
+        log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        // Appends go after the recovered records
+        Assert.assertTrue(log.append(record(25)));
+        for (int i = 12; i < 26; i++) {
+            Assert.assertEquals(new String(log.next()), new String(record(i)));
+        }
+        Assert.assertNull(log.next());
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testTornWrite() throws Exception
+    {
+        SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(log.append(record(i)));
+        }
+        log.close();
+
+        // Corrupt the payload of the last record
+        corrupt(new File(directory, "segment-00000000000000000000.log"), 2 * (8 + record(0).length) + 10);
+
+        log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        Assert.assertTrue(log.append(record(3)));
+        Assert.assertEquals(new String(log.next()), new String(record(0)));
+        Assert.assertEquals(new String(log.next()), new String(record(1)));
+        Assert.assertEquals(new String(log.next()), new String(record(3)));
+        Assert.assertNull(log.next());
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testCorruptedSealedSegment() throws Exception
+    {
+        SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        for (int i = 0; i < 15; i++) {
+            Assert.assertTrue(log.append(record(i)));
+        }
+        Assert.assertEquals(log.getNbSegments(), 2);
+        log.close();
+
+        corrupt(new File(directory, "segment-00000000000000000000.log"), 8 + record(0).length + 10);
+
+        log = new SegmentedLog(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+        Assert.assertEquals(new String(log.next()), new String(record(0)));
+        // The rest of the first segment is skipped
+        final String next = new String(log.next());
+        Assert.assertTrue(next.startsWith("record-0000000010") || next.startsWith("record-0000000011"), next);
+        Assert.assertEquals(log.getCorruptedRecords(), 1);
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testAppendDuringCheckpoints() throws Exception
+    {
+        final SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE, 1000 * SEGMENT_SIZE);
+        final int nbRecords = 2000;
+        final Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    for (int i = 0; i < nbRecords; i++) {
+                        Assert.assertTrue(log.append(record(i)));
+                    }
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        int read = 0;
+        while (read < nbRecords) {
+            final byte[] record = log.next();
+            if (record == null) {
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(new String(record), new String(record(read)));
+            read++;
+            if (read % 100 == 0) {
+                log.checkpoint();
+            }
+        }
+        writer.join();
+
+        log.checkpoint();
+        Assert.assertTrue(log.isEmpty());
+        Assert.assertEquals(log.getPendingBytes(), 0);
+        Assert.assertEquals(log.getNbSegments(), 1);
+        log.close();
+    }
+
+    private void corrupt(final File file, final int offset) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.write('X');
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private byte[] record(final int i)
+    {
+        return String.format("record-%010d-padding-padding-padding-padding-padding-padding-padding-padding", i).getBytes();
+    }
+}
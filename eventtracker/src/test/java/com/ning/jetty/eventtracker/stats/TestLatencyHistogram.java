@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.stats;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLatencyHistogram
+{
+    @Test(groups = "fast")
+    public void testBuckets() throws Exception
+    {
+        int previousIndex = -1;
+        for (long value = 0; value < LatencyHistogram.MAX_TRACKABLE_VALUE; value++) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            Assert.assertTrue(index == previousIndex || index == previousIndex + 1);
+            Assert.assertTrue(LatencyHistogram.bucketUpperBound(index) >= value);
+            // Relative error bound
+            Assert.assertTrue(LatencyHistogram.bucketUpperBound(index) - value <= value / 8.0, "value: " + value);
+            previousIndex = index;
+        }
+        Assert.assertEquals(previousIndex, LatencyHistogram.NB_BUCKETS - 1);
+        Assert.assertEquals(LatencyHistogram.bucketIndex(-1), 0);
+        Assert.assertEquals(LatencyHistogram.bucketIndex(Long.MAX_VALUE), LatencyHistogram.NB_BUCKETS - 1);
+    }
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        final long[] accumulator = LatencyHistogram.newAccumulator();
+        Assert.assertEquals(LatencyHistogram.getValueAtPercentile(accumulator, 99), 0);
+        histogram.addTo(accumulator);
+
+        assertWithinError(LatencyHistogram.getValueAtPercentile(accumulator, 50), 500);
+        assertWithinError(LatencyHistogram.getValueAtPercentile(accumulator, 99), 990);
+        assertWithinError(LatencyHistogram.getValueAtPercentile(accumulator, 100), 1000);
+        Assert.assertEquals(LatencyHistogram.getValueAtPercentile(accumulator, 0), 1);
+    }
+
+    private void assertWithinError(final long actual, final long expected)
+    {
+        Assert.assertTrue(actual >= expected && actual <= expected * 1.125, "expected ~" + expected + ", got " + actual);
+    }
+}
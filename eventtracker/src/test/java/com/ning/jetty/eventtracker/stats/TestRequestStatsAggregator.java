@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.eventtracker.stats;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+public class TestRequestStatsAggregator
+{
+    private static final class ManualClockAggregator extends RequestStatsAggregator
+    {
+        private long now = 60000 * 1000;
+
+        private ManualClockAggregator(final int maxRoutes)
+        {
+            super(true, 2, maxRoutes);
+        }
+
+        @Override
+        protected long currentTimeMillis()
+        {
+            return now;
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRoutes() throws Exception
+    {
+        final RequestStatsAggregator aggregator = new RequestStatsAggregator(true, 2, 100);
+        Assert.assertEquals(aggregator.getRoute(null), "/");
+        Assert.assertEquals(aggregator.getRoute("/"), "/");
+        Assert.assertEquals(aggregator.getRoute("/1.0"), "/1.0");
+        Assert.assertEquals(aggregator.getRoute("/1.0/users/1234/friends"), "/1.0/users");
+        Assert.assertEquals(aggregator.getRoute("//1.0//users/"), "/1.0/users");
+        Assert.assertEquals(aggregator.getRoute("/users/1234/friends"), "/users/{id}");
+        Assert.assertEquals(aggregator.getRoute("/users/0a1b2c3d-4e5f-6a7b-8c9d-0e1f2a3b4c5d"), "/users/{id}");
+        Assert.assertEquals(aggregator.getRoute("/users/deadbeef"), "/users/deadbeef");
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() throws Exception
+    {
+        final RequestStatsAggregator aggregator = new RequestStatsAggregator(false, 2, 100);
+        aggregator.record("/1.0/users", 200, 10, 5);
+        Assert.assertEquals(aggregator.getNbRoutes(), 0);
+        Assert.assertEquals(aggregator.getStats(1).get(RequestStatsAggregator.ALL_ROUTES).get("count"), 0L);
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void testWindows() throws Exception
+    {
+        final ManualClockAggregator aggregator = new ManualClockAggregator(100);
+
+        // 10 minutes ago
+        for (int i = 1; i <= 100; i++) {
+            aggregator.record("/1.0/users/" + i, 200, 1000, 10);
+        }
+        aggregator.now += 10 * 60000;
+        for (int i = 1; i <= 100; i++) {
+            aggregator.record("/1.0/users/" + i, i <= 90 ? 200 : 503, i, 1);
+        }
+        aggregator.record("/1.0/static/logo.png", 404, 1, 1);
+
+        final Map<String, Map<String, Object>> oneMinute = aggregator.getStats(1);
+        Assert.assertEquals(oneMinute.keySet().size(), 3);
+        final Map<String, Object> users = oneMinute.get("/1.0/users");
+        Assert.assertEquals(users.get("count"), 100L);
+        Assert.assertEquals(((Map<String, Long>) users.get("status")).get("2xx"), (Long) 90L);
+        Assert.assertEquals(((Map<String, Long>) users.get("status")).get("5xx"), (Long) 10L);
+        Assert.assertEquals(((Map<String, Long>) users.get("responseTime")).get("p50"), (Long) 51L);
+        Assert.assertEquals(((Map<String, Long>) users.get("timeToFirstByte")).get("max"), (Long) 1L);
+        Assert.assertEquals(oneMinute.get(RequestStatsAggregator.ALL_ROUTES).get("count"), 101L);
+        Assert.assertEquals(aggregator.getRequestRate1m(), 101 / 60.0);
+        Assert.assertEquals(aggregator.getErrorRate1m(), 10 / 60.0);
+
+        // The 15 minutes window sees the old requests too
+        final Map<String, Object> users15m = aggregator.getStats(15).get("/1.0/users");
+        Assert.assertEquals(users15m.get("count"), 200L);
+        Assert.assertTrue(((Map<String, Long>) users15m.get("responseTime")).get("p99") >= 1000);
+        Assert.assertEquals(aggregator.getStats(5).get("/1.0/users").get("count"), 100L);
+
+        // Much later, everything expired
+        aggregator.now += 16 * 60000;
+        Assert.assertEquals(aggregator.getStats(15).keySet().size(), 1);
+        Assert.assertEquals(aggregator.getResponseTimeP99_15m(), 0);
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void testNoBody() throws Exception
+    {
+        final ManualClockAggregator aggregator = new ManualClockAggregator(100);
+        aggregator.record("/1.0/users", 200, 100, 50);
+        aggregator.record("/1.0/users", 204, 10, -1);
+        aggregator.record("/1.0/users", 304, 10, -1);
+
+        final Map<String, Object> users = aggregator.getStats(1).get("/1.0/users");
+        Assert.assertEquals(users.get("count"), 3L);
+        Assert.assertTrue(((Map<String, Long>) users.get("timeToFirstByte")).get("p50") >= 50L);
+        Assert.assertTrue(((Map<String, Long>) users.get("responseTime")).get("p50") < 50L);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxRoutes() throws Exception
+    {
+        final ManualClockAggregator aggregator = new ManualClockAggregator(2);
+        aggregator.record("/a", 200, 1, 1);
+        aggregator.record("/b", 200, 1, 1);
+        aggregator.record("/c", 200, 1, 1);
+        aggregator.record("/d", 200, 1, 1);
+
+        final Map<String, Map<String, Object>> stats = aggregator.getStats(1);
+        Assert.assertEquals(stats.get("/a").get("count"), 1L);
+        Assert.assertEquals(stats.get(RequestStatsAggregator.OTHER_ROUTE).get("count"), 2L);
+        Assert.assertNull(stats.get("/c"));
+    }
+}
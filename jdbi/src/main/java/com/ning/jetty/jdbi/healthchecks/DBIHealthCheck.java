@@ -25,17 +25,42 @@ import org.weakref.jmx.Managed;
 
 public class DBIHealthCheck extends HealthCheck
 {
+    // Same as the default maximum staleness of the HealthCheckRunner results
+    private static final long DEFAULT_MAX_RESULT_AGE_MILLIS = 30000;
+
     private DBI dbi;
+    private final long maxResultAgeMillis;
+    // Last result, for JMX not to hit the database when the checks run in the background
+    private volatile Result lastResult = null;
+    private volatile long lastResultMillis = 0;
 
     @Inject
     public DBIHealthCheck(final DBI dbi)
+    {
+        this(dbi, DEFAULT_MAX_RESULT_AGE_MILLIS);
+    }
+
+    /**
+     * @param dbi                database to check
+     * @param maxResultAgeMillis age after which isHealthy() checks the database again instead of using the last result
+     */
+    public DBIHealthCheck(final DBI dbi, final long maxResultAgeMillis)
     {
         super("DBIHealthCheck");
         this.dbi = dbi;
+        this.maxResultAgeMillis = maxResultAgeMillis;
     }
 
     @Override
     public Result check()
+    {
+        final Result result = doCheck();
+        lastResultMillis = System.currentTimeMillis();
+        lastResult = result;
+        return result;
+    }
+
+    private Result doCheck()
     {
         Handle handle = null;
         try {
@@ -60,6 +85,13 @@ public class DBIHealthCheck extends HealthCheck
     @Managed
     public boolean isHealthy()
     {
-        return check().isHealthy();
+        final Result result = lastResult;
+        if (result == null || System.currentTimeMillis() - lastResultMillis > maxResultAgeMillis) {
+            // Nothing (e.g. the HealthCheckRunner) checked recently
+            return check().isHealthy();
+        }
+        else {
+            return result.isHealthy();
+        }
     }
 }
\ No newline at end of file
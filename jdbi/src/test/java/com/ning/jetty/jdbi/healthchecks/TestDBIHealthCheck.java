@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.jdbi.healthchecks;
+
+import org.skife.jdbi.v2.DBI;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestDBIHealthCheck
+{
+    @Test(groups = "fast")
+    public void testCachedResultExpires() throws Exception
+    {
+        final AtomicInteger connections = new AtomicInteger(0);
+        final DBI dbi = new DBI(unavailableDataSource(connections));
+
+        // Fresh results are reused
+        final DBIHealthCheck cached = new DBIHealthCheck(dbi, 60000);
+        Assert.assertFalse(cached.execute().isHealthy());
+        Assert.assertEquals(connections.get(), 1);
+        Assert.assertFalse(cached.isHealthy());
+        Assert.assertEquals(connections.get(), 1);
+
+        // Stale ones aren't
+        final DBIHealthCheck expired = new DBIHealthCheck(dbi, 0);
+        Assert.assertFalse(expired.execute().isHealthy());
+        Thread.sleep(5);
+        Assert.assertFalse(expired.isHealthy());
+        Assert.assertEquals(connections.get(), 3);
+    }
+
+    private static DataSource unavailableDataSource(final AtomicInteger connections)
+    {
+        return (DataSource) Proxy.newProxyInstance(TestDBIHealthCheck.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("getConnection".equals(method.getName())) {
+                    connections.incrementAndGet();
+                    throw new SQLException("Database down");
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appender wrapper which hands events to a background thread, which calls the attached appenders.
+ * <p/>
+ * Logging threads claim a slot in a pre-allocated ring buffer (BufferSize events) without taking any lock, unlike
+ * log4j's AsyncAppender. When the ring is full, the Policy decides:
+ * <ul>
+ * <li>Block: wait for the background thread to catch up</li>
+ * <li>DropBelowWarn: drop TRACE, DEBUG and INFO events, wait for WARN and above</li>
+ * <li>Discard: drop the event</li>
+ * </ul>
+ * To use it, e.g. in log4j.xml:
+ * <pre>
+ * &lt;appender name="ASYNC" class="com.ning.jetty.log4j.AsyncRingBufferAppender"&gt;
+ *     &lt;param name="BufferSize" value="8192"/&gt;
+ *     &lt;param name="Policy" value="DropBelowWarn"/&gt;
+ *     &lt;appender-ref ref="FILE"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class AsyncRingBufferAppender extends AppenderSkeleton implements AppenderAttachable
+{
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // Across all instances, see Log4JMBean
+    private static final List<AsyncRingBufferAppender> activeAppenders = new CopyOnWriteArrayList<AsyncRingBufferAppender>();
+    private static final AtomicLong droppedCount = new AtomicLong(0);
+    private static final AtomicLong blockedCount = new AtomicLong(0);
+
+    public enum Policy
+    {
+        BLOCK,
+        DROP_BELOW_WARN,
+        DISCARD
+    }
+
+    private final AppenderAttachableImpl appenders = new AppenderAttachableImpl();
+
+    private int bufferSize = 8192;
+    private Policy policy = Policy.DROP_BELOW_WARN;
+    private boolean locationInfo = false;
+    private long shutdownTimeoutMillis = 5000L;
+
+    private volatile Slot[] slots = null;
+    private int mask;
+    // Next sequence to claim (logging threads)
+    private final AtomicLong claimed = new AtomicLong(0);
+    // Next sequence to dispatch (dispatcher thread only)
+    private volatile long consumed = 0;
+
+    private volatile boolean running = false;
+    private Thread dispatcherThread;
+
+    private static final class Slot
+    {
+        private volatile long sequence = -1;
+        private LoggingEvent event;
+    }
+
+    public static long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    public static long getBlockedCount()
+    {
+        return blockedCount.get();
+    }
+
+    public static void resetCounts()
+    {
+        droppedCount.set(0L);
+        blockedCount.set(0L);
+    }
+
+    /**
+     * @return number of events waiting to be dispatched, across all instances
+     */
+    public static long getTotalQueueDepth()
+    {
+        long depth = 0;
+        for (final AsyncRingBufferAppender appender : activeAppenders) {
+            depth += appender.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public long getQueueDepth()
+    {
+        return Math.max(0L, claimed.get() - consumed);
+    }
+
+    @Override
+    public synchronized void activateOptions()
+    {
+        if (slots != null) {
+            return;
+        }
+
+        final int capacity = bufferSize <= 1 ? 1 : Integer.highestOneBit(bufferSize - 1) << 1;
+        final Slot[] ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        mask = capacity - 1;
+        slots = ring;
+
+        running = true;
+        dispatcherThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatchLoop();
+            }
+        }, "log4j-async-dispatcher-" + getName());
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+
+        activeAppenders.add(this);
+    }
+
+    /**
+     * Same as AppenderSkeleton.doAppend, without the lock: the ring buffer is safe for concurrent producers.
+     */
+    @Override
+    public void doAppend(final LoggingEvent event)
+    {
+        if (closed || !isAsSevereAsThreshold(event.getLevel())) {
+            return;
+        }
+
+        Filter filter = getFirstFilter();
+        while (filter != null) {
+            switch (filter.decide(event)) {
+                case Filter.DENY:
+                    return;
+                case Filter.ACCEPT:
+                    filter = null;
+                    break;
+                default:
+                    filter = filter.getNext();
+            }
+        }
+
+        append(event);
+    }
+
+    @Override
+    protected void append(final LoggingEvent event)
+    {
+        if (slots == null) {
+            // Not configured via log4j.properties or log4j.xml
+            activateOptions();
+        }
+
+        // Capture the logging thread state before handing the event over
+        event.getNDC();
+        event.getThreadName();
+        event.getMDCCopy();
+        event.getRenderedMessage();
+        event.getThrowableStrRep();
+        if (locationInfo) {
+            event.getLocationInformation();
+        }
+
+        publish(event);
+    }
+
+    private void publish(final LoggingEvent event)
+    {
+        final Slot[] ring = slots;
+
+        boolean blocked = false;
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                if (!running || policy == Policy.DISCARD || (policy == Policy.DROP_BELOW_WARN && !event.getLevel().isGreaterOrEqual(Level.WARN))) {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+
+                if (!blocked) {
+                    blocked = true;
+                    blockedCount.incrementAndGet();
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+            else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        final Slot slot = ring[(int) (sequence & mask)];
+        slot.event = event;
+        slot.sequence = sequence;
+    }
+
+    private void dispatchLoop()
+    {
+        final Slot[] ring = slots;
+        while (true) {
+            final long sequence = consumed;
+            final Slot slot = ring[(int) (sequence & mask)];
+            if (slot.sequence == sequence) {
+                final LoggingEvent event = slot.event;
+                slot.event = null;
+                consumed = sequence + 1;
+                dispatch(event);
+            }
+            else if (!running && sequence == claimed.get()) {
+                break;
+            }
+            else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void dispatch(final LoggingEvent event)
+    {
+        try {
+            synchronized (appenders) {
+                appenders.appendLoopOnAppenders(event);
+            }
+        }
+        catch (RuntimeException e) {
+            LogLog.error("Unable to dispatch log event", e);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        final Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = false;
+            thread = dispatcherThread;
+            dispatcherThread = null;
+        }
+
+        // Let the dispatcher drain the ring
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(shutdownTimeoutMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                LogLog.warn(String.format("%d log events not dispatched after %d ms", getQueueDepth(), shutdownTimeoutMillis));
+            }
+        }
+        activeAppenders.remove(this);
+
+        synchronized (appenders) {
+            final Enumeration attached = appenders.getAllAppenders();
+            while (attached != null && attached.hasMoreElements()) {
+                ((Appender) attached.nextElement()).close();
+            }
+        }
+    }
+
+    @Override
+    public boolean requiresLayout()
+    {
+        return false;
+    }
+
+    public void setBufferSize(final int bufferSize)
+    {
+        this.bufferSize = Math.max(1, bufferSize);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @param policy Block, DropBelowWarn or Discard
+     */
+    public void setPolicy(final String policy)
+    {
+        final String name = policy.trim().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+        try {
+            this.policy = Policy.valueOf(name);
+        }
+        catch (IllegalArgumentException e) {
+            LogLog.error(String.format("Invalid policy %s, expected Block, DropBelowWarn or Discard", policy));
+        }
+    }
+
+    public String getPolicy()
+    {
+        return policy.name();
+    }
+
+    public void setLocationInfo(final boolean locationInfo)
+    {
+        this.locationInfo = locationInfo;
+    }
+
+    public boolean getLocationInfo()
+    {
+        return locationInfo;
+    }
+
+    public void setShutdownTimeoutMillis(final long shutdownTimeoutMillis)
+    {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    public long getShutdownTimeoutMillis()
+    {
+        return shutdownTimeoutMillis;
+    }
+
+    public void addAppender(final Appender newAppender)
+    {
+        synchronized (appenders) {
+            appenders.addAppender(newAppender);
+        }
+    }
+
+    public Enumeration getAllAppenders()
+    {
+        synchronized (appenders) {
+            return appenders.getAllAppenders();
+        }
+    }
+
+    public Appender getAppender(final String name)
+    {
+        synchronized (appenders) {
+            return appenders.getAppender(name);
+        }
+    }
+
+    public boolean isAttached(final Appender appender)
+    {
+        synchronized (appenders) {
+            return appenders.isAttached(appender);
+        }
+    }
+
+    public void removeAllAppenders()
+    {
+        synchronized (appenders) {
+            appenders.removeAllAppenders();
+        }
+    }
+
+    public void removeAppender(final Appender appender)
+    {
+        synchronized (appenders) {
+            appenders.removeAppender(appender);
+        }
+    }
+
+    public void removeAppender(final String name)
+    {
+        synchronized (appenders) {
+            appenders.removeAppender(name);
+        }
+    }
+}
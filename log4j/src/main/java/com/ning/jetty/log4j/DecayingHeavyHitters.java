@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate top-K of a stream of keys, with exponentially decaying per-second rates.
+ * <p/>
+ * This is the Space-Saving algorithm (Metwally et al.) over decayed counts: at most capacity keys are tracked, an
+ * untracked key replaces the one with the smallest count and inherits it as its error. Memory is bounded by capacity
+ * whatever the number of distinct keys. Counts use forward decay: an event at time t weighs exp((t - landmark) / tau),
+ * so that all counts decay at the same pace and their order doesn't change between updates.
+ * <p/>
+ * The rate is the decayed count divided by tau: for events at a steady rate r, it converges to r.
+ * <p/>
+ * Updates take a lock, and evicting a key scans the whole sketch (O(capacity)). Not to serialize all logging threads
+ * during an error storm, threads are spread over independent sketches (stripes, each with its own lock), merged on
+ * read: a key missing from a full stripe may have been seen there up to that stripe's smallest count, which is added
+ * to its rate and error. Memory is bounded by capacity times the number of stripes.
+ */
+public class DecayingHeavyHitters
+{
+    // Rescale the counts before exp() gets too large
+    private static final double MAX_LANDMARK_AGE_IN_TAUS = 16.0;
+    private static final int MAX_STRIPES = 8;
+
+    private final int capacity;
+    private final Sketch[] stripes;
+
+    public static final class Rate
+    {
+        private final String key;
+        private final double rate;
+        private final double error;
+
+        Rate(final String key, final double rate, final double error)
+        {
+            this.key = key;
+            this.rate = rate;
+            this.error = error;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return events per second, possibly overestimated by up to getError()
+         */
+        public double getRate()
+        {
+            return rate;
+        }
+
+        public double getError()
+        {
+            return error;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %.3f/s (+/- %.3f)", key, rate, error);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final String key;
+        private double count;
+        private double error;
+
+        private Entry(final String key, final double count, final double error)
+        {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    // One Space-Saving sketch
+    private static final class Sketch
+    {
+        private final int capacity;
+        private final double tauMillis;
+        private final Map<String, Entry> entries;
+
+        private long landmarkMillis;
+        private double total = 0.0;
+
+        private Sketch(final int capacity, final double tauMillis, final long nowMillis)
+        {
+            this.capacity = capacity;
+            this.tauMillis = tauMillis;
+            this.entries = new HashMap<String, Entry>(capacity * 2);
+            this.landmarkMillis = nowMillis;
+        }
+
+        private synchronized void add(final String key, final long nowMillis)
+        {
+            if (nowMillis - landmarkMillis > MAX_LANDMARK_AGE_IN_TAUS * tauMillis) {
+                rescale(nowMillis);
+            }
+
+            final double weight = Math.exp((nowMillis - landmarkMillis) / tauMillis);
+            total += weight;
+
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.count += weight;
+            }
+            else if (entries.size() < capacity) {
+                entries.put(key, new Entry(key, weight, 0.0));
+            }
+            else {
+                // Evict the smallest count, the newcomer may have been seen up to that many times
+                final Entry min = getMin();
+                entries.remove(min.key);
+                entries.put(key, new Entry(key, min.count + weight, min.count));
+            }
+        }
+
+        // Rates of the tracked keys, plus the rate any untracked key may have (under "null")
+        private synchronized Map<String, double[]> getRates(final long nowMillis)
+        {
+            final double scale = decayedScale(nowMillis);
+
+            final Map<String, double[]> rates = new HashMap<String, double[]>(entries.size() * 2);
+            for (final Entry entry : entries.values()) {
+                rates.put(entry.key, new double[]{entry.count * scale, entry.error * scale});
+            }
+            final double untracked = entries.size() < capacity ? 0.0 : getMin().count * scale;
+            rates.put(null, new double[]{untracked, untracked});
+
+            return rates;
+        }
+
+        private synchronized double getTotalRate(final long nowMillis)
+        {
+            return total * decayedScale(nowMillis);
+        }
+
+        private synchronized void reset()
+        {
+            entries.clear();
+            total = 0.0;
+        }
+
+        private Entry getMin()
+        {
+            Entry min = null;
+            for (final Entry candidate : entries.values()) {
+                if (min == null || candidate.count < min.count) {
+                    min = candidate;
+                }
+            }
+            return min;
+        }
+
+        // Turns a forward decayed count into a per-second rate at nowMillis
+        private double decayedScale(final long nowMillis)
+        {
+            return Math.exp(-(nowMillis - landmarkMillis) / tauMillis) * 1000.0 / tauMillis;
+        }
+
+        private void rescale(final long nowMillis)
+        {
+            final double factor = Math.exp(-(nowMillis - landmarkMillis) / tauMillis);
+            for (final Entry entry : entries.values()) {
+                entry.count *= factor;
+                entry.error *= factor;
+            }
+            total *= factor;
+            landmarkMillis = nowMillis;
+        }
+    }
+
+    /**
+     * @param capacity  number of keys tracked
+     * @param tauMillis decay time constant, e.g. 60000 for rates over about a minute
+     */
+    public DecayingHeavyHitters(final int capacity, final long tauMillis)
+    {
+        this(capacity, tauMillis, Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()), System.currentTimeMillis());
+    }
+
+    DecayingHeavyHitters(final int capacity, final long tauMillis, final int nbStripes, final long nowMillis)
+    {
+        if (capacity <= 0 || tauMillis <= 0 || nbStripes <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid capacity (%d), tau (%d ms) or number of stripes (%d)", capacity, tauMillis, nbStripes));
+        }
+
+        this.capacity = capacity;
+        this.stripes = new Sketch[nbStripes];
+        for (int i = 0; i < nbStripes; i++) {
+            stripes[i] = new Sketch(capacity, tauMillis, nowMillis);
+        }
+    }
+
+    public void add(final String key)
+    {
+        add(key, System.currentTimeMillis());
+    }
+
+    void add(final String key, final long nowMillis)
+    {
+        // Threads stick to a stripe
+        final long id = Thread.currentThread().getId();
+        stripes[(int) ((id ^ (id >>> 16)) % stripes.length)].add(key, nowMillis);
+    }
+
+    /**
+     * @return the tracked keys (at most capacity), highest rate first
+     */
+    public List<Rate> getTop()
+    {
+        return getTop(System.currentTimeMillis());
+    }
+
+    List<Rate> getTop(final long nowMillis)
+    {
+        final List<Map<String, double[]>> stripeRates = new ArrayList<Map<String, double[]>>(stripes.length);
+        for (final Sketch stripe : stripes) {
+            stripeRates.add(stripe.getRates(nowMillis));
+        }
+
+        final Map<String, double[]> merged = new HashMap<String, double[]>();
+        for (final Map<String, double[]> rates : stripeRates) {
+            for (final String key : rates.keySet()) {
+                if (key != null && !merged.containsKey(key)) {
+                    merged.put(key, new double[2]);
+                }
+            }
+        }
+        for (final Map.Entry<String, double[]> entry : merged.entrySet()) {
+            for (final Map<String, double[]> rates : stripeRates) {
+                final double[] rate = rates.containsKey(entry.getKey()) ? rates.get(entry.getKey()) : rates.get(null);
+                entry.getValue()[0] += rate[0];
+                entry.getValue()[1] += rate[1];
+            }
+        }
+
+        final List<Rate> top = new ArrayList<Rate>(merged.size());
+        for (final Map.Entry<String, double[]> entry : merged.entrySet()) {
+            top.add(new Rate(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+        }
+
+        Collections.sort(top, new Comparator<Rate>()
+        {
+            @Override
+            public int compare(final Rate o1, final Rate o2)
+            {
+                return Double.compare(o2.rate, o1.rate);
+            }
+        });
+
+        return top.size() > capacity ? new ArrayList<Rate>(top.subList(0, capacity)) : top;
+    }
+
+    /**
+     * @return the rate of all events (tracked or not), in events per second
+     */
+    public double getTotalRate()
+    {
+        return getTotalRate(System.currentTimeMillis());
+    }
+
+    double getTotalRate(final long nowMillis)
+    {
+        double total = 0.0;
+        for (final Sketch stripe : stripes) {
+            total += stripe.getTotalRate(nowMillis);
+        }
+        return total;
+    }
+
+    public void reset()
+    {
+        for (final Sketch stripe : stripes) {
+            stripe.reset();
+        }
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getNbStripes()
+    {
+        return stripes.length;
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.ning.jetty.log4j.LogLevelCounter.LevelIndex;
@@ -132,10 +133,113 @@ public class Log4JMBean
         return levelMessages;
     }
 
+    @Managed(description = "Get the top WARN and above log event rates per logger (events per second)")
+    public String[] getTopLoggerRates()
+    {
+        return toStrings(counter.getTopLoggerRates());
+    }
+
+    @Managed(description = "Get the top WARN and above log event rates per throwable class (events per second)")
+    public String[] getTopThrowableRates()
+    {
+        return toStrings(counter.getTopThrowableRates());
+    }
+
+    @Managed(description = "Get the rate of WARN and above log events (events per second)")
+    public double getWarnAndAboveRate()
+    {
+        return counter.getWarnAndAboveRate();
+    }
+
+    @Managed(description = "Get the rate of the noisiest logger (WARN and above events per second)")
+    public double getTopLoggerRate()
+    {
+        return getTopRate(counter.getTopLoggerRates());
+    }
+
+    @Managed(description = "Get the rate of the most frequent throwable class (WARN and above events per second)")
+    public double getTopThrowableRate()
+    {
+        return getTopRate(counter.getTopThrowableRates());
+    }
+
+    @Managed(description = "Get the number of log events dropped by RateLimitingAppender's")
+    public long getSuppressedLogEventCount()
+    {
+        return RateLimitingAppender.getSuppressedCount();
+    }
+
+    @Managed(description = "Get the number of suppression summaries logged by RateLimitingAppender's")
+    public long getSuppressionSummaryCount()
+    {
+        return RateLimitingAppender.getSummaryCount();
+    }
+
+    @Managed(description = "Get the number of log events waiting in AsyncRingBufferAppender's")
+    public long getAsyncLogQueueDepth()
+    {
+        return AsyncRingBufferAppender.getTotalQueueDepth();
+    }
+
+    @Managed(description = "Get the number of log events dropped by AsyncRingBufferAppender's because their buffer was full")
+    public long getAsyncLogDroppedCount()
+    {
+        return AsyncRingBufferAppender.getDroppedCount();
+    }
+
+    @Managed(description = "Get the number of log events which waited for room in AsyncRingBufferAppender's")
+    public long getAsyncLogBlockedCount()
+    {
+        return AsyncRingBufferAppender.getBlockedCount();
+    }
+
+    @Managed(description = "Get the rate of log events for the specified level over the last 1, 5 or 15 minutes (events per second)")
+    public double getLogLevelRateByLevel(final String levelString, final int minutes)
+    {
+        final LevelIndex lIndex = LevelIndex.getLevelIndexFromLevelString(levelString);
+        if (lIndex == null) {
+            return -1;
+        }
+        else {
+            return counter.getLogLevelRates(TimeUnit.MINUTES.toMillis(minutes))[lIndex.getIndex()];
+        }
+    }
+
+    @Managed(description = "Get the rate of log events per level over the last minute (events per second)")
+    public String[] getLogLevelRates1m()
+    {
+        return getLogLevelRates(1);
+    }
+
+    @Managed(description = "Get the rate of log events per level over the last 5 minutes (events per second)")
+    public String[] getLogLevelRates5m()
+    {
+        return getLogLevelRates(5);
+    }
+
+    @Managed(description = "Get the rate of log events per level over the last 15 minutes (events per second)")
+    public String[] getLogLevelRates15m()
+    {
+        return getLogLevelRates(15);
+    }
+
+    /**
+     * @param windowMillis window, up to 15 minutes
+     * @return rate of ERROR and FATAL log events, in events per second
+     */
+    public double getErrorAndAboveRate(final long windowMillis)
+    {
+        final double[] rates = counter.getLogLevelRates(windowMillis);
+        return rates[LevelIndex.ERROR_INDEX.getIndex()] + rates[LevelIndex.FATAL_INDEX.getIndex()];
+    }
+
     @Managed(description = "Reset all counters")
     public void resetStats()
     {
         counter.resetAllLogLevelCounts();
+        counter.resetRates();
+        RateLimitingAppender.resetCounts();
+        AsyncRingBufferAppender.resetCounts();
         lastResetTimeMillis.set(System.currentTimeMillis());
     }
 
@@ -164,10 +268,48 @@ public class Log4JMBean
         counter.setCountingEnabledByLevel(level, enabled);
     }
 
+    private String[] getLogLevelRates(final int minutes)
+    {
+        final double[] rates = counter.getLogLevelRates(TimeUnit.MINUTES.toMillis(minutes));
+
+        final String[] levelMessages = new String[LevelIndex.getNumLevels()];
+        for (final LevelIndex lIndex : LevelIndex.values()) {
+            levelMessages[lIndex.getIndex()] = String.format("%s: %.3f/s", lIndex.getLevelString(), rates[lIndex.getIndex()]);
+        }
+
+        return levelMessages;
+    }
+
+    private String[] toStrings(final List<DecayingHeavyHitters.Rate> rates)
+    {
+        final String[] messages = new String[rates.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = rates.get(i).toString();
+        }
+
+        return messages;
+    }
+
+    private double getTopRate(final List<DecayingHeavyHitters.Rate> rates)
+    {
+        if (rates.isEmpty()) {
+            return 0.0;
+        }
+        else {
+            return rates.get(0).getRate();
+        }
+    }
+
     /*
      * The following is mostly to expose stats to Arecibo
      */
 
+    @Managed(description = "Get the count of log events for TRACE")
+    public long getLogLevelCountForTrace()
+    {
+        return getLogLevelCountByLevel(LevelIndex.TRACE_INDEX.getLevelString());
+    }
+
     @Managed(description = "Get the count of log events for DEBUG")
     public long getLogLevelCountForDebug()
     {
@@ -191,4 +333,46 @@ public class Log4JMBean
     {
         return getLogLevelCountByLevel(LevelIndex.ERROR_INDEX.getLevelString());
     }
+
+    @Managed(description = "Get the count of log events for FATAL")
+    public long getLogLevelCountForFatal()
+    {
+        return getLogLevelCountByLevel(LevelIndex.FATAL_INDEX.getLevelString());
+    }
+
+    @Managed(description = "Get the rate of log events for WARN over the last minute (events per second)")
+    public double getLogLevelRate1mForWarn()
+    {
+        return getLogLevelRateByLevel(LevelIndex.WARN_INDEX.getLevelString(), 1);
+    }
+
+    @Managed(description = "Get the rate of log events for WARN over the last 5 minutes (events per second)")
+    public double getLogLevelRate5mForWarn()
+    {
+        return getLogLevelRateByLevel(LevelIndex.WARN_INDEX.getLevelString(), 5);
+    }
+
+    @Managed(description = "Get the rate of log events for WARN over the last 15 minutes (events per second)")
+    public double getLogLevelRate15mForWarn()
+    {
+        return getLogLevelRateByLevel(LevelIndex.WARN_INDEX.getLevelString(), 15);
+    }
+
+    @Managed(description = "Get the rate of log events for ERROR over the last minute (events per second)")
+    public double getLogLevelRate1mForError()
+    {
+        return getLogLevelRateByLevel(LevelIndex.ERROR_INDEX.getLevelString(), 1);
+    }
+
+    @Managed(description = "Get the rate of log events for ERROR over the last 5 minutes (events per second)")
+    public double getLogLevelRate5mForError()
+    {
+        return getLogLevelRateByLevel(LevelIndex.ERROR_INDEX.getLevelString(), 5);
+    }
+
+    @Managed(description = "Get the rate of log events for ERROR over the last 15 minutes (events per second)")
+    public double getLogLevelRate15mForError()
+    {
+        return getLogLevelRateByLevel(LevelIndex.ERROR_INDEX.getLevelString(), 15);
+    }
 }
@@ -17,21 +17,43 @@
 package com.ning.jetty.log4j;
 
 import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
 import org.weakref.jmx.Managed;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
 
+/**
+ * Count log events per level. Counts are striped (see StripedCounters) as every logging thread goes through here.
+ * <p/>
+ * Rolling rates per level are derived from the counts, see RollingRates. WARN and above events are also tracked by
+ * logger name and throwable class, see DecayingHeavyHitters.
+ */
 public class LogLevelCounter
 {
+    private static final int TOP_K = 32;
+    private static final long RATE_TAU_MILLIS = 60000L;
+    private static final long RATE_BUCKET_MILLIS = 1000L;
+    private static final long RATE_MAX_WINDOW_MILLIS = 15 * 60 * 1000L;
+
     private final boolean[] levelCountsEnabled;
-    private final AtomicLong[] levelCounts;
+    private final StripedCounters levelCounts;
+    private final RollingRates levelRates;
+    private final DecayingHeavyHitters loggerRates = new DecayingHeavyHitters(TOP_K, RATE_TAU_MILLIS);
+    private final DecayingHeavyHitters throwableRates = new DecayingHeavyHitters(TOP_K, RATE_TAU_MILLIS);
 
     public enum LevelIndex
     {
         DEBUG_INDEX(0, Level.DEBUG, "DEBUG"),
         INFO_INDEX(1, Level.INFO, "INFO"),
         WARN_INDEX(2, Level.WARN, "WARN"),
-        ERROR_INDEX(3, Level.ERROR, "ERROR");
+        ERROR_INDEX(3, Level.ERROR, "ERROR"),
+        // Appended so the existing slots of getLogLevelCounts() keep their positions
+        TRACE_INDEX(4, Level.TRACE, "TRACE"),
+        FATAL_INDEX(5, Level.FATAL, "FATAL");
+
+        // values() returns a fresh copy on each call
+        private static final LevelIndex[] LEVEL_INDEXES = values();
 
         private final int index;
         private final Level level;
@@ -61,18 +83,33 @@ public class LogLevelCounter
 
         public static LevelIndex getLevelIndexFromLevel(final Level level)
         {
-            for (final LevelIndex lIndex : LevelIndex.values()) {
-                if (lIndex.level.equals(level)) {
-                    return lIndex;
-                }
+            if (level == null) {
+                return null;
+            }
+
+            switch (level.toInt()) {
+                case Level.TRACE_INT:
+                    return TRACE_INDEX;
+                case Level.DEBUG_INT:
+                    return DEBUG_INDEX;
+                case Level.INFO_INT:
+                    return INFO_INDEX;
+                case Level.WARN_INT:
+                    return WARN_INDEX;
+                case Level.ERROR_INT:
+                    return ERROR_INDEX;
+                case Level.FATAL_INT:
+                    return FATAL_INDEX;
+                default:
+                    // ALL, OFF or a custom level
+                    return null;
             }
-            return null;
         }
 
         public static LevelIndex getLevelIndexFromLevelString(String levelString)
         {
             levelString = levelString.toUpperCase();
-            for (final LevelIndex lIndex : LevelIndex.values()) {
+            for (final LevelIndex lIndex : LEVEL_INDEXES) {
                 if (lIndex.levelString.equals(levelString)) {
                     return lIndex;
                 }
@@ -88,29 +125,51 @@ public class LogLevelCounter
 
         public static int getNumLevels()
         {
-            return values().length;
+            return LEVEL_INDEXES.length;
         }
     }
 
     public LogLevelCounter()
     {
-        levelCountsEnabled = new boolean[LevelIndex.values().length];
-        levelCounts = new AtomicLong[LevelIndex.values().length];
-
-        for (int i = 0; i < levelCountsEnabled.length; i++) {
-            // TODO: Allow injected initial values for enabled log levels
-            // for now default to enable only WARN & ERROR
-            levelCountsEnabled[i] = i >= LevelIndex.WARN_INDEX.getIndex();
-            levelCounts[i] = new AtomicLong(0L);
+        levelCountsEnabled = new boolean[LevelIndex.getNumLevels()];
+        levelCounts = new StripedCounters(LevelIndex.getNumLevels());
+        levelRates = new RollingRates(levelCounts, RATE_BUCKET_MILLIS, RATE_MAX_WINDOW_MILLIS);
+
+        // TODO: Allow injected initial values for enabled log levels
+        // for now default to enable only WARN, ERROR & FATAL
+        levelCountsEnabled[LevelIndex.WARN_INDEX.getIndex()] = true;
+        levelCountsEnabled[LevelIndex.ERROR_INDEX.getIndex()] = true;
+        levelCountsEnabled[LevelIndex.FATAL_INDEX.getIndex()] = true;
+    }
+
+    public void logEvent(final LoggingEvent event)
+    {
+        final Level level = event.getLevel();
+        logLevelEvent(level, event.getTimeStamp());
+
+        if (level == null || !level.isGreaterOrEqual(Level.WARN)) {
+            return;
+        }
+
+        loggerRates.add(event.getLoggerName());
+
+        final ThrowableInformation throwableInformation = event.getThrowableInformation();
+        if (throwableInformation != null && throwableInformation.getThrowable() != null) {
+            throwableRates.add(throwableInformation.getThrowable().getClass().getName());
         }
     }
 
     @Managed
     public void logLevelEvent(final Level level)
+    {
+        logLevelEvent(level, System.currentTimeMillis());
+    }
+
+    private void logLevelEvent(final Level level, final long timestampMillis)
     {
         final LevelIndex levelIndex = LevelIndex.getLevelIndexFromLevel(level);
 
-        // Could be an unhandled level type (e.g. TRACE, FATAL)
+        // Could be an unhandled level type (e.g. custom levels)
         if (levelIndex == null) {
             return;
         }
@@ -121,26 +180,71 @@ public class LogLevelCounter
             return;
         }
 
-        levelCounts[index].incrementAndGet();
+        levelRates.tick(timestampMillis);
+        levelCounts.increment(index);
     }
 
     @Managed
     public long[] getLogLevelCounts()
     {
-        final long[] counts = new long[LevelIndex.values().length];
-        for (int i = 0; i < levelCountsEnabled.length; i++) {
-            counts[i] = levelCounts[i].get();
+        final long[] counts = new long[LevelIndex.getNumLevels()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = levelCounts.get(i);
         }
 
         return counts;
     }
 
+    /**
+     * @param windowMillis window, up to 15 minutes
+     * @return events per second for each level over the window (0 for levels not counted)
+     */
+    public double[] getLogLevelRates(final long windowMillis)
+    {
+        final long now = System.currentTimeMillis();
+        final double[] rates = new double[LevelIndex.getNumLevels()];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = levelRates.getRate(i, windowMillis, now);
+        }
+
+        return rates;
+    }
+
     @Managed
     public void resetAllLogLevelCounts()
     {
-        for (final AtomicLong count : levelCounts) {
-            count.set(0L);
-        }
+        levelCounts.reset();
+        levelRates.reset(System.currentTimeMillis());
+    }
+
+    /**
+     * @return WARN and above rates per logger name, highest first
+     */
+    public List<DecayingHeavyHitters.Rate> getTopLoggerRates()
+    {
+        return loggerRates.getTop();
+    }
+
+    /**
+     * @return WARN and above rates per throwable class, highest first
+     */
+    public List<DecayingHeavyHitters.Rate> getTopThrowableRates()
+    {
+        return throwableRates.getTop();
+    }
+
+    /**
+     * @return rate of all WARN and above events, in events per second
+     */
+    public double getWarnAndAboveRate()
+    {
+        return loggerRates.getTotalRate();
+    }
+
+    public void resetRates()
+    {
+        loggerRates.reset();
+        throwableRates.reset();
     }
 
     @Managed
@@ -55,7 +55,7 @@ public class LogLevelCounterAppender implements Appender
     public void doAppend(final LoggingEvent event)
     {
         if (isCounterRegistered) {
-            registeredCounter.logLevelEvent(event.getLevel());
+            registeredCounter.logEvent(event);
         }
     }
 
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appender wrapper which rate limits similar messages, to survive log storms (e.g. a tight error loop).
+ * <p/>
+ * Messages are grouped by logger, level, throwable class and message template (the rendered message with numbers
+ * masked). Each group gets a token bucket of Burst messages, refilled at MessagesPerSecond. Messages over the limit
+ * are dropped and, at most every SummaryIntervalSeconds, replaced by a single "Suppressed N similar messages" event.
+ * Summaries are emitted as events come in (and on close), there is no background thread.
+ * <p/>
+ * At most MaxKeys groups are tracked, the least recently used ones are forgotten first. To use it, e.g. in log4j.xml:
+ * <pre>
+ * &lt;appender name="RATE_LIMITED" class="com.ning.jetty.log4j.RateLimitingAppender"&gt;
+ *     &lt;param name="MessagesPerSecond" value="10"/&gt;
+ *     &lt;appender-ref ref="FILE"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class RateLimitingAppender extends AppenderSkeleton implements AppenderAttachable
+{
+    // Only look at the beginning of long messages to build the template
+    private static final int MAX_TEMPLATE_LENGTH = 256;
+
+    // Across all instances, see Log4JMBean
+    private static final AtomicLong suppressedCount = new AtomicLong(0);
+    private static final AtomicLong summaryCount = new AtomicLong(0);
+
+    private final AppenderAttachableImpl appenders = new AppenderAttachableImpl();
+    private final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Bucket> eldest)
+        {
+            if (size() <= maxKeys) {
+                return false;
+            }
+
+            if (eldest.getValue().suppressed > 0) {
+                appendSummary(eldest.getValue(), eldest.getValue().lastSuppressedMillis);
+            }
+            return true;
+        }
+    };
+
+    private double messagesPerSecond = 10.0;
+    private int burst = 100;
+    private int maxKeys = 1000;
+    private long summaryIntervalMillis = 10000L;
+
+    private long nextSummaryMillis = 0L;
+
+    private static final class Bucket
+    {
+        private double tokens;
+        private long lastRefillMillis;
+        private LoggingEvent sample = null;
+        private long suppressed = 0L;
+        private long firstSuppressedMillis = 0L;
+        private long lastSuppressedMillis = 0L;
+
+        private Bucket(final double tokens, final long nowMillis)
+        {
+            this.tokens = tokens;
+            this.lastRefillMillis = nowMillis;
+        }
+    }
+
+    public static long getSuppressedCount()
+    {
+        return suppressedCount.get();
+    }
+
+    public static long getSummaryCount()
+    {
+        return summaryCount.get();
+    }
+
+    public static void resetCounts()
+    {
+        suppressedCount.set(0L);
+        summaryCount.set(0L);
+    }
+
+    // Called under the AppenderSkeleton lock
+    @Override
+    protected void append(final LoggingEvent event)
+    {
+        final long nowMillis = event.getTimeStamp();
+        final String key = getKey(event);
+
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(burst, nowMillis);
+            buckets.put(key, bucket);
+        }
+        else if (nowMillis > bucket.lastRefillMillis) {
+            bucket.tokens = Math.min(burst, bucket.tokens + (nowMillis - bucket.lastRefillMillis) * messagesPerSecond / 1000.0);
+            bucket.lastRefillMillis = nowMillis;
+        }
+
+        if (bucket.tokens >= 1.0) {
+            bucket.tokens -= 1.0;
+            if (bucket.suppressed > 0) {
+                // The storm is over for this group
+                appendSummary(bucket, nowMillis);
+            }
+            dispatch(event);
+        }
+        else {
+            if (bucket.suppressed == 0) {
+                bucket.sample = event;
+                bucket.firstSuppressedMillis = nowMillis;
+            }
+            bucket.suppressed++;
+            bucket.lastSuppressedMillis = nowMillis;
+            suppressedCount.incrementAndGet();
+        }
+
+        if (nowMillis >= nextSummaryMillis) {
+            appendSummaries(nowMillis);
+            nextSummaryMillis = nowMillis + summaryIntervalMillis;
+        }
+    }
+
+    private void appendSummaries(final long nowMillis)
+    {
+        for (final Bucket bucket : buckets.values()) {
+            if (bucket.suppressed > 0) {
+                appendSummary(bucket, nowMillis);
+            }
+        }
+    }
+
+    private void appendSummary(final Bucket bucket, final long nowMillis)
+    {
+        final LoggingEvent sample = bucket.sample;
+        final String message = String.format("Suppressed %d similar messages in the last %d ms, first one: %s",
+                                             bucket.suppressed,
+                                             Math.max(0L, nowMillis - bucket.firstSuppressedMillis),
+                                             sample.getRenderedMessage());
+        dispatch(new LoggingEvent(sample.getFQNOfLoggerClass(), sample.getLogger(), nowMillis, sample.getLevel(), message, null));
+        summaryCount.incrementAndGet();
+
+        bucket.sample = null;
+        bucket.suppressed = 0L;
+    }
+
+    private void dispatch(final LoggingEvent event)
+    {
+        synchronized (appenders) {
+            appenders.appendLoopOnAppenders(event);
+        }
+    }
+
+    private String getKey(final LoggingEvent event)
+    {
+        final StringBuilder key = new StringBuilder(128);
+        key.append(event.getLoggerName()).append('|').append(event.getLevel()).append('|');
+
+        final ThrowableInformation throwableInformation = event.getThrowableInformation();
+        if (throwableInformation != null && throwableInformation.getThrowable() != null) {
+            key.append(throwableInformation.getThrowable().getClass().getName());
+        }
+        key.append('|');
+
+        // Mask numbers (ids, durations, ...) so that messages from the same call site usually share a template
+        final String message = event.getRenderedMessage();
+        if (message != null) {
+            final int length = Math.min(message.length(), MAX_TEMPLATE_LENGTH);
+            boolean inNumber = false;
+            for (int i = 0; i < length; i++) {
+                final char c = message.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    if (!inNumber) {
+                        key.append('#');
+                        inNumber = true;
+                    }
+                }
+                else {
+                    key.append(c);
+                    inNumber = false;
+                }
+            }
+        }
+
+        return key.toString();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+
+        // Don't lose the last suppressions
+        appendSummaries(System.currentTimeMillis());
+        buckets.clear();
+
+        closed = true;
+        appenders.removeAllAppenders();
+    }
+
+    @Override
+    public boolean requiresLayout()
+    {
+        return false;
+    }
+
+    public void setMessagesPerSecond(final double messagesPerSecond)
+    {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public double getMessagesPerSecond()
+    {
+        return messagesPerSecond;
+    }
+
+    public void setBurst(final int burst)
+    {
+        this.burst = Math.max(1, burst);
+    }
+
+    public int getBurst()
+    {
+        return burst;
+    }
+
+    public void setMaxKeys(final int maxKeys)
+    {
+        this.maxKeys = Math.max(1, maxKeys);
+    }
+
+    public int getMaxKeys()
+    {
+        return maxKeys;
+    }
+
+    public void setSummaryIntervalSeconds(final int summaryIntervalSeconds)
+    {
+        this.summaryIntervalMillis = summaryIntervalSeconds * 1000L;
+    }
+
+    public int getSummaryIntervalSeconds()
+    {
+        return (int) (summaryIntervalMillis / 1000L);
+    }
+
+    public void addAppender(final Appender newAppender)
+    {
+        synchronized (appenders) {
+            appenders.addAppender(newAppender);
+        }
+    }
+
+    public Enumeration getAllAppenders()
+    {
+        synchronized (appenders) {
+            return appenders.getAllAppenders();
+        }
+    }
+
+    public Appender getAppender(final String name)
+    {
+        synchronized (appenders) {
+            return appenders.getAppender(name);
+        }
+    }
+
+    public boolean isAttached(final Appender appender)
+    {
+        synchronized (appenders) {
+            return appenders.isAttached(appender);
+        }
+    }
+
+    public void removeAllAppenders()
+    {
+        synchronized (appenders) {
+            appenders.removeAllAppenders();
+        }
+    }
+
+    public void removeAppender(final Appender appender)
+    {
+        synchronized (appenders) {
+            appenders.removeAppender(appender);
+        }
+    }
+
+    public void removeAppender(final String name)
+    {
+        synchronized (appenders) {
+            appenders.removeAppender(name);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling per-second rates of StripedCounters, over windows of up to maxWindowMillis.
+ * <p/>
+ * A ring of time buckets holds a snapshot of the counter totals, taken on the first tick() of each bucket. The rate
+ * over a window is the difference between the current totals and the snapshot at the start of the window. Buckets
+ * without ticks are simply missing: if nothing was counted, the totals didn't change either. Updates are lock-free,
+ * a tick costs a volatile read except once per bucket. Events counted in the same bucket as, but after, the snapshot
+ * at the start of the window are included, i.e. rates are accurate within a bucket.
+ */
+public class RollingRates
+{
+    private final StripedCounters counters;
+    private final long bucketMillis;
+    private final long maxWindowMillis;
+    private final int nbBuckets;
+    private final int nbCounters;
+
+    // Per bucket: bucket number (-1 while being written), time of the snapshot and totals of all counters
+    private final AtomicLongArray epochs;
+    private final AtomicLongArray times;
+    private final AtomicLongArray totals;
+
+    private final AtomicLong currentEpoch = new AtomicLong(-1);
+    private volatile long nextBucketMillis = Long.MIN_VALUE;
+    private volatile long startMillis;
+
+    /**
+     * @param counters        counters to follow, must only go up (except on reset)
+     * @param bucketMillis    resolution of the windows
+     * @param maxWindowMillis largest window
+     */
+    public RollingRates(final StripedCounters counters, final long bucketMillis, final long maxWindowMillis)
+    {
+        this(counters, bucketMillis, maxWindowMillis, System.currentTimeMillis());
+    }
+
+    RollingRates(final StripedCounters counters, final long bucketMillis, final long maxWindowMillis, final long nowMillis)
+    {
+        if (bucketMillis <= 0 || maxWindowMillis < bucketMillis) {
+            throw new IllegalArgumentException(String.format("Invalid bucket (%d ms) or window (%d ms)", bucketMillis, maxWindowMillis));
+        }
+
+        this.counters = counters;
+        this.bucketMillis = bucketMillis;
+        this.maxWindowMillis = maxWindowMillis;
+        // The window may start in the middle of a bucket, plus the current one
+        this.nbBuckets = (int) ((maxWindowMillis + bucketMillis - 1) / bucketMillis) + 2;
+        this.nbCounters = counters.getNbCounters();
+
+        this.epochs = new AtomicLongArray(nbBuckets);
+        this.times = new AtomicLongArray(nbBuckets);
+        this.totals = new AtomicLongArray(nbBuckets * nbCounters);
+
+        reset(nowMillis);
+    }
+
+    /**
+     * Call before updating the counters.
+     *
+     * @param nowMillis current time
+     */
+    public void tick(final long nowMillis)
+    {
+        if (nowMillis < nextBucketMillis) {
+            return;
+        }
+
+        final long epoch = nowMillis / bucketMillis;
+        final long current = currentEpoch.get();
+        if (epoch <= current || !currentEpoch.compareAndSet(current, epoch)) {
+            return;
+        }
+        nextBucketMillis = (epoch + 1) * bucketMillis;
+
+        final int slot = (int) (epoch % nbBuckets);
+        epochs.set(slot, -1L);
+        times.set(slot, nowMillis);
+        for (int counter = 0; counter < nbCounters; counter++) {
+            totals.set(slot * nbCounters + counter, counters.get(counter));
+        }
+        epochs.set(slot, epoch);
+    }
+
+    /**
+     * @param counter      counter index
+     * @param windowMillis window, capped at maxWindowMillis
+     * @param nowMillis    current time
+     * @return average number of increments per second over the window (or since the last reset, if more recent)
+     */
+    public double getRate(final int counter, final long windowMillis, final long nowMillis)
+    {
+        tick(nowMillis);
+
+        final long window = Math.min(windowMillis, maxWindowMillis);
+        final long windowStartMillis = nowMillis - window;
+        final long total = counters.get(counter);
+
+        // Newest snapshot at or before the start of the window, otherwise the oldest one after it
+        long snapshot = -1L;
+        final long current = currentEpoch.get();
+        for (long epoch = current; epoch > current - nbBuckets && epoch >= 0; epoch--) {
+            final int slot = (int) (epoch % nbBuckets);
+            if (epochs.get(slot) != epoch) {
+                continue;
+            }
+            final long time = times.get(slot);
+            final long slotTotal = totals.get(slot * nbCounters + counter);
+            if (epochs.get(slot) != epoch) {
+                // Overwritten while reading
+                continue;
+            }
+
+            snapshot = slotTotal;
+            if (time <= windowStartMillis) {
+                break;
+            }
+        }
+
+        if (snapshot < 0) {
+            return 0.0;
+        }
+
+        final long elapsedMillis = Math.max(1L, Math.min(window, nowMillis - startMillis));
+        return Math.max(0L, total - snapshot) * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Forget the history, e.g. after the counters have been reset.
+     *
+     * @param nowMillis current time
+     */
+    public void reset(final long nowMillis)
+    {
+        for (int slot = 0; slot < nbBuckets; slot++) {
+            epochs.set(slot, -1L);
+        }
+        currentEpoch.set(-1L);
+        nextBucketMillis = Long.MIN_VALUE;
+        startMillis = nowMillis;
+        tick(nowMillis);
+    }
+
+    public long getMaxWindowMillis()
+    {
+        return maxWindowMillis;
+    }
+}
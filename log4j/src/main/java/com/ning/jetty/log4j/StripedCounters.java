@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed set of counters, each spread over per-thread stripes in the spirit of LongAdder (not available on Java 6).
+ * <p/>
+ * Threads are hashed onto a stripe and move to another one when they lose a race, so that concurrent increments
+ * rarely hit the same cache line. Reads sum all stripes and are not atomic with respect to concurrent increments.
+ */
+public class StripedCounters
+{
+    // In longs: 128 bytes, as adjacent cache lines are usually prefetched in pairs
+    private static final int PADDING = 16;
+    private static final int MAX_STRIPES = 64;
+
+    private final int nbCounters;
+    private final int nbStripes;
+    private final int stride;
+    private final AtomicLongArray cells;
+
+    private final ThreadLocal<int[]> probes = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            // Fibonacci hashing of the thread id, thread ids are usually sequential
+            final int probe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+            return new int[]{probe == 0 ? 1 : probe};
+        }
+    };
+
+    public StripedCounters(final int nbCounters)
+    {
+        this(nbCounters, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nbCounters number of counters
+     * @param nbStripes  number of cells per counter (rounded up to a power of two, at most 64)
+     */
+    public StripedCounters(final int nbCounters, final int nbStripes)
+    {
+        if (nbCounters <= 0 || nbStripes <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of counters (%d) or stripes (%d)", nbCounters, nbStripes));
+        }
+
+        this.nbCounters = nbCounters;
+        this.nbStripes = Math.min(MAX_STRIPES, roundUpToPowerOfTwo(nbStripes));
+        // Counters of a stripe are contiguous, stripes are separated by padding (also at both ends of the array)
+        this.stride = nbCounters + PADDING;
+        this.cells = new AtomicLongArray(PADDING + this.nbStripes * stride);
+    }
+
+    public void increment(final int counter)
+    {
+        add(counter, 1L);
+    }
+
+    public void add(final int counter, final long delta)
+    {
+        checkCounter(counter);
+
+        final int[] probe = probes.get();
+        final int cell = cellIndex(probe[0], counter);
+        final long value = cells.get(cell);
+        if (!cells.compareAndSet(cell, value, value + delta)) {
+            // Contended, move this thread to another stripe
+            probe[0] = rehash(probe[0]);
+            cells.addAndGet(cellIndex(probe[0], counter), delta);
+        }
+    }
+
+    public long get(final int counter)
+    {
+        checkCounter(counter);
+
+        long sum = 0L;
+        for (int stripe = 0; stripe < nbStripes; stripe++) {
+            sum += cells.get(PADDING + stripe * stride + counter);
+        }
+        return sum;
+    }
+
+    public void reset(final int counter)
+    {
+        checkCounter(counter);
+
+        for (int stripe = 0; stripe < nbStripes; stripe++) {
+            cells.set(PADDING + stripe * stride + counter, 0L);
+        }
+    }
+
+    public void reset()
+    {
+        for (int counter = 0; counter < nbCounters; counter++) {
+            reset(counter);
+        }
+    }
+
+    public int getNbCounters()
+    {
+        return nbCounters;
+    }
+
+    public int getNbStripes()
+    {
+        return nbStripes;
+    }
+
+    private int cellIndex(final int probe, final int counter)
+    {
+        return PADDING + (probe & (nbStripes - 1)) * stride + counter;
+    }
+
+    private void checkCounter(final int counter)
+    {
+        if (counter < 0 || counter >= nbCounters) {
+            throw new IndexOutOfBoundsException(String.format("Invalid counter %d, expected [0, %d)", counter, nbCounters));
+        }
+    }
+
+    private static int rehash(int probe)
+    {
+        // Marsaglia xorshift
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    private static int roundUpToPowerOfTwo(final int value)
+    {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+}
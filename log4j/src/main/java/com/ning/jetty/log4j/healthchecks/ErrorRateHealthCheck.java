@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j.healthchecks;
+
+import com.ning.jetty.log4j.Log4JMBean;
+import com.yammer.metrics.core.HealthCheck;
+import org.weakref.jmx.Managed;
+
+/**
+ * Unhealthy when ERROR and FATAL log events go above a rate, e.g. when a dependency is down.
+ */
+public class ErrorRateHealthCheck extends HealthCheck
+{
+    private final Log4JMBean log4JMBean;
+    private final double maxErrorsPerSecond;
+    private final long windowMillis;
+
+    /**
+     * @param log4JMBean         source of the rates
+     * @param maxErrorsPerSecond highest healthy rate
+     * @param windowMillis       window the rate is averaged over, up to 15 minutes
+     */
+    public ErrorRateHealthCheck(final Log4JMBean log4JMBean, final double maxErrorsPerSecond, final long windowMillis)
+    {
+        super("ErrorRateHealthCheck");
+        this.log4JMBean = log4JMBean;
+        this.maxErrorsPerSecond = maxErrorsPerSecond;
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public Result check()
+    {
+        final double rate = log4JMBean.getErrorAndAboveRate(windowMillis);
+        if (rate > maxErrorsPerSecond) {
+            return Result.unhealthy(String.format("%.3f errors/s over the last %d s, more than %.3f", rate, windowMillis / 1000, maxErrorsPerSecond));
+        }
+        else {
+            return Result.healthy(String.format("%.3f errors/s over the last %d s", rate, windowMillis / 1000));
+        }
+    }
+
+    @Managed
+    public boolean isHealthy()
+    {
+        // Cheap (no I/O), always up to date
+        return check().isHealthy();
+    }
+}
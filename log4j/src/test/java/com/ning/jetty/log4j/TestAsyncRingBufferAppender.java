@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestAsyncRingBufferAppender
+{
+    private static final Logger logger = Logger.getLogger(TestAsyncRingBufferAppender.class);
+
+    private CountDownLatch release;
+    private SlowAppender downstream;
+
+    // Blocks on the first event until released, to fill the ring
+    private final class SlowAppender extends AppenderSkeleton
+    {
+        private final List<LoggingEvent> events = new CopyOnWriteArrayList<LoggingEvent>();
+
+        @Override
+        protected void append(final LoggingEvent event)
+        {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(event);
+        }
+
+        public void close()
+        {
+        }
+
+        public boolean requiresLayout()
+        {
+            return false;
+        }
+    }
+
+    @BeforeMethod(groups = "fast")
+    public void setUp()
+    {
+        release = new CountDownLatch(1);
+        downstream = new SlowAppender();
+        AsyncRingBufferAppender.resetCounts();
+    }
+
+    @Test(groups = "fast")
+    public void testEventsAreDispatchedInOrder() throws Exception
+    {
+        release.countDown();
+        final AsyncRingBufferAppender appender = createAppender("Block");
+
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 1000; i++) {
+                        appender.doAppend(event(Level.INFO, id + ":" + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        appender.close();
+
+        Assert.assertEquals(downstream.events.size(), 4000);
+        Assert.assertEquals(AsyncRingBufferAppender.getDroppedCount(), 0);
+
+        // Per thread order is kept
+        final int[] next = new int[threads.length];
+        for (final LoggingEvent event : downstream.events) {
+            final String[] parts = event.getRenderedMessage().split(":");
+            final int id = Integer.valueOf(parts[0]);
+            Assert.assertEquals(Integer.valueOf(parts[1]).intValue(), next[id]++);
+            Assert.assertNotEquals(event.getThreadName(), "log4j-async-dispatcher-async");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDiscard() throws Exception
+    {
+        final AsyncRingBufferAppender appender = fillRing("Discard");
+
+        appender.doAppend(event(Level.ERROR, "dropped"));
+        Assert.assertEquals(AsyncRingBufferAppender.getDroppedCount(), 1);
+        Assert.assertEquals(appender.getQueueDepth(), 4);
+        Assert.assertEquals(AsyncRingBufferAppender.getTotalQueueDepth(), 4);
+
+        release.countDown();
+        appender.close();
+        Assert.assertEquals(downstream.events.size(), 5);
+        Assert.assertEquals(AsyncRingBufferAppender.getTotalQueueDepth(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testDropBelowWarn() throws Exception
+    {
+        final AsyncRingBufferAppender appender = fillRing("DropBelowWarn");
+
+        appender.doAppend(event(Level.INFO, "dropped"));
+        Assert.assertEquals(AsyncRingBufferAppender.getDroppedCount(), 1);
+
+        // Blocks until there is room
+        final Thread warner = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                appender.doAppend(event(Level.WARN, "kept"));
+            }
+        });
+        warner.start();
+        waitFor(new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return AsyncRingBufferAppender.getBlockedCount() == 1;
+            }
+        });
+        Assert.assertTrue(warner.isAlive());
+
+        release.countDown();
+        warner.join(10000);
+        appender.close();
+
+        Assert.assertEquals(downstream.events.size(), 6);
+        Assert.assertEquals(downstream.events.get(5).getRenderedMessage(), "kept");
+    }
+
+    private AsyncRingBufferAppender createAppender(final String policy)
+    {
+        final AsyncRingBufferAppender appender = new AsyncRingBufferAppender();
+        appender.setName("async");
+        appender.setBufferSize(4);
+        appender.setPolicy(policy);
+        appender.addAppender(downstream);
+        appender.activateOptions();
+        Assert.assertEquals(appender.getPolicy(), policy.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase());
+        return appender;
+    }
+
+    // One event stuck in the downstream appender, four in the ring
+    private AsyncRingBufferAppender fillRing(final String policy) throws InterruptedException
+    {
+        final AsyncRingBufferAppender appender = createAppender(policy);
+        appender.doAppend(event(Level.INFO, "stuck"));
+        waitFor(new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return appender.getQueueDepth() == 0;
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            appender.doAppend(event(Level.INFO, "queued " + i));
+        }
+        Assert.assertEquals(appender.getQueueDepth(), 4);
+        Assert.assertEquals(AsyncRingBufferAppender.getDroppedCount(), 0);
+
+        return appender;
+    }
+
+    private interface Condition
+    {
+        boolean isTrue();
+    }
+
+    private static void waitFor(final Condition condition) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isTrue() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(condition.isTrue());
+    }
+
+    private LoggingEvent event(final Level level, final String message)
+    {
+        return new LoggingEvent(Logger.class.getName(), logger, level, message, null);
+    }
+}
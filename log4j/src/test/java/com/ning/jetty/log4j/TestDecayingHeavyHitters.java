@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+public class TestDecayingHeavyHitters
+{
+    private static final long TAU_MILLIS = 60000L;
+
+    @Test(groups = "fast")
+    public void testSteadyRateConverges()
+    {
+        final DecayingHeavyHitters hitters = new DecayingHeavyHitters(4, TAU_MILLIS, 1, 0L);
+
+        // 10 events per second for 10 minutes, across several rescales
+        long now = 0L;
+        for (int i = 0; i < 6000; i++) {
+            now += 100;
+            hitters.add("noisy", now);
+        }
+
+        final List<DecayingHeavyHitters.Rate> top = hitters.getTop(now);
+        Assert.assertEquals(top.size(), 1);
+        Assert.assertEquals(top.get(0).getKey(), "noisy");
+        Assert.assertEquals(top.get(0).getRate(), 10.0, 0.5);
+        Assert.assertEquals(top.get(0).getError(), 0.0);
+        Assert.assertEquals(hitters.getTotalRate(now), 10.0, 0.5);
+    }
+
+    @Test(groups = "fast")
+    public void testRatesDecay()
+    {
+        final DecayingHeavyHitters hitters = new DecayingHeavyHitters(4, TAU_MILLIS, 1, 0L);
+        for (int i = 0; i < 1000; i++) {
+            hitters.add("storm", i);
+        }
+
+        final double rate = hitters.getTop(1000L).get(0).getRate();
+        Assert.assertEquals(hitters.getTop(1000L + TAU_MILLIS).get(0).getRate(), rate / Math.E, rate * 1e-6);
+        Assert.assertTrue(hitters.getTotalRate(1000L + 100 * TAU_MILLIS) < 1e-6);
+    }
+
+    @Test(groups = "fast")
+    public void testHeavyHittersSurviveManyDistinctKeys()
+    {
+        final DecayingHeavyHitters hitters = new DecayingHeavyHitters(8, TAU_MILLIS, 1, 0L);
+
+        long now = 0L;
+        for (int i = 0; i < 10000; i++) {
+            now++;
+            if (i % 2 == 0) {
+                hitters.add("heavy", now);
+            }
+            else if (i % 5 == 0) {
+                hitters.add("medium", now);
+            }
+            else {
+                hitters.add("unique-" + i, now);
+            }
+        }
+
+        final List<DecayingHeavyHitters.Rate> top = hitters.getTop(now);
+        Assert.assertEquals(top.size(), 8);
+        Assert.assertEquals(top.get(0).getKey(), "heavy");
+        Assert.assertEquals(top.get(1).getKey(), "medium");
+        // Rates may be overestimated, by at most the error
+        Assert.assertTrue(top.get(0).getRate() >= hitters.getTotalRate(now) / 2 * 0.99);
+        Assert.assertTrue(top.get(0).getRate() - top.get(0).getError() <= hitters.getTotalRate(now) / 2 * 1.01);
+    }
+
+    @Test(groups = "fast")
+    public void testStripesAreMerged() throws Exception
+    {
+        final DecayingHeavyHitters hitters = new DecayingHeavyHitters(8, TAU_MILLIS, 4, 0L);
+        Assert.assertEquals(hitters.getNbStripes(), 4);
+
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String own = "own-" + t;
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 1000; i++) {
+                        hitters.add("shared", 0L);
+                        hitters.add(own, 0L);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        // Nothing was evicted: exact counts, wherever the threads landed
+        final double perEvent = 1000.0 / TAU_MILLIS;
+        final List<DecayingHeavyHitters.Rate> top = hitters.getTop(0L);
+        Assert.assertEquals(top.size(), 5);
+        Assert.assertEquals(top.get(0).getKey(), "shared");
+        Assert.assertEquals(top.get(0).getRate(), 4000 * perEvent, 1e-9);
+        Assert.assertEquals(top.get(0).getError(), 0.0);
+        for (int i = 1; i < 5; i++) {
+            Assert.assertTrue(top.get(i).getKey().startsWith("own-"));
+            Assert.assertEquals(top.get(i).getRate(), 1000 * perEvent, 1e-9);
+        }
+        Assert.assertEquals(hitters.getTotalRate(0L), 8000 * perEvent, 1e-9);
+    }
+
+    @Test(groups = "fast")
+    public void testReset()
+    {
+        final DecayingHeavyHitters hitters = new DecayingHeavyHitters(4, TAU_MILLIS, 1, 0L);
+        hitters.add("key", 1L);
+        hitters.reset();
+
+        Assert.assertTrue(hitters.getTop(2L).isEmpty());
+        Assert.assertEquals(hitters.getTotalRate(2L), 0.0);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.apache.log4j.Level;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static com.ning.jetty.log4j.LogLevelCounter.LevelIndex;
+
+public class TestLogLevelCounter
+{
+    @Test(groups = "fast")
+    public void testLevelMapping() throws Exception
+    {
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevel(Level.TRACE), LevelIndex.TRACE_INDEX);
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevel(Level.DEBUG), LevelIndex.DEBUG_INDEX);
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevel(Level.INFO), LevelIndex.INFO_INDEX);
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevel(Level.WARN), LevelIndex.WARN_INDEX);
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevel(Level.ERROR), LevelIndex.ERROR_INDEX);
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevel(Level.FATAL), LevelIndex.FATAL_INDEX);
+        Assert.assertNull(LevelIndex.getLevelIndexFromLevel(Level.ALL));
+        Assert.assertNull(LevelIndex.getLevelIndexFromLevel(Level.OFF));
+        Assert.assertNull(LevelIndex.getLevelIndexFromLevel(null));
+
+        // Indexes are slots in the counts
+        for (int i = 0; i < LevelIndex.getNumLevels(); i++) {
+            Assert.assertEquals(LevelIndex.values()[i].getIndex(), i);
+        }
+        Assert.assertEquals(LevelIndex.getLevelIndexFromLevelString("fatal"), LevelIndex.FATAL_INDEX);
+        Assert.assertEquals(LevelIndex.getLevelFromLevelString("trace"), Level.TRACE);
+    }
+
+    @Test(groups = "fast")
+    public void testCounts() throws Exception
+    {
+        final LogLevelCounter counter = new LogLevelCounter();
+
+        // Only WARN and above by default
+        for (final Level level : new Level[]{Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.FATAL, Level.OFF}) {
+            counter.logLevelEvent(level);
+        }
+        Assert.assertEquals(counter.getLogLevelCounts(), new long[]{0, 0, 1, 1, 0, 1});
+
+        counter.setCountingEnabledByLevel(Level.TRACE, true);
+        Assert.assertTrue(counter.getCountingEnabledByLevel(Level.TRACE));
+        counter.logLevelEvent(Level.TRACE);
+        counter.logLevelEvent(Level.FATAL);
+        Assert.assertEquals(counter.getLogLevelCounts(), new long[]{0, 0, 1, 1, 1, 2});
+
+        counter.resetAllLogLevelCounts();
+        Assert.assertEquals(counter.getLogLevelCounts(), new long[]{0, 0, 0, 0, 0, 0});
+    }
+}
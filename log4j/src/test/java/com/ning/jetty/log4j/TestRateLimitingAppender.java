@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestRateLimitingAppender
+{
+    private static final Logger logger = Logger.getLogger(TestRateLimitingAppender.class);
+
+    private CapturingAppender captured;
+    private RateLimitingAppender appender;
+
+    private static final class CapturingAppender extends AppenderSkeleton
+    {
+        private final List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+
+        @Override
+        protected void append(final LoggingEvent event)
+        {
+            events.add(event);
+        }
+
+        public void close()
+        {
+        }
+
+        public boolean requiresLayout()
+        {
+            return false;
+        }
+    }
+
+    @BeforeMethod(groups = "fast")
+    public void setUp()
+    {
+        captured = new CapturingAppender();
+        appender = new RateLimitingAppender();
+        appender.setBurst(5);
+        appender.setMessagesPerSecond(1);
+        appender.setSummaryIntervalSeconds(10);
+        appender.addAppender(captured);
+        RateLimitingAppender.resetCounts();
+    }
+
+    @Test(groups = "fast")
+    public void testStormIsSuppressedAndSummarized()
+    {
+        // Same template, different numbers
+        for (int i = 0; i < 1000; i++) {
+            appender.doAppend(event(1000L + i, Level.ERROR, "Unable to process request " + i));
+        }
+
+        Assert.assertEquals(captured.events.size(), 5);
+        Assert.assertEquals(RateLimitingAppender.getSuppressedCount(), 995);
+
+        // Next summary is due 10 seconds after the first event
+        appender.doAppend(event(11000L, Level.ERROR, "Unable to process request 1000"));
+        Assert.assertEquals(RateLimitingAppender.getSummaryCount(), 1);
+
+        final LoggingEvent summary = captured.events.get(5);
+        Assert.assertEquals(summary.getLevel(), Level.ERROR);
+        Assert.assertEquals(summary.getLoggerName(), logger.getName());
+        Assert.assertTrue(summary.getRenderedMessage().startsWith("Suppressed 995 similar messages"), summary.getRenderedMessage());
+        Assert.assertTrue(summary.getRenderedMessage().endsWith("Unable to process request 5"), summary.getRenderedMessage());
+
+        // The bucket refilled in the meantime
+        Assert.assertEquals(captured.events.get(6).getRenderedMessage(), "Unable to process request 1000");
+    }
+
+    @Test(groups = "fast")
+    public void testDifferentTemplatesAreIndependent()
+    {
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event(1000L, Level.ERROR, "Storm " + i));
+        }
+        appender.doAppend(event(1000L, Level.ERROR, "Something else"));
+        appender.doAppend(event(1000L, Level.WARN, "Storm 1"));
+
+        Assert.assertEquals(captured.events.size(), 7);
+        Assert.assertEquals(captured.events.get(5).getRenderedMessage(), "Something else");
+        Assert.assertEquals(captured.events.get(6).getLevel(), Level.WARN);
+    }
+
+    @Test(groups = "fast")
+    public void testSummaryWhenStormEnds()
+    {
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(event(1000L, Level.WARN, "Slow query"));
+        }
+        Assert.assertEquals(captured.events.size(), 5);
+
+        // One token is back, the summary is logged before the message
+        appender.doAppend(event(2000L, Level.WARN, "Slow query"));
+        Assert.assertEquals(captured.events.size(), 7);
+        Assert.assertTrue(captured.events.get(5).getRenderedMessage().startsWith("Suppressed 5 similar messages in the last 1000 ms"));
+        Assert.assertEquals(captured.events.get(6).getRenderedMessage(), "Slow query");
+    }
+
+    @Test(groups = "fast")
+    public void testCloseFlushesSummaries()
+    {
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(event(1000L, Level.WARN, "Slow query"));
+        }
+        appender.close();
+
+        Assert.assertEquals(captured.events.size(), 6);
+        Assert.assertTrue(captured.events.get(5).getRenderedMessage().startsWith("Suppressed 5 similar messages"));
+    }
+
+    @Test(groups = "fast")
+    public void testMaxKeys()
+    {
+        appender.setMaxKeys(2);
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(event(1000L, Level.WARN, "First"));
+        }
+        appender.doAppend(event(1000L, Level.WARN, "Second"));
+        // Evicts the first template, its suppressions are summarized right away
+        appender.doAppend(event(1000L, Level.WARN, "Third"));
+
+        Assert.assertEquals(captured.events.size(), 8);
+        Assert.assertTrue(captured.events.get(6).getRenderedMessage().startsWith("Suppressed 5 similar messages"));
+        Assert.assertTrue(captured.events.get(6).getRenderedMessage().endsWith("First"));
+        Assert.assertEquals(captured.events.get(7).getRenderedMessage(), "Third");
+    }
+
+    private LoggingEvent event(final long timestamp, final Level level, final String message)
+    {
+        return new LoggingEvent(Logger.class.getName(), logger, timestamp, level, message, null);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRollingRates
+{
+    private static final long MINUTE = 60000L;
+
+    @Test(groups = "fast")
+    public void testSteadyRate()
+    {
+        final StripedCounters counters = new StripedCounters(2);
+        final RollingRates rates = new RollingRates(counters, 1000L, 15 * MINUTE, 0L);
+
+        // 20 events per second on counter 0 for 20 minutes
+        long now = 0L;
+        for (int i = 0; i < 20 * 60 * 20; i++) {
+            now += 50;
+            rates.tick(now);
+            counters.increment(0);
+        }
+
+        Assert.assertEquals(rates.getRate(0, MINUTE, now), 20.0, 0.5);
+        Assert.assertEquals(rates.getRate(0, 5 * MINUTE, now), 20.0, 0.1);
+        Assert.assertEquals(rates.getRate(0, 15 * MINUTE, now), 20.0, 0.1);
+        // Capped at the largest window
+        Assert.assertEquals(rates.getRate(0, 60 * MINUTE, now), 20.0, 0.1);
+        Assert.assertEquals(rates.getRate(1, MINUTE, now), 0.0);
+    }
+
+    @Test(groups = "fast")
+    public void testBurstLeavesTheWindows()
+    {
+        final StripedCounters counters = new StripedCounters(1);
+        final RollingRates rates = new RollingRates(counters, 1000L, 15 * MINUTE, 0L);
+
+        // 600 events at 10 minutes, then nothing
+        final long burst = 10 * MINUTE;
+        rates.tick(burst);
+        counters.add(0, 600);
+
+        Assert.assertEquals(rates.getRate(0, MINUTE, burst + 30000L), 10.0, 1e-9);
+        Assert.assertEquals(rates.getRate(0, 5 * MINUTE, burst + 30000L), 2.0, 1e-9);
+        Assert.assertEquals(rates.getRate(0, MINUTE, burst + 2 * MINUTE), 0.0);
+        Assert.assertEquals(rates.getRate(0, 5 * MINUTE, burst + 2 * MINUTE), 2.0, 1e-9);
+        Assert.assertEquals(rates.getRate(0, 15 * MINUTE, burst + 20 * MINUTE), 0.0);
+    }
+
+    @Test(groups = "fast")
+    public void testRateSinceStart()
+    {
+        final StripedCounters counters = new StripedCounters(1);
+        final RollingRates rates = new RollingRates(counters, 1000L, 15 * MINUTE, 0L);
+
+        rates.tick(5000L);
+        counters.add(0, 100);
+
+        // Only 10 seconds of history
+        Assert.assertEquals(rates.getRate(0, MINUTE, 10000L), 10.0, 1e-9);
+    }
+
+    @Test(groups = "fast")
+    public void testReset()
+    {
+        final StripedCounters counters = new StripedCounters(1);
+        final RollingRates rates = new RollingRates(counters, 1000L, 15 * MINUTE, 0L);
+
+        rates.tick(1000L);
+        counters.add(0, 100);
+        counters.reset();
+        rates.reset(2000L);
+
+        Assert.assertEquals(rates.getRate(0, MINUTE, 3000L), 0.0);
+        rates.tick(3000L);
+        counters.add(0, 10);
+        Assert.assertEquals(rates.getRate(0, MINUTE, 7000L), 2.0, 1e-9);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.log4j;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class TestStripedCounters
+{
+    @Test(groups = "fast")
+    public void testConcurrentIncrements() throws Exception
+    {
+        final int nbThreads = 8;
+        final int nbIncrements = 100000;
+        final StripedCounters counters = new StripedCounters(3, 4);
+        Assert.assertEquals(counters.getNbStripes(), 4);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[nbThreads];
+        for (int t = 0; t < nbThreads; t++) {
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int i = 0; i < nbIncrements; i++) {
+                        counters.increment(0);
+                        counters.add(2, 2);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(counters.get(0), (long) nbThreads * nbIncrements);
+        Assert.assertEquals(counters.get(1), 0L);
+        Assert.assertEquals(counters.get(2), 2L * nbThreads * nbIncrements);
+    }
+
+    @Test(groups = "fast")
+    public void testReset() throws Exception
+    {
+        final StripedCounters counters = new StripedCounters(2);
+        counters.add(0, 5);
+        counters.add(1, 7);
+
+        counters.reset(0);
+        Assert.assertEquals(counters.get(0), 0L);
+        Assert.assertEquals(counters.get(1), 7L);
+
+        counters.increment(0);
+        counters.reset();
+        Assert.assertEquals(counters.get(0), 0L);
+        Assert.assertEquals(counters.get(1), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void testStripes() throws Exception
+    {
+        Assert.assertEquals(new StripedCounters(1, 1).getNbStripes(), 1);
+        Assert.assertEquals(new StripedCounters(1, 5).getNbStripes(), 8);
+        Assert.assertEquals(new StripedCounters(1, 1000).getNbStripes(), 64);
+        Assert.assertTrue(new StripedCounters(1).getNbStripes() >= 1);
+    }
+
+    @Test(groups = "fast")
+    public void testBounds() throws Exception
+    {
+        final StripedCounters counters = new StripedCounters(2);
+        for (final int counter : new int[]{-1, 2}) {
+            try {
+                counters.increment(counter);
+                Assert.fail();
+            }
+            catch (IndexOutOfBoundsException ignored) {
+            }
+            try {
+                counters.get(counter);
+                Assert.fail();
+            }
+            catch (IndexOutOfBoundsException ignored) {
+            }
+            try {
+                counters.reset(counter);
+                Assert.fail();
+            }
+            catch (IndexOutOfBoundsException ignored) {
+            }
+        }
+
+        try {
+            new StripedCounters(0);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException ignored) {
+        }
+    }
+}
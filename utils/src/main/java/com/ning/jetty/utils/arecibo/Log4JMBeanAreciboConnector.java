@@ -31,10 +31,24 @@ public class Log4JMBeanAreciboConnector
     public Log4JMBeanAreciboConnector(final AreciboProfile profile)
     {
         new MBeanRegistrar("com.ning.jetty.log4j:name=Log4JMBean")
+            .addCounter("LogLevelCountForTrace")
             .addCounter("LogLevelCountForDebug")
             .addCounter("LogLevelCountForInfo")
             .addCounter("LogLevelCountForWarn")
             .addCounter("LogLevelCountForError")
+            .addCounter("LogLevelCountForFatal")
+            .addCounter("SuppressedLogEventCount")
+            .addCounter("AsyncLogDroppedCount")
+            .addValue("AsyncLogQueueDepth")
+            .addValue("LogLevelRate1mForWarn")
+            .addValue("LogLevelRate5mForWarn")
+            .addValue("LogLevelRate15mForWarn")
+            .addValue("LogLevelRate1mForError")
+            .addValue("LogLevelRate5mForError")
+            .addValue("LogLevelRate15mForError")
+            .addValue("WarnAndAboveRate")
+            .addValue("TopLoggerRate")
+            .addValue("TopThrowableRate")
             .register(profile);
     }
 }
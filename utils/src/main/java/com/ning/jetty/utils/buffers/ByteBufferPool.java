@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.buffers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of ByteBuffers, organized in power-of-two size classes (heap or direct).
+ * <p/>
+ * Buffers bigger than the largest size class are allocated on demand and never pooled. Each size class
+ * keeps at most maxPooledBytesPerSizeClass bytes worth of idle buffers (at least one buffer), extra
+ * released buffers are left to the garbage collector.
+ */
+public class ByteBufferPool
+{
+    private final boolean direct;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final int minBufferSizeShift;
+
+    private final List<Queue<ByteBuffer>> pools = new ArrayList<Queue<ByteBuffer>>();
+    private final List<AtomicInteger> pooledCounts = new ArrayList<AtomicInteger>();
+    private final int[] maxPooledCounts;
+
+    private final AtomicLong allocations = new AtomicLong(0);
+    private final AtomicLong poolHits = new AtomicLong(0);
+
+    /**
+     * @param direct                     whether to allocate direct buffers
+     * @param minBufferSize              smallest size class (rounded up to a power of two)
+     * @param maxBufferSize              largest size class (rounded up to a power of two)
+     * @param maxPooledBytesPerSizeClass maximum number of idle bytes kept per size class
+     */
+    public ByteBufferPool(final boolean direct, final int minBufferSize, final int maxBufferSize, final long maxPooledBytesPerSizeClass)
+    {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException(String.format("Invalid size classes: [%d, %d]", minBufferSize, maxBufferSize));
+        }
+
+        this.direct = direct;
+        this.minBufferSize = roundUpToPowerOfTwo(minBufferSize);
+        this.maxBufferSize = roundUpToPowerOfTwo(maxBufferSize);
+        this.minBufferSizeShift = Integer.numberOfTrailingZeros(this.minBufferSize);
+
+        final int nbSizeClasses = Integer.numberOfTrailingZeros(this.maxBufferSize) - minBufferSizeShift + 1;
+        this.maxPooledCounts = new int[nbSizeClasses];
+        for (int i = 0; i < nbSizeClasses; i++) {
+            pools.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            pooledCounts.add(new AtomicInteger(0));
+            maxPooledCounts[i] = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxPooledBytesPerSizeClass >> (minBufferSizeShift + i)));
+        }
+    }
+
+    /**
+     * Get a cleared buffer with at least the requested capacity. The actual capacity is the smallest size class
+     * that fits, or exactly minCapacity if it is bigger than the largest size class.
+     *
+     * @param minCapacity minimum capacity required
+     * @return a buffer ready to be written to
+     */
+    public ByteBuffer acquire(final int minCapacity)
+    {
+        if (minCapacity > maxBufferSize) {
+            allocations.incrementAndGet();
+            return allocate(minCapacity);
+        }
+
+        final int sizeClass = sizeClassIndex(minCapacity);
+        final ByteBuffer pooled = pools.get(sizeClass).poll();
+        if (pooled != null) {
+            pooledCounts.get(sizeClass).decrementAndGet();
+            poolHits.incrementAndGet();
+            pooled.clear();
+            return pooled;
+        }
+
+        allocations.incrementAndGet();
+        return allocate(minBufferSize << sizeClass);
+    }
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer buffer previously obtained via acquire
+     */
+    public void release(final ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.isDirect() != direct) {
+            return;
+        }
+
+        final int capacity = buffer.capacity();
+        if (capacity < minBufferSize || capacity > maxBufferSize || Integer.bitCount(capacity) != 1) {
+            // Not one of ours
+            return;
+        }
+
+        final int sizeClass = sizeClassIndex(capacity);
+        if (pooledCounts.get(sizeClass).incrementAndGet() > maxPooledCounts[sizeClass]) {
+            // Pool is full for this size class
+            pooledCounts.get(sizeClass).decrementAndGet();
+            return;
+        }
+        pools.get(sizeClass).offer(buffer);
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    public int getMinBufferSize()
+    {
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize()
+    {
+        return maxBufferSize;
+    }
+
+    /**
+     * @return number of buffers allocated because the pool couldn't satisfy the request
+     */
+    public long getAllocationCount()
+    {
+        return allocations.get();
+    }
+
+    /**
+     * @return number of requests satisfied by a pooled buffer
+     */
+    public long getPoolHitCount()
+    {
+        return poolHits.get();
+    }
+
+    /**
+     * @return number of idle buffers currently in the pool, across all size classes
+     */
+    public int getPooledBufferCount()
+    {
+        int total = 0;
+        for (final AtomicInteger count : pooledCounts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    private int sizeClassIndex(final int capacity)
+    {
+        if (capacity <= minBufferSize) {
+            return 0;
+        }
+        return Integer.numberOfTrailingZeros(roundUpToPowerOfTwo(capacity)) - minBufferSizeShift;
+    }
+
+    private ByteBuffer allocate(final int capacity)
+    {
+        if (direct) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        else {
+            return ByteBuffer.allocate(capacity);
+        }
+    }
+
+    private static int roundUpToPowerOfTwo(final int value)
+    {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("ByteBufferPool");
+        sb.append("{direct=").append(direct);
+        sb.append(", minBufferSize=").append(minBufferSize);
+        sb.append(", maxBufferSize=").append(maxBufferSize);
+        sb.append(", allocations=").append(allocations);
+        sb.append(", poolHits=").append(poolHits);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.buffers;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of Deflater instances, all with the same compression level and format.
+ * <p/>
+ * Deflaters hold native memory (zlib streams) and are expensive to create. At most maxPooled idle instances are kept,
+ * extra released instances are ended right away.
+ */
+public class DeflaterPool
+{
+    private final int level;
+    private final boolean nowrap;
+    private final int maxPooled;
+
+    private final Queue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+
+    private final AtomicLong allocations = new AtomicLong(0);
+    private final AtomicLong poolHits = new AtomicLong(0);
+
+    /**
+     * @param level     compression level (0-9, or Deflater.DEFAULT_COMPRESSION)
+     * @param nowrap    if true, produce raw deflate data (e.g. for gzip), zlib format otherwise
+     * @param maxPooled maximum number of idle instances kept
+     */
+    public DeflaterPool(final int level, final boolean nowrap, final int maxPooled)
+    {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+
+        this.level = level;
+        this.nowrap = nowrap;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a Deflater ready for a new stream
+     */
+    public Deflater acquire()
+    {
+        final Deflater pooled = pool.poll();
+        if (pooled != null) {
+            pooledCount.decrementAndGet();
+            poolHits.incrementAndGet();
+            return pooled;
+        }
+
+        allocations.incrementAndGet();
+        return new Deflater(level, nowrap);
+    }
+
+    /**
+     * Give a Deflater back to the pool. It must not be used by the caller afterwards.
+     *
+     * @param deflater Deflater previously obtained via acquire
+     */
+    public void release(final Deflater deflater)
+    {
+        if (deflater == null) {
+            return;
+        }
+
+        if (pooledCount.incrementAndGet() > maxPooled) {
+            pooledCount.decrementAndGet();
+            deflater.end();
+            return;
+        }
+
+        deflater.reset();
+        pool.offer(deflater);
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    public boolean isNowrap()
+    {
+        return nowrap;
+    }
+
+    /**
+     * @return number of Deflaters created because the pool was empty
+     */
+    public long getAllocationCount()
+    {
+        return allocations.get();
+    }
+
+    /**
+     * @return number of requests satisfied by a pooled Deflater
+     */
+    public long getPoolHitCount()
+    {
+        return poolHits.get();
+    }
+
+    /**
+     * @return number of idle Deflaters currently in the pool
+     */
+    public int getPooledCount()
+    {
+        return pooledCount.get();
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.filters;
+
+import com.ning.jetty.utils.buffers.ByteBufferPool;
+import com.ning.jetty.utils.buffers.DeflaterPool;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * HttpServletResponse wrapper that compresses the body (gzip or deflate), see CompressionFilter.
+ * <p/>
+ * The first minSize bytes are buffered: the decision to compress is taken once the response is known to be big
+ * enough (or its declared Content-Length is), and has a compressible content type. Smaller responses are sent as is,
+ * with a Content-Length. Buffers and Deflaters are borrowed from pools; whoever creates the wrapper must call
+ * finish() once the response is complete, to flush the compressed stream and give them back, or abort() if the
+ * application failed, to give them back without completing the body.
+ */
+public class CompressingResponseWrapper extends HttpServletResponseWrapper
+{
+    public enum Encoding
+    {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String headerValue;
+
+        Encoding(final String headerValue)
+        {
+            this.headerValue = headerValue;
+        }
+
+        public String getHeaderValue()
+        {
+            return headerValue;
+        }
+    }
+
+    private static final byte[] GZIP_HEADER = new byte[]{
+            (byte) 0x1f, (byte) 0x8b, // Magic number
+            Deflater.DEFLATED, // Compression method
+            0, // Flags
+            0, 0, 0, 0, // Modification time
+            0, // Extra flags
+            (byte) 0xff // Operating system (unknown)
+    };
+
+    private enum State
+    {
+        BUFFERING,
+        COMPRESSING,
+        PASSTHROUGH,
+        FINISHED
+    }
+
+    private final Encoding encoding;
+    private final int minSize;
+    private final Set<String> mimeTypes;
+    private final DeflaterPool deflaterPool;
+    private final ByteBufferPool bufferPool;
+    private final int bufferSize;
+
+    private long contentLength = -1;
+    private CompressingOutputStream stream = null;
+    private PrintWriter writer = null;
+
+    /**
+     * @param response     response to wrap
+     * @param encoding     negotiated encoding
+     * @param minSize      responses smaller than this are not compressed
+     * @param mimeTypes    compressible content types (lower case, without parameters)
+     * @param deflaterPool pool of Deflaters, in the format matching the encoding (nowrap for gzip)
+     * @param bufferPool   pool of heap buffers
+     * @param bufferSize   size of the compressed output buffer
+     */
+    public CompressingResponseWrapper(final HttpServletResponse response, final Encoding encoding, final int minSize, final Set<String> mimeTypes,
+                                      final DeflaterPool deflaterPool, final ByteBufferPool bufferPool, final int bufferSize)
+    {
+        super(response);
+        this.encoding = encoding;
+        this.minSize = minSize;
+        this.mimeTypes = mimeTypes;
+        this.deflaterPool = deflaterPool;
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return true if the body is (being) compressed
+     */
+    public boolean isCompressing()
+    {
+        return stream != null && stream.compressed;
+    }
+
+    /**
+     * @return number of body bytes written by the application
+     */
+    public long getUncompressedBytes()
+    {
+        return stream == null ? 0 : stream.bytesIn;
+    }
+
+    /**
+     * @return number of body bytes sent to the wrapped response
+     */
+    public long getCompressedBytes()
+    {
+        return stream == null ? 0 : stream.bytesOut;
+    }
+
+    /**
+     * Complete the body (flushing the compressed stream, if any) and release pooled resources. Idempotent.
+     *
+     * @throws IOException if the body can't be written
+     */
+    public void finish() throws IOException
+    {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.finish();
+        }
+    }
+
+    /**
+     * Release pooled resources without writing anything more (the buffered bytes, if any, are discarded), e.g. when
+     * the application failed: the container can still send an error. Further writes fail. Idempotent.
+     */
+    public void abort()
+    {
+        if (stream != null) {
+            stream.abort();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        return getStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            // Make sure the charset ends up in the Content-Type, as the container's writer would do
+            final String characterEncoding = getCharacterEncoding();
+            setCharacterEncoding(characterEncoding);
+            writer = new PrintWriter(new OutputStreamWriter(getStream(), characterEncoding));
+        }
+        return writer;
+    }
+
+    private CompressingOutputStream getStream()
+    {
+        if (stream == null) {
+            stream = new CompressingOutputStream();
+        }
+        return stream;
+    }
+
+    @Override
+    public void setContentLength(final int len)
+    {
+        interceptContentLength(len);
+    }
+
+    @Override
+    public void setHeader(final String name, final String value)
+    {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            interceptContentLength(value == null ? -1 : Long.parseLong(value));
+        }
+        else {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(final String name, final String value)
+    {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            interceptContentLength(value == null ? -1 : Long.parseLong(value));
+        }
+        else {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(final String name, final int value)
+    {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            interceptContentLength(value);
+        }
+        else {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(final String name, final int value)
+    {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            interceptContentLength(value);
+        }
+        else {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    private void interceptContentLength(final long len)
+    {
+        if (stream != null && stream.state == State.PASSTHROUGH) {
+            super.setHeader("Content-Length", String.valueOf(len));
+        }
+        else if (stream == null || stream.state == State.BUFFERING) {
+            // Don't know yet whether we'll compress
+            contentLength = len;
+        }
+        // Ignored when compressing
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+        super.resetBuffer();
+        if (stream != null && stream.state == State.BUFFERING) {
+            stream.count = 0;
+        }
+    }
+
+    @Override
+    public void reset()
+    {
+        super.reset();
+        contentLength = -1;
+        if (stream != null && stream.state == State.BUFFERING) {
+            stream.count = 0;
+        }
+    }
+
+    private boolean isCompressible()
+    {
+        if (super.containsHeader("Content-Encoding")) {
+            // Already encoded by the application
+            return false;
+        }
+
+        // Some wrappers (e.g. PeepingTomResponseWrapper) don't know the status until it is set explicitly
+        final int status = getStatus();
+        if ((status > 0 && status < 200) || status == SC_NO_CONTENT || status == SC_NOT_MODIFIED) {
+            return false;
+        }
+
+        return isCompressibleContentType();
+    }
+
+    private boolean isCompressibleContentType()
+    {
+        final String contentType = getContentType();
+        if (contentType == null) {
+            return false;
+        }
+
+        final int idx = contentType.indexOf(';');
+        final String mimeType = (idx < 0 ? contentType : contentType.substring(0, idx)).trim().toLowerCase(Locale.US);
+        return mimeTypes.contains(mimeType);
+    }
+
+    private final class CompressingOutputStream extends ServletOutputStream
+    {
+        private State state = State.BUFFERING;
+        private boolean compressed = false;
+
+        // Until we know whether to compress
+        private ByteBuffer pendingBuffer = null;
+        private int count = 0;
+
+        // When compressing
+        private Deflater deflater = null;
+        private ByteBuffer outputBuffer = null;
+        private final CRC32 crc = new CRC32();
+
+        private ServletOutputStream out = null;
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (len == 0) {
+                return;
+            }
+            bytesIn += len;
+
+            switch (state) {
+                case BUFFERING:
+                    if (contentLength >= 0) {
+                        // The application told us what to expect
+                        decide(contentLength >= minSize);
+                        process(b, off, len);
+                    }
+                    else if (count + len < minSize) {
+                        if (pendingBuffer == null) {
+                            pendingBuffer = bufferPool.acquire(minSize);
+                        }
+                        System.arraycopy(b, off, pendingBuffer.array(), count, len);
+                        count += len;
+                    }
+                    else {
+                        decide(true);
+                        process(b, off, len);
+                    }
+                    break;
+                case COMPRESSING:
+                case PASSTHROUGH:
+                    process(b, off, len);
+                    break;
+                default:
+                    throw new IOException("Stream already closed");
+            }
+        }
+
+        private void process(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (state == State.COMPRESSING) {
+                if (encoding == Encoding.GZIP) {
+                    crc.update(b, off, len);
+                }
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+            }
+            else {
+                writeOut(b, off, len);
+            }
+        }
+
+        private void decide(final boolean bigEnough) throws IOException
+        {
+            out = CompressingResponseWrapper.super.getOutputStream();
+
+            if (isCompressibleContentType()) {
+                // The response depends on Accept-Encoding, let caches know
+                CompressingResponseWrapper.super.addHeader("Vary", "Accept-Encoding");
+            }
+
+            if (bigEnough && isCompressible()) {
+                state = State.COMPRESSING;
+                compressed = true;
+                CompressingResponseWrapper.super.setHeader("Content-Encoding", encoding.getHeaderValue());
+                deflater = deflaterPool.acquire();
+                outputBuffer = bufferPool.acquire(bufferSize);
+                if (encoding == Encoding.GZIP) {
+                    writeOut(GZIP_HEADER, 0, GZIP_HEADER.length);
+                }
+            }
+            else {
+                state = State.PASSTHROUGH;
+                if (contentLength >= 0) {
+                    CompressingResponseWrapper.super.setHeader("Content-Length", String.valueOf(contentLength));
+                }
+            }
+
+            if (count > 0) {
+                process(pendingBuffer.array(), 0, count);
+                count = 0;
+            }
+            releasePendingBuffer();
+        }
+
+        private int deflate(final int flush) throws IOException
+        {
+            final int length = deflater.deflate(outputBuffer.array(), 0, outputBuffer.capacity(), flush);
+            if (length > 0) {
+                writeOut(outputBuffer.array(), 0, length);
+            }
+            return length;
+        }
+
+        private void writeOut(final byte[] b, final int off, final int len) throws IOException
+        {
+            out.write(b, off, len);
+            bytesOut += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            switch (state) {
+                case BUFFERING:
+                    // The application wants the bytes out, stream them
+                    decide(true);
+                    flush();
+                    break;
+                case COMPRESSING:
+                    // A full output buffer means there may be more
+                    while (deflate(Deflater.SYNC_FLUSH) == outputBuffer.capacity()) {
+                        // Keep draining
+                    }
+                    out.flush();
+                    break;
+                case PASSTHROUGH:
+                    out.flush();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            finish();
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        private void finish() throws IOException
+        {
+            try {
+                switch (state) {
+                    case BUFFERING:
+                        // Too small to be worth compressing
+                        if (contentLength < 0 && count > 0 && !isCommitted()) {
+                            contentLength = count;
+                        }
+                        decide(false);
+                        break;
+                    case COMPRESSING:
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            deflate(Deflater.NO_FLUSH);
+                        }
+                        if (encoding == Encoding.GZIP) {
+                            writeTrailer();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            finally {
+                state = State.FINISHED;
+                release();
+            }
+        }
+
+        private void abort()
+        {
+            state = State.FINISHED;
+            count = 0;
+            release();
+        }
+
+        private void writeTrailer() throws IOException
+        {
+            final byte[] trailer = new byte[8];
+            writeIntLE((int) crc.getValue(), trailer, 0);
+            writeIntLE((int) deflater.getBytesRead(), trailer, 4);
+            writeOut(trailer, 0, trailer.length);
+        }
+
+        private void writeIntLE(final int value, final byte[] b, final int off)
+        {
+            b[off] = (byte) value;
+            b[off + 1] = (byte) (value >> 8);
+            b[off + 2] = (byte) (value >> 16);
+            b[off + 3] = (byte) (value >> 24);
+        }
+
+        private void releasePendingBuffer()
+        {
+            if (pendingBuffer != null) {
+                bufferPool.release(pendingBuffer);
+                pendingBuffer = null;
+            }
+        }
+
+        private void release()
+        {
+            releasePendingBuffer();
+            if (deflater != null) {
+                deflaterPool.release(deflater);
+                deflater = null;
+            }
+            if (outputBuffer != null) {
+                bufferPool.release(outputBuffer);
+                outputBuffer = null;
+            }
+        }
+    }
+}
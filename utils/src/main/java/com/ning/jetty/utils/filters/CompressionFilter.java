@@ -0,0 +1,290 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.filters;
+
+import com.ning.jetty.utils.buffers.ByteBufferPool;
+import com.ning.jetty.utils.buffers.DeflaterPool;
+import com.ning.jetty.utils.filters.CompressingResponseWrapper.Encoding;
+
+import org.weakref.jmx.Managed;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compress responses (gzip or deflate, as negotiated via Accept-Encoding), independently of the JAX-RS implementation.
+ * <p/>
+ * Only responses with a compressible content type, at least minSize bytes long, are compressed. Install it after
+ * filters which need the number of bytes actually sent (e.g. TrackerFilter), so that they see the compressed stream.
+ */
+public class CompressionFilter implements Filter
+{
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+    // Deflaters are big (a few hundred KB of native memory each)
+    private static final int MAX_POOLED_DEFLATERS = 64;
+
+    private final int minSize;
+    private final Set<String> mimeTypes = new HashSet<String>();
+    private final DeflaterPool gzipDeflaterPool;
+    private final DeflaterPool deflateDeflaterPool;
+    private final ByteBufferPool bufferPool;
+
+    private final AtomicLong compressed = new AtomicLong(0);
+    private final AtomicLong notCompressed = new AtomicLong(0);
+    private final AtomicLong uncompressedBytes = new AtomicLong(0);
+    private final AtomicLong compressedBytes = new AtomicLong(0);
+
+    /**
+     * @param minSize   responses smaller than this (in bytes) are not compressed
+     * @param mimeTypes compressible content types, e.g. application/json
+     * @param level     compression level (0-9, or -1 for the zlib default)
+     */
+    public CompressionFilter(final int minSize, final Collection<String> mimeTypes, final int level)
+    {
+        this.minSize = minSize;
+        for (final String mimeType : mimeTypes) {
+            this.mimeTypes.add(mimeType.trim().toLowerCase(Locale.US));
+        }
+        this.gzipDeflaterPool = new DeflaterPool(level, true, MAX_POOLED_DEFLATERS);
+        this.deflateDeflaterPool = new DeflaterPool(level, false, MAX_POOLED_DEFLATERS);
+        // Buffers for the first minSize bytes and the compressed output
+        this.bufferPool = new ByteBufferPool(false, 1024, Math.max(minSize, OUTPUT_BUFFER_SIZE), 1024 * 1024);
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) throws ServletException
+    {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
+    {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final Encoding encoding = "HEAD".equals(httpRequest.getMethod()) ? null : negotiate(httpRequest.getHeaders("Accept-Encoding"));
+        if (encoding == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final DeflaterPool deflaterPool = encoding == Encoding.GZIP ? gzipDeflaterPool : deflateDeflaterPool;
+        final CompressingResponseWrapper wrappedResponse = new CompressingResponseWrapper((HttpServletResponse) response, encoding, minSize, mimeTypes,
+                                                                                         deflaterPool, bufferPool, OUTPUT_BUFFER_SIZE);
+        boolean success = false;
+        try {
+            chain.doFilter(request, wrappedResponse);
+            success = true;
+        }
+        finally {
+            if (!success) {
+                // Don't commit a truncated response, nor hide the original exception
+                wrappedResponse.abort();
+            }
+        }
+
+        if (request.isAsyncStarted()) {
+            request.getAsyncContext().addListener(new CompletionListener(wrappedResponse));
+        }
+        else {
+            complete(wrappedResponse);
+        }
+    }
+
+    private void complete(final CompressingResponseWrapper wrappedResponse) throws IOException
+    {
+        wrappedResponse.finish();
+
+        if (wrappedResponse.isCompressing()) {
+            compressed.incrementAndGet();
+            uncompressedBytes.addAndGet(wrappedResponse.getUncompressedBytes());
+            compressedBytes.addAndGet(wrappedResponse.getCompressedBytes());
+        }
+        else {
+            notCompressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param acceptEncodingHeaders Accept-Encoding header values
+     * @return the preferred supported encoding (gzip on ties), null if none is acceptable
+     */
+    static Encoding negotiate(final Enumeration<String> acceptEncodingHeaders)
+    {
+        if (acceptEncodingHeaders == null) {
+            return null;
+        }
+
+        double gzipQ = -1;
+        double deflateQ = -1;
+        double wildcardQ = -1;
+        while (acceptEncodingHeaders.hasMoreElements()) {
+            final String header = acceptEncodingHeaders.nextElement();
+            if (header == null) {
+                continue;
+            }
+
+            for (final String token : header.split(",")) {
+                final int idx = token.indexOf(';');
+                final String coding = (idx < 0 ? token : token.substring(0, idx)).trim().toLowerCase(Locale.US);
+                final double q = idx < 0 ? 1.0 : parseQValue(token.substring(idx + 1));
+
+                if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                    gzipQ = Math.max(gzipQ, q);
+                }
+                else if ("deflate".equals(coding)) {
+                    deflateQ = Math.max(deflateQ, q);
+                }
+                else if ("*".equals(coding)) {
+                    wildcardQ = q;
+                }
+            }
+        }
+
+        if (gzipQ < 0) {
+            gzipQ = wildcardQ;
+        }
+        if (deflateQ < 0) {
+            deflateQ = wildcardQ;
+        }
+
+        if (gzipQ > 0 && gzipQ >= deflateQ) {
+            return Encoding.GZIP;
+        }
+        else if (deflateQ > 0) {
+            return Encoding.DEFLATE;
+        }
+        else {
+            return null;
+        }
+    }
+
+    private static double parseQValue(final String parameters)
+    {
+        for (final String parameter : parameters.split(";")) {
+            final String trimmed = parameter.trim();
+            if (trimmed.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(trimmed.substring(2).trim());
+                }
+                catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1.0;
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    @Managed(description = "Number of responses compressed")
+    public long getCompressed()
+    {
+        return compressed.get();
+    }
+
+    @Managed(description = "Number of responses sent as is (too small, not compressible)")
+    public long getNotCompressed()
+    {
+        return notCompressed.get();
+    }
+
+    @Managed(description = "Number of bytes written by the application, for compressed responses")
+    public long getUncompressedBytes()
+    {
+        return uncompressedBytes.get();
+    }
+
+    @Managed(description = "Number of bytes sent, for compressed responses")
+    public long getCompressedBytes()
+    {
+        return compressedBytes.get();
+    }
+
+    @Managed(description = "Compressed size / uncompressed size")
+    public double getCompressionRatio()
+    {
+        final long in = uncompressedBytes.get();
+        return in == 0 ? 1.0 : (double) compressedBytes.get() / in;
+    }
+
+    @Managed(description = "Number of Deflaters created")
+    public long getDeflaterAllocations()
+    {
+        return gzipDeflaterPool.getAllocationCount() + deflateDeflaterPool.getAllocationCount();
+    }
+
+    private final class CompletionListener implements AsyncListener
+    {
+        private final CompressingResponseWrapper wrappedResponse;
+        private volatile boolean failed = false;
+
+        private CompletionListener(final CompressingResponseWrapper wrappedResponse)
+        {
+            this.wrappedResponse = wrappedResponse;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            if (failed) {
+                wrappedResponse.abort();
+            }
+            else {
+                complete(wrappedResponse);
+            }
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException
+        {
+            failed = true;
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.filters;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import java.io.IOException;
+
+/**
+ * Give the capture buffers of PeepingTomRequestWrapper back to the pool once the request is complete, i.e.
+ * at the end of the dispatch, or when the async context completes for asynchronous requests.
+ * <p/>
+ * Register it with the other servlet context listeners, e.g. in web.xml or via HttpServer#configure.
+ */
+public class PeepingTomRequestListener implements ServletRequestListener
+{
+    @Override
+    public void requestInitialized(final ServletRequestEvent event)
+    {
+    }
+
+    @Override
+    public void requestDestroyed(final ServletRequestEvent event)
+    {
+        final ServletRequest request = event.getServletRequest();
+        final PeepingTomRequestWrapper wrapper = (PeepingTomRequestWrapper) request.getAttribute(PeepingTomRequestWrapper.ATTRIBUTE);
+        if (wrapper == null) {
+            return;
+        }
+
+        if (request.isAsyncStarted()) {
+            // The application may still read the body from another thread
+            request.getAsyncContext().addListener(new ReleaseListener(wrapper));
+        }
+        else {
+            wrapper.release();
+        }
+    }
+
+    private static final class ReleaseListener implements AsyncListener
+    {
+        private final PeepingTomRequestWrapper wrapper;
+
+        private ReleaseListener(final PeepingTomRequestWrapper wrapper)
+        {
+            this.wrapper = wrapper;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            wrapper.release();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -16,27 +16,58 @@
 
 package com.ning.jetty.utils.filters;
 
+import com.ning.jetty.utils.buffers.ByteBufferPool;
+
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
  * HttpServletResquest wrapper that exposes the underlying stream and other attributes
+ * <p/>
+ * The body is captured, as it is read by the application, in buffers borrowed from a ByteBufferPool. Nothing is
+ * allocated until the first byte is read. The buffer goes back to the pool when release() is called, which
+ * PeepingTomRequestListener does automatically once the request is complete. Nothing is captured afterwards.
  */
 public class PeepingTomRequestWrapper extends HttpServletRequestWrapper
 {
+    public static final int DEFAULT_MAX_CAPTURED_BYTES = 1024 * 1024;
+    // Request attribute pointing to the wrapper holding a capture buffer, see PeepingTomRequestListener
+    public static final String ATTRIBUTE = PeepingTomRequestWrapper.class.getName();
+
+    // Shared pool used by default: 1KB to 1MB heap buffers, at most 1MB of idle buffers per size class
+    private static final ByteBufferPool DEFAULT_BUFFER_POOL = new ByteBufferPool(false, 1024, DEFAULT_MAX_CAPTURED_BYTES, 1024 * 1024);
+
+    private final ByteBufferPool bufferPool;
+    private final int maxCapturedBytes;
+
     private OpenableServletInputStream stream = null;
+    // Once released, nothing is captured anymore
+    private boolean released = false;
 
     private final String method;
     private final String requestURI;
     private final Map<String, String[]> parameterMap;
 
     public PeepingTomRequestWrapper(final HttpServletRequest request)
+    {
+        this(request, DEFAULT_BUFFER_POOL, DEFAULT_MAX_CAPTURED_BYTES);
+    }
+
+    /**
+     * @param request          request to wrap
+     * @param bufferPool       pool to borrow capture buffers from
+     * @param maxCapturedBytes maximum number of body bytes to capture. The application can still read the full body
+     */
+    public PeepingTomRequestWrapper(final HttpServletRequest request, final ByteBufferPool bufferPool, final int maxCapturedBytes)
     {
         super(request);
+        this.bufferPool = bufferPool;
+        this.maxCapturedBytes = maxCapturedBytes;
         this.method = request.getMethod();
         this.requestURI = request.getRequestURI();
         this.parameterMap = request.getParameterMap();
@@ -56,12 +87,11 @@ public class PeepingTomRequestWrapper extends HttpServletRequestWrapper
 
     private class OpenableServletInputStream extends ServletInputStream
     {
-        final int MAX_BUF_SIZE = 1024 * 1024;
-        int pos = 0;
-
-        final byte[] bytes = new byte[MAX_BUF_SIZE];
         private final ServletInputStream originalInputStream;
 
+        // Lazily borrowed from the pool, on the first byte read
+        private ByteBuffer buffer = null;
+
         public OpenableServletInputStream(final ServletInputStream originalInputStream)
         {
             this.originalInputStream = originalInputStream;
@@ -70,29 +100,85 @@ public class PeepingTomRequestWrapper extends HttpServletRequestWrapper
         @Override
         public int read() throws IOException
         {
-            if (pos >= MAX_BUF_SIZE) {
-                return -1;
+            final int b = originalInputStream.read();
+            if (b != -1 && ensureCapacity(1) > 0) {
+                buffer.put((byte) b);
             }
-            final int n = originalInputStream.read(bytes, pos, 1);
-            pos++;
+            return b;
+        }
 
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            final int n = originalInputStream.read(b, off, len);
             if (n > 0) {
-                return bytes[pos - 1];
+                final int toCapture = ensureCapacity(n);
+                if (toCapture > 0) {
+                    buffer.put(b, off, toCapture);
+                }
             }
-            else {
-                return n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return originalInputStream.available();
+        }
+
+        /**
+         * Make room in the buffer, growing it if needed
+         *
+         * @param len number of bytes we'd like to capture
+         * @return number of bytes that can actually be captured, given the cap
+         */
+        private int ensureCapacity(final int len)
+        {
+            final int captured = buffer == null ? 0 : buffer.position();
+            final int toCapture = Math.min(len, maxCapturedBytes - captured);
+            if (toCapture <= 0 || released) {
+                return 0;
             }
+
+            if (buffer == null) {
+                buffer = bufferPool.acquire(toCapture);
+                // For PeepingTomRequestListener to release it
+                setAttribute(ATTRIBUTE, PeepingTomRequestWrapper.this);
+            }
+            else if (buffer.remaining() < toCapture) {
+                final int newCapacity = Math.min(maxCapturedBytes, Math.max(captured + toCapture, buffer.capacity() * 2));
+                final ByteBuffer biggerBuffer = bufferPool.acquire(newCapacity);
+                buffer.flip();
+                biggerBuffer.put(buffer);
+                bufferPool.release(buffer);
+                buffer = biggerBuffer;
+            }
+
+            return toCapture;
         }
 
         public ByteArrayInputStream getInputStream() throws IOException
         {
-            if (bytes[0] == 0) {
+            if (buffer == null || buffer.position() == 0) {
                 return null;
             }
             else {
+                // Copy the bytes, the buffer goes back to the pool eventually
+                final byte[] bytes = new byte[buffer.position()];
+                final ByteBuffer view = buffer.duplicate();
+                view.flip();
+                view.get(bytes);
                 return new ByteArrayInputStream(bytes);
             }
         }
+
+        public void release()
+        {
+            if (buffer != null) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
     }
 
     @Override
@@ -136,4 +222,16 @@ public class PeepingTomRequestWrapper extends HttpServletRequestWrapper
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Give the capture buffer back to the pool. The captured body is not available anymore afterwards, and the rest
+     * of the body isn't captured.
+     */
+    public void release()
+    {
+        released = true;
+        if (stream != null) {
+            stream.release();
+        }
+    }
+}
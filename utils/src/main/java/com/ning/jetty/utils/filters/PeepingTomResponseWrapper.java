@@ -35,15 +35,57 @@ import java.util.Map;
  */
 public class PeepingTomResponseWrapper extends ServletResponseWrapper implements HttpServletResponse
 {
+    /**
+     * How much of the response body is kept around, in addition to being sent to the client
+     */
+    public enum CaptureMode
+    {
+        /**
+         * Keep a copy of the full body (default)
+         */
+        FULL,
+        /**
+         * Keep a copy of the first bytes of the body only
+         */
+        PREFIX,
+        /**
+         * Don't keep any copy, only count the bytes written
+         */
+        COUNT
+    }
+
     private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+    private final CaptureMode captureMode;
+    private final int maxCapturedBytes;
 
     private OpenableServletOutputStream stream = null;
     private volatile int status = -1;
     private volatile Long firstByteReceived = null;
+    private volatile long firstByteReceivedNanos = 0;
 
     public PeepingTomResponseWrapper(final ServletResponse response)
+    {
+        this(response, CaptureMode.FULL);
+    }
+
+    public PeepingTomResponseWrapper(final ServletResponse response, final CaptureMode captureMode)
+    {
+        this(response, captureMode, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param response         response to wrap
+     * @param captureMode      how much of the body to keep a copy of
+     * @param maxCapturedBytes maximum number of bytes to keep in PREFIX mode (ignored otherwise)
+     */
+    public PeepingTomResponseWrapper(final ServletResponse response, final CaptureMode captureMode, final int maxCapturedBytes)
     {
         super(response);
+        if (maxCapturedBytes < 0) {
+            throw new IllegalArgumentException("maxCapturedBytes must be positive: " + maxCapturedBytes);
+        }
+        this.captureMode = captureMode;
+        this.maxCapturedBytes = captureMode == CaptureMode.PREFIX ? maxCapturedBytes : Integer.MAX_VALUE;
     }
 
     public Map<String, List<String>> getHeaders()
@@ -51,9 +93,17 @@ public class PeepingTomResponseWrapper extends ServletResponseWrapper implements
         return headers;
     }
 
+    /**
+     * @return the status code set by the application, or the one of the wrapped response (e.g. an implicit 200)
+     */
     public int getStatus()
     {
-        return status;
+        if (status != -1) {
+            return status;
+        }
+        else {
+            return this._getHttpServletResponse().getStatus();
+        }
     }
 
     public Long getTimeOfFirstByte()
@@ -61,33 +111,126 @@ public class PeepingTomResponseWrapper extends ServletResponseWrapper implements
         return firstByteReceived;
     }
 
+    /**
+     * @return System.nanoTime() when the first byte was written, 0 if nothing was written yet
+     */
+    public long getNanoTimeOfFirstByte()
+    {
+        return firstByteReceivedNanos;
+    }
+
+    public CaptureMode getCaptureMode()
+    {
+        return captureMode;
+    }
+
+    /**
+     * @return the number of body bytes written to the client so far, regardless of the capture mode
+     */
+    public long getBytesWritten()
+    {
+        if (stream == null) {
+            return 0;
+        }
+        else {
+            return stream.getBytesWritten();
+        }
+    }
+
     private class OpenableServletOutputStream extends ServletOutputStream
     {
-        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // null in COUNT mode
+        private final ByteArrayOutputStream outputStream;
         private ServletOutputStream originalOutputStream = null;
         private PrintWriter originalWriter = null;
+        private long bytesWritten = 0;
 
         public OpenableServletOutputStream(final ServletOutputStream originalOutputStream)
         {
+            this.outputStream = createCaptureStream();
             this.originalOutputStream = originalOutputStream;
         }
 
         public OpenableServletOutputStream(final PrintWriter originalWriter)
         {
+            this.outputStream = createCaptureStream();
             this.originalWriter = originalWriter;
         }
 
+        private ByteArrayOutputStream createCaptureStream()
+        {
+            switch (captureMode) {
+                case COUNT:
+                    return null;
+                case PREFIX:
+                    // Don't pre-allocate more than we'll ever need
+                    return new ByteArrayOutputStream(Math.min(maxCapturedBytes, 512));
+                default:
+                    return new ByteArrayOutputStream();
+            }
+        }
+
         @Override
         public void write(final int b) throws IOException
         {
-            outputStream.write(b);
+            if (outputStream != null && outputStream.size() < maxCapturedBytes) {
+                outputStream.write(b);
+            }
+
             if (originalOutputStream != null) {
                 originalOutputStream.write(b);
             }
             else {
                 originalWriter.write(b);
             }
-            firstByteReceived = System.currentTimeMillis();
+
+            recordWrite(1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (len == 0) {
+                return;
+            }
+
+            if (outputStream != null) {
+                final int room = maxCapturedBytes - outputStream.size();
+                if (room > 0) {
+                    outputStream.write(b, off, Math.min(room, len));
+                }
+            }
+
+            if (originalOutputStream != null) {
+                originalOutputStream.write(b, off, len);
+            }
+            else {
+                for (int i = off; i < off + len; i++) {
+                    originalWriter.write(b[i] & 0xFF);
+                }
+            }
+
+            recordWrite(len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (originalOutputStream != null) {
+                originalOutputStream.flush();
+            }
+            else {
+                originalWriter.flush();
+            }
+        }
+
+        private void recordWrite(final int len)
+        {
+            if (bytesWritten == 0) {
+                firstByteReceivedNanos = System.nanoTime();
+                firstByteReceived = System.currentTimeMillis();
+            }
+            bytesWritten += len;
         }
 
         public ByteArrayOutputStream getOutputStream()
@@ -95,10 +238,20 @@ public class PeepingTomResponseWrapper extends ServletResponseWrapper implements
             return outputStream;
         }
 
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
         @Override
         public String toString()
         {
-            return String.valueOf(outputStream);
+            if (outputStream == null) {
+                return "<" + bytesWritten + " bytes>";
+            }
+            else {
+                return String.valueOf(outputStream);
+            }
         }
     }
 
@@ -118,6 +271,9 @@ public class PeepingTomResponseWrapper extends ServletResponseWrapper implements
         return stream;
     }
 
+    /**
+     * @return the captured body (truncated in PREFIX mode), or null if nothing was written or nothing is captured (COUNT mode)
+     */
     public ByteArrayOutputStream getUnderlyingStream()
     {
         if (stream == null) {
@@ -169,18 +325,21 @@ public class PeepingTomResponseWrapper extends ServletResponseWrapper implements
     @Override
     public void sendError(final int sc, final String msg) throws IOException
     {
+        status = sc;
         this._getHttpServletResponse().sendError(sc, msg);
     }
 
     @Override
     public void sendError(final int sc) throws IOException
     {
+        status = sc;
         this._getHttpServletResponse().sendError(sc);
     }
 
     @Override
     public void sendRedirect(final String location) throws IOException
     {
+        status = HttpServletResponse.SC_MOVED_TEMPORARILY;
         this._getHttpServletResponse().sendRedirect(location);
     }
 
@@ -280,7 +439,8 @@ public class PeepingTomResponseWrapper extends ServletResponseWrapper implements
     {
         final StringBuilder sb = new StringBuilder();
         sb.append("PeepingTomResponseWrapper");
-        sb.append("{firstByteReceived=").append(firstByteReceived);
+        sb.append("{captureMode=").append(captureMode);
+        sb.append(", firstByteReceived=").append(firstByteReceived);
         sb.append(", headers=").append(headers);
         sb.append(", status=").append(status);
         sb.append(", stream=").append(stream);
@@ -20,13 +20,19 @@ import com.google.common.io.ByteStreams;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.mogwee.executors.Executors;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.Request;
 import com.ning.http.client.RequestBuilder;
 import com.ning.http.client.Response;
 import com.ning.http.client.generators.InputStreamBodyGenerator;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -42,11 +48,34 @@ import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Proxy all requests to the host returned by the ServiceFinder.
+ * <p/>
+ * By default, the Jetty worker thread waits for the full upstream response before copying it to the client.
+ * Set the init parameter "async" to true to use Servlet 3.0 async instead: the worker thread is released right away
+ * and the status, headers and body chunks are streamed to the client as they arrive from the remote host. This requires
+ * all filters and servlets in the chain to support async; requests that don't are proxied synchronously.
+ * <p/>
+ * In async mode, body chunks are copied off the AsyncHttpClient I/O threads and written to the client from a separate
+ * pool, so that a slow client doesn't hold up the other connections served by the same I/O thread. The I/O threads
+ * never wait for a client: memory is bounded by MAX_PENDING_BYTES (plus one chunk) per request. A client falling
+ * further behind gets its response cut short (the upstream request is aborted), as if the connection had failed.
+ */
 @Singleton
 public class HttpProxyServlet extends HttpServlet
 {
+    public static final String ASYNC_INIT_PARAMETER = "async";
+    // Per request, in async mode
+    public static final int MAX_PENDING_BYTES = 1024 * 1024;
+
     protected HashSet<String> dontProxyHeaders = new HashSet<String>();
 
     {
@@ -66,6 +95,8 @@ public class HttpProxyServlet extends HttpServlet
 
     private ServletConfig config;
     private AsyncHttpClient client;
+    private ExecutorService writerExecutor;
+    private boolean async = false;
 
     @Override
     public void init(final ServletConfig config) throws ServletException
@@ -81,7 +112,12 @@ public class HttpProxyServlet extends HttpServlet
         builder.setUserAgent("ning-service/1.0");
         client = new AsyncHttpClient(builder.build());
 
-        config.getServletContext().log("Created new HttpProxyServlet");
+        async = Boolean.valueOf(config.getInitParameter(ASYNC_INIT_PARAMETER));
+        if (async) {
+            writerExecutor = Executors.newCachedThreadPool("HttpProxyServlet-writer");
+        }
+
+        config.getServletContext().log("Created new HttpProxyServlet (async=" + async + ")");
     }
 
     @Override
@@ -90,13 +126,14 @@ public class HttpProxyServlet extends HttpServlet
         return config;
     }
 
-    private void proxyService(final ServletRequest req, ServletResponse res) throws ServletException, IOException
+    private void proxyService(final ServletRequest req, final ServletResponse res) throws ServletException, IOException
     {
-        while (res instanceof HttpServletResponseWrapper) {
-            res = ((HttpServletResponseWrapper) res).getResponse();
+        ServletResponse unwrapped = res;
+        while (unwrapped instanceof HttpServletResponseWrapper) {
+            unwrapped = ((HttpServletResponseWrapper) unwrapped).getResponse();
         }
         final HttpServletRequest request = (HttpServletRequest) req;
-        final HttpServletResponse response = (HttpServletResponse) res;
+        final HttpServletResponse response = (HttpServletResponse) unwrapped;
 
         // Find the remote host to talk to
         final String remoteHost;
@@ -108,15 +145,31 @@ public class HttpProxyServlet extends HttpServlet
             throw new UnavailableException("The service finder couldn't find the remote host: " + (e.getCause() == null ? e.toString() : e.getCause().toString()), -1);
         }
         final String proxyTo = "http://" + remoteHost;
+        final long startMillis = System.currentTimeMillis();
 
         // Create the new http request to the proxied host
-        final Request newRequest = cloneRequest(request, proxyTo).build();
+        final Request newRequest;
+        try {
+            newRequest = cloneRequest(request, proxyTo).build();
+        }
+        catch (IOException e) {
+            // Failed reading the client's request: the backend was never contacted and isn't to blame
+            requestAborted(remoteHost);
+            throw e;
+        }
         final AsyncHttpClient.BoundRequestBuilder builder = client.prepareRequest(newRequest);
 
+        if (async && request.isAsyncSupported()) {
+            // Through the filters' wrappers, for e.g. the TrackerFilter to see the status and bytes sent once the request completes
+            proxyServiceAsync(request, (HttpServletResponse) res, builder, remoteHost, startMillis);
+            return;
+        }
+
         Response proxiedResponse = null;
+        boolean success = false;
         try {
-            // Me want Servlet 3.0 :(
             proxiedResponse = builder.execute().get();
+            success = isSuccess(proxiedResponse.getStatusCode());
         }
         catch (InterruptedException e) {
             config.getServletContext().log("Interrupted while waiting on the remote host", e);
@@ -126,22 +179,288 @@ public class HttpProxyServlet extends HttpServlet
             config.getServletContext().log("Error talking to the remote host", e);
             return;
         }
+        finally {
+            requestCompleted(remoteHost, startMillis, success);
+        }
 
         response.setStatus(proxiedResponse.getStatusCode());
         // Copy headers
-        for (final String headerName : proxiedResponse.getHeaders().keySet()) {
+        copyHeaders(proxiedResponse.getHeaders(), response);
+        // Copy response body
+        final ServletOutputStream responseOutputStream = response.getOutputStream();
+        final InputStream stream = proxiedResponse.getResponseBodyAsStream();
+        ByteStreams.copy(stream, responseOutputStream);
+    }
+
+    private void proxyServiceAsync(final HttpServletRequest request, final HttpServletResponse response, final AsyncHttpClient.BoundRequestBuilder builder,
+                                   final String remoteHost, final long startMillis) throws IOException
+    {
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        // The AsyncHttpClient request timeout applies
+        asyncContext.setTimeout(0);
+
+        final StreamingAsyncHandler handler = new StreamingAsyncHandler(asyncContext, response, remoteHost, startMillis);
+        try {
+            builder.execute(handler);
+        }
+        catch (IOException e) {
+            handler.onThrowable(e);
+        }
+    }
+
+    /**
+     * Give feedback to load balancing service finders
+     */
+    private void requestCompleted(final String remoteHost, final long startMillis, final boolean success)
+    {
+        if (serviceFinder instanceof LoadBalancedServiceFinder) {
+            ((LoadBalancedServiceFinder) serviceFinder).requestCompleted(remoteHost, System.currentTimeMillis() - startMillis, success);
+        }
+    }
+
+    private void requestAborted(final String remoteHost)
+    {
+        if (serviceFinder instanceof LoadBalancedServiceFinder) {
+            ((LoadBalancedServiceFinder) serviceFinder).requestAborted(remoteHost);
+        }
+    }
+
+    private boolean isSuccess(final int statusCode)
+    {
+        // 5xx are the backend's fault, 4xx are the client's
+        return statusCode < 500;
+    }
+
+    private void copyHeaders(final FluentCaseInsensitiveStringsMap headers, final HttpServletResponse response)
+    {
+        for (final String headerName : headers.keySet()) {
             if (dontProxyHeaders.contains(headerName)) {
                 continue;
             }
 
-            for (final String headerValue : proxiedResponse.getHeaders().get(headerName)) {
+            for (final String headerValue : headers.get(headerName)) {
                 response.addHeader(headerName, headerValue);
             }
         }
-        // Copy response body
-        final ServletOutputStream responseOutputStream = response.getOutputStream();
-        final InputStream stream = proxiedResponse.getResponseBodyAsStream();
-        ByteStreams.copy(stream, responseOutputStream);
+    }
+
+    /**
+     * Stream the remote response to the client as it arrives. All callbacks are invoked on AsyncHttpClient I/O threads,
+     * writes to the client are done, in order, from the writer pool.
+     */
+    private final class StreamingAsyncHandler implements AsyncHandler<Void>
+    {
+        private final AsyncContext asyncContext;
+        private final HttpServletResponse response;
+        private final String remoteHost;
+        private final long startMillis;
+        private final AtomicBoolean feedbackSent = new AtomicBoolean(false);
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private volatile int statusCode = -1;
+
+        // Tasks for the writer pool, run one at a time
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final Runnable drainer = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drainTasks();
+            }
+        };
+
+        // Received, not written to the client yet
+        private final AtomicLong pendingBytes = new AtomicLong(0);
+        private volatile boolean clientFailed = false;
+
+        private StreamingAsyncHandler(final AsyncContext asyncContext, final HttpServletResponse response, final String remoteHost, final long startMillis)
+        {
+            this.asyncContext = asyncContext;
+            this.response = response;
+            this.remoteHost = remoteHost;
+            this.startMillis = startMillis;
+        }
+
+        @Override
+        public STATE onStatusReceived(final HttpResponseStatus responseStatus) throws Exception
+        {
+            statusCode = responseStatus.getStatusCode();
+            response.setStatus(statusCode);
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception
+        {
+            copyHeaders(headers.getHeaders(), response);
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception
+        {
+            if (clientFailed) {
+                // No need to keep reading from the remote host
+                return STATE.ABORT;
+            }
+
+            final byte[] bytes = bodyPart.getBodyPartBytes();
+            if (bytes.length == 0) {
+                return STATE.CONTINUE;
+            }
+            if (!reserve(bytes.length)) {
+                config.getServletContext().log(String.format("The client of %s can't keep up (more than %d bytes pending), aborting", remoteHost, MAX_PENDING_BYTES));
+                clientFailed = true;
+                // Not the remote host's fault
+                feedback(isSuccess(statusCode));
+                submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        complete();
+                    }
+                });
+                return STATE.ABORT;
+            }
+
+            submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    write(bytes);
+                }
+            });
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public Void onCompleted() throws Exception
+        {
+            feedback(isSuccess(statusCode));
+            submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    complete();
+                }
+            });
+            return null;
+        }
+
+        @Override
+        public void onThrowable(final Throwable t)
+        {
+            config.getServletContext().log("Error talking to the remote host", t);
+            feedback(false);
+            submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (!clientFailed && !response.isCommitted()) {
+                        try {
+                            response.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+                        }
+                        catch (IOException ignored) {
+                        }
+                    }
+                    complete();
+                }
+            });
+        }
+
+        /**
+         * Account for a chunk waiting to be written, without waiting for the client (a single chunk is always accepted)
+         *
+         * @return false if the client is too far behind
+         */
+        private boolean reserve(final int length)
+        {
+            final long pending = pendingBytes.addAndGet(length);
+            if (pending > length && pending > MAX_PENDING_BYTES) {
+                pendingBytes.addAndGet(-length);
+                return false;
+            }
+            return true;
+        }
+
+        private void write(final byte[] bytes)
+        {
+            try {
+                if (!clientFailed) {
+                    final ServletOutputStream responseOutputStream = response.getOutputStream();
+                    responseOutputStream.write(bytes);
+                    // Flush once the chunks received so far are written
+                    if (tasks.isEmpty()) {
+                        responseOutputStream.flush();
+                    }
+                }
+            }
+            catch (IOException e) {
+                // The client went away
+                config.getServletContext().log("Error streaming the response to the client", e);
+                clientFailed = true;
+                feedback(isSuccess(statusCode));
+                complete();
+            }
+            finally {
+                pendingBytes.addAndGet(-bytes.length);
+            }
+        }
+
+        private void submit(final Runnable task)
+        {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule()
+        {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writerExecutor.execute(drainer);
+                }
+                catch (RejectedExecutionException e) {
+                    // Shutting down
+                    scheduled.set(false);
+                    tasks.clear();
+                    clientFailed = true;
+                    complete();
+                }
+            }
+        }
+
+        private void drainTasks()
+        {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            scheduled.set(false);
+
+            // A task may have been added after the last poll
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void feedback(final boolean success)
+        {
+            if (feedbackSent.compareAndSet(false, true)) {
+                requestCompleted(remoteHost, startMillis, success);
+            }
+        }
+
+        private void complete()
+        {
+            if (completed.compareAndSet(false, true)) {
+                asyncContext.complete();
+            }
+        }
     }
 
     private RequestBuilder cloneRequest(final HttpServletRequest request, final String proxyTo) throws IOException
@@ -219,6 +538,9 @@ public class HttpProxyServlet extends HttpServlet
         if (client != null) {
             client.close();
         }
+        if (writerExecutor != null) {
+            writerExecutor.shutdown();
+        }
     }
 
     @Override
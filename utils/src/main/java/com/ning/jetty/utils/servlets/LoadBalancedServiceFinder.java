@@ -0,0 +1,29 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets;
+
+/**
+ * ServiceFinder that wants to hear back about the requests sent to the hosts it returned.
+ * Every successful call to getRemoteHost() must be followed by exactly one call to requestCompleted(),
+ * or to requestAborted() if nothing was sent to the remote host.
+ */
+public interface LoadBalancedServiceFinder extends ServiceFinder
+{
+    public void requestCompleted(final String remoteHost, final long latencyMillis, final boolean success);
+
+    public void requestAborted(final String remoteHost);
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-backend state: in-flight requests, latency EWMA and passive health
+ */
+public class Backend
+{
+    // Time constant of the latency EWMA: a sample weighs 1/e after that long
+    private static final long LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String host;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong successes = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong ejections = new AtomicLong(0);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    private volatile long ejectedUntilMillis = 0;
+
+    // Guarded by this
+    private double latencyEwmaMillis = 0;
+    private long lastLatencyUpdateNanos = -1;
+
+    public Backend(final String host)
+    {
+        this.host = host;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public long getSuccesses()
+    {
+        return successes.get();
+    }
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    public long getEjections()
+    {
+        return ejections.get();
+    }
+
+    public synchronized double getLatencyEwmaMillis()
+    {
+        return latencyEwmaMillis;
+    }
+
+    public boolean isEjected(final long nowMillis)
+    {
+        return nowMillis < ejectedUntilMillis;
+    }
+
+    void requestStarted()
+    {
+        inFlight.incrementAndGet();
+    }
+
+    void requestCompleted(final long latencyMillis, final boolean success, final int maxConsecutiveFailures, final long ejectionMillis)
+    {
+        inFlight.decrementAndGet();
+
+        if (success) {
+            successes.incrementAndGet();
+            consecutiveFailures.set(0);
+            updateLatency(latencyMillis);
+        }
+        else {
+            failures.incrementAndGet();
+            if (consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures) {
+                // Passive health check failed: take the backend out of rotation for a while
+                consecutiveFailures.set(0);
+                ejectedUntilMillis = System.currentTimeMillis() + ejectionMillis;
+                ejections.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Release a pick which never reached the backend (e.g. the client failed first): neither a success nor a failure
+     */
+    void requestAborted()
+    {
+        inFlight.decrementAndGet();
+    }
+
+    private synchronized void updateLatency(final long latencyMillis)
+    {
+        final long now = System.nanoTime();
+        if (lastLatencyUpdateNanos < 0) {
+            latencyEwmaMillis = latencyMillis;
+        }
+        else {
+            final double weight = Math.exp(-(double) (now - lastLatencyUpdateNanos) / LATENCY_DECAY_NANOS);
+            latencyEwmaMillis = latencyEwmaMillis * weight + latencyMillis * (1 - weight);
+        }
+        lastLatencyUpdateNanos = now;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: inFlight=%d, latencyEwma=%.1fms, successes=%d, failures=%d, ejections=%d, ejected=%s",
+                             host, getInFlight(), getLatencyEwmaMillis(), getSuccesses(), getFailures(), getEjections(),
+                             isEjected(System.currentTimeMillis()));
+    }
+}
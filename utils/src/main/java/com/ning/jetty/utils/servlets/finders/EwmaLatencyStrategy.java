@@ -0,0 +1,31 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+/**
+ * Power of two choices, weighted by latency: the cost of a backend is its latency EWMA
+ * multiplied by the number of requests that would be in flight if we picked it.
+ */
+public class EwmaLatencyStrategy extends PowerOfTwoChoicesStrategy
+{
+    @Override
+    protected double cost(final Backend backend)
+    {
+        // Backends without samples yet are considered fast (1ms), to get some traffic
+        return Math.max(1.0, backend.getLatencyEwmaMillis()) * (backend.getInFlight() + 1);
+    }
+}
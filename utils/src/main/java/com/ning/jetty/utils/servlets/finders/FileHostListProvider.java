@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads hosts from a file, one host:port per line (blank lines and lines starting with # are ignored).
+ * The file is re-read when its modification time changes, at most once per refresh interval.
+ */
+public class FileHostListProvider implements HostListProvider
+{
+    private static final Logger log = LoggerFactory.getLogger(FileHostListProvider.class);
+
+    private final File file;
+    private final long refreshIntervalMillis;
+
+    private volatile List<String> hosts = ImmutableList.of();
+    private volatile long lastModified = -1;
+    private volatile long nextCheckMillis = 0;
+
+    public FileHostListProvider(final File file, final long refreshIntervalMillis)
+    {
+        this.file = file;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        refresh();
+    }
+
+    @Override
+    public List<String> getHosts()
+    {
+        if (System.currentTimeMillis() >= nextCheckMillis) {
+            refresh();
+        }
+        return hosts;
+    }
+
+    private synchronized void refresh()
+    {
+        final long now = System.currentTimeMillis();
+        if (now < nextCheckMillis) {
+            // Another thread beat us to it
+            return;
+        }
+        nextCheckMillis = now + refreshIntervalMillis;
+
+        final long modified = file.lastModified();
+        if (modified == lastModified) {
+            return;
+        }
+
+        try {
+            final ImmutableList.Builder<String> builder = ImmutableList.builder();
+            for (final String line : Files.readLines(file, Charsets.UTF_8)) {
+                final String host = line.trim();
+                if (!host.isEmpty() && !host.startsWith("#")) {
+                    builder.add(host);
+                }
+            }
+            hosts = builder.build();
+            lastModified = modified;
+            log.info("Loaded {} hosts from {}", hosts.size(), file);
+        }
+        catch (IOException e) {
+            // Keep the previous list
+            log.warn("Unable to read hosts from {}: {}", file, e.toString());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import java.util.List;
+
+/**
+ * Source of the backend hosts (host:port) for the LoadBalancingServiceFinder
+ */
+public interface HostListProvider
+{
+    /**
+     * This is called on every request: implementations should be cheap and return the same
+     * instance as long as the list doesn't change.
+     *
+     * @return the current list of hosts
+     */
+    public List<String> getHosts();
+}
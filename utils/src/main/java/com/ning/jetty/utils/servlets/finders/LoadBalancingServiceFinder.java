@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import com.ning.jetty.utils.servlets.LoadBalancedServiceFinder;
+
+import com.google.common.collect.ImmutableList;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ServiceFinder spreading requests across several backends. To use it with the HttpProxyServlet:
+ * <p/>
+ * bind(ServiceFinder.class).toInstance(new LoadBalancingServiceFinder(new StaticHostListProvider("host1:8080", "host2:8080"), new EwmaLatencyStrategy()));
+ * <p/>
+ * Backends failing maxConsecutiveFailures requests in a row are ejected for ejectionMillis (passive health check).
+ * If all backends are ejected, all of them are considered again rather than failing every request.
+ * Export this class via JMX to see per-backend stats.
+ */
+public class LoadBalancingServiceFinder implements LoadBalancedServiceFinder
+{
+    public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 5;
+    public static final long DEFAULT_EJECTION_MILLIS = 30 * 1000L;
+
+    private final HostListProvider hostListProvider;
+    private final BackendSelectionStrategy strategy;
+    private final int maxConsecutiveFailures;
+    private final long ejectionMillis;
+
+    private final ConcurrentMap<String, Backend> backendsByHost = new ConcurrentHashMap<String, Backend>();
+    private volatile List<String> currentHosts = null;
+    private volatile List<Backend> currentBackends = ImmutableList.of();
+
+    public LoadBalancingServiceFinder(final HostListProvider hostListProvider, final BackendSelectionStrategy strategy)
+    {
+        this(hostListProvider, strategy, DEFAULT_MAX_CONSECUTIVE_FAILURES, DEFAULT_EJECTION_MILLIS);
+    }
+
+    public LoadBalancingServiceFinder(final HostListProvider hostListProvider, final BackendSelectionStrategy strategy,
+                                      final int maxConsecutiveFailures, final long ejectionMillis)
+    {
+        this.hostListProvider = hostListProvider;
+        this.strategy = strategy;
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    @Override
+    public String getRemoteHost()
+    {
+        final List<Backend> backends = getBackends();
+        if (backends.isEmpty()) {
+            throw new IllegalStateException("No backend configured");
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<Backend> healthyBackends = new ArrayList<Backend>(backends.size());
+        for (final Backend backend : backends) {
+            if (!backend.isEjected(now)) {
+                healthyBackends.add(backend);
+            }
+        }
+
+        final Backend backend = strategy.select(healthyBackends.isEmpty() ? backends : healthyBackends);
+        backend.requestStarted();
+        return backend.getHost();
+    }
+
+    @Override
+    public void requestCompleted(final String remoteHost, final long latencyMillis, final boolean success)
+    {
+        final Backend backend = backendsByHost.get(remoteHost);
+        if (backend != null) {
+            backend.requestCompleted(latencyMillis, success, maxConsecutiveFailures, ejectionMillis);
+        }
+    }
+
+    @Override
+    public void requestAborted(final String remoteHost)
+    {
+        final Backend backend = backendsByHost.get(remoteHost);
+        if (backend != null) {
+            backend.requestAborted();
+        }
+    }
+
+    public List<Backend> getBackends()
+    {
+        final List<String> hosts = hostListProvider.getHosts();
+        if (hosts != currentHosts) {
+            refreshBackends(hosts);
+        }
+        return currentBackends;
+    }
+
+    private synchronized void refreshBackends(final List<String> hosts)
+    {
+        if (hosts == currentHosts) {
+            return;
+        }
+
+        final ImmutableList.Builder<Backend> builder = ImmutableList.builder();
+        for (final String host : hosts) {
+            // Keep the stats of existing backends
+            Backend backend = backendsByHost.get(host);
+            if (backend == null) {
+                backend = new Backend(host);
+                backendsByHost.put(host, backend);
+            }
+            builder.add(backend);
+        }
+        backendsByHost.keySet().retainAll(hosts);
+
+        currentBackends = builder.build();
+        currentHosts = hosts;
+    }
+
+    @Managed(description = "Selection strategy")
+    public String getStrategy()
+    {
+        return strategy.getClass().getSimpleName();
+    }
+
+    @Managed(description = "Number of configured backends")
+    public int getNbBackends()
+    {
+        return getBackends().size();
+    }
+
+    @Managed(description = "Number of backends not ejected by the passive health check")
+    public int getNbHealthyBackends()
+    {
+        final long now = System.currentTimeMillis();
+        int healthy = 0;
+        for (final Backend backend : getBackends()) {
+            if (!backend.isEjected(now)) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    @Managed(description = "Per-backend stats")
+    public String[] getBackendStats()
+    {
+        final List<Backend> backends = getBackends();
+        final String[] stats = new String[backends.size()];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = backends.get(i).toString();
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Pick two backends at random and keep the one with the lowest cost. By default, the cost is
+ * the number of in-flight requests.
+ */
+public class PowerOfTwoChoicesStrategy implements BackendSelectionStrategy
+{
+    private final Random random = new Random();
+
+    @Override
+    public Backend select(final List<Backend> candidates)
+    {
+        final int size = candidates.size();
+        if (size == 1) {
+            return candidates.get(0);
+        }
+
+        final int first = random.nextInt(size);
+        // Make sure we pick two different backends
+        final int second = (first + 1 + random.nextInt(size - 1)) % size;
+
+        final Backend a = candidates.get(first);
+        final Backend b = candidates.get(second);
+        return cost(b) < cost(a) ? b : a;
+    }
+
+    protected double cost(final Backend backend)
+    {
+        return backend.getInFlight();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoundRobinStrategy implements BackendSelectionStrategy
+{
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    @Override
+    public Backend select(final List<Backend> candidates)
+    {
+        // Mask the sign bit to survive the counter wrapping around
+        final int index = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        return candidates.get(index);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Fixed list of hosts, e.g. from a comma separated configuration value
+ */
+public class StaticHostListProvider implements HostListProvider
+{
+    private final List<String> hosts;
+
+    public StaticHostListProvider(final List<String> hosts)
+    {
+        this.hosts = ImmutableList.copyOf(hosts);
+    }
+
+    public StaticHostListProvider(final String... hosts)
+    {
+        this.hosts = ImmutableList.copyOf(hosts);
+    }
+
+    @Override
+    public List<String> getHosts()
+    {
+        return hosts;
+    }
+}
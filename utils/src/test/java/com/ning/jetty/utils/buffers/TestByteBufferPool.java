@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.buffers;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+public class TestByteBufferPool
+{
+    @Test(groups = "fast")
+    public void testSizeClasses() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(false, 1000, 8000, 1024 * 1024);
+        Assert.assertEquals(pool.getMinBufferSize(), 1024);
+        Assert.assertEquals(pool.getMaxBufferSize(), 8192);
+
+        Assert.assertEquals(pool.acquire(1).capacity(), 1024);
+        Assert.assertEquals(pool.acquire(1024).capacity(), 1024);
+        Assert.assertEquals(pool.acquire(1025).capacity(), 2048);
+        Assert.assertEquals(pool.acquire(8192).capacity(), 8192);
+        // Too big to be pooled
+        Assert.assertEquals(pool.acquire(10000).capacity(), 10000);
+        Assert.assertEquals(pool.getAllocationCount(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testReuse() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(true, 1024, 8192, 2048);
+
+        final ByteBuffer first = pool.acquire(2000);
+        Assert.assertTrue(first.isDirect());
+        first.put((byte) 1);
+        pool.release(first);
+        Assert.assertEquals(pool.getPooledBufferCount(), 1);
+
+        final ByteBuffer second = pool.acquire(1500);
+        Assert.assertSame(second, first);
+        Assert.assertEquals(second.position(), 0);
+        Assert.assertEquals(pool.getPoolHitCount(), 1);
+        Assert.assertEquals(pool.getPooledBufferCount(), 0);
+
+        // Only 2048 idle bytes per size class
+        pool.release(pool.acquire(1024));
+        pool.release(ByteBuffer.allocateDirect(1024));
+        pool.release(ByteBuffer.allocateDirect(1024));
+        Assert.assertEquals(pool.getPooledBufferCount(), 2);
+
+        // Foreign buffers are ignored
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(ByteBuffer.allocateDirect(3000));
+        Assert.assertEquals(pool.getPooledBufferCount(), 2);
+    }
+}
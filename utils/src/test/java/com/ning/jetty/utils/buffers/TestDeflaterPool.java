@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.buffers;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.zip.Deflater;
+
+public class TestDeflaterPool
+{
+    @Test(groups = "fast")
+    public void testReuse() throws Exception
+    {
+        final DeflaterPool pool = new DeflaterPool(6, true, 1);
+
+        final Deflater first = pool.acquire();
+        first.setInput(new byte[]{1, 2, 3});
+        first.finish();
+        first.deflate(new byte[64]);
+        pool.release(first);
+        Assert.assertEquals(pool.getPooledCount(), 1);
+
+        // Reset for the next stream
+        final Deflater second = pool.acquire();
+        Assert.assertSame(second, first);
+        Assert.assertFalse(second.finished());
+        Assert.assertEquals(second.getBytesRead(), 0);
+        Assert.assertEquals(pool.getPoolHitCount(), 1);
+
+        // Only one idle instance kept
+        pool.release(second);
+        pool.release(new Deflater());
+        Assert.assertEquals(pool.getPooledCount(), 1);
+        Assert.assertEquals(pool.getAllocationCount(), 1);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLevel() throws Exception
+    {
+        new DeflaterPool(10, true, 1);
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.filters;
+
+import com.ning.jetty.utils.filters.CompressingResponseWrapper.Encoding;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class TestCompressionFilter
+{
+    private static final String JSON = "{\"id\":42,\"name\":\"Ning\",\"tags\":[\"a\",\"b\",\"c\"]}";
+
+    @Test(groups = "fast")
+    public void testNegotiate() throws Exception
+    {
+        Assert.assertEquals(negotiate("gzip, deflate"), Encoding.GZIP);
+        Assert.assertEquals(negotiate("deflate"), Encoding.DEFLATE);
+        Assert.assertEquals(negotiate("gzip;q=0.5, deflate"), Encoding.DEFLATE);
+        Assert.assertEquals(negotiate("GZIP;q=1.0"), Encoding.GZIP);
+        Assert.assertEquals(negotiate("*"), Encoding.GZIP);
+        Assert.assertEquals(negotiate("*;q=0.3, gzip;q=0"), Encoding.DEFLATE);
+        Assert.assertNull(negotiate("identity"));
+        Assert.assertNull(negotiate("gzip;q=0"));
+        Assert.assertNull(negotiate(""));
+        Assert.assertNull(CompressionFilter.negotiate(null));
+    }
+
+    @Test(groups = "fast")
+    public void testGzip() throws Exception
+    {
+        final CompressionFilter filter = new CompressionFilter(100, ImmutableList.of("application/json"), 6);
+        final StubResponse response = new StubResponse();
+        final String body = repeat(JSON, 1000);
+
+        filter.doFilter(request("gzip"), response.proxy, writeBody("application/json; charset=UTF-8", body, false));
+
+        Assert.assertEquals(response.headers.get("Content-Encoding"), "gzip");
+        Assert.assertEquals(response.headers.get("Vary"), "Accept-Encoding");
+        Assert.assertNull(response.headers.get("Content-Length"));
+        Assert.assertTrue(response.body.size() < body.length() / 10);
+        Assert.assertEquals(new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))), "UTF-8"), body);
+
+        Assert.assertEquals(filter.getCompressed(), 1);
+        Assert.assertEquals(filter.getUncompressedBytes(), body.length());
+        Assert.assertEquals(filter.getCompressedBytes(), response.body.size());
+
+        // Deflaters are reused
+        filter.doFilter(request("gzip"), new StubResponse().proxy, writeBody("application/json", body, false));
+        Assert.assertEquals(filter.getDeflaterAllocations(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testDeflateWithWriterAndFlush() throws Exception
+    {
+        final CompressionFilter filter = new CompressionFilter(100, ImmutableList.of("text/plain"), 1);
+        final StubResponse response = new StubResponse();
+        final String body = repeat("h\u00e9llo ", 500);
+
+        filter.doFilter(request("deflate"), response.proxy, writeBody("text/plain; charset=UTF-8", body, true));
+
+        Assert.assertEquals(response.headers.get("Content-Encoding"), "deflate");
+        Assert.assertEquals(new String(ByteStreams.toByteArray(new InflaterInputStream(new ByteArrayInputStream(response.body.toByteArray()))), "UTF-8"), body);
+    }
+
+    @Test(groups = "fast")
+    public void testNotCompressed() throws Exception
+    {
+        final CompressionFilter filter = new CompressionFilter(1024, ImmutableList.of("application/json"), 6);
+
+        // Too small
+        StubResponse response = new StubResponse();
+        filter.doFilter(request("gzip"), response.proxy, writeBody("application/json", JSON, false));
+        Assert.assertNull(response.headers.get("Content-Encoding"));
+        Assert.assertEquals(response.headers.get("Content-Length"), String.valueOf(JSON.length()));
+        Assert.assertEquals(response.body.toString("UTF-8"), JSON);
+
+        // Not compressible
+        response = new StubResponse();
+        final String body = repeat(JSON, 100);
+        filter.doFilter(request("gzip"), response.proxy, writeBody("image/png", body, false));
+        Assert.assertNull(response.headers.get("Content-Encoding"));
+        Assert.assertNull(response.headers.get("Vary"));
+        Assert.assertEquals(response.body.toString("UTF-8"), body);
+
+        // Not accepted by the client
+        response = new StubResponse();
+        filter.doFilter(request(null), response.proxy, writeBody("application/json", body, false));
+        Assert.assertNull(response.headers.get("Content-Encoding"));
+        Assert.assertEquals(response.body.toString("UTF-8"), body);
+
+        Assert.assertEquals(filter.getCompressed(), 0);
+        Assert.assertEquals(filter.getNotCompressed(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testDeclaredContentLength() throws Exception
+    {
+        final CompressionFilter filter = new CompressionFilter(1024, ImmutableList.of("application/json"), 6);
+        final String body = repeat(JSON, 100);
+        final StubResponse response = new StubResponse();
+
+        filter.doFilter(request("gzip"), response.proxy, new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                response.setContentType("application/json");
+                response.setContentLength(body.length());
+                response.getOutputStream().write(body.getBytes("UTF-8"));
+            }
+        });
+
+        // The declared length is for the uncompressed body
+        Assert.assertNull(response.headers.get("Content-Length"));
+        Assert.assertEquals(response.headers.get("Content-Encoding"), "gzip");
+    }
+
+    @Test(groups = "fast")
+    public void testTrackedBytesAreCompressed() throws Exception
+    {
+        final CompressionFilter filter = new CompressionFilter(100, ImmutableList.of("application/json"), 6);
+        final StubResponse response = new StubResponse();
+        // What the TrackerFilter does
+        final PeepingTomResponseWrapper trackedResponse = new PeepingTomResponseWrapper(response.proxy, PeepingTomResponseWrapper.CaptureMode.COUNT);
+
+        filter.doFilter(request("gzip"), trackedResponse, writeBody("application/json", repeat(JSON, 1000), false));
+
+        Assert.assertEquals(trackedResponse.getBytesWritten(), response.body.size());
+        Assert.assertEquals(trackedResponse.getBytesWritten(), filter.getCompressedBytes());
+    }
+
+    @Test(groups = "fast")
+    public void testApplicationFailure() throws Exception
+    {
+        final CompressionFilter filter = new CompressionFilter(100, ImmutableList.of("application/json"), 6);
+
+        // Still buffering
+        StubResponse response = new StubResponse();
+        try {
+            filter.doFilter(request("gzip"), response.proxy, writeBodyAndFail("{\"id\":"));
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Boom");
+        }
+        // Nothing committed: the container can send an error
+        Assert.assertEquals(response.body.size(), 0);
+        Assert.assertNull(response.headers.get("Content-Length"));
+        Assert.assertNull(response.headers.get("Content-Encoding"));
+
+        // Compressing
+        response = new StubResponse();
+        try {
+            filter.doFilter(request("gzip"), response.proxy, writeBodyAndFail(repeat(JSON, 1000)));
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Boom");
+        }
+        Assert.assertEquals(filter.getCompressed(), 0);
+        Assert.assertEquals(filter.getNotCompressed(), 0);
+
+        // The Deflater went back to the pool
+        filter.doFilter(request("gzip"), new StubResponse().proxy, writeBody("application/json", repeat(JSON, 1000), false));
+        Assert.assertEquals(filter.getDeflaterAllocations(), 1);
+        Assert.assertEquals(filter.getCompressed(), 1);
+    }
+
+    private static Encoding negotiate(final String header)
+    {
+        return CompressionFilter.negotiate(Collections.enumeration(Collections.singletonList(header)));
+    }
+
+    private static String repeat(final String value, final int times)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static FilterChain writeBody(final String contentType, final String body, final boolean useWriter)
+    {
+        return new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                response.setContentType(contentType);
+                if (useWriter) {
+                    response.getWriter().write(body.substring(0, body.length() / 2));
+                    response.flushBuffer();
+                    response.getWriter().write(body.substring(body.length() / 2));
+                }
+                else {
+                    final byte[] bytes = body.getBytes("UTF-8");
+                    // In small chunks
+                    for (int i = 0; i < bytes.length; i += 100) {
+                        response.getOutputStream().write(bytes, i, Math.min(100, bytes.length - i));
+                    }
+                }
+            }
+        };
+    }
+
+    private static FilterChain writeBodyAndFail(final String body)
+    {
+        return new FilterChain()
+        {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException
+            {
+                response.setContentType("application/json");
+                response.getOutputStream().write(body.getBytes("UTF-8"));
+                throw new IllegalStateException("Boom");
+            }
+        };
+    }
+
+    private static HttpServletRequest request(final String acceptEncoding)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(TestCompressionFilter.class.getClassLoader(), new Class[]{HttpServletRequest.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("getMethod".equals(method.getName())) {
+                    return "GET";
+                }
+                else if ("getHeaders".equals(method.getName())) {
+                    final Enumeration<String> headers = acceptEncoding == null ? Collections.enumeration(Collections.<String>emptyList()) : Collections.enumeration(Collections.singletonList(acceptEncoding));
+                    return headers;
+                }
+                else if ("isAsyncStarted".equals(method.getName())) {
+                    return false;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static final class StubResponse implements InvocationHandler
+    {
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class}, this);
+        private final ServletOutputStream stream = new ServletOutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+                body.write(b);
+            }
+        };
+        private String contentType = null;
+        private String characterEncoding = "ISO-8859-1";
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if ("setContentType".equals(name)) {
+                contentType = (String) args[0];
+                final int idx = contentType.indexOf("charset=");
+                if (idx > 0) {
+                    characterEncoding = contentType.substring(idx + "charset=".length());
+                }
+            }
+            else if ("getContentType".equals(name)) {
+                return contentType;
+            }
+            else if ("setCharacterEncoding".equals(name)) {
+                characterEncoding = (String) args[0];
+            }
+            else if ("getCharacterEncoding".equals(name)) {
+                return characterEncoding;
+            }
+            else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+                headers.put((String) args[0], (String) args[1]);
+            }
+            else if ("setContentLength".equals(name)) {
+                headers.put("Content-Length", String.valueOf(args[0]));
+            }
+            else if ("containsHeader".equals(name)) {
+                return headers.containsKey((String) args[0]);
+            }
+            else if ("getStatus".equals(name)) {
+                return 200;
+            }
+            else if ("isCommitted".equals(name)) {
+                return false;
+            }
+            else if ("getOutputStream".equals(name)) {
+                return stream;
+            }
+            return null;
+        }
+    }
+}
\ No newline at end of file
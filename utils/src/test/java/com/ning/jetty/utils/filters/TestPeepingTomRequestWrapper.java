@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.filters;
+
+import com.ning.jetty.utils.buffers.ByteBufferPool;
+
+import com.google.common.io.ByteStreams;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestPeepingTomRequestWrapper
+{
+    private static final String BODY = "{\"id\":42,\"name\":\"Ning\"}";
+
+    @Test(groups = "fast")
+    public void testCapture() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(false, 16, 1024, 1024);
+        final PeepingTomRequestWrapper wrapper = new PeepingTomRequestWrapper(new StubRequest(BODY).proxy, pool, 10);
+
+        Assert.assertEquals(new String(ByteStreams.toByteArray(wrapper.getInputStream()), "UTF-8"), BODY);
+        // Capped, the application still got the full body
+        Assert.assertEquals(new String(ByteStreams.toByteArray(wrapper.getUnderlyingStream()), "UTF-8"), BODY.substring(0, 10));
+    }
+
+    @Test(groups = "fast")
+    public void testReleasedWhenRequestIsDestroyed() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(false, 16, 1024, 1024);
+        final StubRequest request = new StubRequest(BODY);
+        final PeepingTomRequestWrapper wrapper = new PeepingTomRequestWrapper(request.proxy, pool, 1024);
+        final PeepingTomRequestListener listener = new PeepingTomRequestListener();
+
+        ByteStreams.toByteArray(wrapper.getInputStream());
+        Assert.assertEquals(request.attributes.get(PeepingTomRequestWrapper.ATTRIBUTE), wrapper);
+        Assert.assertEquals(pool.getPooledBufferCount(), 0);
+
+        listener.requestDestroyed(new ServletRequestEvent(context(), request.proxy));
+        Assert.assertEquals(pool.getPooledBufferCount(), 1);
+        Assert.assertNull(wrapper.getUnderlyingStream());
+    }
+
+    @Test(groups = "fast")
+    public void testNothingBorrowedAfterRelease() throws Exception
+    {
+        final ByteBufferPool pool = new ByteBufferPool(false, 16, 1024, 1024);
+        final PeepingTomRequestWrapper wrapper = new PeepingTomRequestWrapper(new StubRequest(BODY).proxy, pool, 1024);
+
+        wrapper.release();
+        Assert.assertEquals(new String(ByteStreams.toByteArray(wrapper.getInputStream()), "UTF-8"), BODY);
+        Assert.assertEquals(pool.getAllocationCount(), 0);
+        Assert.assertEquals(pool.getPoolHitCount(), 0);
+        Assert.assertNull(wrapper.getUnderlyingStream());
+    }
+
+    private static ServletContext context()
+    {
+        return (ServletContext) Proxy.newProxyInstance(TestPeepingTomRequestWrapper.class.getClassLoader(), new Class[]{ServletContext.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                return null;
+            }
+        });
+    }
+
+    private static final class StubRequest implements InvocationHandler
+    {
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private final HttpServletRequest proxy = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class}, this);
+        private final ServletInputStream stream;
+
+        private StubRequest(final String body) throws IOException
+        {
+            final ByteArrayInputStream bytes = new ByteArrayInputStream(body.getBytes("UTF-8"));
+            this.stream = new ServletInputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    return bytes.read();
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException
+                {
+                    return bytes.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if ("getMethod".equals(name)) {
+                return "POST";
+            }
+            else if ("getInputStream".equals(name)) {
+                return stream;
+            }
+            else if ("setAttribute".equals(name)) {
+                attributes.put((String) args[0], args[1]);
+            }
+            else if ("getAttribute".equals(name)) {
+                return attributes.get((String) args[0]);
+            }
+            else if ("isAsyncStarted".equals(name)) {
+                return false;
+            }
+            return null;
+        }
+    }
+}
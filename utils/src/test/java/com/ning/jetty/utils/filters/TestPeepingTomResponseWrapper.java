@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.filters;
+
+import com.ning.jetty.utils.filters.PeepingTomResponseWrapper.CaptureMode;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+public class TestPeepingTomResponseWrapper
+{
+    private static final byte[] BODY = "0123456789abcdefghij".getBytes();
+
+    @Test(groups = "fast")
+    public void testFullCapture() throws Exception
+    {
+        final StubResponse response = new StubResponse(false);
+        final PeepingTomResponseWrapper wrapper = new PeepingTomResponseWrapper(response.proxy);
+        Assert.assertEquals(wrapper.getCaptureMode(), CaptureMode.FULL);
+
+        writeBody(wrapper);
+
+        Assert.assertEquals(response.body.toByteArray(), BODY);
+        Assert.assertEquals(wrapper.getUnderlyingStream().toByteArray(), BODY);
+        Assert.assertEquals(wrapper.getBytesWritten(), BODY.length);
+    }
+
+    @Test(groups = "fast")
+    public void testPrefixCapture() throws Exception
+    {
+        final StubResponse response = new StubResponse(false);
+        final PeepingTomResponseWrapper wrapper = new PeepingTomResponseWrapper(response.proxy, CaptureMode.PREFIX, 12);
+
+        writeBody(wrapper);
+
+        // The client gets everything, only the first bytes are kept, across bulk and single byte writes
+        Assert.assertEquals(response.body.toByteArray(), BODY);
+        Assert.assertEquals(new String(wrapper.getUnderlyingStream().toByteArray()), "0123456789ab");
+        Assert.assertEquals(wrapper.getBytesWritten(), BODY.length);
+    }
+
+    @Test(groups = "fast")
+    public void testCountOnly() throws Exception
+    {
+        final StubResponse response = new StubResponse(false);
+        final PeepingTomResponseWrapper wrapper = new PeepingTomResponseWrapper(response.proxy, CaptureMode.COUNT);
+
+        Assert.assertEquals(wrapper.getBytesWritten(), 0);
+        writeBody(wrapper);
+
+        Assert.assertEquals(response.body.toByteArray(), BODY);
+        Assert.assertNull(wrapper.getUnderlyingStream());
+        Assert.assertEquals(wrapper.getBytesWritten(), BODY.length);
+        Assert.assertEquals(wrapper.getOutputStream().toString(), "<" + BODY.length + " bytes>");
+    }
+
+    @Test(groups = "fast")
+    public void testBulkWriteThroughWriter() throws Exception
+    {
+        // getWriter() was already called by the application
+        final StubResponse response = new StubResponse(true);
+        final PeepingTomResponseWrapper wrapper = new PeepingTomResponseWrapper(response.proxy);
+
+        wrapper.getOutputStream().write(BODY, 5, 10);
+        wrapper.getOutputStream().flush();
+
+        Assert.assertEquals(response.writer.toString(), "56789abcde");
+        Assert.assertEquals(new String(wrapper.getUnderlyingStream().toByteArray()), "56789abcde");
+        Assert.assertEquals(wrapper.getBytesWritten(), 10);
+    }
+
+    @Test(groups = "fast")
+    public void testTimeOfFirstByte() throws Exception
+    {
+        final PeepingTomResponseWrapper wrapper = new PeepingTomResponseWrapper(new StubResponse(false).proxy, CaptureMode.COUNT);
+        Assert.assertNull(wrapper.getTimeOfFirstByte());
+        Assert.assertEquals(wrapper.getNanoTimeOfFirstByte(), 0);
+
+        // Empty writes don't count
+        wrapper.getOutputStream().write(BODY, 0, 0);
+        Assert.assertNull(wrapper.getTimeOfFirstByte());
+
+        final long beforeMillis = System.currentTimeMillis();
+        final long beforeNanos = System.nanoTime();
+        wrapper.getOutputStream().write(BODY, 0, 1);
+        final Long timeOfFirstByte = wrapper.getTimeOfFirstByte();
+        final long nanoTimeOfFirstByte = wrapper.getNanoTimeOfFirstByte();
+        Assert.assertTrue(timeOfFirstByte >= beforeMillis);
+        Assert.assertTrue(nanoTimeOfFirstByte - beforeNanos >= 0);
+
+        // Only the first write is recorded
+        Thread.sleep(5);
+        wrapper.getOutputStream().write(BODY, 1, 5);
+        wrapper.getOutputStream().write('x');
+        Assert.assertEquals(wrapper.getTimeOfFirstByte(), timeOfFirstByte);
+        Assert.assertEquals(wrapper.getNanoTimeOfFirstByte(), nanoTimeOfFirstByte);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidMaxCapturedBytes() throws Exception
+    {
+        new PeepingTomResponseWrapper(new StubResponse(false).proxy, CaptureMode.PREFIX, -1);
+    }
+
+    private static void writeBody(final PeepingTomResponseWrapper wrapper) throws IOException
+    {
+        // Bulk write crossing the prefix cap, then single bytes
+        wrapper.getOutputStream().write(BODY, 0, 10);
+        wrapper.getOutputStream().write(BODY, 10, 0);
+        for (int i = 10; i < BODY.length; i++) {
+            wrapper.getOutputStream().write(BODY[i]);
+        }
+    }
+
+    private static final class StubResponse implements InvocationHandler
+    {
+        private final boolean writerUsed;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final StringWriter writer = new StringWriter();
+        private final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class}, this);
+        private final ServletOutputStream stream = new ServletOutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+                body.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException
+            {
+                body.write(b, off, len);
+            }
+        };
+
+        private StubResponse(final boolean writerUsed)
+        {
+            this.writerUsed = writerUsed;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if ("getOutputStream".equals(name)) {
+                if (writerUsed) {
+                    throw new IllegalStateException("getWriter() already called");
+                }
+                return stream;
+            }
+            else if ("getWriter".equals(name)) {
+                return new PrintWriter(writer);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets;
+
+import com.ning.jetty.utils.filters.PeepingTomResponseWrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestHttpProxyServlet
+{
+    private static final String[] CHUNKS = new String[]{"first chunk,", "second chunk,", "last chunk"};
+    private static final int BIG_BODY_SIZE = 3 * HttpProxyServlet.MAX_PENDING_BYTES;
+
+    private static final class RecordingServiceFinder implements LoadBalancedServiceFinder
+    {
+        private final String remoteHost;
+        private final List<String> completions = new CopyOnWriteArrayList<String>();
+        private final List<String> aborts = new CopyOnWriteArrayList<String>();
+
+        private RecordingServiceFinder(final String remoteHost)
+        {
+            this.remoteHost = remoteHost;
+        }
+
+        @Override
+        public String getRemoteHost()
+        {
+            return remoteHost;
+        }
+
+        @Override
+        public void requestCompleted(final String remoteHost, final long latencyMillis, final boolean success)
+        {
+            completions.add(remoteHost + ":" + success);
+        }
+
+        @Override
+        public void requestAborted(final String remoteHost)
+        {
+            aborts.add(remoteHost);
+        }
+    }
+
+    /**
+     * Client side of the proxy: an async request and its response, recording what is sent
+     */
+    private static final class StubExchange implements InvocationHandler
+    {
+        private final String uri;
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final List<String> writerThreads = new CopyOnWriteArrayList<String>();
+        private volatile int status = -1;
+        private volatile int error = -1;
+        private volatile long writeDelayMillis = 0;
+        private volatile boolean brokenRequestBody = false;
+
+        private final ServletOutputStream stream = new ServletOutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException
+            {
+                writerThreads.add(Thread.currentThread().getName());
+                sleep(writeDelayMillis);
+                synchronized (body) {
+                    body.write(b, off, len);
+                }
+            }
+        };
+        private final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{AsyncContext.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("complete".equals(method.getName())) {
+                    completed.countDown();
+                }
+                return null;
+            }
+        });
+        private final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class}, this);
+        private final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class}, this);
+
+        private StubExchange(final String uri)
+        {
+            this.uri = uri;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            // Request
+            if ("getMethod".equals(name)) {
+                return "GET";
+            }
+            else if ("getRequestURI".equals(name)) {
+                return uri;
+            }
+            else if ("getRemoteAddr".equals(name)) {
+                return "127.0.0.1";
+            }
+            else if ("getHeaderNames".equals(name)) {
+                return Collections.enumeration(brokenRequestBody ? Collections.singletonList("Content-Type") : Collections.<String>emptyList());
+            }
+            else if ("getHeaders".equals(name)) {
+                return Collections.enumeration(brokenRequestBody ? Collections.singletonList("text/plain") : Collections.<String>emptyList());
+            }
+            else if ("getInputStream".equals(name)) {
+                // The client went away while sending its body
+                throw new IOException("Connection reset by peer");
+            }
+            else if ("isAsyncSupported".equals(name)) {
+                return true;
+            }
+            else if ("startAsync".equals(name)) {
+                return asyncContext;
+            }
+            // Response
+            else if ("setStatus".equals(name)) {
+                status = (Integer) args[0];
+            }
+            else if ("sendError".equals(name)) {
+                error = (Integer) args[0];
+            }
+            else if ("getOutputStream".equals(name)) {
+                return stream;
+            }
+            else if ("isCommitted".equals(name)) {
+                return body.size() > 0;
+            }
+            return null;
+        }
+
+        private void await() throws InterruptedException
+        {
+            Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private HttpServer backend;
+    private HttpProxyServlet servlet;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        backend.createContext("/stream", new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                // Chunked
+                exchange.sendResponseHeaders(200, 0);
+                final OutputStream output = exchange.getResponseBody();
+                for (final String chunk : CHUNKS) {
+                    output.write(chunk.getBytes("UTF-8"));
+                    output.flush();
+                    sleep(20);
+                }
+                output.close();
+            }
+        });
+        backend.createContext("/big", new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                exchange.sendResponseHeaders(200, BIG_BODY_SIZE);
+                final OutputStream output = exchange.getResponseBody();
+                final byte[] buffer = new byte[8192];
+                for (int i = 0; i < BIG_BODY_SIZE; i += buffer.length) {
+                    for (int j = 0; j < buffer.length; j++) {
+                        buffer[j] = (byte) (i + j);
+                    }
+                    output.write(buffer, 0, Math.min(buffer.length, BIG_BODY_SIZE - i));
+                }
+                output.close();
+            }
+        });
+        backend.createContext("/unavailable", new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        });
+        backend.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+        backend.stop(0);
+    }
+
+    @Test(groups = "fast")
+    public void testStreaming() throws Exception
+    {
+        final RecordingServiceFinder finder = new RecordingServiceFinder("127.0.0.1:" + backend.getAddress().getPort());
+        servlet = newServlet(finder);
+
+        final StubExchange exchange = new StubExchange("/stream");
+        servlet.service(exchange.request, exchange.response);
+        exchange.await();
+
+        Assert.assertEquals(exchange.status, 200);
+        Assert.assertEquals(exchange.body.toString("UTF-8"), CHUNKS[0] + CHUNKS[1] + CHUNKS[2]);
+        Assert.assertEquals(finder.completions, Collections.singletonList(finder.remoteHost + ":true"));
+        // Off the AsyncHttpClient I/O threads
+        for (final String thread : exchange.writerThreads) {
+            Assert.assertTrue(thread.contains("HttpProxyServlet-writer"), thread);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSlowClient() throws Exception
+    {
+        final RecordingServiceFinder finder = new RecordingServiceFinder("127.0.0.1:" + backend.getAddress().getPort());
+        servlet = newServlet(finder);
+
+        // The I/O thread doesn't wait for the client: past MAX_PENDING_BYTES, the response is cut short
+        final StubExchange exchange = new StubExchange("/big");
+        exchange.writeDelayMillis = 5;
+        servlet.service(exchange.request, exchange.response);
+        Assert.assertTrue(exchange.completed.await(30, TimeUnit.SECONDS));
+
+        final byte[] body = exchange.body.toByteArray();
+        Assert.assertTrue(body.length < BIG_BODY_SIZE, "body length: " + body.length);
+        for (int i = 0; i < body.length; i++) {
+            Assert.assertEquals(body[i], (byte) i);
+        }
+        // The remote host isn't to blame
+        Assert.assertEquals(finder.completions, Collections.singletonList(finder.remoteHost + ":true"));
+    }
+
+    @Test(groups = "fast")
+    public void testUpstreamError() throws Exception
+    {
+        final RecordingServiceFinder finder = new RecordingServiceFinder("127.0.0.1:" + backend.getAddress().getPort());
+        servlet = newServlet(finder);
+
+        final StubExchange exchange = new StubExchange("/unavailable");
+        servlet.service(exchange.request, exchange.response);
+        exchange.await();
+
+        // Proxied as is, but the backend gets the blame
+        Assert.assertEquals(exchange.status, 503);
+        Assert.assertEquals(exchange.error, -1);
+        Assert.assertEquals(finder.completions, Collections.singletonList(finder.remoteHost + ":false"));
+    }
+
+    @Test(groups = "fast")
+    public void testUpstreamFailure() throws Exception
+    {
+        // Nobody listening there
+        final ServerSocket socket = new ServerSocket(0);
+        final int port = socket.getLocalPort();
+        socket.close();
+
+        final RecordingServiceFinder finder = new RecordingServiceFinder("127.0.0.1:" + port);
+        servlet = newServlet(finder);
+
+        final StubExchange exchange = new StubExchange("/stream");
+        servlet.service(exchange.request, exchange.response);
+        exchange.await();
+
+        Assert.assertEquals(exchange.error, HttpServletResponse.SC_BAD_GATEWAY);
+        Assert.assertEquals(exchange.body.size(), 0);
+        Assert.assertEquals(finder.completions, Collections.singletonList(finder.remoteHost + ":false"));
+    }
+
+    @Test(groups = "fast")
+    public void testClientFailure() throws Exception
+    {
+        final RecordingServiceFinder finder = new RecordingServiceFinder("127.0.0.1:" + backend.getAddress().getPort());
+        servlet = newServlet(finder);
+
+        final StubExchange exchange = new StubExchange("/stream");
+        exchange.brokenRequestBody = true;
+        try {
+            servlet.service(exchange.request, exchange.response);
+            Assert.fail("The client's failure should be rethrown");
+        }
+        catch (IOException e) {
+            Assert.assertEquals(e.getMessage(), "Connection reset by peer");
+        }
+
+        // The backend was never contacted: released, not blamed
+        Assert.assertEquals(finder.completions, Collections.<String>emptyList());
+        Assert.assertEquals(finder.aborts, Collections.singletonList(finder.remoteHost));
+    }
+
+    @Test(groups = "fast")
+    public void testTrackedThroughFilterWrappers() throws Exception
+    {
+        final RecordingServiceFinder finder = new RecordingServiceFinder("127.0.0.1:" + backend.getAddress().getPort());
+        servlet = newServlet(finder);
+
+        // What the TrackerFilter sees, under another filter's wrapper
+        final StubExchange exchange = new StubExchange("/stream");
+        final PeepingTomResponseWrapper tracked = new PeepingTomResponseWrapper(exchange.response, PeepingTomResponseWrapper.CaptureMode.COUNT);
+        final AtomicBoolean outerWrapperUsed = new AtomicBoolean(false);
+        servlet.service(exchange.request, new HttpServletResponseWrapper(tracked)
+        {
+            @Override
+            public ServletOutputStream getOutputStream() throws IOException
+            {
+                outerWrapperUsed.set(true);
+                return super.getOutputStream();
+            }
+        });
+        exchange.await();
+
+        Assert.assertTrue(outerWrapperUsed.get());
+        Assert.assertEquals(tracked.getStatus(), 200);
+        Assert.assertEquals(tracked.getBytesWritten(), exchange.body.size());
+        Assert.assertTrue(tracked.getNanoTimeOfFirstByte() > 0);
+
+        // Failures too
+        final ServerSocket socket = new ServerSocket(0);
+        final int port = socket.getLocalPort();
+        socket.close();
+        servlet.destroy();
+        servlet = newServlet(new RecordingServiceFinder("127.0.0.1:" + port));
+
+        final StubExchange failedExchange = new StubExchange("/stream");
+        final PeepingTomResponseWrapper failedTracked = new PeepingTomResponseWrapper(failedExchange.response, PeepingTomResponseWrapper.CaptureMode.COUNT);
+        servlet.service(failedExchange.request, new HttpServletResponseWrapper(failedTracked));
+        failedExchange.await();
+
+        Assert.assertEquals(failedTracked.getStatus(), HttpServletResponse.SC_BAD_GATEWAY);
+        Assert.assertEquals(failedTracked.getBytesWritten(), 0);
+    }
+
+    private static HttpProxyServlet newServlet(final ServiceFinder finder) throws Exception
+    {
+        final HttpProxyServlet servlet = new HttpProxyServlet();
+        final Field field = HttpProxyServlet.class.getDeclaredField("serviceFinder");
+        field.setAccessible(true);
+        field.set(servlet, finder);
+
+        final ServletContext context = (ServletContext) Proxy.newProxyInstance(TestHttpProxyServlet.class.getClassLoader(), new Class[]{ServletContext.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                return null;
+            }
+        });
+        servlet.init((ServletConfig) Proxy.newProxyInstance(TestHttpProxyServlet.class.getClassLoader(), new Class[]{ServletConfig.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if ("getInitParameter".equals(method.getName()) && HttpProxyServlet.ASYNC_INIT_PARAMETER.equals(args[0])) {
+                    return "true";
+                }
+                else if ("getServletContext".equals(method.getName())) {
+                    return context;
+                }
+                return null;
+            }
+        }));
+        return servlet;
+    }
+
+    private static void sleep(final long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.jetty.utils.servlets.finders;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class TestLoadBalancingServiceFinder
+{
+    @Test(groups = "fast")
+    public void testRoundRobin() throws Exception
+    {
+        final LoadBalancingServiceFinder finder = new LoadBalancingServiceFinder(new StaticHostListProvider("a:80", "b:80", "c:80"), new RoundRobinStrategy());
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(finder.getRemoteHost(), "a:80");
+            Assert.assertEquals(finder.getRemoteHost(), "b:80");
+            Assert.assertEquals(finder.getRemoteHost(), "c:80");
+        }
+        Assert.assertEquals(finder.getNbBackends(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testPassiveHealthCheck() throws Exception
+    {
+        final LoadBalancingServiceFinder finder = new LoadBalancingServiceFinder(new StaticHostListProvider("a:80", "b:80"), new RoundRobinStrategy(), 2, 60000);
+
+        // Two failures in a row eject a
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(finder.getRemoteHost(), "a:80");
+            finder.requestCompleted("a:80", 10, false);
+            Assert.assertEquals(finder.getRemoteHost(), "b:80");
+            finder.requestCompleted("b:80", 10, true);
+        }
+        Assert.assertEquals(finder.getNbHealthyBackends(), 1);
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(finder.getRemoteHost(), "b:80");
+            finder.requestCompleted("b:80", 10, false);
+        }
+
+        // Everybody is down, everybody is back in rotation
+        Assert.assertEquals(finder.getNbHealthyBackends(), 0);
+        Assert.assertNotNull(finder.getRemoteHost());
+    }
+
+    @Test(groups = "fast")
+    public void testAbortedRequests() throws Exception
+    {
+        final LoadBalancingServiceFinder finder = new LoadBalancingServiceFinder(new StaticHostListProvider("a:80"), new RoundRobinStrategy(), 2, 60000);
+        final Backend backend = finder.getBackends().get(0);
+
+        // Aborted requests release the backend without counting against it
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(finder.getRemoteHost(), "a:80");
+            Assert.assertEquals(backend.getInFlight(), 1);
+            finder.requestAborted("a:80");
+            Assert.assertEquals(backend.getInFlight(), 0);
+        }
+        Assert.assertEquals(backend.getFailures(), 0);
+        Assert.assertEquals(backend.getSuccesses(), 0);
+        Assert.assertEquals(finder.getNbHealthyBackends(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testPowerOfTwoChoices() throws Exception
+    {
+        final LoadBalancingServiceFinder finder = new LoadBalancingServiceFinder(new StaticHostListProvider("a:80", "b:80"), new PowerOfTwoChoicesStrategy());
+
+        // With two backends, both are always picked: requests should alternate to balance in-flight counts
+        final String first = finder.getRemoteHost();
+        final String second = finder.getRemoteHost();
+        Assert.assertNotEquals(first, second);
+
+        finder.requestCompleted(first, 10, true);
+        Assert.assertEquals(finder.getRemoteHost(), first);
+    }
+
+    @Test(groups = "fast")
+    public void testEwmaLatency() throws Exception
+    {
+        final LoadBalancingServiceFinder finder = new LoadBalancingServiceFinder(new StaticHostListProvider("slow:80", "fast:80"), new EwmaLatencyStrategy());
+
+        for (final Backend backend : finder.getBackends()) {
+            backend.requestStarted();
+            finder.requestCompleted(backend.getHost(), backend.getHost().startsWith("slow") ? 500 : 5, true);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            final String host = finder.getRemoteHost();
+            Assert.assertEquals(host, "fast:80");
+            finder.requestCompleted(host, 5, true);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFileHostList() throws Exception
+    {
+        final File file = File.createTempFile("hosts", ".txt");
+        file.deleteOnExit();
+        Files.write("# Backends\na:80\n\n  b:80  \n", file, Charsets.UTF_8);
+
+        final LoadBalancingServiceFinder finder = new LoadBalancingServiceFinder(new FileHostListProvider(file, 0), new RoundRobinStrategy());
+        Assert.assertEquals(finder.getNbBackends(), 2);
+        Assert.assertEquals(finder.getBackendStats().length, 2);
+        Assert.assertTrue(finder.getBackendStats()[1].startsWith("b:80"));
+    }
+}